@@ -0,0 +1,86 @@
+package benchmarks;
+
+/**
+ * One measured operation. Single-threaded benchmarks implement op(); the
+ * runner calls it in batches and times whole iterations, so the timing
+ * overhead is spread over many calls. Benchmarks that need several threads
+ * (e.g. queue contention) override measure() instead.
+ *
+ * Anything an operation computes should be handed to the Blackhole, or the
+ * JIT may remove the work being measured.
+ *
+ * @author jdk85
+ *
+ */
+public abstract class Benchmark
+{
+	/** Name results are reported and compared under, e.g. "codec.encode.buffer.float32" */
+	public final String name;
+
+	protected Benchmark(String name){
+		this.name = name;
+	}
+
+	/**
+	 * Called once before the warmup
+	 * @throws Exception
+	 */
+	public void setup() throws Exception{
+	}
+
+	/**
+	 * Called once after the last iteration
+	 * @throws Exception
+	 */
+	public void teardown() throws Exception{
+	}
+
+	/**
+	 * The operation being measured
+	 * @param bh - receives the results
+	 * @throws Exception
+	 */
+	protected void op(Blackhole bh) throws Exception{
+		throw new UnsupportedOperationException(name + " must implement op() or measure()");
+	}
+
+	/**
+	 * Runs the operation for about duration
+	 * @param duration - length of the iteration (ns)
+	 * @param bh
+	 * @return the number of operations performed
+	 * @throws Exception
+	 */
+	protected long measure(long duration, Blackhole bh) throws Exception{
+		long ops = 0;
+		long batch = 1;
+		long deadline = System.nanoTime() + duration;
+		do{
+			for(long i = 0; i < batch; i++){
+				op(bh);
+			}
+			ops += batch;
+			//Grow the batch so the clock is read rarely once the operation proves fast
+			if(batch < 65536){
+				batch <<= 1;
+			}
+		}while(System.nanoTime() < deadline);
+		return ops;
+	}
+
+	/**
+	 * @return true if every operation runs on the calling thread, so the bytes
+	 * it allocates can be read from the thread's allocation counter
+	 */
+	public boolean single_threaded(){
+		return true;
+	}
+
+	/**
+	 * @return the number of threads the benchmark keeps busy - results from a
+	 * machine with fewer cpus measure time slicing rather than contention
+	 */
+	public int threads(){
+		return 1;
+	}
+}
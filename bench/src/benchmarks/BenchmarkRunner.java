@@ -0,0 +1,294 @@
+package benchmarks;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.GnuParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+/**
+ * Runs the benchmark suite and keeps baselines to compare against.
+ *
+ * Every benchmark gets warmup iterations, whose results are thrown away, then
+ * timed iterations of a fixed length. Reported per benchmark: mean ns/op, the
+ * standard deviation across iterations, throughput, and bytes allocated per
+ * op. Allocation is read from the JVM's per-thread counter, so it is only
+ * reported for single-threaded benchmarks.
+ *
+ * A baseline is the CSV written with -s. Running with -c compares every
+ * result against a baseline and flags a benchmark as a regression when it
+ * got slower by more than the threshold and by more than the noise of both
+ * runs. The exit status is 1 if anything regressed. Baselines from different
+ * machines or JVMs aren't comparable - keep one per machine under
+ * bench/baselines. A benchmark that keeps more threads busy than the machine
+ * has cpus is marked "oversubscribed": its numbers measure the scheduler,
+ * so contention results have to come from a machine with enough cores.
+ *
+ * The suite is compiled against the client sources and the jars in the
+ * project root, from the project root:
+ *
+ *		javac -encoding cp1252 -d /tmp/bench -cp "$(ls *.jar | tr '\n' ':')" $(find src bench/src -name '*.java')
+ *		java -cp "/tmp/bench:$(ls *.jar | tr '\n' ':')" benchmarks.BenchmarkRunner -c bench/baselines/baseline.csv
+ *
+ * @author jdk85
+ *
+ */
+public class BenchmarkRunner
+{
+	private static final int DEFAULT_WARMUP = 3;
+	private static final int DEFAULT_ITERATIONS = 5;
+	private static final long DEFAULT_ITERATION_MS = 1000;
+	private static final double DEFAULT_THRESHOLD = 10;
+
+	/** Result of one benchmark */
+	static class Result {
+		final String name;
+		final double ns_per_op, error;
+		/** Bytes allocated per op, -1 when not measured */
+		final double bytes_per_op;
+
+		Result(String name, double ns_per_op, double error, double bytes_per_op){
+			this.name = name;
+			this.ns_per_op = ns_per_op;
+			this.error = error;
+			this.bytes_per_op = bytes_per_op;
+		}
+	}
+
+	private int warmup = DEFAULT_WARMUP;
+	private int iterations = DEFAULT_ITERATIONS;
+	private long iteration_ms = DEFAULT_ITERATION_MS;
+	private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+	public static void main(String args[]) throws Exception
+	{
+		CommandLineParser parser = new GnuParser();
+		Options options = new Options();
+		options.addOption("h", "help", false, "print help");
+		options.addOption("l", "list", false, "list the benchmarks and exit");
+		options.addOption("f", "filter", true, "only run benchmarks whose name matches this regular expression");
+		options.addOption("w", "warmup", true, "warmup iterations - defaults to " + DEFAULT_WARMUP);
+		options.addOption("i", "iterations", true, "measured iterations - defaults to " + DEFAULT_ITERATIONS);
+		options.addOption("t", "time", true, "ms per iteration - defaults to " + DEFAULT_ITERATION_MS);
+		options.addOption("s", "save", true, "write the results to this baseline file");
+		options.addOption("c", "compare", true, "compare the results with this baseline file");
+		options.addOption("x", "threshold", true, "% slower than the baseline that counts as a regression - defaults to " + DEFAULT_THRESHOLD);
+
+		CommandLine line;
+		try{
+			line = parser.parse(options, args);
+		}catch(ParseException e){
+			System.err.println("Argument error: " + e.getMessage());
+			System.exit(2);
+			return;
+		}
+		if(line.hasOption("help")){
+			new HelpFormatter().printHelp("BenchmarkRunner", options);
+			return;
+		}
+
+		List<Benchmark> suite = new ArrayList<Benchmark>();
+		suite.addAll(CodecBenchmarks.all());
+		suite.addAll(QueueBenchmarks.all());
+		suite.addAll(MessageBenchmarks.all());
+		suite.addAll(LoggerBenchmarks.all());
+		suite.addAll(MetricsBenchmarks.all());
+		if(line.hasOption("filter")){
+			Pattern filter = Pattern.compile(line.getOptionValue("filter"));
+			List<Benchmark> filtered = new ArrayList<Benchmark>();
+			for(Benchmark bench : suite){
+				if(filter.matcher(bench.name).find()){
+					filtered.add(bench);
+				}
+			}
+			suite = filtered;
+		}
+		if(line.hasOption("list")){
+			for(Benchmark bench : suite){
+				System.out.println(bench.name);
+			}
+			return;
+		}
+
+		BenchmarkRunner runner = new BenchmarkRunner();
+		try{
+			if(line.hasOption("warmup")) runner.warmup = Integer.parseInt(line.getOptionValue("warmup"));
+			if(line.hasOption("iterations")) runner.iterations = Math.max(1, Integer.parseInt(line.getOptionValue("iterations")));
+			if(line.hasOption("time")) runner.iteration_ms = Long.parseLong(line.getOptionValue("time"));
+		}catch(NumberFormatException e){
+			System.err.println("ERROR parsing 'warmup', 'iterations' or 'time' - must be an integer value");
+			System.exit(2);
+		}
+		double threshold = DEFAULT_THRESHOLD;
+		if(line.hasOption("threshold")){
+			threshold = Double.parseDouble(line.getOptionValue("threshold"));
+		}
+		LinkedHashMap<String,Result> baseline = null;
+		if(line.hasOption("compare")){
+			baseline = load(new File(line.getOptionValue("compare")));
+		}
+
+		List<Result> results = new ArrayList<Result>();
+		boolean regressed = false;
+		int cpus = Runtime.getRuntime().availableProcessors();
+		System.out.println(String.format("%-48s %14s %10s %14s %12s%s", "benchmark", "ns/op", "+/-", "ops/s", "bytes/op", baseline != null ? "   vs baseline" : ""));
+		for(Benchmark bench : suite){
+			Result result = runner.run(bench);
+			results.add(result);
+			String comparison = "";
+			if(baseline != null){
+				Result base = baseline.get(result.name);
+				if(base == null){
+					comparison = "   (new)";
+				}
+				else{
+					double delta = (result.ns_per_op - base.ns_per_op) / base.ns_per_op * 100;
+					boolean regression = result.ns_per_op - base.ns_per_op > Math.max(base.ns_per_op * threshold / 100, result.error + base.error);
+					boolean improved = base.ns_per_op - result.ns_per_op > Math.max(base.ns_per_op * threshold / 100, result.error + base.error);
+					comparison = String.format("   %+7.1f%%%s", delta, regression ? "  REGRESSION" : improved ? "  improved" : "");
+					regressed |= regression;
+				}
+			}
+			if(bench.threads() > cpus){
+				comparison += "   oversubscribed (" + bench.threads() + " threads on " + cpus + " cpus)";
+			}
+			System.out.println(String.format("%-48s %14.2f %10.2f %14.0f %12s%s", result.name, result.ns_per_op, result.error,
+					1e9 / result.ns_per_op, result.bytes_per_op < 0 ? "-" : String.format("%.1f", result.bytes_per_op), comparison));
+		}
+
+		if(line.hasOption("save")){
+			save(new File(line.getOptionValue("save")), results, runner);
+			System.out.println("Baseline written to " + line.getOptionValue("save"));
+		}
+		if(regressed){
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Warms up and measures one benchmark
+	 * @param bench
+	 * @return the result
+	 * @throws Exception
+	 */
+	Result run(Benchmark bench) throws Exception{
+		System.gc();
+		bench.setup();
+		Blackhole bh = new Blackhole();
+		long duration = iteration_ms * 1000000L;
+		try{
+			for(int i = 0; i < warmup; i++){
+				bench.measure(duration, bh);
+				bh.publish();
+			}
+			double[] ns_per_op = new double[iterations];
+			long ops = 0, bytes = 0;
+			boolean count_bytes = bench.single_threaded() && allocated_bytes() >= 0;
+			for(int i = 0; i < iterations; i++){
+				long bytes_before = count_bytes ? allocated_bytes() : 0;
+				long start = System.nanoTime();
+				long done = bench.measure(duration, bh);
+				long elapsed = System.nanoTime() - start;
+				if(count_bytes){
+					bytes += allocated_bytes() - bytes_before;
+				}
+				bh.publish();
+				ns_per_op[i] = (double)elapsed / Math.max(1, done);
+				ops += done;
+			}
+			double mean = 0;
+			for(double ns : ns_per_op){
+				mean += ns;
+			}
+			mean /= iterations;
+			double variance = 0;
+			for(double ns : ns_per_op){
+				variance += (ns - mean) * (ns - mean);
+			}
+			double error = (iterations > 1) ? Math.sqrt(variance / (iterations - 1)) : 0;
+			return new Result(bench.name, mean, error, count_bytes ? (double)bytes / Math.max(1, ops) : -1);
+		}finally{
+			bench.teardown();
+		}
+	}
+
+	/**
+	 * @return the bytes the calling thread has allocated, or -1 if the JVM doesn't count them
+	 */
+	private long allocated_bytes(){
+		if(threads instanceof com.sun.management.ThreadMXBean){
+			com.sun.management.ThreadMXBean counting = (com.sun.management.ThreadMXBean)threads;
+			if(counting.isThreadAllocatedMemorySupported() && counting.isThreadAllocatedMemoryEnabled()){
+				return counting.getThreadAllocatedBytes(Thread.currentThread().getId());
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Writes results as a baseline - a CSV with the JVM and machine in comment lines
+	 */
+	private static void save(File file, List<Result> results, BenchmarkRunner runner) throws IOException{
+		if(file.getAbsoluteFile().getParentFile() != null){
+			file.getAbsoluteFile().getParentFile().mkdirs();
+		}
+		BufferedWriter writer = new BufferedWriter(new FileWriter(file));
+		try{
+			writer.write("# " + new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date())
+					+ " java " + System.getProperty("java.version") + " (" + System.getProperty("java.vm.name") + ")"
+					+ ", " + System.getProperty("os.name") + " " + System.getProperty("os.arch")
+					+ ", " + Runtime.getRuntime().availableProcessors() + " cpus");
+			writer.newLine();
+			writer.write("# " + runner.warmup + " warmup, " + runner.iterations + " x " + runner.iteration_ms + " ms iterations");
+			writer.newLine();
+			writer.write("benchmark,ns_per_op,error,bytes_per_op");
+			writer.newLine();
+			for(Result result : results){
+				writer.write(String.format("%s,%.3f,%.3f,%.1f", result.name, result.ns_per_op, result.error, result.bytes_per_op));
+				writer.newLine();
+			}
+		}finally{
+			writer.close();
+		}
+	}
+
+	/**
+	 * Reads a baseline written by save()
+	 * @return the results by benchmark name
+	 */
+	private static LinkedHashMap<String,Result> load(File file) throws IOException{
+		LinkedHashMap<String,Result> results = new LinkedHashMap<String,Result>();
+		for(String line : Files.readAllLines(file.toPath(), Charset.defaultCharset())){
+			line = line.trim();
+			if(line.isEmpty() || line.startsWith("#") || line.startsWith("benchmark,")){
+				continue;
+			}
+			String[] fields = line.split(",");
+			if(fields.length != 4){
+				continue;
+			}
+			try{
+				results.put(fields[0], new Result(fields[0], Double.parseDouble(fields[1]), Double.parseDouble(fields[2]), Double.parseDouble(fields[3])));
+			}catch(NumberFormatException e){
+				System.err.println("Skipping malformed baseline line '" + line + "'");
+			}
+		}
+		return results;
+	}
+}
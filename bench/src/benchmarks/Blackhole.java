@@ -0,0 +1,53 @@
+package benchmarks;
+
+/**
+ * Sink for the results of a benchmarked operation. The values are folded
+ * into a field that is published at the end of an iteration, so the JIT
+ * can't prove them unused and remove the work that produced them.
+ *
+ * @author jdk85
+ *
+ */
+public final class Blackhole
+{
+	private long sink_long;
+	private double sink_double;
+	private int sink_objects;
+	/** Never equal to a consumed object - comparing against it keeps the reference live */
+	private volatile Object sentinel = new Object();
+	/** Written once per iteration */
+	public volatile long published;
+
+	public void consume(long value){
+		sink_long += value;
+	}
+
+	public void consume(int value){
+		sink_long += value;
+	}
+
+	public void consume(float value){
+		sink_double += value;
+	}
+
+	public void consume(double value){
+		sink_double += value;
+	}
+
+	public void consume(boolean value){
+		sink_long += value ? 1 : 0;
+	}
+
+	public void consume(Object value){
+		if(value == sentinel){
+			sink_objects++;
+		}
+	}
+
+	/**
+	 * Publishes what has been consumed - called by the runner after each iteration
+	 */
+	void publish(){
+		published = sink_long + (long)sink_double + sink_objects;
+	}
+}
@@ -0,0 +1,242 @@
+package benchmarks;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import utilities.DataGeneratorCodec;
+import utilities.ValuePairReader;
+
+import com.rbnb.sapi.ChannelMap;
+
+/**
+ * DataGeneratorCodec encode and decode, per data type.
+ *
+ * codec.encode.legacy.* is the encoder as it was before the primitive
+ * encoders were added (temporary ByteBuffers, a one byte array and three
+ * copies per value), kept here so the gain stays measurable.
+ *
+ * @author jdk85
+ *
+ */
+public class CodecBenchmarks
+{
+	private static final long TIMESTAMP = 1262304000000L;
+	/** Values per record and records per batch for the record batch benchmarks */
+	private static final int BATCH_VALUES = 16, BATCH_RECORDS = 32;
+	/** Blobs decoded per op by the column decoder */
+	private static final int COLUMN_BLOBS = 1024;
+
+	public static List<Benchmark> all(){
+		List<Benchmark> all = new ArrayList<Benchmark>();
+
+		all.add(new Benchmark("codec.encode.legacy.float32"){
+			float value = 0;
+			@Override
+			protected void op(Blackhole bh){
+				bh.consume(legacy_encode((byte)ChannelMap.TYPE_FLOAT32, TIMESTAMP, value += 0.5f));
+			}
+		});
+		all.add(new Benchmark("codec.encode.value_pair.float32"){
+			float value = 0;
+			@Override
+			protected void op(Blackhole bh){
+				bh.consume(DataGeneratorCodec.encodeValuePair((byte)ChannelMap.TYPE_FLOAT32, TIMESTAMP, value += 0.5f));
+			}
+		});
+		all.add(new Benchmark("codec.encode.value_pair.float64"){
+			double value = 0;
+			@Override
+			protected void op(Blackhole bh){
+				bh.consume(DataGeneratorCodec.encodeValuePair((byte)ChannelMap.TYPE_FLOAT64, TIMESTAMP, value += 0.5));
+			}
+		});
+		all.add(new Benchmark("codec.encode.value_pair.int8"){
+			byte value = 0;
+			@Override
+			protected void op(Blackhole bh){
+				bh.consume(DataGeneratorCodec.encodeValuePair((byte)ChannelMap.TYPE_INT8, TIMESTAMP, value++));
+			}
+		});
+		all.add(new Benchmark("codec.encode.value_pair.int16"){
+			short value = 0;
+			@Override
+			protected void op(Blackhole bh){
+				bh.consume(DataGeneratorCodec.encodeValuePair((byte)ChannelMap.TYPE_INT16, TIMESTAMP, value++));
+			}
+		});
+		all.add(new Benchmark("codec.encode.value_pair.int32"){
+			int value = 0;
+			@Override
+			protected void op(Blackhole bh){
+				bh.consume(DataGeneratorCodec.encodeValuePair((byte)ChannelMap.TYPE_INT32, TIMESTAMP, value++));
+			}
+		});
+		all.add(new Benchmark("codec.encode.value_pair.int64"){
+			long value = 0;
+			@Override
+			protected void op(Blackhole bh){
+				bh.consume(DataGeneratorCodec.encodeValuePair((byte)ChannelMap.TYPE_INT64, TIMESTAMP, value++));
+			}
+		});
+		all.add(new Benchmark("codec.encode.value_pair.string"){
+			@Override
+			protected void op(Blackhole bh){
+				bh.consume(DataGeneratorCodec.encodeValuePair((byte)ChannelMap.TYPE_STRING, TIMESTAMP, "TIMESTAMP,RECORD,BattV_Min,PTemp_C_Avg"));
+			}
+		});
+		all.add(new Benchmark("codec.encode.primitive.float32"){
+			float value = 0;
+			@Override
+			protected void op(Blackhole bh){
+				bh.consume(DataGeneratorCodec.encodeFloat32(TIMESTAMP, value += 0.5f));
+			}
+		});
+		all.add(new Benchmark("codec.encode.buffer.float32"){
+			final ByteBuffer dst = ByteBuffer.allocate(64);
+			float value = 0;
+			@Override
+			protected void op(Blackhole bh){
+				dst.clear();
+				bh.consume(DataGeneratorCodec.encodeFloat32(dst, TIMESTAMP, value += 0.5f));
+			}
+		});
+		all.add(new Benchmark("codec.encode.buffer.float64"){
+			final ByteBuffer dst = ByteBuffer.allocate(64);
+			double value = 0;
+			@Override
+			protected void op(Blackhole bh){
+				dst.clear();
+				bh.consume(DataGeneratorCodec.encodeFloat64(dst, TIMESTAMP, value += 0.5));
+			}
+		});
+		all.add(new Benchmark("codec.encode.buffer.int32"){
+			final ByteBuffer dst = ByteBuffer.allocate(64);
+			int value = 0;
+			@Override
+			protected void op(Blackhole bh){
+				dst.clear();
+				bh.consume(DataGeneratorCodec.encodeInt32(dst, TIMESTAMP, value++));
+			}
+		});
+		all.add(new Benchmark("codec.encode.buffer.int64"){
+			final ByteBuffer dst = ByteBuffer.allocate(64);
+			long value = 0;
+			@Override
+			protected void op(Blackhole bh){
+				dst.clear();
+				bh.consume(DataGeneratorCodec.encodeInt64(dst, TIMESTAMP, value++));
+			}
+		});
+		all.add(new Benchmark("codec.encode.record_batch"){
+			final long[] timestamps = new long[BATCH_RECORDS];
+			final long[] record_numbers = new long[BATCH_RECORDS];
+			final float[] values = new float[BATCH_RECORDS * BATCH_VALUES];
+			@Override
+			public void setup(){
+				for(int i = 0; i < BATCH_RECORDS; i++){
+					timestamps[i] = TIMESTAMP + i * 60000L;
+					record_numbers[i] = i;
+				}
+				for(int i = 0; i < values.length; i++){
+					values[i] = i * 0.25f;
+				}
+			}
+			@Override
+			protected void op(Blackhole bh){
+				bh.consume(DataGeneratorCodec.encodeRecordBatch(BATCH_VALUES, BATCH_RECORDS, 0x1234, timestamps, record_numbers, values));
+			}
+		});
+
+		add_decode(all, "float32", DataGeneratorCodec.encodeFloat32(TIMESTAMP, 12.5f));
+		add_decode(all, "float64", DataGeneratorCodec.encodeFloat64(TIMESTAMP, 12.5));
+		add_decode(all, "int8", DataGeneratorCodec.encodeInt8(TIMESTAMP, (byte)12));
+		add_decode(all, "int16", DataGeneratorCodec.encodeInt16(TIMESTAMP, (short)1200));
+		add_decode(all, "int32", DataGeneratorCodec.encodeInt32(TIMESTAMP, 120000));
+		add_decode(all, "int64", DataGeneratorCodec.encodeInt64(TIMESTAMP, 12000000000L));
+		add_decode(all, "string", DataGeneratorCodec.encodeValuePair((byte)ChannelMap.TYPE_STRING, TIMESTAMP, "TIMESTAMP,RECORD,BattV_Min,PTemp_C_Avg"));
+
+		all.add(new Benchmark("codec.decode.columns.float32_x1024"){
+			final byte[][] blobs = new byte[COLUMN_BLOBS][];
+			final long[] timestamps = new long[COLUMN_BLOBS];
+			final float[] values = new float[COLUMN_BLOBS];
+			@Override
+			public void setup(){
+				for(int i = 0; i < COLUMN_BLOBS; i++){
+					blobs[i] = DataGeneratorCodec.encodeFloat32(TIMESTAMP + i, i * 0.5f);
+				}
+			}
+			@Override
+			protected void op(Blackhole bh){
+				bh.consume(DataGeneratorCodec.decodeColumns(blobs, COLUMN_BLOBS, timestamps, values));
+				bh.consume(values[COLUMN_BLOBS - 1]);
+			}
+		});
+		all.add(new Benchmark("codec.decode.record_batch"){
+			byte[] blob;
+			@Override
+			public void setup(){
+				long[] timestamps = new long[BATCH_RECORDS];
+				long[] record_numbers = new long[BATCH_RECORDS];
+				blob = DataGeneratorCodec.encodeRecordBatch(BATCH_VALUES, BATCH_RECORDS, 0x1234, timestamps, record_numbers, new float[BATCH_RECORDS * BATCH_VALUES]);
+			}
+			@Override
+			protected void op(Blackhole bh){
+				bh.consume(DataGeneratorCodec.decodeRecordBatch(blob));
+			}
+		});
+		return all;
+	}
+
+	/**
+	 * Adds the boxing decoder and the flyweight reader for one type
+	 */
+	private static void add_decode(List<Benchmark> all, String type, final byte[] blob){
+		all.add(new Benchmark("codec.decode.value_pair." + type){
+			@Override
+			protected void op(Blackhole bh){
+				bh.consume(DataGeneratorCodec.decodeValuePair(TIMESTAMP / 1000.0, blob));
+			}
+		});
+		all.add(new Benchmark("codec.decode.reader." + type){
+			final ValuePairReader reader = new ValuePairReader();
+			@Override
+			protected void op(Blackhole bh){
+				reader.wrap(blob);
+				bh.consume(reader.timestamp());
+				if(reader.type() == ChannelMap.TYPE_STRING){
+					bh.consume(reader.getString());
+				}
+				else{
+					bh.consume(reader.getAsDouble());
+				}
+			}
+		});
+	}
+
+	/**
+	 * DataGeneratorCodec.encodeValuePair before the primitive encoders, for comparison
+	 */
+	static byte[] legacy_encode(byte type, long timestamp, Object data){
+		byte[] time_stamp = ByteBuffer.allocate(8).putLong(timestamp).array();
+		byte[] data_point = null;
+		switch(type){
+		case ChannelMap.TYPE_FLOAT32:
+			data_point = ByteBuffer.allocate(4).putFloat((Float)data).array();
+			break;
+		case ChannelMap.TYPE_FLOAT64:
+			data_point = ByteBuffer.allocate(8).putDouble((Double)data).array();
+			break;
+		default:
+			break;
+		}
+		if(data_point == null){
+			return null;
+		}
+		byte[] blob = new byte[1 + time_stamp.length + data_point.length];
+		System.arraycopy(new byte[]{type},0,blob,0,1);
+		System.arraycopy(time_stamp,0,blob,1,time_stamp.length);
+		System.arraycopy(data_point,0,blob,1 + time_stamp.length,data_point.length);
+		return blob;
+	}
+}
@@ -0,0 +1,84 @@
+package benchmarks;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import utilities.SegaLogger;
+
+/**
+ * SegaLogger writes as seen by the calling thread - handing an entry to the
+ * background writer - and the cost of a write below the logger's level.
+ *
+ * The writer may fall behind a thread that does nothing but log, in which case
+ * entries are dropped and counted rather than blocking the caller; the enabled
+ * benchmarks measure that caller-side cost either way.
+ *
+ * @author jdk85
+ *
+ */
+public class LoggerBenchmarks
+{
+	public static List<Benchmark> all(){
+		List<Benchmark> all = new ArrayList<Benchmark>();
+		all.add(new LoggerBenchmark("logger.write.enabled"){
+			@Override
+			protected void op(Blackhole bh){
+				log.write(SegaLogger.Level.INFO, "Flushed 1024 data points");
+			}
+		});
+		all.add(new LoggerBenchmark("logger.write.format_enabled"){
+			int count;
+			@Override
+			protected void op(Blackhole bh){
+				log.write(SegaLogger.Level.INFO, "Flushed %d data points", count++);
+			}
+		});
+		all.add(new LoggerBenchmark("logger.write.disabled"){
+			@Override
+			protected void op(Blackhole bh){
+				log.write(SegaLogger.Level.DEBUG, "Flushed 1024 data points");
+			}
+		});
+		all.add(new LoggerBenchmark("logger.write.format_disabled"){
+			int count;
+			@Override
+			protected void op(Blackhole bh){
+				log.write(SegaLogger.Level.DEBUG, "Flushed %d data points", count++);
+			}
+		});
+		return all;
+	}
+
+	/**
+	 * Benchmark against a logger at level INFO writing to a temporary directory
+	 */
+	private static abstract class LoggerBenchmark extends Benchmark {
+		File directory;
+		SegaLogger log;
+
+		LoggerBenchmark(String name){
+			super(name);
+		}
+
+		@Override
+		public void setup() throws Exception{
+			directory = Files.createTempDirectory("bench-logger").toFile();
+			log = new SegaLogger(new File(directory, "bench-log.txt").getPath());
+			log.setLevel(SegaLogger.Level.INFO);
+		}
+
+		@Override
+		public void teardown() throws Exception{
+			log.close();
+			File[] files = directory.listFiles();
+			if(files != null){
+				for(File file : files){
+					file.delete();
+				}
+			}
+			directory.delete();
+		}
+	}
+}
@@ -0,0 +1,143 @@
+package benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import utilities.DataGeneratorCodec;
+import utilities.Message;
+import utilities.PacketLog;
+
+/**
+ * Message serialization: Java serialization, which the packet queue was
+ * saved with before the packet log, and the packet log's own record format.
+ *
+ * @author jdk85
+ *
+ */
+public class MessageBenchmarks
+{
+	/** Messages read per op by the packet log read benchmark */
+	private static final int READ_BATCH = 256;
+	/** Appends between flushes and acks, about one publish pass */
+	private static final int FLUSH_EVERY = 4096;
+
+	private static Message message(){
+		return new Message(DataGeneratorCodec.encodeFloat32(1262304000000L, 12.5f), System.currentTimeMillis(), "Table1", "BattV_Min");
+	}
+
+	public static List<Benchmark> all(){
+		List<Benchmark> all = new ArrayList<Benchmark>();
+
+		all.add(new Benchmark("message.java_serialization.write"){
+			final Message msg = message();
+			final ByteArrayOutputStream bytes = new ByteArrayOutputStream(1 << 20);
+			ObjectOutputStream out;
+			int written;
+			@Override
+			public void setup() throws Exception{
+				out = new ObjectOutputStream(bytes);
+			}
+			@Override
+			protected void op(Blackhole bh) throws Exception{
+				out.writeObject(msg);
+				//Forget the back reference, as a stream of distinct Messages would
+				out.reset();
+				if(++written == 4096){
+					out.flush();
+					bh.consume(bytes.size());
+					bytes.reset();
+					written = 0;
+				}
+			}
+		});
+		all.add(new Benchmark("message.java_serialization.read"){
+			byte[] serialized;
+			@Override
+			public void setup() throws Exception{
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+				ObjectOutputStream out = new ObjectOutputStream(bytes);
+				out.writeObject(message());
+				out.close();
+				serialized = bytes.toByteArray();
+			}
+			@Override
+			protected void op(Blackhole bh) throws Exception{
+				ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(serialized));
+				bh.consume(in.readObject());
+			}
+		});
+
+		all.add(new PacketLogBenchmark("message.packet_log.append"){
+			final Message msg = message();
+			int appended;
+			@Override
+			protected void op(Blackhole bh) throws Exception{
+				log.append(msg);
+				if(++appended == FLUSH_EVERY){
+					//Keep the log from growing - acked segments are deleted
+					log.flush();
+					log.ack(msg);
+					appended = 0;
+				}
+			}
+		});
+		all.add(new PacketLogBenchmark("message.packet_log.read_x" + READ_BATCH){
+			final ArrayList<Message> out = new ArrayList<Message>(READ_BATCH);
+			long start;
+			@Override
+			public void setup() throws Exception{
+				super.setup();
+				start = log.tail_position();
+				Message msg = message();
+				for(int i = 0; i < READ_BATCH; i++){
+					log.append(msg);
+				}
+				log.flush();
+			}
+			@Override
+			protected void op(Blackhole bh) throws Exception{
+				out.clear();
+				bh.consume(log.read(start, READ_BATCH, out));
+				bh.consume(out.get(out.size() - 1));
+			}
+		});
+		return all;
+	}
+
+	/**
+	 * Benchmark against a packet log in a temporary directory
+	 */
+	private static abstract class PacketLogBenchmark extends Benchmark {
+		File directory;
+		PacketLog log;
+
+		PacketLogBenchmark(String name){
+			super(name);
+		}
+
+		@Override
+		public void setup() throws Exception{
+			directory = Files.createTempDirectory("bench-packet-log").toFile();
+			log = new PacketLog(directory.getPath(), PacketLog.DEFAULT_SEGMENT_SIZE);
+			log.open(null, 0);
+		}
+
+		@Override
+		public void teardown() throws Exception{
+			log.close();
+			File[] files = directory.listFiles();
+			if(files != null){
+				for(File file : files){
+					file.delete();
+				}
+			}
+			directory.delete();
+		}
+	}
+}
@@ -0,0 +1,39 @@
+package benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import utilities.Metrics;
+
+/**
+ * Recording into the metrics registry, which sits on the collection and
+ * publish paths
+ *
+ * @author jdk85
+ *
+ */
+public class MetricsBenchmarks
+{
+	public static List<Benchmark> all(){
+		//A registry of its own, so the benchmark doesn't show up in the client's metrics
+		final Metrics metrics = new Metrics();
+		List<Benchmark> all = new ArrayList<Benchmark>();
+		all.add(new Benchmark("metrics.counter.inc"){
+			final Metrics.Counter counter = metrics.counter("bench_total", "benchmark");
+			@Override
+			protected void op(Blackhole bh){
+				counter.inc();
+			}
+		});
+		all.add(new Benchmark("metrics.histogram.record"){
+			final Metrics.Histogram histogram = metrics.histogram("bench_seconds", "benchmark");
+			long value = 0;
+			@Override
+			protected void op(Blackhole bh){
+				//Walk the whole range of buckets
+				histogram.record(value = (value * 31 + 7) & ((1L << 40) - 1));
+			}
+		});
+		return all;
+	}
+}
@@ -0,0 +1,160 @@
+package benchmarks;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+import utilities.Message;
+import utilities.MessageRingBuffer;
+
+/**
+ * The pkt_queue hand-off: MessageRingBuffer against the synchronized
+ * LinkedList it replaced.
+ *
+ * The single benchmarks offer and poll on one thread, so they measure the
+ * queue's own cost. The contended benchmarks run producers on their own
+ * threads against one consumer on the runner's thread and report the time
+ * per message the consumer receives. Both queues are bounded at the same
+ * capacity; a full LinkedList makes its producers yield. The contended
+ * numbers are only meaningful from a machine with a cpu for every producer
+ * and the consumer - BenchmarkRunner flags results taken with fewer.
+ *
+ * @author jdk85
+ *
+ */
+public class QueueBenchmarks
+{
+	private static final int CAPACITY = 65536;
+	private static final Message MESSAGE = new Message(new byte[13], 0, "Table1", "BattV_Min");
+
+	/** The operations both queues are measured through */
+	private interface Queue {
+		boolean offer(Message msg);
+		Message poll();
+	}
+
+	public static List<Benchmark> all(){
+		List<Benchmark> all = new ArrayList<Benchmark>();
+		all.add(single("queue.ring.single", ring()));
+		all.add(single("queue.linkedlist.single", linked_list()));
+		for(int producers : new int[]{1, 4}){
+			all.add(contended("queue.ring.contended.p" + producers, ring(), producers));
+			all.add(contended("queue.linkedlist.contended.p" + producers, linked_list(), producers));
+		}
+		return all;
+	}
+
+	private static Queue ring(){
+		final MessageRingBuffer ring = new MessageRingBuffer(CAPACITY, MessageRingBuffer.OverflowPolicy.BLOCK);
+		return new Queue(){
+			@Override
+			public boolean offer(Message msg){
+				return ring.offer(msg);
+			}
+			@Override
+			public Message poll(){
+				return ring.poll();
+			}
+		};
+	}
+
+	/**
+	 * The hand-off as it was before MessageRingBuffer, bounded like the ring
+	 */
+	private static Queue linked_list(){
+		final LinkedList<Message> list = new LinkedList<Message>();
+		return new Queue(){
+			@Override
+			public boolean offer(Message msg){
+				while(!Thread.currentThread().isInterrupted()){
+					synchronized(list){
+						if(list.size() < CAPACITY){
+							list.add(msg);
+							return true;
+						}
+					}
+					Thread.yield();
+				}
+				return false;
+			}
+			@Override
+			public Message poll(){
+				synchronized(list){
+					return list.poll();
+				}
+			}
+		};
+	}
+
+	/**
+	 * One offer and one poll per op on the calling thread
+	 */
+	private static Benchmark single(String name, final Queue queue){
+		return new Benchmark(name){
+			@Override
+			protected void op(Blackhole bh){
+				queue.offer(MESSAGE);
+				bh.consume(queue.poll());
+			}
+		};
+	}
+
+	/**
+	 * Producers offering as fast as they can, one op per message the consumer receives
+	 */
+	private static Benchmark contended(String name, final Queue queue, final int producer_count){
+		return new Benchmark(name){
+			private volatile boolean stop;
+
+			@Override
+			protected long measure(long duration, Blackhole bh) throws Exception{
+				stop = false;
+				Thread[] producers = new Thread[producer_count];
+				for(int i = 0; i < producer_count; i++){
+					producers[i] = new Thread(new Runnable(){
+						@Override
+						public void run(){
+							while(!stop && queue.offer(MESSAGE)){
+							}
+						}
+					});
+					producers[i].setDaemon(true);
+					producers[i].start();
+				}
+
+				long received = 0;
+				long deadline = System.nanoTime() + duration;
+				while(System.nanoTime() < deadline){
+					for(int i = 0; i < 1024; i++){
+						if(queue.poll() != null){
+							received++;
+						}
+					}
+				}
+
+				stop = true;
+				for(Thread producer : producers){
+					producer.interrupt();
+				}
+				for(Thread producer : producers){
+					producer.join();
+				}
+				//Start the next iteration empty
+				while(queue.poll() != null){
+				}
+				bh.consume(received);
+				return received;
+			}
+
+			@Override
+			public boolean single_threaded(){
+				return false;
+			}
+
+			@Override
+			public int threads(){
+				return producer_count + 1;
+			}
+		};
+	}
+}
@@ -0,0 +1,267 @@
+package harness;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Just enough of an MQTT 3.1.1 broker to take what the client publishes:
+ * connect, publish at QoS 0, 1 and 2, ping and disconnect. Subscriptions are
+ * acknowledged but nothing is forwarded, retained messages and wills are
+ * dropped and no session is kept, so a client reconnecting with QoS 1 or 2
+ * messages still unconfirmed may deliver them twice.
+ *
+ * Every message is handed to the listener, on the connection's thread, as
+ * its PUBLISH arrives - for QoS 2 that is before the PUBREC, and a message
+ * resent before its PUBREL is only handed over once.
+ *
+ * @author jdk85
+ *
+ */
+public class StandInBroker implements Runnable
+{
+	/** Receives every message published to the broker */
+	public interface Listener {
+		/**
+		 * @param topic
+		 * @param qos
+		 * @param payload
+		 * @param received - System.currentTimeMillis() when the PUBLISH was read
+		 */
+		void on_publish(String topic, int qos, byte[] payload, long received);
+	}
+
+	static final int CONNECT = 1, CONNACK = 2, PUBLISH = 3, PUBACK = 4, PUBREC = 5, PUBREL = 6, PUBCOMP = 7,
+			SUBSCRIBE = 8, SUBACK = 9, UNSUBSCRIBE = 10, UNSUBACK = 11, PINGREQ = 12, PINGRESP = 13, DISCONNECT = 14;
+
+	private final ServerSocket server;
+	private final Listener listener;
+	private final AtomicLong messages = new AtomicLong(), bytes = new AtomicLong();
+	private volatile boolean closed = false;
+
+	/**
+	 * Binds to the loopback address
+	 * @param port - 0 for any free port
+	 * @param listener
+	 * @throws IOException
+	 */
+	public StandInBroker(int port, Listener listener) throws IOException{
+		this.server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+		this.listener = listener;
+	}
+
+	/**
+	 * Accepts connections on a daemon thread
+	 */
+	public void start(){
+		Thread thread = new Thread(this, "broker-" + get_port());
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	public int get_port(){
+		return server.getLocalPort();
+	}
+
+	/**
+	 * @return tcp://127.0.0.1:port
+	 */
+	public String get_uri(){
+		return "tcp://127.0.0.1:" + get_port();
+	}
+
+	/**
+	 * @return messages published to the broker
+	 */
+	public long get_messages(){
+		return messages.get();
+	}
+
+	/**
+	 * @return payload bytes published to the broker
+	 */
+	public long get_bytes(){
+		return bytes.get();
+	}
+
+	/**
+	 * Stops accepting connections. Connections already made end when the client closes them.
+	 */
+	public void close(){
+		closed = true;
+		try{
+			server.close();
+		}catch(IOException e){
+			//Nothing to do
+		}
+	}
+
+	@Override
+	public void run(){
+		while(!closed){
+			final Socket socket;
+			try{
+				socket = server.accept();
+				socket.setTcpNoDelay(true);
+			}catch(IOException e){
+				if(!closed){
+					System.err.println("Stand-in broker stopped accepting connections: " + e);
+				}
+				return;
+			}
+			Thread thread = new Thread(new Runnable(){
+				@Override
+				public void run(){
+					serve(socket);
+				}
+			}, "broker-" + socket.getRemoteSocketAddress());
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+
+	/**
+	 * Reads control packets until the client disconnects
+	 */
+	private void serve(Socket socket){
+		//Packet ids of QoS 2 messages received but not yet released
+		Set<Integer> unreleased = new HashSet<Integer>();
+		try{
+			DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+			while(true){
+				int header = in.read();
+				if(header < 0){
+					break;
+				}
+				byte[] body = new byte[read_remaining_length(in)];
+				in.readFully(body);
+				long received = System.currentTimeMillis();
+
+				switch(header >> 4){
+				case CONNECT:
+					//Session not present, connection accepted
+					write(out, CONNACK << 4, 0, 0);
+					break;
+				case PUBLISH:
+					on_publish(header, body, received, out, unreleased);
+					break;
+				case PUBREL:
+					unreleased.remove(packet_id(body, 0));
+					write(out, PUBCOMP << 4, body[0], body[1]);
+					break;
+				case SUBSCRIBE:
+					//Grant QoS 0 for every topic filter
+					int filters = 0;
+					for(int i = 2; i < body.length; i += 2 + packet_id(body, i) + 1){
+						filters++;
+					}
+					byte[] suback = new byte[2 + filters];
+					suback[0] = body[0];
+					suback[1] = body[1];
+					write(out, SUBACK << 4, suback);
+					break;
+				case UNSUBSCRIBE:
+					write(out, UNSUBACK << 4, body[0], body[1]);
+					break;
+				case PINGREQ:
+					write(out, PINGRESP << 4);
+					break;
+				case DISCONNECT:
+					return;
+				default:
+					//PUBACK, PUBREC and PUBCOMP only answer messages we never send
+					break;
+				}
+				out.flush();
+			}
+		}catch(EOFException e){
+			//Dropped mid packet
+		}catch(IOException e){
+			if(!closed){
+				System.err.println("Stand-in broker connection from " + socket.getRemoteSocketAddress() + " failed: " + e);
+			}
+		}finally{
+			try{
+				socket.close();
+			}catch(IOException e){
+				//Nothing to do
+			}
+		}
+	}
+
+	private void on_publish(int header, byte[] body, long received, OutputStream out, Set<Integer> unreleased) throws IOException{
+		int qos = (header >> 1) & 3;
+		int topic_length = packet_id(body, 0);
+		String topic = new String(body, 2, topic_length, StandardCharsets.UTF_8);
+		int offset = 2 + topic_length;
+		int id = 0;
+		if(qos > 0){
+			id = packet_id(body, offset);
+			offset += 2;
+		}
+		byte[] payload = new byte[body.length - offset];
+		System.arraycopy(body, offset, payload, 0, payload.length);
+
+		if(qos < 2 || unreleased.add(id)){
+			messages.incrementAndGet();
+			bytes.addAndGet(payload.length);
+			listener.on_publish(topic, qos, payload, received);
+		}
+		if(qos == 1){
+			write(out, PUBACK << 4, id >> 8, id);
+		}
+		else if(qos == 2){
+			write(out, PUBREC << 4, id >> 8, id);
+		}
+	}
+
+	/**
+	 * @return the big endian 16 bit value at offset - a packet id or a string length
+	 */
+	private static int packet_id(byte[] body, int offset){
+		return ((body[offset] & 0xff) << 8) | (body[offset + 1] & 0xff);
+	}
+
+	/**
+	 * Reads the variable length encoding of a packet's remaining length
+	 */
+	private static int read_remaining_length(DataInputStream in) throws IOException{
+		int length = 0;
+		for(int shift = 0; shift <= 21; shift += 7){
+			int b = in.readUnsignedByte();
+			length |= (b & 0x7f) << shift;
+			if((b & 0x80) == 0){
+				return length;
+			}
+		}
+		throw new IOException("Malformed remaining length");
+	}
+
+	/**
+	 * Writes a packet short enough for a one byte remaining length
+	 */
+	private static void write(OutputStream out, int header, int... body) throws IOException{
+		out.write(header);
+		out.write(body.length);
+		for(int b : body){
+			out.write(b);
+		}
+	}
+
+	private static void write(OutputStream out, int header, byte[] body) throws IOException{
+		out.write(header);
+		out.write(body.length);
+		out.write(body);
+	}
+}
@@ -0,0 +1,404 @@
+package harness;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.TimeZone;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.GnuParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+import simulator.PakBusSimulator;
+import utilities.DataGeneratorCodec;
+import utilities.PakBusLink;
+import utilities.RecordBatch;
+import utilities.ValuePairReader;
+
+import com.rbnb.sapi.ChannelMap;
+
+/**
+ * Measures the client end to end: a PakBusSimulator in this JVM stands in for
+ * the datalogger, a StandInBroker for the MQTT broker, and the real
+ * CR1000ClientMQTT runs in a child JVM between them, collecting, queueing and
+ * publishing as it does in the field.
+ *
+ * Each run starts the client with an empty root directory, so it first
+ * backfills the simulated tables' history and then keeps up with new records
+ * as they are sampled. For every combination of QoS (-q), records per message
+ * (-b, 0 for one message per value) and in-flight window (-w, 0 to publish
+ * synchronously) it reports:
+ *
+ *		- points/s - values reaching the broker per second while the backfill
+ *		  drains, from the first value to the last one sampled before the run
+ *		- p50/p99/p999 - sample to broker latency of values sampled after the
+ *		  backfill drained, which includes the client's poll lag (-g)
+ *
+ * A run whose backfill doesn't drain within its duration (-d) reports no
+ * latencies - make it longer or the history shorter. The simulator and the
+ * broker share the machine with the client, so numbers are only comparable
+ * between runs on the same machine, and -s saves them as a CSV to keep with
+ * the benchmark baselines.
+ *
+ * The client always connects to the datalogger on port 6785, so nothing else
+ * may be listening there. Compiled with the benchmarks (see BenchmarkRunner),
+ * then from the project root:
+ *
+ *		javac -encoding cp1252 -d /tmp/bench -cp "$(ls *.jar | tr '\n' ':')" $(find src bench/src -name '*.java')
+ *		java -cp "/tmp/bench:$(ls *.jar | tr '\n' ':')" harness.ThroughputHarness -q 0,1,2 -b 0,60 -d 120
+ *
+ * @author jdk85
+ *
+ */
+public class ThroughputHarness
+{
+	/** Table simulated when none are given: 16 columns every second, an hour of history */
+	public static final String DEFAULT_TABLE = "Harness,16,1000,3600";
+	private static final String DEFAULT_QOS = "0,1,2";
+	private static final String DEFAULT_BATCH = "0,60";
+	private static final String DEFAULT_WINDOW = "0";
+	private static final long DEFAULT_DURATION = 120;
+	/** PakBus address of the simulated station - the simulator answers to any */
+	private static final String PB_ADDRESS = "6";
+	/** Timezone the client reads datalogger time in */
+	private static final String LOGGER_TIMEZONE = "US/Arizona";
+
+	/** Result of one run */
+	static class Result {
+		final int qos, batch, window;
+		/** Messages, payload bytes and values received */
+		long messages, bytes, points;
+		/** Values received while the backfill drained, and how long that took (ms) */
+		long backfill_points, backfill_ms;
+		/** Sample to broker latency of values sampled after the backfill, sorted (ms) */
+		long[] latencies;
+
+		Result(int qos, int batch, int window){
+			this.qos = qos;
+			this.batch = batch;
+			this.window = window;
+		}
+
+		String mode(){
+			return (batch > 0 ? "batch " + batch : "value") + (window > 0 ? ", window " + window : "");
+		}
+
+		double points_per_second(){
+			return backfill_ms > 0 ? backfill_points * 1000.0 / backfill_ms : 0;
+		}
+
+		/**
+		 * @param q - between 0 and 1
+		 * @return the latency at that quantile (ms), -1 if there are none
+		 */
+		long latency(double q){
+			if(latencies.length == 0){
+				return -1;
+			}
+			int rank = (int)Math.ceil(q * latencies.length);
+			return latencies[Math.max(0, Math.min(latencies.length, rank) - 1)];
+		}
+	}
+
+	/**
+	 * Turns what the broker receives into values, each with its sample time
+	 */
+	static class Recorder implements StandInBroker.Listener {
+		/** Time the client was started - values sampled before it are backfill */
+		final long start;
+		private final ValuePairReader reader = new ValuePairReader();
+		private long first_received = 0, drained = 0, points = 0, backfill_points = 0;
+		/** Sample and receive times of the values sampled after start (ms) */
+		private long[] sampled = new long[4096], received = new long[4096];
+		private int live = 0;
+
+		Recorder(long start){
+			this.start = start;
+		}
+
+		@Override
+		public synchronized void on_publish(String topic, int qos, byte[] payload, long received){
+			if(payload.length == 0){
+				return;
+			}
+			if(payload[0] == DataGeneratorCodec.TYPE_FLOAT32_RECORDS){
+				RecordBatch batch = DataGeneratorCodec.decodeRecordBatch(payload);
+				if(batch != null){
+					for(int i = 0; i < batch.getRecord_count(); i++){
+						on_value(batch.getTimestamp(i), batch.getValues_per_record(), received);
+					}
+				}
+			}
+			else if(payload[0] != ChannelMap.TYPE_STRING && payload.length >= DataGeneratorCodec.VALUE_PAIR_HEADER_SIZE){
+				//Strings are the tables' field names
+				on_value(reader.wrap(payload).timestamp(), 1, received);
+			}
+		}
+
+		/**
+		 * @param sample_time - ms since 1970
+		 * @param count - number of values sampled at sample_time
+		 * @param time - when they reached the broker
+		 */
+		private void on_value(long sample_time, int count, long time){
+			if(first_received == 0){
+				first_received = time;
+			}
+			points += count;
+			if(sample_time < start){
+				backfill_points = points;
+				drained = time;
+				return;
+			}
+			if(live + count > sampled.length){
+				sampled = Arrays.copyOf(sampled, Math.max(sampled.length * 2, live + count));
+				received = Arrays.copyOf(received, sampled.length);
+			}
+			Arrays.fill(sampled, live, live + count, sample_time);
+			Arrays.fill(received, live, live + count, time);
+			live += count;
+		}
+
+		synchronized void finish(Result result){
+			result.points = points;
+			result.backfill_points = backfill_points;
+			result.backfill_ms = drained - first_received;
+			long[] latencies = new long[live];
+			int count = 0;
+			for(int i = 0; i < live; i++){
+				//Values sampled while the backfill was still draining waited behind it
+				if(sampled[i] > drained){
+					latencies[count++] = received[i] - sampled[i];
+				}
+			}
+			result.latencies = Arrays.copyOf(latencies, count);
+			Arrays.sort(result.latencies);
+		}
+	}
+
+	private long duration = DEFAULT_DURATION * 1000;
+	private int days = 1;
+	private String lag = null;
+
+	public static void main(String args[]) throws Exception
+	{
+		CommandLineParser parser = new GnuParser();
+		Options options = new Options();
+		options.addOption("h", "help", false, "print help");
+		options.addOption("q", "qos", true, "comma separated QoS levels to run - defaults to " + DEFAULT_QOS);
+		options.addOption("b", "batch", true, "comma separated records per message to run, 0 for one message per value - defaults to " + DEFAULT_BATCH);
+		options.addOption("w", "window", true, "comma separated in-flight windows to run, 0 to publish synchronously - defaults to " + DEFAULT_WINDOW);
+		options.addOption("t", "table", true, "a simulated table as name,columns,interval_ms,history - may be repeated, defaults to " + DEFAULT_TABLE);
+		options.addOption("d", "duration", true, "seconds each run lasts - defaults to " + DEFAULT_DURATION);
+		options.addOption("a", "days", true, "days of history the client backfills - defaults to 1");
+		options.addOption("g", "lag", true, "ms the client waits after a table's interval before polling it - defaults to the client's");
+		options.addOption("l", "latency", true, "ms the simulated link adds to every response - defaults to 0");
+		options.addOption("s", "save", true, "write the results to this CSV file");
+
+		CommandLine line;
+		try{
+			line = parser.parse(options, args);
+		}catch(ParseException e){
+			System.err.println("Argument error: " + e.getMessage());
+			System.exit(2);
+			return;
+		}
+		if(line.hasOption("help")){
+			new HelpFormatter().printHelp("ThroughputHarness", options);
+			return;
+		}
+
+		ThroughputHarness harness = new ThroughputHarness();
+		int[] qos_levels, batches, windows;
+		long latency = 0;
+		try{
+			qos_levels = parse_list(line.getOptionValue("qos", DEFAULT_QOS));
+			batches = parse_list(line.getOptionValue("batch", DEFAULT_BATCH));
+			windows = parse_list(line.getOptionValue("window", DEFAULT_WINDOW));
+			if(line.hasOption("duration")) harness.duration = Long.parseLong(line.getOptionValue("duration")) * 1000;
+			if(line.hasOption("days")) harness.days = Integer.parseInt(line.getOptionValue("days"));
+			if(line.hasOption("latency")) latency = Long.parseLong(line.getOptionValue("latency"));
+			harness.lag = line.getOptionValue("lag");
+			if(harness.lag != null) Long.parseLong(harness.lag);
+		}catch(NumberFormatException e){
+			System.err.println("ERROR parsing arguments - " + e.getMessage());
+			System.exit(2);
+			return;
+		}
+		for(int qos : qos_levels){
+			if(qos < 0 || qos > 2){
+				System.err.println("ERROR parsing 'qos' argument - must be 0, 1 or 2");
+				System.exit(2);
+			}
+		}
+
+		//The client reads the datalogger's clock as local standard time in its own timezone
+		TimeZone.setDefault(TimeZone.getTimeZone(LOGGER_TIMEZONE));
+		final PakBusSimulator simulator;
+		try{
+			simulator = new PakBusSimulator(PakBusLink.DEFAULT_PORT, latency, 0, 0,
+					line.hasOption("table") ? line.getOptionValues("table") : new String[]{DEFAULT_TABLE});
+		}catch(IllegalArgumentException e){
+			System.err.println("ERROR parsing arguments - " + e.getMessage());
+			System.exit(2);
+			return;
+		}
+		Thread thread = new Thread(new Runnable(){
+			@Override
+			public void run(){
+				try{
+					simulator.serve();
+				}catch(IOException e){
+					System.err.println("Simulator stopped: " + e);
+					System.exit(1);
+				}
+			}
+		}, "simulator");
+		thread.setDaemon(true);
+		thread.start();
+
+		List<Result> results = new ArrayList<Result>();
+		for(int qos : qos_levels){
+			for(int batch : batches){
+				for(int window : windows){
+					Result result = harness.run(qos, batch, window);
+					results.add(result);
+					System.out.println(format(result));
+				}
+			}
+		}
+
+		System.out.println();
+		System.out.println(String.format("%-4s %-22s %12s %10s %10s %10s %10s %10s", "qos", "mode", "points/s", "messages", "latencies", "p50 ms", "p99 ms", "p999 ms"));
+		for(Result result : results){
+			System.out.println(String.format("%-4d %-22s %12.0f %10d %10d %10s %10s %10s", result.qos, result.mode(), result.points_per_second(),
+					result.messages, result.latencies.length, ms(result.latency(0.5)), ms(result.latency(0.99)), ms(result.latency(0.999))));
+		}
+
+		if(line.hasOption("save")){
+			save(new File(line.getOptionValue("save")), results, harness);
+			System.out.println("Results written to " + line.getOptionValue("save"));
+		}
+		System.exit(0);
+	}
+
+	/**
+	 * Runs the client against a fresh broker for duration ms
+	 * @return the result
+	 * @throws Exception
+	 */
+	Result run(int qos, int batch, int window) throws Exception{
+		Result result = new Result(qos, batch, window);
+		File directory = Files.createTempDirectory("harness").toFile();
+		long start = System.currentTimeMillis();
+		Recorder recorder = new Recorder(start);
+		StandInBroker broker = new StandInBroker(0, recorder);
+		broker.start();
+
+		List<String> command = new ArrayList<String>(Arrays.asList(
+				new File(System.getProperty("java.home"), "bin/java").getPath(), "-cp", System.getProperty("java.class.path"),
+				"edu.nau.wnrl.CR1000ClientMQTT",
+				"--addr", "127.0.0.1", "--pbaddr", PB_ADDRESS, "--days", String.valueOf(days),
+				"--dir", directory.getPath(), "--name", "harness", "--status", "0",
+				"--qos", String.valueOf(qos), "--broker", broker.get_uri(),
+				"--window", String.valueOf(window)));
+		//Without --batch the client sends one message per value
+		if(batch > 0){
+			command.add("--batch");
+			command.add(String.valueOf(batch));
+		}
+		if(lag != null){
+			command.add("--lag");
+			command.add(lag);
+		}
+		File output = new File(directory, "client.out");
+		System.out.println("Running qos " + qos + ", " + result.mode() + " for " + duration / 1000 + " s...");
+		Process client = new ProcessBuilder(command).redirectErrorStream(true).redirectOutput(output).start();
+		try{
+			Thread.sleep(duration);
+		}finally{
+			//Runs the client's shutdown hook
+			client.destroy();
+			client.waitFor();
+			broker.close();
+		}
+
+		result.messages = broker.get_messages();
+		result.bytes = broker.get_bytes();
+		recorder.finish(result);
+		if(result.messages == 0){
+			System.out.println("\tNothing was published - client output follows");
+			for(String text : Files.readAllLines(output.toPath(), Charset.defaultCharset())){
+				System.out.println("\t" + text);
+			}
+		}
+		delete(directory);
+		return result;
+	}
+
+	private static String format(Result result){
+		return String.format("\t%d values (%d messages, %d bytes), backfill of %d values drained in %.1f s - %.0f points/s, %d latencies%s",
+				result.points, result.messages, result.bytes, result.backfill_points,
+				result.backfill_ms / 1000.0, result.points_per_second(), result.latencies.length,
+				result.latencies.length == 0 ? " (backfill didn't drain - run longer)" : "");
+	}
+
+	private static String ms(long latency){
+		return latency < 0 ? "-" : String.valueOf(latency);
+	}
+
+	private static int[] parse_list(String list){
+		String[] fields = list.split(",");
+		int[] values = new int[fields.length];
+		for(int i = 0; i < fields.length; i++){
+			values[i] = Integer.parseInt(fields[i].trim());
+		}
+		return values;
+	}
+
+	private static void delete(File file){
+		File[] files = file.listFiles();
+		if(files != null){
+			for(File child : files){
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+
+	/**
+	 * Writes the results as CSV, headed by a comment describing where they were measured
+	 */
+	private static void save(File file, List<Result> results, ThroughputHarness harness) throws IOException{
+		BufferedWriter out = new BufferedWriter(new FileWriter(file));
+		try{
+			out.write("# " + new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date()) + " java " + System.getProperty("java.version")
+					+ " (" + System.getProperty("java.vm.name") + "), " + System.getProperty("os.name") + " " + System.getProperty("os.arch")
+					+ ", " + Runtime.getRuntime().availableProcessors() + " cpus");
+			out.newLine();
+			out.write("# " + harness.duration / 1000 + " s runs, " + harness.days + " day(s) of backfill" + (harness.lag != null ? ", lag " + harness.lag + " ms" : ""));
+			out.newLine();
+			out.write("qos,batch,window,points_per_second,messages,bytes,latencies,p50_ms,p99_ms,p999_ms");
+			out.newLine();
+			for(Result result : results){
+				out.write(result.qos + "," + result.batch + "," + result.window + "," + String.format("%.1f", result.points_per_second()) + ","
+						+ result.messages + "," + result.bytes + "," + result.latencies.length + ","
+						+ result.latency(0.5) + "," + result.latency(0.99) + "," + result.latency(0.999));
+				out.newLine();
+			}
+		}finally{
+			out.close();
+		}
+	}
+}
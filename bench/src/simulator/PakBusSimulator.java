@@ -0,0 +1,263 @@
+package simulator;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.GnuParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+import utilities.PakBusLink;
+
+import com.campbellsci.pakbus.ColumnDef;
+import com.campbellsci.pakbus.Datalogger;
+import com.campbellsci.pakbus.LoggerDate;
+import com.campbellsci.pakbus.Packet;
+import com.campbellsci.pakbus.Utils;
+
+/**
+ * A CR1000 on the far end of a PakBus/TCP connection, for load testing the
+ * client's backfill and steady state collection without a datalogger.
+ *
+ * It answers what GetTableDefsTran, GetProgStatsTran and DataCollectTran send
+ * - hello, program statistics, the .TDF file and data collection by record
+ * number, time range and record fragment - for any PakBus address, so a
+ * stations file can point any number of stations at one simulator. Each
+ * table (-t name,columns,interval_ms,history) holds history records of
+ * IEEE4 columns, starts out full and gains a record every interval.
+ * CR1000Interface loads tables 2 to count - 1, so the simulated tables sit
+ * between a Status and a Public table. Collection always returns every
+ * column.
+ *
+ * Responses are delayed by the link latency (-l) and by their size at the
+ * link bandwidth (-b), and with -d connections are dropped at random, around
+ * the given number of seconds after they are made, to exercise reconnects.
+ *
+ * Compiled with the benchmarks (see BenchmarkRunner), then from the project root:
+ *
+ *		javac -encoding cp1252 -d /tmp/bench -cp "$(ls *.jar | tr '\n' ':')" $(find src bench/src -name '*.java')
+ *		java -cp "/tmp/bench:$(ls *.jar | tr '\n' ':')" simulator.PakBusSimulator -t Table1,16,60000,43200 -l 50 -b 9600
+ *
+ * @author jdk85
+ *
+ */
+public class PakBusSimulator
+{
+	/** Table simulated when none are given: 16 columns every minute, 30 days of history */
+	public static final String DEFAULT_TABLE = "Table1,16,60000,43200";
+	/** Largest packet a CR1000 sends */
+	public static final int DEFAULT_MAX_PACKET_SIZE = 998;
+
+	static final String OS_VERSION = "CR1000.Std.32";
+	static final String SERIAL_NO = "99999";
+	static final String PROGRAM_NAME = "CPU:simulator.CR1";
+	/** The station name is this followed by the PakBus address */
+	static final String STATION_NAME = "sim_";
+	static final String TDF_FILE = ".TDF";
+
+	/** 1990-01-01, the datalogger epoch, in ms since 1970 */
+	private static final long EPOCH_1990 = 631152000000L;
+	/** Table number of the first simulated table, after Status */
+	private static final int FIRST_TABLE_NO = 2;
+
+	final int port;
+	/** Delay added to every response (ms) */
+	final long latency;
+	/** Link bandwidth in bytes per second, 0 for unlimited */
+	final long bandwidth;
+	/** Mean time a connection stays up before it is dropped (ms), 0 to never drop it */
+	final long disconnect;
+	final int max_packet_size = DEFAULT_MAX_PACKET_SIZE;
+	/** Logger time the simulator started, ns since 1990 */
+	final long start;
+	final List<SimulatedTable> tables = new ArrayList<SimulatedTable>();
+	/** Contents of the .TDF file */
+	byte[] table_defs;
+	int program_signature;
+
+	private final Timer timer = new Timer("disconnect", true);
+	private final Random random = new Random();
+	private final AtomicLong bytes_sent = new AtomicLong();
+
+	public static void main(String args[]) throws Exception
+	{
+		CommandLineParser parser = new GnuParser();
+		Options options = new Options();
+		options.addOption("h", "help", false, "print help");
+		options.addOption("p", "port", true, "TCP port to listen on - defaults to " + PakBusLink.DEFAULT_PORT);
+		options.addOption("t", "table", true, "a table as name,columns,interval_ms,history - may be repeated, defaults to " + DEFAULT_TABLE);
+		options.addOption("l", "latency", true, "ms added to every response - defaults to 0");
+		options.addOption("b", "bandwidth", true, "link bandwidth in bytes per second - defaults to unlimited");
+		options.addOption("d", "disconnect", true, "if set, drop connections at random around this many seconds after they are made");
+
+		CommandLine line;
+		try{
+			line = parser.parse(options, args);
+		}catch(ParseException e){
+			System.err.println("Argument error: " + e.getMessage());
+			System.exit(2);
+			return;
+		}
+		if(line.hasOption("help")){
+			new HelpFormatter().printHelp("PakBusSimulator", options);
+			return;
+		}
+
+		PakBusSimulator simulator;
+		try{
+			simulator = new PakBusSimulator(
+					line.hasOption("port") ? Integer.parseInt(line.getOptionValue("port")) : PakBusLink.DEFAULT_PORT,
+					line.hasOption("latency") ? Long.parseLong(line.getOptionValue("latency")) : 0,
+					line.hasOption("bandwidth") ? Long.parseLong(line.getOptionValue("bandwidth")) : 0,
+					line.hasOption("disconnect") ? Long.parseLong(line.getOptionValue("disconnect")) * 1000 : 0,
+					line.hasOption("table") ? line.getOptionValues("table") : new String[]{DEFAULT_TABLE});
+		}catch(IllegalArgumentException e){
+			System.err.println("ERROR parsing arguments - " + e.getMessage());
+			System.exit(2);
+			return;
+		}
+		simulator.serve();
+	}
+
+	/**
+	 * @param port - TCP port
+	 * @param latency - ms added to every response
+	 * @param bandwidth - bytes per second, 0 for unlimited
+	 * @param disconnect - mean ms a connection stays up, 0 to never drop it
+	 * @param tables - name,columns,interval_ms,history per table
+	 * @throws Exception if the table definitions can't be built
+	 */
+	public PakBusSimulator(int port, long latency, long bandwidth, long disconnect, String[] tables) throws Exception{
+		this.port = port;
+		this.latency = latency;
+		this.bandwidth = bandwidth;
+		this.disconnect = disconnect;
+		this.start = now();
+		for(String table : tables){
+			String[] fields = table.split(",");
+			if(fields.length != 4){
+				throw new IllegalArgumentException("table '" + table + "' is not name,columns,interval_ms,history");
+			}
+			int columns = Integer.parseInt(fields[1].trim());
+			long interval = Long.parseLong(fields[2].trim());
+			long history = Long.parseLong(fields[3].trim());
+			if(columns < 1 || interval < 1 || history < 1){
+				throw new IllegalArgumentException("table '" + table + "' needs at least one column, a 1 ms interval and one record of history");
+			}
+			this.tables.add(new SimulatedTable(fields[0].trim(), columns, interval, history, start));
+		}
+		build_table_defs();
+	}
+
+	/**
+	 * Builds the .TDF file and takes the table and program signatures from it
+	 */
+	private void build_table_defs() throws Exception{
+		Packet tdf = new Packet();
+		//File format version
+		tdf.add_byte(Byte.valueOf((byte)1));
+		write_fixed_table(tdf, "Status", "OSVersion");
+		for(SimulatedTable table : tables){
+			table.write_definition(tdf);
+		}
+		write_fixed_table(tdf, "Public", "BattV");
+		table_defs = tdf.read_bytes(tdf.whats_left());
+		program_signature = Utils.calc_sig(table_defs, table_defs.length);
+
+		//Let the library work out the table signatures the way the client will
+		Datalogger parsed = new Datalogger((short)1);
+		parsed.set_raw_table_defs(table_defs, table_defs.length);
+		for(int i = 0; i < tables.size(); i++){
+			SimulatedTable table = tables.get(i);
+			table.table_no = FIRST_TABLE_NO + i;
+			table.def_sig = parsed.get_table(table.table_no).def_sig;
+		}
+	}
+
+	/**
+	 * Adds an event table of one column, which is never collected
+	 */
+	private static void write_fixed_table(Packet tdf, String name, String column) throws Exception{
+		tdf.add_string(name);
+		tdf.add_int4(Integer.valueOf(1));
+		tdf.add_byte(Byte.valueOf(ColumnDef.type_nsec));
+		SimulatedTable.add_time(tdf, 0);
+		SimulatedTable.add_time(tdf, 0);
+		SimulatedTable.write_column(tdf, ColumnDef.type_ieee4, column, "Smp", "");
+		tdf.add_byte(Byte.valueOf((byte)0));
+	}
+
+	/**
+	 * Accepts connections until the process is killed
+	 */
+	public void serve() throws IOException{
+		ServerSocket server = new ServerSocket(port);
+		log("Listening on port " + port + " with " + tables.size() + " table(s), latency " + latency + " ms, bandwidth "
+				+ (bandwidth > 0 ? bandwidth + " B/s" : "unlimited") + (disconnect > 0 ? ", disconnecting every ~" + disconnect / 1000 + " s" : ""));
+		for(SimulatedTable table : tables){
+			log("  " + table.name + ": " + table.columns + " columns every " + table.interval / LoggerDate.nsec_per_msec + " ms, records "
+					+ table.oldest(start) + " to " + table.newest(start));
+		}
+		while(true){
+			Socket socket = server.accept();
+			socket.setTcpNoDelay(true);
+			final SimulatedConnection connection = new SimulatedConnection(this, socket);
+			log("Connection from " + socket.getRemoteSocketAddress());
+			if(disconnect > 0){
+				//Anywhere from half to one and a half times the mean
+				long delay = disconnect / 2 + (long)(random.nextDouble() * disconnect);
+				timer.schedule(new TimerTask(){
+					@Override
+					public void run(){
+						log("Dropping connection from " + connection.get_socket().getRemoteSocketAddress());
+						connection.close();
+					}
+				}, delay);
+			}
+			Thread thread = new Thread(connection, "simulator-" + socket.getRemoteSocketAddress());
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+
+	/**
+	 * @return the logger's clock, ns since 1990 in local standard time
+	 */
+	long now(){
+		long local = System.currentTimeMillis() + TimeZone.getDefault().getRawOffset();
+		return (local - EPOCH_1990) * LoggerDate.nsec_per_msec;
+	}
+
+	/**
+	 * @return the simulated table with this table number, null if there isn't one
+	 */
+	SimulatedTable table(int table_no){
+		int index = table_no - FIRST_TABLE_NO;
+		return index >= 0 && index < tables.size() ? tables.get(index) : null;
+	}
+
+	void on_sent(int bytes){
+		bytes_sent.addAndGet(bytes);
+	}
+
+	void on_close(SimulatedConnection connection){
+		log("Connection from " + connection.get_socket().getRemoteSocketAddress() + " closed, " + bytes_sent.get() + " bytes sent in all");
+	}
+
+	void log(String message){
+		System.out.println(new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS").format(new Date()) + " " + message);
+	}
+}
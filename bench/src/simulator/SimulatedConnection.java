@@ -0,0 +1,398 @@
+package simulator;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.campbellsci.pakbus.LowLevelDecoder;
+import com.campbellsci.pakbus.LowLevelLogger;
+import com.campbellsci.pakbus.Packet;
+import com.campbellsci.pakbus.Utils;
+
+/**
+ * One client connected to the simulator. Answers, for any PakBus address the
+ * client asks for, the messages the client's transactions send: hello,
+ * program statistics, the StationName value, the .TDF file and data
+ * collection.
+ *
+ * Every response is held back by the link latency plus the time it takes to
+ * send at the link bandwidth, as if the datalogger were at the far end of a
+ * slow serial or radio link.
+ *
+ * @author jdk85
+ *
+ */
+public class SimulatedConnection implements Runnable
+{
+	/** Serial packet header and the message type and transaction number */
+	private static final int HEADER_SIZE = 10;
+	/** Response code, table number, first record, record count and the more records flag */
+	private static final int COLLECT_OVERHEAD = 1 + 2 + 4 + 2 + 1;
+
+	private static final int RESP_OK = 0;
+	private static final int RESP_PERMISSION_DENIED = 1;
+	private static final int RESP_INVALID_TABLE_DEF = 7;
+	private static final int RESP_FILE_NOT_FOUND = 14;
+
+	private final PakBusSimulator simulator;
+	private final Socket socket;
+	private final OutputStream out;
+	private final byte[] buffer;
+	private final ByteBuffer records;
+	private final List<LowLevelLogger> loggers = new ArrayList<LowLevelLogger>();
+
+	SimulatedConnection(PakBusSimulator simulator, Socket socket) throws IOException{
+		this.simulator = simulator;
+		this.socket = socket;
+		this.out = socket.getOutputStream();
+		this.buffer = new byte[simulator.max_packet_size * 2 + 4];
+		this.records = ByteBuffer.allocate(simulator.max_packet_size);
+	}
+
+	@Override
+	public void run(){
+		try{
+			//The decoder only reads what is available, so block for the first byte of each packet here
+			PushbackInputStream in = new PushbackInputStream(socket.getInputStream());
+			LowLevelDecoder decoder = new LowLevelDecoder();
+			int b;
+			while((b = in.read()) >= 0){
+				in.unread(b);
+				while(in.available() > 0){
+					Packet packet = decoder.decode(in, loggers);
+					if(packet != null){
+						on_packet(packet);
+					}
+				}
+			}
+		}catch(Exception e){
+			if(!socket.isClosed()){
+				simulator.log("Connection from " + socket.getRemoteSocketAddress() + " failed: " + e);
+			}
+		}finally{
+			simulator.on_close(this);
+			close();
+		}
+	}
+
+	public void close(){
+		try{
+			socket.close();
+		}catch(IOException e){
+			//Already closed
+		}
+	}
+
+	Socket get_socket(){
+		return socket;
+	}
+
+	private void on_packet(Packet packet) throws Exception{
+		if(packet.short_header){
+			//Link state only
+			if(packet.link_state == Packet.link_ring){
+				send_link_state(packet, Packet.link_ready);
+			}
+			else if(packet.link_state == Packet.link_finished){
+				send_link_state(packet, Packet.link_off_line);
+			}
+			return;
+		}
+		if(packet.protocol_type == Packet.protocol_pakctrl){
+			if(packet.message_type == Packet.pakctrl_hello_cmd){
+				on_hello(packet);
+			}
+		}
+		else{
+			switch(packet.message_type){
+			case Packet.bmp5_get_program_stats_cmd:
+				on_get_program_stats(packet);
+				break;
+			case Packet.bmp5_get_values_cmd:
+				on_get_values(packet);
+				break;
+			case Packet.bmp5_file_receive_cmd:
+				on_file_receive(packet);
+				break;
+			case Packet.bmp5_collect_data_cmd:
+				on_collect_data(packet);
+				break;
+			default:
+				//An empty message only carries the link state
+				if(packet.message_type != 0 || packet.whats_left() > 0){
+					simulator.log("Ignoring message type " + packet.message_type + " from " + packet.source_address);
+				}
+				break;
+			}
+		}
+		//The client has nothing more to send - hang up, as a datalogger would
+		if(packet.link_state == Packet.link_finished){
+			send_link_state(packet, Packet.link_off_line);
+		}
+	}
+
+	/**
+	 * Answers a packet with a link state only packet
+	 */
+	private void send_link_state(Packet packet, byte link_state) throws Exception{
+		Packet state = new Packet();
+		state.short_header = true;
+		state.link_state = link_state;
+		state.neighbour_dest_address = packet.neighbour_source_address;
+		state.neighbour_source_address = packet.neighbour_dest_address;
+		send(state);
+	}
+
+	private void on_hello(Packet cmd) throws Exception{
+		cmd.move_past(2);
+		int verify_interval = cmd.read_uint2();
+		Packet ack = reply(cmd, Packet.pakctrl_hello_ack);
+		//Not a router
+		ack.add_bool(false);
+		ack.add_byte(Byte.valueOf(hop_metric(simulator.latency)));
+		ack.add_uint2(Integer.valueOf(verify_interval));
+		send(ack);
+	}
+
+	private void on_get_program_stats(Packet cmd) throws Exception{
+		Packet ack = reply(cmd, Packet.bmp5_get_program_stats_ack);
+		ack.add_byte(Byte.valueOf((byte)RESP_OK));
+		ack.add_string(PakBusSimulator.OS_VERSION);
+		ack.add_uint2(Integer.valueOf(0));
+		ack.add_string(PakBusSimulator.SERIAL_NO);
+		ack.add_string(PakBusSimulator.PROGRAM_NAME);
+		//Compile state: running
+		ack.add_byte(Byte.valueOf((byte)1));
+		ack.add_string(PakBusSimulator.PROGRAM_NAME);
+		ack.add_uint2(Integer.valueOf(simulator.program_signature));
+		SimulatedTable.add_time(ack, simulator.start);
+		ack.add_string("Compiled in PipelineMode.");
+		send(ack);
+	}
+
+	/**
+	 * Only Status.StationName is asked for, by the program statistics transaction
+	 */
+	private void on_get_values(Packet cmd) throws Exception{
+		Packet ack = reply(cmd, Packet.bmp5_get_values_ack);
+		ack.add_byte(Byte.valueOf((byte)RESP_OK));
+		ack.add_string(PakBusSimulator.STATION_NAME + cmd.dest_address);
+		send(ack);
+	}
+
+	private void on_file_receive(Packet cmd) throws Exception{
+		cmd.read_uint2();
+		String file_name = cmd.read_string();
+		cmd.read_byte();
+		long offset = cmd.read_uint4();
+		int swath = cmd.read_uint2();
+		Packet ack = reply(cmd, Packet.bmp5_file_receive_ack);
+		if(!PakBusSimulator.TDF_FILE.equals(file_name)){
+			ack.add_byte(Byte.valueOf((byte)RESP_FILE_NOT_FOUND));
+			ack.add_uint4(Long.valueOf(offset));
+			send(ack);
+			return;
+		}
+		byte[] tdf = simulator.table_defs;
+		int from = (int)Math.min(offset, tdf.length);
+		int length = Math.min(swath, tdf.length - from);
+		ack.add_byte(Byte.valueOf((byte)RESP_OK));
+		ack.add_uint4(Long.valueOf(offset));
+		ack.add_bytes(Arrays.copyOfRange(tdf, from, from + length), length);
+		send(ack);
+	}
+
+	private void on_collect_data(Packet cmd) throws Exception{
+		cmd.read_uint2();
+		int mode = cmd.read_byte();
+		int table_no = cmd.read_uint2();
+		int def_sig = cmd.read_uint2();
+		Packet ack = reply(cmd, Packet.bmp5_collect_data_ack);
+		SimulatedTable table = simulator.table(table_no);
+		if(table == null || table.def_sig != def_sig){
+			ack.add_byte(Byte.valueOf((byte)RESP_INVALID_TABLE_DEF));
+			send(ack);
+			return;
+		}
+
+		long now = simulator.now();
+		long oldest = table.oldest(now);
+		long end = table.newest(now) + 1;
+		long from;
+		switch(mode){
+		case 3:
+			//All records
+			from = oldest;
+			break;
+		case 4:
+			//From a record number to the newest
+			from = cmd.read_uint4();
+			break;
+		case 5:
+			//The newest P1 records
+			from = end - cmd.read_uint4();
+			break;
+		case 6:
+			//Record number range, the end excluded
+			from = cmd.read_uint4();
+			end = Math.min(end, cmd.read_uint4());
+			break;
+		case 7:
+			//Time range, the end excluded
+			from = table.record_at(read_time(cmd));
+			end = Math.min(end, table.record_at(read_time(cmd)));
+			break;
+		case 8:
+			//Part of a record too big for one packet
+			long record_no = cmd.read_uint4();
+			long offset = cmd.read_uint4();
+			send_fragment(ack, table, record_no, record_no >= oldest && record_no < end ? (int)offset : -1);
+			return;
+		default:
+			ack.add_byte(Byte.valueOf((byte)RESP_PERMISSION_DENIED));
+			send(ack);
+			return;
+		}
+		from = Math.max(from, oldest);
+
+		int block = body_size() - COLLECT_OVERHEAD - SimulatedTable.TIME_STAMP_SIZE;
+		long count = Math.max(0, Math.min(end - from, block / table.record_size()));
+		if(count == 0 && from < end){
+			//Not even one record fits, the client asks for the rest with mode 8
+			send_fragment(ack, table, from, 0);
+			return;
+		}
+		ack.add_byte(Byte.valueOf((byte)RESP_OK));
+		ack.add_uint2(Integer.valueOf(table.table_no));
+		ack.add_uint4(Long.valueOf(from));
+		ack.add_uint2(Integer.valueOf((int)count));
+		if(count > 0){
+			//Interval tables stamp the first record only
+			SimulatedTable.add_time(ack, table.time_of(from));
+			records.clear();
+			for(long record_no = from; record_no < from + count; record_no++){
+				table.write_record(records, record_no);
+			}
+			ack.add_bytes(records.array(), records.position());
+		}
+		ack.add_bool(from + count < end);
+		send(ack);
+	}
+
+	/**
+	 * Sends the part of one record starting at offset, or no records if offset is -1
+	 */
+	private void send_fragment(Packet ack, SimulatedTable table, long record_no, int offset) throws Exception{
+		ack.add_byte(Byte.valueOf((byte)RESP_OK));
+		ack.add_uint2(Integer.valueOf(table.table_no));
+		ack.add_uint4(Long.valueOf(record_no));
+		int size = SimulatedTable.TIME_STAMP_SIZE + table.record_size();
+		if(offset < 0 || offset >= size){
+			ack.add_uint2(Integer.valueOf(0));
+			ack.add_bool(false);
+			send(ack);
+			return;
+		}
+		//The record count is replaced by the byte offset, flagged by the top bit
+		ack.add_uint4(Long.valueOf(0x80000000L | offset));
+		Packet whole = new Packet();
+		SimulatedTable.add_time(whole, table.time_of(record_no));
+		ByteBuffer values = ByteBuffer.allocate(table.record_size());
+		table.write_record(values, record_no);
+		whole.add_bytes(values.array(), values.position());
+		whole.move_past(offset);
+		int length = Math.min(size - offset, body_size() - COLLECT_OVERHEAD - 2);
+		ack.add_bytes(whole.read_bytes(length), length);
+		ack.add_bool(offset + length < size);
+		send(ack);
+	}
+
+	/**
+	 * @return an NSec time from a packet in ns since 1990
+	 */
+	private static long read_time(Packet cmd) throws Exception{
+		long seconds = cmd.read_uint4();
+		long nanos = cmd.read_uint4();
+		return seconds * 1000000000L + nanos;
+	}
+
+	/**
+	 * @return bytes of message body that fit in one packet
+	 */
+	private int body_size(){
+		return simulator.max_packet_size - HEADER_SIZE;
+	}
+
+	/**
+	 * @return a response to cmd, addressed back to its sender
+	 */
+	private static Packet reply(Packet cmd, short message_type){
+		Packet ack = new Packet();
+		ack.dest_address = cmd.source_address;
+		ack.source_address = cmd.dest_address;
+		ack.neighbour_dest_address = cmd.neighbour_source_address;
+		ack.neighbour_source_address = cmd.neighbour_dest_address;
+		ack.priority = cmd.priority;
+		ack.expect_more_code = Packet.expect_neutral;
+		ack.link_state = Packet.link_ready;
+		ack.protocol_type = cmd.protocol_type;
+		ack.message_type = message_type;
+		ack.tran_no = cmd.tran_no;
+		return ack;
+	}
+
+	/**
+	 * @return hop metric code for a link with this latency
+	 */
+	private static byte hop_metric(long latency){
+		if(latency <= 200) return 0;
+		if(latency <= 1000) return 1;
+		if(latency <= 5000) return 2;
+		if(latency <= 10000) return 3;
+		return 4;
+	}
+
+	/**
+	 * Frames a packet - quoted, signed and between synch bytes - and sends it
+	 * after the link's latency and transmit time
+	 */
+	private void send(Packet packet) throws Exception{
+		byte[] body = packet.write_serial_packet();
+		int nullifier = Utils.calc_sig_nullifier(Utils.calc_sig(body, body.length));
+		int length = 0;
+		buffer[length++] = (byte)0xBD;
+		for(byte b : body){
+			length = quote(b, length);
+		}
+		length = quote((byte)(nullifier >> 8), length);
+		length = quote((byte)nullifier, length);
+		buffer[length++] = (byte)0xBD;
+
+		long delay = simulator.latency;
+		if(simulator.bandwidth > 0){
+			delay += length * 1000L / simulator.bandwidth;
+		}
+		if(delay > 0){
+			Thread.sleep(delay);
+		}
+		out.write(buffer, 0, length);
+		out.flush();
+		simulator.on_sent(length);
+	}
+
+	private int quote(byte b, int length){
+		if(b == (byte)0xBC || b == (byte)0xBD){
+			buffer[length++] = (byte)0xBC;
+			buffer[length++] = (byte)(b + 0x20);
+		}
+		else{
+			buffer[length++] = b;
+		}
+		return length;
+	}
+}
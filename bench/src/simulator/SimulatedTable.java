@@ -0,0 +1,155 @@
+package simulator;
+
+import java.nio.ByteBuffer;
+
+import com.campbellsci.pakbus.ColumnDef;
+import com.campbellsci.pakbus.LoggerDate;
+import com.campbellsci.pakbus.Packet;
+
+/**
+ * A datalogger table that fills itself from the wall clock: one record per
+ * interval, of columns IEEE4 values, keeping the newest history records.
+ *
+ * The table starts out full - its newest record is the last interval
+ * boundary before the simulator started - and gains a record every interval
+ * after that. Record n is stamped first_time + n * interval and its values
+ * are a function of n and the column, so the same record always has the
+ * same contents no matter how often or in how many pieces it is collected.
+ *
+ * Times are in the datalogger's clock, nanoseconds since 1990 in local
+ * standard time, which is how the client expects a CR1000 to keep them.
+ *
+ * @author jdk85
+ *
+ */
+public class SimulatedTable
+{
+	/** Bytes of an NSec time stamp */
+	static final int TIME_STAMP_SIZE = 8;
+
+	final String name;
+	final int columns;
+	/** Record interval in ns */
+	final long interval;
+	/** Records kept by the table */
+	final long history;
+	/** Time of record 0 in ns since 1990, logger time */
+	final long first_time;
+	/** Table number, set when the table definitions are built */
+	int table_no;
+	/** Signature of this table's definition, set when the table definitions are built */
+	int def_sig;
+
+	/**
+	 * @param name
+	 * @param columns - number of IEEE4 columns
+	 * @param interval_ms - record interval (ms)
+	 * @param history - records kept
+	 * @param start - logger time the simulator started, ns since 1990
+	 */
+	public SimulatedTable(String name, int columns, long interval_ms, long history, long start){
+		this.name = name;
+		this.columns = columns;
+		this.interval = interval_ms * LoggerDate.nsec_per_msec;
+		this.history = history;
+		this.first_time = start - start % interval - (history - 1) * interval;
+	}
+
+	/**
+	 * @param now - logger time, ns since 1990
+	 * @return number of the newest record, -1 before the first
+	 */
+	public long newest(long now){
+		return now < first_time ? -1 : (now - first_time) / interval;
+	}
+
+	/**
+	 * @param now - logger time, ns since 1990
+	 * @return number of the oldest record still held
+	 */
+	public long oldest(long now){
+		return Math.max(0, newest(now) - history + 1);
+	}
+
+	/**
+	 * @param time - logger time, ns since 1990
+	 * @return number of the first record stamped at or after time
+	 */
+	public long record_at(long time){
+		if(time <= first_time){
+			return 0;
+		}
+		return (time - first_time + interval - 1) / interval;
+	}
+
+	public long time_of(long record_no){
+		return first_time + record_no * interval;
+	}
+
+	public float value(long record_no, int column){
+		return (float)(column + Math.sin((record_no + column) * 0.01));
+	}
+
+	/**
+	 * @return bytes of a record's values
+	 */
+	public int record_size(){
+		return columns * 4;
+	}
+
+	/**
+	 * Writes a record's values, big endian like the IEEE4 type
+	 */
+	public void write_record(ByteBuffer dst, long record_no){
+		for(int column = 0; column < columns; column++){
+			dst.putFloat(value(record_no, column));
+		}
+	}
+
+	/**
+	 * Adds an NSec time stamp to a packet
+	 */
+	static void add_time(Packet packet, long time){
+		packet.add_int4(Integer.valueOf((int)(time / LoggerDate.nsec_per_sec)));
+		packet.add_int4(Integer.valueOf((int)(time % LoggerDate.nsec_per_sec)));
+	}
+
+	/**
+	 * Adds this table's entry in the .TDF file
+	 */
+	void write_definition(Packet tdf) throws Exception{
+		tdf.add_string(name);
+		tdf.add_int4(Integer.valueOf((int)Math.min(history, Integer.MAX_VALUE)));
+		tdf.add_byte(Byte.valueOf(ColumnDef.type_nsec));
+		//Time into interval
+		add_time(tdf, 0);
+		add_time(tdf, interval);
+		for(int column = 0; column < columns; column++){
+			write_column(tdf, ColumnDef.type_ieee4, column_name(column), "Smp", "");
+		}
+		tdf.add_byte(Byte.valueOf((byte)0));
+	}
+
+	String column_name(int column){
+		return "Value_" + (column + 1);
+	}
+
+	/**
+	 * Adds a scalar column to a .TDF table entry
+	 */
+	static void write_column(Packet tdf, byte type, String name, String processing, String units) throws Exception{
+		tdf.add_byte(Byte.valueOf(type));
+		tdf.add_string(name);
+		//No aliases
+		tdf.add_byte(Byte.valueOf((byte)0));
+		tdf.add_string(processing);
+		tdf.add_string(units);
+		//Description
+		tdf.add_string("");
+		//Begin index and piece size
+		tdf.add_int4(Integer.valueOf(1));
+		tdf.add_int4(Integer.valueOf(1));
+		//No dimensions
+		tdf.add_int4(Integer.valueOf(0));
+	}
+}
@@ -13,7 +13,9 @@ import java.io.StringWriter;
 import java.net.SocketException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.Scanner;
 import java.util.TimeZone;
 
@@ -32,6 +34,7 @@ import com.rbnb.sapi.SAPIException;
 import com.rbnb.sapi.Source;
 
 import utilities.CR1000Interface;
+import utilities.ChannelRegistry;
 import utilities.DataGeneratorCodec;
 import utilities.SegaLogger;
 import utilities.TableInfo;
@@ -78,6 +81,10 @@ public class CR1000Client
 	private int archive_size = 4320; // 3 days at minute sampling rate
 
 	private ArrayList<TableInfo> table_info_list = new ArrayList<TableInfo>();
+	/** table_info_list by table name */
+	private HashMap<String,TableInfo> table_info_index = new HashMap<String,TableInfo>();
+	/** ID and RBNB channel name of every channel flushed */
+	private ChannelRegistry channel_registry = new ChannelRegistry(null);
 	/** Final reconnect logic value - try to reconnect every 30 seconds for 3 days*/
 	private final int max_reconnect_attempts = 8640, reconnect_sleep_time = 30;
 	/** Total number of reconnect attempts by CR1000 or RBNB */
@@ -226,7 +233,7 @@ public class CR1000Client
 	public void init_cr1000_client(){
 		try{
 			//Initialize log and write configuration information
-			log = new SegaLogger(root_directory + "/logs/cr1000-log.txt");
+			log = SegaLogger.get(root_directory + "/logs/cr1000-log.txt");
 		}catch(IOException e){
 			System.exit(0);
 		}
@@ -291,8 +298,12 @@ public class CR1000Client
 		int flush_count = 0;
 		long frame_count = 0;
 		long start_timestamp = 0;
-		//Store channel names to provide number of channels flushed
-		ArrayList<String> channel_names = new ArrayList<String>();
+		//Store channel IDs to provide number of channels flushed
+		BitSet channels_flushed = new BitSet();
+		//Channels of the current table in column order
+		ChannelRegistry.Channel[] columns;
+		ChannelRegistry.Channel channel;
+		int column;
 		
 		// Load the table info (last known record numbers) from disk
 		if(!load){
@@ -300,7 +311,7 @@ public class CR1000Client
 		}
 		else{
 			//Reinit table info if load flag is set
-			table_info_list = new ArrayList<TableInfo>();
+			set_table_info_list(new ArrayList<TableInfo>());
 			save_table_info();
 			//Prompt the user to confirm that they're cleaned the archive for the WiSARD packets
 			System.out.println("You have enabled the 'load' flag.\r\n" +
@@ -359,18 +370,30 @@ public class CR1000Client
 						//Init a TableInfo object
 						table_info = get_table_info(table.name);
 						
+						//A new table definition means the datalogger was reprogrammed - fetch this table as new
+						if(table_info != null && table_info.getTable_signature() != table.def_sig){
+							if(table_info.getTable_signature() == 0){
+								table_info.setTable_signature(table.def_sig);
+							}
+							else{
+								writeToLog("\t*Table definition of " + table.name + " changed - was the datalogger reprogrammed?");
+								remove_table_info(table_info);
+								table_info = null;
+							}
+						}
 						
 						
 						// Request records
 						if(table_info == null && !load){							
 							//Create a new TableInfo obj
 							table_info = new TableInfo(table.name,0,true);
+							table_info.setTable_signature(table.def_sig);
 							
 							// Initialize data_interval
 							if (data_interval == 0)
 								data_interval = table.interval;
 							//Add the new table obj to the list
-							table_info_list.add(table_info);
+							add_table_info(table_info);
 							
 							writeToLog("\t*Executing intial fetch for " + table.name);
 							//TODO: handle the case where these need to be broken into multiple requests
@@ -383,12 +406,13 @@ public class CR1000Client
 								if(table_info == null){
 									//Create a new TableInfo obj
 									table_info = new TableInfo(table.name,0,true);
+									table_info.setTable_signature(table.def_sig);
 									
 									// Initialize data_interval
 									if (data_interval == 0)
 										data_interval = table.interval;
 									//Add the new table obj to the list
-									table_info_list.add(table_info);
+									add_table_info(table_info);
 									
 									writeToLog("\t*Executing intial fetch for " + table.name);
 								}
@@ -405,6 +429,7 @@ public class CR1000Client
 							
 						}
 						
+						columns = channel_registry.register_table(table.name, table);
 						for (Record record : cr1000.records) {
 							// Check for new records
 							if (record.get_record_no() > table_info.getLast_record_no() && record.get_values_count() > 0) {								
@@ -416,7 +441,9 @@ public class CR1000Client
 								sample_timestamp = (long)(record.get_time_stamp().get_secs_since_1990() + seconds_to_add)*1000 - tz.getRawOffset();
 								
 								float floatValue;
+								column = 0;
 								for (ValueBase value : record.get_values()) {
+									channel = (column < columns.length) ? columns[column++] : channel_registry.register(table.name, value.get_name());
 									// Create the value pair							
 									try{
 										//Set floatValue and check for NaN or unknown format
@@ -427,14 +454,12 @@ public class CR1000Client
 										floatValue = Float.NaN;
 									}
 	
-									//Add table name to channel list
-									if(!channel_names.contains(table.name + "/" + value.get_name())){
-										channel_names.add(table.name + "/" + value.get_name());										
-									}
+									//Add channel to the channels flushed
+									channels_flushed.set(channel.id);
 									// Clear the ChannelMap
 									src_map = new ChannelMap();											
 									// Add channels
-									index = src_map.Add(table.name + "/" + value.get_name());
+									index = src_map.Add(channel.name);
 									//If this is the first run, use the sample timestamp as the RBNB timestamp
 									if(table_info.isFirst_run()){
 										//writeToLog("\t*First run table: putting time as " + sample_timestamp/1000.0);
@@ -477,20 +502,20 @@ public class CR1000Client
 						frame_count++;
 						
 						if(debug){
-							System.out.println(sdf.format(new Date()) + " - Flushed " + flush_count + " data points for " + channel_names.size() + " channels. Frame " + frame_count);
+							System.out.println(sdf.format(new Date()) + " - Flushed " + flush_count + " data points for " + channels_flushed.cardinality() + " channels. Frame " + frame_count);
 						}
 						
 						//Send sync channel info
 						sync_map.PutTime(flush_time, 0.);
 						//Add channel count
-						sync_map.PutDataAsInt32(0, new int[]{channel_names.size()});
+						sync_map.PutDataAsInt32(0, new int[]{channels_flushed.cardinality()});
 						//Add frame number
 						sync_map.PutDataAsInt64(1, new long[]{frame_count});
 						sync_src.Flush(sync_map);
 						
 					}
 					flush_count = 0;					
-					channel_names.clear();
+					channels_flushed.clear();
 					// Sleep for half the fastest sampling rate					
 					Thread.sleep(data_interval/(2000000));		
 				}catch(SAPIException e){
@@ -498,6 +523,7 @@ public class CR1000Client
 					writeToLog("\tERROR: \t" + e.getLocalizedMessage());
 					if(!validateReconnectAttempt(e)){
 						writeToLog("Reconnect validation for CR1000 failed, operation will not be resumed.\r\n Exiting...");
+						SegaLogger.flush_all();
 						System.exit(0);
 					}
 					else{
@@ -506,13 +532,13 @@ public class CR1000Client
 					}
 				}catch(InterruptedException e){
 					writeToLog("InterruptedException in main while-loop");
+					SegaLogger.flush_all();
 					System.exit(1);
 				}catch (Exception e) {				
 					if (e.getClass().equals(SocketException.class)) {
 						// Most likely a network issue
-						writeToLog("Communication error. Was the datalogger reprogrammed?");
-						//TODO: reset table info here?
-						table_info_list = new ArrayList<TableInfo>();
+						//Keep the table info - a reprogrammed datalogger is detected table by table once reconnected
+						writeToLog("Communication error - reconnecting");
 						//Try again to connect
 						reinit_cr1000_client = true;
 					} else {
@@ -520,6 +546,7 @@ public class CR1000Client
 						StringWriter errors = new StringWriter();
 			        	e.printStackTrace(new PrintWriter(errors));
 			        	writeToLog(errors.toString());
+			        	SegaLogger.flush_all();
 			        	System.exit(-1);
 					}
 				}
@@ -652,7 +679,7 @@ public class CR1000Client
 				ArrayList<TableInfo> table_info_temp = (ArrayList<TableInfo>) obj;	    		
 	    	
 	    		if(!table_info_list.equals(table_info_temp) && table_info_temp.size() >= 1){
-	    			table_info_list = table_info_temp;
+	    			set_table_info_list(table_info_temp);
 		    		writeToLog("Successfully loaded info for the following tables:\r\n");
 		    		for(TableInfo ti : table_info_list){
 		    			writeToLog("\t" + ti.getChannel_name() + "\t" + ti.getLast_record_no());	    			
@@ -716,7 +743,10 @@ public class CR1000Client
 	private void update_tables()
 	{
 		
-		// Create CR1000 interface
+		// Create CR1000 interface, letting go of the old connection
+		if(cr1000 != null){
+			cr1000.close();
+		}
 		cr1000 = new CR1000Interface();
 		writeToLog("Connecting to CR1000...");
 		try {
@@ -753,13 +783,37 @@ public class CR1000Client
 	 * @return TableInfo object if table info exists, otherwise return null
 	 */
 	private TableInfo get_table_info(String s){
-		for(TableInfo t : table_info_list){
-			if(t.getChannel_name().equals(s)){
-				return t;
-			}
+		return table_info_index.get(s);
+	}
+
+	/**
+	 * Adds a new table to table_info_list
+	 * @param table_info
+	 */
+	private void add_table_info(TableInfo table_info){
+		table_info_list.add(table_info);
+		table_info_index.put(table_info.getChannel_name(), table_info);
+	}
+
+	/**
+	 * Forgets a table, so it is fetched from scratch
+	 * @param table_info
+	 */
+	private void remove_table_info(TableInfo table_info){
+		table_info_list.remove(table_info);
+		table_info_index.remove(table_info.getChannel_name());
+	}
+
+	/**
+	 * Replaces table_info_list and rebuilds its index
+	 * @param list
+	 */
+	private void set_table_info_list(ArrayList<TableInfo> list){
+		table_info_list = list;
+		table_info_index = new HashMap<String,TableInfo>();
+		for(TableInfo t : list){
+			table_info_index.put(t.getChannel_name(), t);
 		}
-		
-		return null;
 	}
 	
 	
@@ -857,6 +911,7 @@ public class CR1000Client
 			writeToLog("CR1000 client shutdown hook activated...");			
 			disconnect_rbnb();
 			save_table_info();
+			SegaLogger.close_all();
 			
 		}
 	}
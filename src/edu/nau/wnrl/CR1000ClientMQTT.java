@@ -3,23 +3,36 @@ package edu.nau.wnrl;
 
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.net.SocketException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.StandardCopyOption;
 import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.LinkedList;
-import java.util.Queue;
+import java.util.List;
 import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.management.JMException;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
@@ -27,7 +40,10 @@ import org.apache.commons.cli.GnuParser;
 import org.apache.commons.cli.HelpFormatter;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
 import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.IMqttToken;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
 import org.eclipse.paho.client.mqttv3.MqttCallback;
 import org.eclipse.paho.client.mqttv3.MqttClient;
 import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
@@ -36,12 +52,23 @@ import org.eclipse.paho.client.mqttv3.MqttMessage;
 import org.eclipse.paho.client.mqttv3.persist.MqttDefaultFilePersistence;
 
 import utilities.CR1000Interface;
+import utilities.ChannelRegistry;
+import utilities.CheckpointStore;
+import utilities.CollectRequest;
 import utilities.DataGeneratorCodec;
 import utilities.Message;
+import utilities.MessageRingBuffer;
+import utilities.Metrics;
+import utilities.PacketLog;
+import utilities.PakBusLink;
+import utilities.RecordConsumer;
 import utilities.SegaLogger;
 import utilities.SendMail;
+import utilities.TableDefCache;
 import utilities.TableInfo;
+import utilities.TableScheduler;
 
+import com.campbellsci.pakbus.DataCollectTran;
 import com.campbellsci.pakbus.Record;
 import com.campbellsci.pakbus.TableDef;
 import com.campbellsci.pakbus.ValueBase;
@@ -62,6 +89,24 @@ public class CR1000ClientMQTT implements MqttCallback
 	private static short 	DEFAULT_PB_ADDRESS = 6;
 	/** Default days of data to fetch from the CR1000 on init */
 	private static int		DEFAULT_DAYS_OF_DATA = 3;
+	/** Default number of packets held in memory between the CR1000 and MQTT threads */
+	private static int		DEFAULT_QUEUE_CAPACITY = 65536;
+	/** Default hours of data requested from the CR1000 at a time during the initial fetch */
+	private static int		DEFAULT_BACKFILL_HOURS = 6;
+	/** Default number of threads shared by the stations in multi-station mode */
+	private static int		DEFAULT_STATION_THREADS = 4;
+	/** Default seconds between status messages */
+	private static int		DEFAULT_STATUS_INTERVAL = 60;
+	/** Default MQTT quality of service for data */
+	private static int		DEFAULT_QOS = 2;
+	/** Default MQTT broker */
+	private static String	DEFAULT_BROKER = "tcp://localhost:1883";
+	/** Default behavior when the in-memory packet queue is full */
+	private static MessageRingBuffer.OverflowPolicy DEFAULT_OVERFLOW_POLICY = MessageRingBuffer.OverflowPolicy.SPILL;
+	/** Value name (last topic level) used for record-batched payloads */
+	private static final String BATCH_VALUE_NAME = "_records";
+	/** Value name (last topic level) used for the comma separated field names of a table */
+	private static final String FIELDS_VALUE_NAME = "_fields";
 	/** IP address for the CR1000 */
 	private String cr1000_address = null;
 	/** The OS-level root directory for configuration, script, and log files */
@@ -74,26 +119,95 @@ public class CR1000ClientMQTT implements MqttCallback
 	private boolean debug = false;
 	/** When true, user is prompted to enter timestamp and tables will be fetched from then */
 	private boolean load = false;
+	/** Number of packets held in memory between the CR1000 and MQTT threads */
+	private int queue_capacity = DEFAULT_QUEUE_CAPACITY;
+	/** What the CR1000 thread does when the in-memory packet queue is full */
+	private MessageRingBuffer.OverflowPolicy overflow_policy = DEFAULT_OVERFLOW_POLICY;
+	/** Number of messages kept in flight by the asynchronous publisher - 0 publishes synchronously */
+	private int inflight_window = 0;
+	/** Maximum number of records packed into one message - 0 publishes one message per value */
+	private int batch_records = 0;
+	/** Hours of data requested from the CR1000 at a time during the initial fetch */
+	private int backfill_hours = DEFAULT_BACKFILL_HOURS;
+	/** Time to wait after a table's interval boundary before polling it (ms) */
+	private long poll_lag = TableScheduler.DEFAULT_LAG;
+	/** File listing the stations to collect in multi-station mode, null for a single station */
+	private String stations_file = null;
+	/** Number of threads shared by the stations in multi-station mode */
+	private int station_threads = DEFAULT_STATION_THREADS;
+	/** Size a log file is rotated at (bytes) */
+	private long log_max_size = SegaLogger.DEFAULT_MAX_SIZE;
+	/** Number of rotated log files kept */
+	private int log_max_archives = SegaLogger.DEFAULT_MAX_ARCHIVES;
+	/** Port the metrics are served on, 0 for none (they are always available over JMX) */
+	private int metrics_port = 0;
+	/** Time between status messages (ms), 0 for none */
+	private long status_interval = DEFAULT_STATUS_INTERVAL * 1000L;
 
 	/** Date format that represents date as 'M/d/Y - HH:mm:ss' */
 	private static final SimpleDateFormat sdf = new SimpleDateFormat("M/d/y - HH:mm:ss");
 	
-	private ArrayList<TableInfo> table_info_list = new ArrayList<TableInfo>();
+	/** Last record number of every table of every station - also the lock for reading and saving it */
+	private final ArrayList<TableInfo> table_info_list = new ArrayList<TableInfo>();
+	/** table_info_list by table name, guarded by table_info_list */
+	private final HashMap<String,TableInfo> table_info_index = new HashMap<String,TableInfo>();
+	/** ID and topic of every channel published */
+	private ChannelRegistry channel_registry;
+	/** Memory-mapped file the TableInfo checkpoints are kept in */
+	private CheckpointStore checkpoint_store;
 	/** Final reconnect logic value - try to reconnect every 30 seconds for 3 days*/
 	private final int max_reconnect_attempts = 8640, reconnect_sleep_time = 30;
-	/** Total number of reconnect attempts by CR1000 */
-	private int cr1000_reconnect_attempts = 0;
-	/** CR100 interface defines functions used by the cr1000 */
-	private CR1000Interface cr1000;
 
 
 	/** Handles connection to mqtt. Flushes packets from the packet queue*/
 	private Thread mqtt_thread;
 	/** Handles ethernet communication with the CR1000*/
 	private Thread cr1000_thread;
+	/** Stations collected in multi-station mode */
+	private ArrayList<Station> stations = new ArrayList<Station>();
+	/** Runs the scans of every station in multi-station mode */
+	private ScheduledExecutorService station_executor;
+	/** One shared PakBus connection per address in multi-station mode */
+	private HashMap<String,PakBusLink> links = new HashMap<String,PakBusLink>();
 
 	/**MessageQueue for incoming packets from the CR1000*/
-	private volatile Queue<Message> pkt_queue;
+	private volatile MessageRingBuffer pkt_queue;
+	/** Write-ahead log backing pkt_queue - every queued Message is appended here and acked once published */
+	private PacketLog packet_log;
+	/** Serializes producers so that packets reach pkt_queue in the same order as packet_log */
+	private final Object enqueue_lock = new Object();
+	/** True while pkt_queue has overflowed and newer packets are only in packet_log (SPILL policy) */
+	private volatile boolean spilling = false;
+	/** Log position of the last packet placed in pkt_queue - spilled packets are read back from here */
+	private long spill_position = 0;
+	/** Newest packet dropped from the full pkt_queue (DROP_OLDEST policy) whose position hasn't been acked yet */
+	private final AtomicReference<Message> last_dropped = new AtomicReference<Message>();
+	/** Scratch list used to read spilled packets back from packet_log */
+	private ArrayList<Message> spill_batch = new ArrayList<Message>();
+	/** Time the message at the head of pkt_queue was queued, 0 when the queue is empty - set by the mqtt thread */
+	private volatile long queue_head_time = 0;
+
+	//Pipeline metrics - see init_metrics()
+	private final Metrics.Counter enqueued = Metrics.get().counter("cr1000_queue_enqueued_total", "Messages queued for publishing");
+	private final Metrics.Histogram queue_wait = Metrics.get().histogram("cr1000_queue_wait_seconds", "Time from queueing a message to publishing it");
+	private final Metrics.Histogram publish_time = Metrics.get().histogram("mqtt_publish_seconds", "Time spent in the MQTT publish call - includes the broker's acknowledgement when publishing synchronously");
+	private final Metrics.Histogram ack_time = Metrics.get().histogram("mqtt_ack_seconds", "Time from publishing a message to the broker confirming it (asynchronous publisher)");
+	private final Metrics.Counter published = Metrics.get().counter("mqtt_published_total", "Messages confirmed by the broker");
+	private final Metrics.Counter publish_failures = Metrics.get().counter("mqtt_publish_failures_total", "Publishes that threw an MqttException");
+	private final Metrics.Counter connections_lost = Metrics.get().counter("mqtt_connection_lost_total", "Times the connection to the broker was lost");
+	private final Metrics.Counter reconnects = Metrics.get().counter("mqtt_reconnects_total", "Times the client reconnected to the broker");
+	private final Metrics.Histogram sample_delay = Metrics.get().histogram("cr1000_sample_delay_seconds", "Time from a record's sample time to publishing it");
+
+	//Status message state - only touched by the mqtt thread except where noted
+	/** Time the next status message is due */
+	private long next_status = 0;
+	/** Time of the last status message and the number of messages published by then, for the publish rate */
+	private long status_time = 0, status_published = 0;
+	/** Time the current connection to the broker was made */
+	private volatile long connected_since = 0;
+	/** Sample time of the newest record published, and how long after it was sampled (ms) */
+	private volatile long last_sample_time = 0, last_sample_delay = -1;
+
 
 
 	//TODO: describe these variables
@@ -102,10 +216,22 @@ public class CR1000ClientMQTT implements MqttCallback
 
 	//MQTT variables	
 	private String pubTopic = common_name + "/data/cr1000";
-	private static int qos = 2;
-	private String broker = "tcp://localhost:1883";
+	/** Retained topic the client reports its health on */
+	private String statusTopic = common_name + "/status/cr1000";
+	private static int qos = DEFAULT_QOS;
+	private String broker = DEFAULT_BROKER;
 	private String pubID = common_name + "/data_publisher/cr1000";
 	private MqttClient pubClient;
+	/** Publisher used instead of pubClient when inflight_window is greater than 0 */
+	private MqttAsyncClient asyncClient;
+	/** Published messages awaiting confirmation, oldest first - only touched by the mqtt thread */
+	private ArrayDeque<InFlightMessage> inflight = new ArrayDeque<InFlightMessage>();
+	/** In-flight messages by MQTT message id, for tokens that carry no context - unmapped when retired */
+	private ConcurrentHashMap<Integer,InFlightMessage> inflight_ids = new ConcurrentHashMap<Integer,InFlightMessage>();
+	/** In-flight messages whose last attempt failed, published again before anything new from pkt_queue */
+	private ConcurrentLinkedDeque<InFlightMessage> republish = new ConcurrentLinkedDeque<InFlightMessage>();
+	/** Number of messages published but not yet confirmed by the broker */
+	private AtomicInteger inflight_count = new AtomicInteger(0);
 	private AtomicBoolean reconnecting_mqtt = new AtomicBoolean(false);
 	private AtomicBoolean reconnect_mqtt = new AtomicBoolean(false);
 
@@ -116,6 +242,8 @@ public class CR1000ClientMQTT implements MqttCallback
 	private SegaLogger log;
 	/** SendMail client used to send email/text alerts */
 	private SendMail sendmail;
+	/** Longest time to wait for queued alerts to go out before exiting (ms) */
+	private static final long MAIL_FLUSH_TIMEOUT = 30000;
 
 	/** The number of seconds to add to convert CR1000 timestamps into ms since 1970*/
 	private static final int seconds_to_add = 631152000;
@@ -142,6 +270,20 @@ public class CR1000ClientMQTT implements MqttCallback
 		options.addOption("d", "debug", false, "if set, debug mode is enabled");
 		options.addOption("n", "name", true, "the common name of the garden");
 		options.addOption("l", "load",false,"if set, script will prompt to load from timestamp (ms since 1970)");
+		options.addOption("c", "capacity", true, "number of packets held in memory before overflowing - defaults to " + DEFAULT_QUEUE_CAPACITY);
+		options.addOption("f", "overflow", true, "what to do when the packet queue is full: 'block', 'spill' (to disk) or 'drop' (oldest) - defaults to 'spill'");
+		options.addOption("w", "window", true, "if set, publish asynchronously with up to this many messages in flight");
+		options.addOption("b", "batch", true, "if set, publish up to this many records of a table per message instead of one message per value");
+		options.addOption("k", "chunk", true, "hours of data requested at a time during the intial fetch - defaults to " + DEFAULT_BACKFILL_HOURS);
+		options.addOption("s", "stations", true, "if set, collect every station listed in this file (one 'name address pbaddr' per line) instead of addr/pbaddr");
+		options.addOption("t", "threads", true, "number of threads shared by the stations listed with 'stations' - defaults to " + DEFAULT_STATION_THREADS);
+		options.addOption("g", "lag", true, "ms to wait after a table's interval before polling it - defaults to " + TableScheduler.DEFAULT_LAG);
+		options.addOption("z", "logsize", true, "MB a log file grows to before it is rotated (logs are also rotated daily) - defaults to " + SegaLogger.DEFAULT_MAX_SIZE / (1024 * 1024));
+		options.addOption("r", "logkeep", true, "number of rotated, gzipped log files kept - defaults to " + SegaLogger.DEFAULT_MAX_ARCHIVES);
+		options.addOption("u", "status", true, "seconds between retained status messages on <name>/status/cr1000, 0 for none - defaults to " + DEFAULT_STATUS_INTERVAL);
+		options.addOption("m", "metrics", true, "if set, serve Prometheus metrics on this port at http://127.0.0.1:<port>" + Metrics.HTTP_PATH);
+		options.addOption("q", "qos", true, "MQTT quality of service the data is published with (0, 1 or 2) - defaults to " + DEFAULT_QOS);
+		options.addOption("o", "broker", true, "URI of the MQTT broker - defaults to " + DEFAULT_BROKER);
 
 		(new CR1000ClientMQTT(args,options,parser)).execute();
 	}
@@ -220,6 +362,159 @@ public class CR1000ClientMQTT implements MqttCallback
 			if(line.hasOption("load")){
 				load = true;
 			}
+
+			//If the 'capacity' flag was provided and the value is not null, parse the argument as an int
+			if(line.hasOption("capacity") && line.getOptionValue("capacity") != null){
+				try{
+					queue_capacity = Integer.parseInt(line.getOptionValue("capacity"));
+				}catch(NumberFormatException e){
+					System.out.println("ERROR parsing 'capacity' argument - must be an integer value");
+					System.exit(0);
+				}
+				if(queue_capacity < 1 || queue_capacity > MessageRingBuffer.MAX_CAPACITY){
+					System.out.println("ERROR parsing 'capacity' argument - must be between 1 and " + MessageRingBuffer.MAX_CAPACITY);
+					System.exit(0);
+				}
+			}
+
+			//If the 'window' flag was provided and the value is not null, parse the argument as an int
+			if(line.hasOption("window") && line.getOptionValue("window") != null){
+				try{
+					inflight_window = Integer.parseInt(line.getOptionValue("window"));
+				}catch(NumberFormatException e){
+					System.out.println("ERROR parsing 'window' argument - must be an integer value");
+					System.exit(0);
+				}
+			}
+
+			//If the 'batch' flag was provided and the value is not null, parse the argument as an int
+			if(line.hasOption("batch") && line.getOptionValue("batch") != null){
+				try{
+					batch_records = Integer.parseInt(line.getOptionValue("batch"));
+				}catch(NumberFormatException e){
+					System.out.println("ERROR parsing 'batch' argument - must be an integer value");
+					System.exit(0);
+				}
+				if(batch_records < 1 || batch_records > DataGeneratorCodec.MAX_RECORD_BATCH_SIZE){
+					System.out.println("ERROR parsing 'batch' argument - must be between 1 and " + DataGeneratorCodec.MAX_RECORD_BATCH_SIZE);
+					System.exit(0);
+				}
+			}
+
+			//If the 'chunk' flag was provided and the value is not null, parse the argument as an int
+			if(line.hasOption("chunk") && line.getOptionValue("chunk") != null){
+				try{
+					backfill_hours = Integer.parseInt(line.getOptionValue("chunk"));
+				}catch(NumberFormatException e){
+					System.out.println("ERROR parsing 'chunk' argument - must be an integer value");
+					System.exit(0);
+				}
+				if(backfill_hours <= 0){
+					System.out.println("ERROR parsing 'chunk' argument - must be greater than 0");
+					System.exit(0);
+				}
+			}
+
+			if(line.hasOption("stations")){
+				stations_file = line.getOptionValue("stations");
+			}
+
+			//If the 'threads' flag was provided and the value is not null, parse the argument as an int
+			if(line.hasOption("threads") && line.getOptionValue("threads") != null){
+				try{
+					station_threads = Integer.parseInt(line.getOptionValue("threads"));
+				}catch(NumberFormatException e){
+					System.out.println("ERROR parsing 'threads' argument - must be an integer value");
+					System.exit(0);
+				}
+				if(station_threads <= 0){
+					System.out.println("ERROR parsing 'threads' argument - must be greater than 0");
+					System.exit(0);
+				}
+			}
+
+			//If the 'lag' flag was provided and the value is not null, parse the argument as a long
+			if(line.hasOption("lag") && line.getOptionValue("lag") != null){
+				try{
+					poll_lag = Long.parseLong(line.getOptionValue("lag"));
+				}catch(NumberFormatException e){
+					System.out.println("ERROR parsing 'lag' argument - must be an integer value");
+					System.exit(0);
+				}
+			}
+
+			if(line.hasOption("qos") && line.getOptionValue("qos") != null){
+				try{
+					qos = Integer.parseInt(line.getOptionValue("qos"));
+				}catch(NumberFormatException e){
+					System.out.println("ERROR parsing 'qos' argument - must be an integer value");
+					System.exit(0);
+				}
+				if(qos < 0 || qos > 2){
+					System.out.println("ERROR parsing 'qos' argument - must be 0, 1 or 2");
+					System.exit(0);
+				}
+			}
+
+			if(line.hasOption("broker") && line.getOptionValue("broker") != null){
+				broker = line.getOptionValue("broker");
+			}
+
+			if(line.hasOption("logsize") && line.getOptionValue("logsize") != null){
+				try{
+					log_max_size = Long.parseLong(line.getOptionValue("logsize")) * 1024 * 1024;
+				}catch(NumberFormatException e){
+					System.out.println("ERROR parsing 'logsize' argument - must be an integer value");
+					System.exit(0);
+				}
+			}
+
+			if(line.hasOption("logkeep") && line.getOptionValue("logkeep") != null){
+				try{
+					log_max_archives = Integer.parseInt(line.getOptionValue("logkeep"));
+				}catch(NumberFormatException e){
+					System.out.println("ERROR parsing 'logkeep' argument - must be an integer value");
+					System.exit(0);
+				}
+			}
+			//Applies to every log opened from here on
+			SegaLogger.setDefaultRotation(log_max_size, log_max_archives);
+
+			//If the 'status' flag was provided and the value is not null, parse the argument as an int
+			if(line.hasOption("status") && line.getOptionValue("status") != null){
+				try{
+					status_interval = Integer.parseInt(line.getOptionValue("status")) * 1000L;
+				}catch(NumberFormatException e){
+					System.out.println("ERROR parsing 'status' argument - must be an integer value");
+					System.exit(0);
+				}
+			}
+
+			if(line.hasOption("metrics") && line.getOptionValue("metrics") != null){
+				try{
+					metrics_port = Integer.parseInt(line.getOptionValue("metrics"));
+				}catch(NumberFormatException e){
+					System.out.println("ERROR parsing 'metrics' argument - must be an integer value");
+					System.exit(0);
+				}
+			}
+
+			if(line.hasOption("overflow") && line.getOptionValue("overflow") != null){
+				String policy = line.getOptionValue("overflow");
+				if(policy.equalsIgnoreCase("block")){
+					overflow_policy = MessageRingBuffer.OverflowPolicy.BLOCK;
+				}
+				else if(policy.equalsIgnoreCase("spill")){
+					overflow_policy = MessageRingBuffer.OverflowPolicy.SPILL;
+				}
+				else if(policy.equalsIgnoreCase("drop")){
+					overflow_policy = MessageRingBuffer.OverflowPolicy.DROP_OLDEST;
+				}
+				else{
+					System.out.println("ERROR parsing 'overflow' argument - must be 'block', 'spill' or 'drop'");
+					System.exit(0);
+				}
+			}
 		}		
 		catch(ParseException e) {
 			System.err.println( "Argument error: " + e.getMessage() );
@@ -253,7 +548,8 @@ public class CR1000ClientMQTT implements MqttCallback
 	public void init_cr1000_client(){
 		try{
 			//Initialize log and write configuration information
-			log = new SegaLogger(root_directory + "/logs/cr1000-log.txt");
+			log = SegaLogger.get(root_directory + "/logs/cr1000-log.txt");
+			log.setLevel(debug ? SegaLogger.Level.DEBUG : SegaLogger.Level.INFO);
 			sendmail = new SendMail(root_directory + "/mail/cr1000",common_name);
 		}catch(IOException e){
 			System.exit(0);
@@ -262,21 +558,30 @@ public class CR1000ClientMQTT implements MqttCallback
 
 
 		pubTopic = common_name + "/data/cr1000";
-		qos = 2;
-		broker = "tcp://localhost:1883";
+		statusTopic = common_name + "/status/cr1000";
 		pubID = common_name + "/data_publisher/cr1000";
 
 		//Print out intialization info
 		writeToLog("[CR1000 IP Addr]: " + cr1000_address + "\r\n"
 				+  "[PackBus Addr]: " + pb_address + "\r\n"
+				+  "[Stations File]: " + (stations_file != null ? stations_file + " (" + station_threads + " threads)" : "single station") + "\r\n"
 				+  "[Root Directory]: " + root_directory + "\r\n"
 				+  "[Inital Fetch Length (days)]: " + days_of_data + "\r\n"
+				+  "[Inital Fetch Chunk (hours)]: " + backfill_hours + "\r\n"
 				+  "[Debug]: " + debug + "\r\n"
 				+  "[Load]: " + load + "\r\n"
+				+  "[Queue Capacity]: " + queue_capacity + "\r\n"
+				+  "[Overflow Policy]: " + overflow_policy + "\r\n"
 				+  "[Publisher Topic]: " + pubTopic + "\r\n"
+				+  "[Status Topic]: " + (status_interval > 0 ? statusTopic + " every " + status_interval / 1000 + " s" : "none") + "\r\n"
 				+  "[Quality of Service (QoS)]: " + qos + "\r\n"
 				+  "[MQTT Broker]: " + broker + "\r\n"
 				+  "[Publisher ID]: " + pubID + "\r\n"
+				+  "[In-flight Window]: " + (inflight_window > 0 ? inflight_window : "synchronous") + "\r\n"
+				+  "[Records per Message]: " + (batch_records > 0 ? batch_records : "one message per value") + "\r\n"
+				+  "[Poll Lag (ms)]: " + poll_lag + "\r\n"
+				+  "[Log Rotation]: daily or at " + log_max_size / (1024 * 1024) + " MB, keeping " + log_max_archives + "\r\n"
+				+  "[Metrics]: " + (metrics_port > 0 ? "http://127.0.0.1:" + metrics_port + Metrics.HTTP_PATH + " and JMX" : "JMX") + "\r\n"
 				);
 
 		
@@ -293,9 +598,16 @@ public class CR1000ClientMQTT implements MqttCallback
 //				String msg = e.getLocalizedMessage();
 //				writeToLog("Caught: " + msg + "\r\n                          from thread: " + t.getName());
 				writeToLog("\tERROR: UNCAUGHT EXCEPTION:",e);
+				//Get the trace to disk before anything else can go wrong
+				SegaLogger.flush_all();
 				//Send this and exit - once we figure out what type of errors to expect, start handling them here
 				sendmail.sendAlert(common_name + "(" + t.getName() + ")",SendMail.AlertType.CR1000CLIENT, e);
-				writeToLog("===== " + SendMail.AlertType.CR1000CLIENT + " ALERT SENT =====");
+				if(sendmail.flush(MAIL_FLUSH_TIMEOUT)){
+					writeToLog("===== " + SendMail.AlertType.CR1000CLIENT + " ALERT SENT =====");
+				}
+				else{
+					writeToLog("===== " + SendMail.AlertType.CR1000CLIENT + " ALERT FAILED TO SEND =====");
+				}
 				System.exit(-1); 
 
 			}
@@ -319,22 +631,100 @@ public class CR1000ClientMQTT implements MqttCallback
 	 */
 	public void execute()
 	{
+		channel_registry = new ChannelRegistry(pubTopic);
+
 		// Populate the packet queue from file
 		if((pkt_queue = load_packet_queue(false)) == null){
 			writeToLog("*Packet queue is null - exiting");
 			System.exit(-1);
 		}
 
+		init_metrics();
+
 
 		//Init the rbnb thread here for normal operation
 		init_mqtt_thread();	
 
 
-		//Init the cr1000 thread
-		init_cr1000_thread();
+		load_table_info();
+		if(stations_file != null){
+			//Init the shared station threads
+			init_station_executor();
+		}
+		else{
+			//Init the cr1000 thread
+			init_cr1000_thread();
+		}
 	}
 
 
+	/**
+	 * Registers the gauges read from the client's state and exports the
+	 * metrics over JMX and, if metrics_port is set, HTTP
+	 */
+	private void init_metrics(){
+		Metrics metrics = Metrics.get();
+		metrics.gauge("cr1000_queue_depth", "Messages in the in-memory packet queue", new Metrics.Gauge.Source(){
+			@Override
+			public double value(){
+				return pkt_queue.size();
+			}
+		});
+		metrics.gauge("cr1000_queue_capacity", "Size of the in-memory packet queue", new Metrics.Gauge.Source(){
+			@Override
+			public double value(){
+				return pkt_queue.capacity();
+			}
+		});
+		metrics.gauge("cr1000_queue_oldest_age_seconds", "Time the message at the head of the packet queue has been waiting", new Metrics.Gauge.Source(){
+			@Override
+			public double value(){
+				long head = queue_head_time;
+				return (head == 0) ? 0 : Math.max(0, System.currentTimeMillis() - head) / 1000.0;
+			}
+		});
+		metrics.gauge("cr1000_queue_spilling", "1 while newer packets are only in the packet log", new Metrics.Gauge.Source(){
+			@Override
+			public double value(){
+				return spilling ? 1 : 0;
+			}
+		});
+		metrics.gauge("cr1000_queue_dropped", "Messages evicted from the full packet queue (overflow policy 'drop')", new Metrics.Gauge.Source(){
+			@Override
+			public double value(){
+				return pkt_queue.getDropped_count();
+			}
+		});
+		metrics.gauge("mqtt_inflight", "Messages published but not yet confirmed by the broker", new Metrics.Gauge.Source(){
+			@Override
+			public double value(){
+				return inflight_count.get();
+			}
+		});
+		metrics.gauge("mqtt_connected", "1 while connected to the broker", new Metrics.Gauge.Source(){
+			@Override
+			public double value(){
+				return (!reconnect_mqtt.get() && validate_mqtt()) ? 1 : 0;
+			}
+		});
+
+		writeToLog("Exporting metrics...");
+		try{
+			metrics.register_mbean("CR1000Client", common_name);
+			writeToLog("\tOK - Metrics registered with JMX");
+		}catch(JMException e){
+			writeToLog("\tERROR: Unable to register metrics with JMX",e);
+		}
+		if(metrics_port > 0){
+			try{
+				metrics.start_http("127.0.0.1", metrics_port);
+				writeToLog("\tOK - Serving metrics on http://127.0.0.1:" + metrics_port + Metrics.HTTP_PATH);
+			}catch(IOException e){
+				writeToLog("\tERROR: Unable to serve metrics on port " + metrics_port,e);
+			}
+		}
+	}
+
 	/**
 	 * Initializes the mqtt thread
 	 * Checks to see if the thread is already running first.
@@ -365,10 +755,11 @@ public class CR1000ClientMQTT implements MqttCallback
 	 */
 	private void init_cr1000_thread(){
 		interrupt_thread(cr1000_thread);
+		final Station station = new Station("", cr1000_address, pb_address, null);
 		cr1000_thread = new Thread(new Runnable(){
 			@Override
 			public void run(){
-				cr1000_client();
+				station.cr1000_client();
 			}
 		});
 		cr1000_thread.setUncaughtExceptionHandler(thread_exception_handler);
@@ -376,13 +767,75 @@ public class CR1000ClientMQTT implements MqttCallback
 		cr1000_thread.start();
 	}
 
+	/**
+	 * Reads the station list and starts collecting every station on a pool
+	 * of station_threads threads. Each station runs one scan at a time and
+	 * is rescheduled for when its next table is due, so a station waiting
+	 * on its datalogger never holds up the others beyond the pool size.
+	 */
+	private void init_station_executor(){
+		load_stations();
+		if(stations.isEmpty()){
+			writeToLog("*No stations found in " + stations_file + " - exiting");
+			System.exit(-1);
+		}
+		final AtomicInteger thread_count = new AtomicInteger(0);
+		station_executor = Executors.newScheduledThreadPool(Math.min(station_threads, stations.size()), new ThreadFactory(){
+			@Override
+			public Thread newThread(Runnable r){
+				Thread thread = new Thread(r);
+				thread.setUncaughtExceptionHandler(thread_exception_handler);
+				thread.setName("cr1000_thread-" + thread_count.incrementAndGet());
+				return thread;
+			}
+		});
+		for(Station station : stations){
+			station_executor.execute(station);
+		}
+	}
+
+	/**
+	 * Reads stations_file - one station per line as 'name address pbaddr',
+	 * separated by spaces or commas. Blank lines and lines starting with # are skipped.
+	 * Stations that share an address are multiplexed over a single PakBusLink.
+	 */
+	private void load_stations(){
+		try{
+			for(String line : Files.readAllLines(new File(stations_file).toPath(), Charset.defaultCharset())){
+				line = line.trim();
+				if(line.isEmpty() || line.startsWith("#")){
+					continue;
+				}
+				String[] fields = line.split("[\\s,]+");
+				if(fields.length != 3){
+					writeToLog("\tERROR: Skipping malformed station '" + line + "'");
+					continue;
+				}
+				try{
+					//Stations behind the same address (a PakBus router) share one connection
+					PakBusLink link = links.get(fields[1]);
+					if(link == null){
+						link = new PakBusLink(fields[1], PakBusLink.DEFAULT_PORT);
+						links.put(fields[1], link);
+					}
+					stations.add(new Station(fields[0], fields[1], Short.parseShort(fields[2]), link));
+					writeToLog("\t" + fields[0] + "\t" + fields[1] + "\t" + fields[2]);
+				}catch(NumberFormatException e){
+					writeToLog("\tERROR: Skipping station '" + line + "' - PakBus address must be a 'short' value");
+				}
+			}
+		}catch(IOException e){
+			writeToLog("\tERROR: Unable to read stations file " + stations_file,e);
+		}
+	}
+
 
 
 	public void mqtt_client(){
 		try{
 			connect_mqtt();
 		}catch(MqttException e){
-			writeToLog("MqttException on init, make sure that the local mosquitto broker is running. Exiting...",e);
+			writeToLog("MqttException on init, make sure that the broker at " + broker + " is running. Exiting...",e);
 			System.exit(-1);
 		}
 
@@ -401,21 +854,38 @@ public class CR1000ClientMQTT implements MqttCallback
 				if(reconnect_mqtt.get()){
 					reconnect_mqtt();
 				}
+				check_status();
 				
-				synchronized(pkt_queue){
-					watchdog = System.currentTimeMillis();
-					while (!pkt_queue.isEmpty()) {
+				//pkt_queue is lock-free - the CR1000 thread keeps enqueueing while we publish
+				watchdog = System.currentTimeMillis();
+				if(inflight_window > 0){
+					flush_count += flush_async();
+				}
+				else{
+					while (!pkt_queue.isEmpty() || (spilling && refill_packet_queue())) {
 						msg = pkt_queue.peek();
 						if(msg != null){
+							queue_head_time = msg.timestamp;
 							try{
 								message = new MqttMessage(msg.data);
 								message.setQos(qos);
-								pubClient.publish(pubTopic + "/" + msg.table_name + "/" + msg.value_name,message);
-
-								pkt_queue.remove();
+								message.setRetained(is_retained(msg));
+								long start = System.nanoTime();
+								pubClient.publish(channel_registry.topic(msg.table_name, msg.value_name),message);
+								publish_time.record_since(start);
+								queue_wait.record((System.currentTimeMillis() - msg.timestamp) * 1000000L);
+								record_sample_delay(msg);
+								published.inc();
+
+								pkt_queue.remove(msg);
+								packet_log.ack(msg);
+								ack_dropped();
 								flush_count += 1;
+								//Producers keep the queue topped up now, so only time out when no progress is made
+								watchdog = System.currentTimeMillis();
 								//if(debug)print_to_console(" * Data flushed - pkt_queue size: " + pkt_queue.size());							
 							}catch(MqttException e){
+								publish_failures.inc();
 								if(!reconnecting_mqtt.get()){
 									writeToLog("\tMQTT client caught MqttException",e);	
 									reconnect_mqtt.set(true);
@@ -423,26 +893,34 @@ public class CR1000ClientMQTT implements MqttCallback
 								}
 							}
 
-							
-						}
-						//If we've spun for over 10 minutes - log and break;
-						if((System.currentTimeMillis() - watchdog) > 600000){
-							writeToLog(" * ERROR: Packet queue flush watchdog expired with " + pkt_queue.size() + " packets");
-							if(sendmail.sendText(common_name,SendMail.AlertType.CR1000CLIENT,"ERROR: Packet queue flush watchdog expired with " + pkt_queue.size() + " packets")){
-								writeToLog("===== " + SendMail.AlertType.CR1000CLIENT + " TEXT SENT =====");
-							}
-							else{
-								writeToLog("===== " + SendMail.AlertType.CR1000CLIENT + " TEXT FAILED TO SEND =====");
-							}
-							System.exit(-1); 
+						
 						}
+						check_flush_watchdog(watchdog);
+						check_status();
 					}
-
 				}
 				
+				if(pkt_queue.isEmpty()){
+					queue_head_time = 0;
+				}
+				if(inflight.isEmpty()){
+					ack_dropped();
+				}
+				try{
+					packet_log.force_if_due();
+				}catch(IOException e){
+					writeToLog("\tERROR: Unable to force the packet log to disk",e);
+				}
 				if (flush_count != 0){
-					if(debug){
-						System.out.println(sdf.format(new Date()) + " - Flushed " + flush_count + " data points");
+					//Persist how far the packet log has been published
+					try{
+						packet_log.commit();
+					}catch(IOException e){
+						writeToLog("\tERROR: Unable to commit packet log cursor",e);
+					}
+
+					if(log.isEnabled(SegaLogger.Level.DEBUG)){
+						writeToLog(SegaLogger.Level.DEBUG, "Flushed " + flush_count + " data points (" + pkt_queue.format_stats() + (spilling ? ", spilling" : "") + ")");
 					}	
 				}
 				
@@ -459,167 +937,331 @@ public class CR1000ClientMQTT implements MqttCallback
 
 	}
 
-	public void cr1000_client(){
-		long data_interval = 0;
-
-
-		//Temp variable used to store the sample timestamp
-		long sample_timestamp = 0;
-
-		//TableInfo stores the last record number for each table
-		TableInfo table_info;
-
-		boolean reinit_cr1000_client = true;		
-
-		long start_timestamp = 0;
-
+	/**
+	 * Publishes from pkt_queue with MqttAsyncClient, keeping up to inflight_window
+	 * messages in flight. Messages stay in the in-flight window, and in the packet log,
+	 * until deliveryComplete() reports that the broker has confirmed them; confirmed
+	 * messages are then acked in the order they were queued. Messages whose attempt
+	 * failed keep their place in the window and are published again first.
+	 * 
+	 * @return the number of messages confirmed during this pass
+	 */
+	private int flush_async(){
+		int confirmed = 0;
+		long watchdog = System.currentTimeMillis();
+		Message msg;
+		InFlightMessage entry;
+
+		while (!reconnect_mqtt.get() && !mqtt_thread.isInterrupted()) {
+			//Retire confirmed messages from the front of the window
+			int retired = retire_inflight();
+			if(retired > 0){
+				confirmed += retired;
+				watchdog = System.currentTimeMillis();
+			}
 
-		load_table_info();
+			if(inflight_count.get() >= inflight_window){
+				//Window is full - wait for deliveryComplete() to wake us up
+				LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(100));
+			}
+			else if((entry = republish.poll()) != null){
+				if(!entry.delivered){
+					try{
+						publish_async(entry);
+					}catch(MqttException e){
+						republish.addFirst(entry);
+						publish_failed(e);
+						break;
+					}
+				}
+			}
+			else if((msg = pkt_queue.peek()) != null || (spilling && refill_packet_queue() && (msg = pkt_queue.peek()) != null)){
+				queue_head_time = msg.timestamp;
+				entry = new InFlightMessage(msg);
+				try{
+					publish_async(entry);
+					queue_wait.record((System.currentTimeMillis() - msg.timestamp) * 1000000L);
+					record_sample_delay(msg);
+					pkt_queue.remove(msg);
+					inflight.add(entry);
+				}catch(MqttException e){
+					publish_failed(e);
+					break;
+				}
+			}
+			else if(inflight.isEmpty()){
+				//Everything has been confirmed
+				queue_head_time = 0;
+				break;
+			}
+			else{
+				LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(100));
+			}
+			check_flush_watchdog(watchdog);
+			check_status();
+		}
+		return confirmed + retire_inflight();
+	}
 
+	/**
+	 * Starts an attempt to publish an in-flight message. Its id is mapped only once
+	 * publish() returns - deliveryComplete() may already have run by then, which is
+	 * why ids are unmapped by retire_inflight() rather than on delivery.
+	 * @param entry - a new message, or one whose last attempt failed
+	 * @throws MqttException if the attempt could not be started
+	 */
+	private void publish_async(final InFlightMessage entry) throws MqttException{
+		MqttMessage message = new MqttMessage(entry.msg.data);
+		message.setQos(qos);
+		message.setRetained(is_retained(entry.msg));
+		final int attempt = ++entry.attempt;
+		entry.outstanding.set(true);
+		inflight_count.incrementAndGet();
+		entry.published = System.nanoTime();
+		IMqttDeliveryToken token;
+		try{
+			token = asyncClient.publish(channel_registry.topic(entry.msg.table_name, entry.msg.value_name), message, entry, new IMqttActionListener(){
+				@Override
+				public void onSuccess(IMqttToken token){
+					//Confirmed by deliveryComplete()
+				}
 
-		while (!cr1000_thread.isInterrupted()) {	
-			//If error occured or this is the first time through - initialize the client
-			if(reinit_cr1000_client){
-				// Update the tables
-				update_tables();					
-				reinit_cr1000_client = false;
+				@Override
+				public void onFailure(IMqttToken token, Throwable e){
+					//Ignore attempts that have already been superseded
+					if(entry.attempt == attempt && requeue_inflight(entry)){
+						publish_failures.inc();
+					}
+				}
+			});
+		}catch(MqttException e){
+			if(entry.outstanding.compareAndSet(true, false)){
+				inflight_count.decrementAndGet();
 			}
-			
-			try{
-
-				// Table loop
-				for (TableDef table : cr1000.tables) {
+			throw e;
+		}
+		publish_time.record_since(entry.published);
+		inflight_ids.remove(entry.message_id, entry);
+		entry.message_id = token.getMessageId();
+		inflight_ids.put(entry.message_id, entry);
+	}
 
-					// Update data_interval to the fastest sampling rate
-					if (table.interval < data_interval || data_interval == 0)
-						data_interval = table.interval;
+	/**
+	 * Counts a publish that could not be started and asks for a reconnect
+	 */
+	private void publish_failed(MqttException e){
+		publish_failures.inc();
+		if(!reconnecting_mqtt.get()){
+			writeToLog("\tMQTT client caught MqttException",e);	
+			reconnect_mqtt.set(true);
+		}
+	}
 
-					//Init a TableInfo object
-					table_info = get_table_info(table.name);
+	/**
+	 * Takes the outstanding attempt of an in-flight message out of the window and
+	 * queues the message to be published again. Called when an attempt fails, and
+	 * for every message still in flight when the publisher reconnects.
+	 * @return false if the message has been delivered or has no attempt outstanding
+	 */
+	private boolean requeue_inflight(InFlightMessage entry){
+		if(entry.delivered || !entry.outstanding.compareAndSet(true, false)){
+			return false;
+		}
+		inflight_count.decrementAndGet();
+		republish.add(entry);
+		LockSupport.unpark(mqtt_thread);
+		return true;
+	}
 
+	/**
+	 * The field names of a table are published retained, so a consumer that
+	 * subscribes after they were sent can still decode the table's batched payloads.
+	 * Decided by value name, as that is kept in the packet log.
+	 * @param msg
+	 * @return true if msg is published as a retained message
+	 */
+	private static boolean is_retained(Message msg){
+		return FIELDS_VALUE_NAME.equals(msg.value_name);
+	}
 
+	/**
+	 * Moves the packet log past packets dropped from the full queue. Acks are by
+	 * position, so this is only called by the mqtt thread while nothing it took
+	 * from the queue before the drop is waiting to be acked.
+	 */
+	private void ack_dropped(){
+		Message msg = last_dropped.getAndSet(null);
+		if(msg != null){
+			packet_log.ack(msg);
+		}
+	}
 
-					// Request records
-					if(table_info == null && !load){							
-						//Create a new TableInfo obj
-						table_info = new TableInfo(table.name,0,true);
+	/**
+	 * Records how long after it was sampled the newest record of a message is being published
+	 * @param msg
+	 */
+	private void record_sample_delay(Message msg){
+		if(msg.sample_time > 0){
+			long delay = System.currentTimeMillis() - msg.sample_time;
+			sample_delay.record(delay * 1000000L);
+			last_sample_time = msg.sample_time;
+			last_sample_delay = delay;
+		}
+	}
 
-						// Initialize data_interval
-						if (data_interval == 0)
-							data_interval = table.interval;
-						//Add the new table obj to the list
-						table_info_list.add(table_info);
+	/**
+	 * Publishes a status message if one is due. Called from the publish loops,
+	 * so it costs a clock read per message the rest of the time.
+	 */
+	private void check_status(){
+		if(status_interval <= 0){
+			return;
+		}
+		long now = System.currentTimeMillis();
+		if(now < next_status){
+			return;
+		}
+		next_status = now + status_interval;
+		publish_status(format_status(now, true));
+	}
 
-						writeToLog("\t*Executing intial fetch for " + table.name);
-						//TODO: handle the case where these need to be broken into multiple requests
-						cr1000.get_records(table,days_of_data);
+	/**
+	 * Publishes a retained status message, QoS 1
+	 * @param status
+	 */
+	private void publish_status(String status){
+		MqttMessage message = new MqttMessage(status.getBytes(StandardCharsets.UTF_8));
+		message.setQos(1);
+		message.setRetained(true);
+		try{
+			if(asyncClient != null && asyncClient.isConnected()){
+				asyncClient.publish(statusTopic, message);
+			}
+			else if(pubClient != null && pubClient.isConnected()){
+				pubClient.publish(statusTopic, message);
+			}
+		}catch(MqttException e){
+			writeToLog("\tUnable to publish status to " + statusTopic + ": " + e);
+		}
+	}
 
-					}
-					else if(load){
+	/**
+	 * Builds the status message - a JSON object with the connection state, the
+	 * packet queue, the publish rate since the last status, the delay from sample
+	 * to publish and the last record number of every table
+	 * @param now
+	 * @param online - false for the message left when the client disconnects
+	 * @return the status as JSON
+	 */
+	private String format_status(long now, boolean online){
+		StringBuilder status = new StringBuilder(512);
+		status.append("{\"client\":").append(json_string(common_name));
+		status.append(",\"time\":").append(now);
+		status.append(",\"state\":\"").append(online ? "online" : "offline").append('"');
+		if(!online){
+			return status.append('}').toString();
+		}
+		status.append(",\"connected_since\":").append(connected_since);
+		status.append(",\"reconnects\":").append(reconnects.get());
+
+		long head = queue_head_time;
+		status.append(",\"queue\":{\"depth\":").append(pkt_queue.size());
+		status.append(",\"capacity\":").append(pkt_queue.capacity());
+		status.append(",\"oldest_queued\":").append(head == 0 ? "null" : String.valueOf(head));
+		status.append(",\"spilling\":").append(spilling);
+		status.append(",\"inflight\":").append(inflight_count.get());
+		status.append(",\"dropped\":").append(pkt_queue.getDropped_count()).append('}');
+
+		long count = published.get();
+		double rate = (status_time == 0 || now <= status_time) ? 0 : (count - status_published) * 1000.0 / (now - status_time);
+		status_time = now;
+		status_published = count;
+		status.append(",\"publish\":{\"rate\":").append(Math.round(rate * 100) / 100.0);
+		status.append(",\"published\":").append(count);
+		status.append(",\"last_sample_time\":").append(last_sample_time == 0 ? "null" : String.valueOf(last_sample_time));
+		status.append(",\"sample_delay_ms\":").append(last_sample_delay < 0 ? "null" : String.valueOf(last_sample_delay)).append('}');
+
+		status.append(",\"tables\":{");
+		synchronized(table_info_list){
+			boolean first = true;
+			for(TableInfo table_info : table_info_list){
+				if(!first){
+					status.append(',');
+				}
+				first = false;
+				status.append(json_string(table_info.getChannel_name())).append(":{\"last_record_no\":").append(table_info.getLast_record_no()).append('}');
+			}
+		}
+		return status.append("}}").toString();
+	}
 
-
-						if(table_info == null){
-							//Create a new TableInfo obj
-							table_info = new TableInfo(table.name,0,true);
-
-							// Initialize data_interval
-							if (data_interval == 0)
-								data_interval = table.interval;
-							//Add the new table obj to the list
-							table_info_list.add(table_info);
-
-							writeToLog("\t*Executing intial fetch for " + table.name);
-						}
-
-
-						cr1000.get_records_by_timestamp(table,start_timestamp);
-
-
-
-					}
-					else{
-						//Otherwise, fetch starting with the last record number that was stored 
-						cr1000.get_records(table,table_info.getLast_record_no());
-
-					}
-
-					for (Record record : cr1000.records) {
-						// Check for new records
-						if (record.get_record_no() > table_info.getLast_record_no() && record.get_values_count() > 0) {								
-
-
-
-							// Update the last_record_no
-							table_info.setLast_record_no(record.get_record_no());
-							sample_timestamp = (long)(record.get_time_stamp().get_secs_since_1990() + seconds_to_add)*1000 - tz.getRawOffset();
-
-							float floatValue;
-							for (ValueBase value : record.get_values()) {
-								// Create the value pair							
-								try{
-									//Set floatValue and check for NaN or unknown format
-									if(Float.isNaN(floatValue = value.to_float())){									
-										floatValue = Float.NaN;			
-									}										
-								}catch(NumberFormatException e){
-									floatValue = Float.NaN;
-								}
-
-								synchronized(pkt_queue){
-									pkt_queue.add(new Message(DataGeneratorCodec.encodeValuePair((byte)ChannelMap.TYPE_FLOAT32, sample_timestamp, floatValue),System.currentTimeMillis(),table.name,value.get_name()));
-								}
-								
-							}
-
-						}
-					}
-
-					if(table_info.isFirst_run()){
-						// Set the first_run flag to false, records were received
-						table_info.setFirst_run(false);
-						writeToLog("\t*Intial fetch completed for " + table.name);
-					}
-
-
-					//Save the  updated TableInfo array to disk
-					save_table_info();						
-
-
-				}
-
-				//Reset the load variable
-				load = false;
-
-
-				// Sleep for half the fastest sampling rate					
-				Thread.sleep(data_interval/(2000000));		
-			}catch(InterruptedException e){
-				writeToLog("\tcr1000_thread interrupted");
-				break;
-			}catch(Exception e) {				
-				if (e.getClass().equals(SocketException.class)) {
-					// Most likely a network issue
-					writeToLog("Communication error. Was the datalogger reprogrammed?",e);
-					table_info_list = new ArrayList<TableInfo>();
-					//Try again to connect
-					reinit_cr1000_client = true;
-				} else {
-					writeToLog("\t*Unhandled exception occurred in main while-loop",e);
-					throw new RuntimeException(e);
-				}
+	/**
+	 * @param s
+	 * @return s as a quoted JSON string
+	 */
+	private static String json_string(String s){
+		StringBuilder quoted = new StringBuilder(s.length() + 2).append('"');
+		for(int i = 0; i < s.length(); i++){
+			char c = s.charAt(i);
+			if(c == '"' || c == '\\'){
+				quoted.append('\\').append(c);
+			}
+			else if(c < 0x20){
+				quoted.append(String.format("\\u%04x", (int)c));
+			}
+			else{
+				quoted.append(c);
 			}
 		}
-
-
+		return quoted.append('"').toString();
 	}
 
+	/**
+	 * Removes confirmed messages from the front of the in-flight window and acks them in the packet log
+	 * @return the number of messages retired
+	 */
+	private int retire_inflight(){
+		int retired = 0;
+		InFlightMessage entry;
+		while((entry = inflight.peek()) != null && entry.delivered){
+			inflight.remove();
+			inflight_ids.remove(entry.message_id, entry);
+			packet_log.ack(entry.msg);
+			retired++;
+		}
+		return retired;
+	}
 
+	/**
+	 * Exits if the flush loop has gone more than 10 minutes without publishing anything
+	 * @param watchdog - time of the last progress
+	 */
+	private void check_flush_watchdog(long watchdog){
+		//If we've spun for over 10 minutes without publishing - log and break;
+		if((System.currentTimeMillis() - watchdog) > 600000){
+			int queued = pkt_queue.size() + inflight.size();
+			writeToLog(" * ERROR: Packet queue flush watchdog expired with " + queued + " packets");
+			if(sendmail.sendText(common_name,SendMail.AlertType.CR1000CLIENT,"ERROR: Packet queue flush watchdog expired with " + queued + " packets")
+					&& sendmail.flush(MAIL_FLUSH_TIMEOUT)){
+				writeToLog("===== " + SendMail.AlertType.CR1000CLIENT + " TEXT SENT =====");
+			}
+			else{
+				writeToLog("===== " + SendMail.AlertType.CR1000CLIENT + " TEXT FAILED TO SEND =====");
+			}
+			SegaLogger.flush_all();
+			System.exit(-1); 
+		}
+	}
 
 	private void disconnect_mqtt() throws MqttException{
 		if(pubClient != null && pubClient.isConnected()){
 			pubClient.disconnect();
 			writeToLog("\tOK - Disconnected publisher " + pubID);						
 		}
+		if(asyncClient != null && asyncClient.isConnected()){
+			asyncClient.disconnect().waitForCompletion();
+			writeToLog("\tOK - Disconnected publisher " + pubID);
+		}
 
 	}
 
@@ -627,13 +1269,14 @@ public class CR1000ClientMQTT implements MqttCallback
 		if(pubClient != null && pubClient.isConnected()){
 			return true;
 		}
+		if(asyncClient != null && asyncClient.isConnected()){
+			return true;
+		}
 		return false;
 	}
 
 	private void connect_mqtt() throws MqttException{
 		pubTopic = common_name + "/data/cr1000";
-		qos = 2;
-		broker = "tcp://localhost:1883";
 		pubID = common_name + "/data_publisher/cr1000";
 
 		//Make the persistence directory if it doesn't exist
@@ -645,15 +1288,29 @@ public class CR1000ClientMQTT implements MqttCallback
 
 		MqttDefaultFilePersistence pubPersistence = new MqttDefaultFilePersistence(root_directory + "/cr1000_config/mqtt_persistence");
 
-		pubClient = new MqttClient(broker, pubID, pubPersistence);
-
-
 		MqttConnectOptions connOpts = new MqttConnectOptions();
 		connOpts.setCleanSession(false); //set to false to maintain session in client and broker
+		if(status_interval > 0){
+			//The broker replaces the retained status if we drop off without disconnecting
+			connOpts.setWill(statusTopic, format_status(System.currentTimeMillis(), false).getBytes(StandardCharsets.UTF_8), 1, true);
+		}
 
 		writeToLog("Connecting publisher to broker " + broker + " as client " + pubID + "...");
-		pubClient.connect(connOpts); 
+		if(inflight_window > 0){
+			//reconnect_mqtt() republishes anything still in flight - QoS 0 messages are never persisted
+			asyncClient = new MqttAsyncClient(broker, pubID, pubPersistence);
+			asyncClient.setCallback(this);
+			connOpts.setMaxInflight(Math.max(inflight_window, MqttConnectOptions.MAX_INFLIGHT_DEFAULT));
+			asyncClient.connect(connOpts).waitForCompletion();
+		}
+		else{
+			pubClient = new MqttClient(broker, pubID, pubPersistence);
+			pubClient.connect(connOpts); 
+		}
 		writeToLog("\tOK - " + pubID + " connected to " + broker);
+		connected_since = System.currentTimeMillis();
+		//Report the new connection straight away
+		next_status = 0;
 	}
 
 	private void reconnect_mqtt(){
@@ -664,6 +1321,11 @@ public class CR1000ClientMQTT implements MqttCallback
 		} catch (MqttException e) {
 			//do nothing here, it shouldn't work anyway if we ended up here
 		}
+		//The new client can't complete attempts made by the old one, so publish them again
+		for(InFlightMessage entry : inflight){
+			requeue_inflight(entry);
+		}
+		inflight_ids.clear();
 		
 		//try to reconnect
 		do{
@@ -674,7 +1336,7 @@ public class CR1000ClientMQTT implements MqttCallback
 				//if the broker isn't up, we won't be able to connect, send an alert if it is the first time this is happening
 				if(first_attempt){
 					sendmail.sendAlert(common_name,SendMail.AlertType.CR1000CLIENT, e);
-					writeToLog("===== " + SendMail.AlertType.CR1000CLIENT + " ALERT SENT =====");
+					writeToLog("===== " + SendMail.AlertType.CR1000CLIENT + " ALERT QUEUED =====");
 				}				
 				first_attempt = false;			
 			
@@ -685,6 +1347,9 @@ public class CR1000ClientMQTT implements MqttCallback
 			
 		}while(!validate_mqtt());
 		
+		if(validate_mqtt()){
+			reconnects.inc();
+		}
 		reconnect_mqtt.set(false);
 		reconnecting_mqtt.set(false);
 	}
@@ -693,120 +1358,83 @@ public class CR1000ClientMQTT implements MqttCallback
 
 
 	/**
-	 * Loads the TableInfo ArrayList object from file
-	 * 
+	 * Opens the checkpoint store and loads every table's TableInfo from it.
+	 * Table info saved by an older version of the client (a serialized
+	 * ArrayList) is copied into the store once and moved to table_info_list.data_backup.
 	 */
 	private void load_table_info(){
+		checkpoint_store = new CheckpointStore(root_directory + "/cr1000_config/table_info.ckpt", CheckpointStore.DEFAULT_FORCE_INTERVAL);
+		ArrayList<TableInfo> table_info_temp = new ArrayList<TableInfo>();
 		try{
-			File file = new File(root_directory + "/cr1000_config/table_info_list.data");
-			if(file.getParentFile().mkdirs()){
-				writeToLog("Creating directories for CR1000 folder " + file.getParentFile().getAbsolutePath());
-			}
-			// Read from disk using FileInputStream
-			FileInputStream fileInput = new FileInputStream(root_directory + "/cr1000_config/table_info_list.data");
-			// Read object using ObjectInputStream
-			ObjectInputStream objectInput = new ObjectInputStream(fileInput);
-
-			// Read an object
-			Object obj = objectInput.readObject();
-			objectInput.close();
-			fileInput.close();
-			if (obj instanceof ArrayList<?>)
-			{
-				// Cast object to an ArrayList<TableInfo>
-				@SuppressWarnings("unchecked")
-				ArrayList<TableInfo> table_info_temp = (ArrayList<TableInfo>) obj;	    		
-
-				if(!table_info_list.equals(table_info_temp) && table_info_temp.size() >= 1){
-					table_info_list = table_info_temp;
-					writeToLog("Successfully loaded info for the following tables:\r\n");
-					for(TableInfo ti : table_info_list){
-						writeToLog("\t" + ti.getChannel_name() + "\t" + ti.getLast_record_no());	    			
-					}
-				}
-				else{
-					writeToLog("No TableInfo loaded");
+			if(!checkpoint_store.open(table_info_temp)){
+				load_legacy_table_info(table_info_temp);
+			}
+		}catch(IOException e){
+			writeToLog("\tERROR: Unable to open the table info checkpoint store - exiting",e);
+			System.exit(-1);
+		}
 
+		if(table_info_temp.size() >= 1){
+			synchronized(table_info_list){
+				table_info_list.clear();
+				table_info_index.clear();
+				for(TableInfo ti : table_info_temp){
+					table_info_list.add(ti);
+					table_info_index.put(ti.getChannel_name(), ti);
 				}
 			}
-			else 
-				writeToLog("*** table_info_list.data NOT an instance of ArrayList");
-		}catch(FileNotFoundException e){
-			writeToLog("File table_info_list.data not found, file will be created");
-			save_table_info();
+			writeToLog("Successfully loaded info for the following tables:\r\n");
+			for(TableInfo ti : table_info_temp){
+				writeToLog("\t" + ti.getChannel_name() + "\t" + ti.getLast_record_no());	    			
+			}
+		}
+		else{
+			writeToLog("No TableInfo loaded");
+		}
+	}
+
+	/**
+	 * Moves the TableInfo ArrayList object written by older versions of the client
+	 * into the checkpoint store
+	 * @param table_info_temp - receives the loaded TableInfo
+	 */
+	private void load_legacy_table_info(ArrayList<TableInfo> table_info_temp){
+		File file = new File(root_directory + "/cr1000_config/table_info_list.data");
+		if(!file.exists()){
+			writeToLog("File table_info.ckpt not found, file will be created");
+			return;
+		}
+		try{
+			int count = checkpoint_store.import_legacy(file, table_info_temp);
+			writeToLog("Moved " + count + " tables from table_info_list.data to the checkpoint store");
 		}catch(IOException e){
 			StringWriter errors = new StringWriter();
 			e.printStackTrace(new PrintWriter(errors));
 			writeToLog(errors.toString());
-		}catch(ClassNotFoundException e){
-			StringWriter errors = new StringWriter();
-			e.printStackTrace(new PrintWriter(errors));
-			writeToLog(errors.toString());
 		}
 	}
 
 	/**
-	 * Write table_info_list to disk
+	 * Writes every changed TableInfo to its slot in the checkpoint store - an
+	 * in-place write of a few bytes per table. The store is forced to disk at
+	 * most every CheckpointStore.DEFAULT_FORCE_INTERVAL ms.
 	 */
 	private void save_table_info(){
+		if(checkpoint_store == null){
+			return;
+		}
 		try{
-			File file = new File(root_directory + "/cr1000_config/table_info_list.data");
-			if(file.getParentFile().mkdirs()){
-				writeToLog("Creating directories for CR1000 folder " + file.getParentFile().getAbsolutePath());
+			synchronized(table_info_list){
+				for(TableInfo ti : table_info_list){
+					checkpoint_store.put(ti);
+				}
 			}
-			// Write to disk with FileOutputStream
-			FileOutputStream fileOutput = new FileOutputStream(root_directory + "/cr1000_config/table_info_list.data");
-
-			// Write object with ObjectOutputStream
-			ObjectOutputStream objectOutput = new ObjectOutputStream (fileOutput);
-
-			// Write object out to disk
-			objectOutput.writeObject(table_info_list);
-			objectOutput.flush();
-			objectOutput.close();
-			fileOutput.close();
+			checkpoint_store.force_if_due();
 		}catch(Exception e){
 			writeToLog("\tERROR: Unable to write table info to disk",e);
 		}
 	}
 
-	/**
-	 * Updates the tables from the CR1000.
-	 */
-	private void update_tables()
-	{
-
-		// Create CR1000 interface
-		cr1000 = new CR1000Interface();
-		writeToLog("Connecting to CR1000...");
-		try {
-			while(!cr1000.init_cr1000_interface(cr1000_address,pb_address,root_directory,debug)){				
-				if(cr1000_reconnect_attempts++ < max_reconnect_attempts){
-					writeToLog("Attempting to connect CR1000 in " + reconnect_sleep_time + " seconds\tAttempt " + cr1000_reconnect_attempts + "/" + max_reconnect_attempts);
-					Thread.sleep(reconnect_sleep_time * 1000);
-				}
-				else{
-					writeToLog("Maximum number of reconnect attempts reached (" + cr1000_reconnect_attempts + ")\r\nExiting...");
-					System.exit(0);
-				}
-			}
-		} catch (InterruptedException e) {
-			writeToLog("Interrupted while connecting to the CR1000...");
-			return;
-		}
-		writeToLog("\tOK - Connected to CR1000");
-
-		// Fetch the tables
-		try {
-			writeToLog("Fetching tables...");
-			cr1000.get_tables();
-			writeToLog("\tOK - Fetched tables");
-		} catch (Exception e) {
-			// Most likely a network issue
-			writeToLog("CR1000 is available but request to fetch tables threw exception");
-		}
-
-	}
 	/**
 	 * Search for TableInfo object using string name
 	 * 
@@ -814,16 +1442,24 @@ public class CR1000ClientMQTT implements MqttCallback
 	 * @return TableInfo object if table info exists, otherwise return null
 	 */
 	private TableInfo get_table_info(String s){
-		for(TableInfo t : table_info_list){
-			if(t.getChannel_name().equals(s)){
-				return t;
-			}
+		synchronized(table_info_list){
+			return table_info_index.get(s);
 		}
+	}
 
-		return null;
+	/**
+	 * Adds a new table to table_info_list
+	 * @param table_info
+	 */
+	private void add_table_info(TableInfo table_info){
+		synchronized(table_info_list){
+			table_info_list.add(table_info);
+			table_info_index.put(table_info.getChannel_name(), table_info);
+		}
 	}
 
 
+
 	public String getRoot_directory() {
 		return root_directory;
 	}
@@ -833,61 +1469,80 @@ public class CR1000ClientMQTT implements MqttCallback
 
 
 	/**
-	 * Loads the packet queue from disk
-	 * @param load_empty - set true to 
-	 * @return
+	 * Opens the packet log and loads the oldest unacknowledged packets into a new queue.
+	 * If there are more than the queue can hold, the rest stay on disk and are read
+	 * back as the queue drains. A packet queue left behind by an older version of the
+	 * client (a serialized LinkedList) is appended to the log once and moved to
+	 * packet-queue_backup.
+	 * @param load_empty - set true to discard everything in the packet log
+	 * @return the packet queue, or null if the log could not be opened
 	 */
 	@SuppressWarnings("unchecked")
-	private Queue<Message> load_packet_queue(boolean load_empty){
-		Queue<Message> temp_queue;
+	private MessageRingBuffer load_packet_queue(boolean load_empty){
+		pkt_queue = new MessageRingBuffer(queue_capacity, overflow_policy);
+		pkt_queue.setDrop_listener(new MessageRingBuffer.DropListener() {
+			@Override
+			public void on_drop(Message msg) {
+				//Dropped packets will never be published - the mqtt thread moves the log
+				//past them once older packets it is still publishing have been acked
+				last_dropped.set(msg);
+			}
+		});
+		ArrayList<Message> temp_queue = new ArrayList<Message>();
 		try{
 			writeToLog("Loading CR1000 packet queue from disk");	
 			File file = new File(getRoot_directory() + "/cr1000_config/packet-queue");
 			if(file.getParentFile().mkdirs()){
 				writeToLog("Creating cr1000 configuration directory " + file.getParentFile().getAbsolutePath());
 			}
-			if(!file.exists()){
-				pkt_queue = new LinkedList<Message>();
-				save_packet_queue();
-			}else{
-				File target = new File(getRoot_directory() + "/cr1000_config/packet-queue_backup");
-				Files.copy(file.toPath(),target.toPath(),StandardCopyOption.REPLACE_EXISTING);
+			packet_log = new PacketLog(getRoot_directory() + "/cr1000_config/packet-log", PacketLog.DEFAULT_SEGMENT_SIZE);
+			long unacked = packet_log.open(temp_queue, pkt_queue.capacity());
+			spill_position = packet_log.ack_position();
+
+			if(load_empty){
+				//Load a fresh (empty) packet queue
+				packet_log.clear();
+				temp_queue.clear();
+				unacked = 0;
+			}
+			for(Message msg : temp_queue){
+				pkt_queue.offer(msg);
+				spill_position = msg.log_position;
+			}
+			if(unacked > temp_queue.size()){
+				//The rest of the backlog is read from disk as the queue drains
+				spilling = true;
 			}
 
-			if(!load_empty){
-				// Read from disk using FileInputStream
+			if(!load_empty && file.exists()){
+				// Read the legacy queue from disk using FileInputStream
 				FileInputStream fileInput = new FileInputStream(file);	
-
-				// Read object using ObjectInputStream
 				ObjectInputStream objectInput = new ObjectInputStream(fileInput);
-
-				// Read an object
 				Object obj = objectInput.readObject();
 				objectInput.close();
 				fileInput.close();
-				if (obj instanceof LinkedList<?>)
-				{
-					temp_queue = (LinkedList<Message>)obj;	    		
-
-					if(!temp_queue.isEmpty()){
-						writeToLog("\tOK - Successfully loaded " + temp_queue.size() + " queued CR1000 packets from disk");	    			
+				if (obj instanceof LinkedList<?>){
+					for(Message msg : (LinkedList<Message>)obj){
+						enqueue_packet(msg);
 					}
-					else{
-						writeToLog("\tOK - Loaded empty CR1000 packet queue from disk"); 
-
-					}	    		
-					return temp_queue;
+					flush_packet_log();
+					writeToLog("\tOK - Moved " + ((LinkedList<Message>)obj).size() + " packets from the legacy packet queue into the packet log");
+					unacked += ((LinkedList<Message>)obj).size();
 				}
 				else{
-					writeToLog("\tERROR: CR1000 packet queue not of type 'LinkedList<?>'");
 					writeToLog("\tERROR: CR1000 packet queue type: " + obj.getClass().getName() + " " + obj.getClass().toString());
 				}
+				File target = new File(getRoot_directory() + "/cr1000_config/packet-queue_backup");
+				Files.move(file.toPath(),target.toPath(),StandardCopyOption.REPLACE_EXISTING);
+			}
+
+			if(unacked > 0){
+				writeToLog("\tOK - Successfully loaded " + unacked + " queued CR1000 packets from disk (" + pkt_queue.size() + " in memory)");	    			
 			}
 			else{
-				//Load a fresh (empty) packet queue
-				pkt_queue = new LinkedList<Message>();
-				save_packet_queue();
+				writeToLog("\tOK - Loaded empty CR1000 packet queue from disk"); 
 			}
+			return pkt_queue;
 		}catch(IOException e){
 			writeToLog("\tERROR Unable to load CR1000 packet queue from disk (IOException)",e);
 		} catch (ClassNotFoundException e) {
@@ -898,23 +1553,81 @@ public class CR1000ClientMQTT implements MqttCallback
 	}
 
 	/**
-	 * 
+	 * Appends a packet to the packet log and then to the packet queue. If the queue is
+	 * full under the SPILL policy the packet is left in the log and read back later by
+	 * refill_packet_queue().
+	 * @param msg
+	 */
+	private void enqueue_packet(Message msg){
+		synchronized(enqueue_lock){
+			try{
+				packet_log.append(msg);
+			}catch(IOException e){
+				writeToLog("\tERROR: Unable to append packet to the packet log",e);
+			}
+			enqueued.inc();
+			if(spilling){
+				return;
+			}
+			if(pkt_queue.offer(msg)){
+				spill_position = msg.log_position;
+			}
+			else if(overflow_policy == MessageRingBuffer.OverflowPolicy.SPILL){
+				writeToLog("Packet queue full (" + pkt_queue.size() + " packets) - spilling to disk");
+				spilling = true;
+			}
+		}
+	}
+
+	/**
+	 * Called by the MQTT thread when the packet queue has drained while spilling.
+	 * Reads the next spilled packets back from the packet log, and stops spilling
+	 * once the end of the log has been reached.
+	 * @return true if any packets were placed in the queue
+	 */
+	private boolean refill_packet_queue(){
+		synchronized(enqueue_lock){
+			int room = pkt_queue.capacity() - pkt_queue.size();
+			spill_batch.clear();
+			try{
+				spill_position = packet_log.read(spill_position, room, spill_batch);
+			}catch(IOException e){
+				writeToLog("\tERROR: Unable to read spilled packets from the packet log",e);
+				return false;
+			}
+			for(Message msg : spill_batch){
+				pkt_queue.offer(msg);
+			}
+			if(spill_batch.size() < room){
+				//Caught up with the producers
+				spilling = false;
+				writeToLog("Packet queue caught up with the packet log - no longer spilling");
+			}
+			spill_batch.clear();
+			return pkt_queue.size() > 0;
+		}
+	}
+
+	/**
+	 * Writes buffered packets out to the packet log
+	 */
+	private void flush_packet_log(){
+		try{
+			packet_log.flush();
+		}catch(IOException e){
+			writeToLog("\tERROR: Unable to flush the packet log",e);
+		}
+	}
+
+	/**
+	 * Flushes the packet log, forces it to disk and persists the read cursor
 	 */
 	public void save_packet_queue(){
 		try {
-			// Write to disk with FileOutputStream
-			FileOutputStream fileOutput = new FileOutputStream(getRoot_directory() + "/cr1000_config/packet-queue");	
-			// Write object with ObjectOutputStream
-			ObjectOutputStream objectOutput = new ObjectOutputStream(fileOutput);	
-			// Write object out to disk
-			objectOutput.writeObject(pkt_queue);
-			objectOutput.flush();
-			objectOutput.close();
-			fileOutput.close();
-			writeToLog("\tOK - CR1000 packet queue written to file");
+			packet_log.close();
+			writeToLog("\tOK - CR1000 packet log written to disk");
 		} catch (IOException e) {			
-			writeToLog("\tERROR: Unable to write CR1000 packet queue to disk");
-			e.printStackTrace();
+			writeToLog("\tERROR: Unable to write CR1000 packet log to disk",e);
 		}
 
 	}
@@ -969,10 +1682,21 @@ public class CR1000ClientMQTT implements MqttCallback
 	 * @see print_to_console(String s)
 	 */
 	public void writeToLog(Object obj){
+		writeToLog(SegaLogger.Level.INFO, obj);
+	}
+	/**
+	 * Log Object to file at the given level, and to the console if debug is set.
+	 * Callers building an expensive obj should check log.isEnabled(level) first.
+	 * 
+	 * @param level
+	 * @param obj - The object (typically a string) 
+	 * to be written to the log file
+	 */
+	public void writeToLog(SegaLogger.Level level, Object obj){
 		if(debug){
 			print_to_console(obj.toString());
 		}
-		log.write(obj);
+		log.write(level, obj);
 	}
 	/**
 	 * 
@@ -986,8 +1710,8 @@ public class CR1000ClientMQTT implements MqttCallback
 			print_to_console(obj.toString());
 			print_to_console(errors.toString());
 		}
-		log.write(obj);
-		log.write("\r\n" + errors.toString());
+		log.write(SegaLogger.Level.ERROR, obj);
+		log.write(SegaLogger.Level.ERROR, "\r\n" + errors.toString());
 	}
 
 
@@ -1002,6 +1726,553 @@ public class CR1000ClientMQTT implements MqttCallback
 		System.out.println(s);		
 	}
 
+	/**
+	 * Collects the tables of a single datalogger and queues their records for
+	 * the shared publisher. In single station mode one Station runs on the
+	 * cr1000_thread; in multi-station mode every Station is scheduled on the
+	 * shared station_executor, one scan() at a time.
+	 */
+	private class Station implements Runnable {
+		/** Name of the station, prefixed to its table names - empty in single station mode */
+		private final String name;
+		/** IP address of the datalogger */
+		private final String address;
+		/** PakBus address of the datalogger */
+		private final short pakbus_address;
+		/** Connection shared with the other stations at address, null to open one of its own */
+		private final PakBusLink link;
+		/** Prefix added to this station's table names in topics and TableInfo */
+		private final String prefix;
+		/** CR100 interface defines functions used by the cr1000 */
+		private CR1000Interface cr1000;
+		/** Decides which tables are due for collection */
+		private TableScheduler scheduler;
+		/** Table definitions of the datalogger saved from the last download */
+		private final TableDefCache table_def_cache;
+		/** Total number of reconnect attempts by CR1000 */
+		private int cr1000_reconnect_attempts = 0;
+		/** True if an error occured or this is the first time through - also set by collection callbacks */
+		private volatile boolean reinit_cr1000_client = true;
+		/** When true, tables are fetched from start_timestamp on the next scan */
+		private boolean load;
+		private long start_timestamp = 0;
+		/** Collection state of each table, reused from scan to scan */
+		private HashMap<String,TableCollection> collections = new HashMap<String,TableCollection>();
+
+		/**
+		 *
+		 * @param name - station name, empty in single station mode
+		 * @param address - IP address of the datalogger
+		 * @param pakbus_address - PakBus address of the datalogger
+		 * @param link - connection shared with other stations, or null to open one of its own
+		 */
+		Station(String name, String address, short pakbus_address, PakBusLink link){
+			this.name = name;
+			this.address = address;
+			this.pakbus_address = pakbus_address;
+			this.link = link;
+			this.prefix = name.isEmpty() ? "" : name + "/";
+			this.load = CR1000ClientMQTT.this.load;
+			scheduler = new TableScheduler(poll_lag, tz.getRawOffset());
+			table_def_cache = new TableDefCache(root_directory + "/cr1000_config/table_defs/" + (name.isEmpty() ? "cr1000" : name) + "-" + pakbus_address + ".tdf");
+		}
+
+		/**
+		 * Runs one scan and schedules the next on station_executor (multi-station mode)
+		 */
+		@Override
+		public void run(){
+			try{
+				long wait = scan();
+				if(!station_executor.isShutdown()){
+					station_executor.schedule(this, Math.max(0, wait), TimeUnit.MILLISECONDS);
+				}
+			}catch(InterruptedException e){
+				writeToLog("\t" + name + " interrupted");
+			}catch(RejectedExecutionException e){
+				//Shutting down
+			}catch(Throwable e){
+				//Tasks on an executor can't reach the uncaught exception handler, so hand it over
+				thread_exception_handler.uncaughtException(Thread.currentThread(), e);
+			}
+		}
+
+		/**
+		 * Runs scans back to back on the current thread until it is interrupted (single station mode)
+		 */
+		public void cr1000_client(){
+			while (!Thread.currentThread().isInterrupted()) {
+				try{
+					// Sleep until the next table is due
+					long wait = scan();
+					if (wait > 0)
+						Thread.sleep(wait);
+				}catch(InterruptedException e){
+					writeToLog("\tcr1000_thread interrupted");
+					break;
+				}
+			}
+		}
+
+		/**
+		 * Connects if needed and collects every table that is due
+		 * @return ms until the station should be scanned again
+		 * @throws InterruptedException
+		 */
+		public long scan() throws InterruptedException{
+			//Time the current table's collection started
+			long started;
+
+			//TableInfo stores the last record number for each table
+			TableInfo table_info;
+
+			//Collection state of the current table
+			TableCollection collection;
+
+			//Tables collected together once the table loop is done
+			ArrayList<TableCollection> pipelined = new ArrayList<TableCollection>();
+			ArrayList<CollectRequest> requests = new ArrayList<CollectRequest>();
+
+			//If error occured or this is the first time through - initialize the client
+			if(reinit_cr1000_client){
+				// Update the tables
+				if(!update_tables()){
+					return reconnect_sleep_time * 1000;
+				}
+				reinit_cr1000_client = false;
+				collections.clear();
+				if(batch_records > 0){
+					enqueue_field_names();
+				}
+			}
+
+			try{
+
+				// Table loop
+				for (TableDef table : cr1000.tables) {
+
+					// Skip tables that can't have a new record yet
+					started = System.currentTimeMillis();
+					if (!load && !scheduler.is_due(table, started))
+						continue;
+
+					//Init a TableInfo object
+					collection = collection_for(table);
+					table_info = get_table_info(collection.table_name);
+
+					// A new table definition means the datalogger was reprogrammed - start this table over
+					if(table_info != null && !load && table_info.getTable_signature() != table.def_sig){
+						if(table_info.getTable_signature() == 0){
+							//Saved before signatures were recorded
+							table_info.setTable_signature(table.def_sig);
+						}
+						else{
+							reset_table_info(table, table_info, started, "table definition changed");
+						}
+					}
+
+
+					// Request records
+					if(table_info == null && !load){
+						//Create a new TableInfo obj
+						table_info = new TableInfo(collection.table_name,0,true);
+						table_info.setTable_signature(table.def_sig);
+						table_info.setBackfill_position(started - days_of_data * 86400000L);
+						//Add the new table obj to the list
+						add_table_info(table_info);
+
+						writeToLog("\t*Executing intial fetch for " + prefix + table.name);
+						begin_collection(collection, table_info, started);
+						backfill(collection);
+						finish_collection(collection);
+						save_table_info();
+
+					}
+					else if(load){
+
+
+						if(table_info == null){
+							//Create a new TableInfo obj
+							table_info = new TableInfo(collection.table_name,0,true);
+							table_info.setTable_signature(table.def_sig);
+							//Add the new table obj to the list
+							add_table_info(table_info);
+
+							writeToLog("\t*Executing intial fetch for " + prefix + table.name);
+						}
+
+
+						begin_collection(collection, table_info, started);
+						cr1000.get_records_by_timestamp(table,start_timestamp,collection);
+						finish_collection(collection);
+						save_table_info();
+
+
+
+					}
+					else if(table_info.getBackfill_position() > 0){
+						//The initial fetch was cut short - pick up from the last window received
+						writeToLog("\t*Resuming intial fetch for " + prefix + table.name + " from " + sdf.format(new Date(table_info.getBackfill_position())));
+						begin_collection(collection, table_info, started);
+						backfill(collection);
+						finish_collection(collection);
+						save_table_info();
+					}
+					else{
+						//Otherwise, fetch starting with the last record number that was stored - queued
+						//with the other tables so their transactions run back to back
+						begin_collection(collection, table_info, started);
+						pipelined.add(collection);
+						requests.add(CollectRequest.since_record(table,table_info.getLast_record_no(),collection));
+
+					}
+
+
+				}
+
+				// Collect every table that is only catching up on new records at once
+				cr1000.collect(requests);
+				for (TableCollection c : pipelined) {
+					finish_collection(c);
+					// The datalogger always sends its newest record - if that is older than the checkpoint,
+					// its record numbers started over
+					if (c.newest_record_no >= 0 && c.newest_record_no < c.table_info.getLast_record_no()) {
+						reset_table_info(c.table, c.table_info, c.started, "newest record " + c.newest_record_no + " is older than the last collected (" + c.table_info.getLast_record_no() + ")");
+					}
+				}
+				if (!pipelined.isEmpty()) {
+					//Save the  updated TableInfo array to disk
+					save_table_info();
+				}
+
+				//Reset the load variable
+				load = false;
+
+			}catch(InterruptedException e){
+				throw e;
+			}catch(Exception e) {
+				if (e.getClass().equals(SocketException.class)) {
+					// Most likely a network issue - the checkpoints stay, a reprogrammed datalogger is
+					// detected table by table once reconnected
+					writeToLog("Communication error" + (name.isEmpty() ? "" : " on " + name) + " - reconnecting",e);
+					scheduler.clear();
+					//Try again to connect - records of a partially collected table are fetched again
+					reinit_cr1000_client = true;
+				} else {
+					writeToLog("\t*Unhandled exception occurred in main while-loop",e);
+					throw new RuntimeException(e);
+				}
+			}
+
+			long now = System.currentTimeMillis();
+			return scheduler.next_due(now) - now;
+		}
+
+		/**
+		 * @return the collection state of table, created when the table is new or its definition was fetched again
+		 */
+		private TableCollection collection_for(TableDef table){
+			TableCollection collection = collections.get(table.name);
+			if(collection == null || collection.table != table){
+				collection = new TableCollection(table);
+				collections.put(table.name, collection);
+			}
+			return collection;
+		}
+
+		/**
+		 * Resets the collection state of a table for a new collection
+		 */
+		private void begin_collection(TableCollection collection, TableInfo table_info, long started){
+			collection.table_info = table_info;
+			collection.started = started;
+			collection.finished = started;
+			collection.records_received = 0;
+			collection.newest_record_no = -1;
+			collection.batch_count = 0;
+		}
+
+		/**
+		 * Starts a table over after the datalogger was reprogrammed: its records are
+		 * fetched again from days_of_data ago, the same as for a new table
+		 * @param table
+		 * @param table_info - checkpoint of the table, reset in place
+		 * @param now - ms since 1970
+		 * @param reason - logged
+		 */
+		private void reset_table_info(TableDef table, TableInfo table_info, long now, String reason){
+			writeToLog("\t*Datalogger reprogrammed? Restarting " + table_info.getChannel_name() + ": " + reason);
+			table_info.setLast_record_no(0);
+			table_info.setFirst_run(true);
+			table_info.setTable_signature(table.def_sig);
+			table_info.setBackfill_position(now - days_of_data * 86400000L);
+			scheduler.clear(table);
+			save_table_info();
+		}
+
+		/**
+		 * Feeds a finished collection back into the schedule and marks the initial fetch done
+		 */
+		private void finish_collection(TableCollection collection){
+			collection.enqueue_batch();
+			flush_packet_log();
+			scheduler.completed(collection.table, collection.started, collection.finished, collection.records_received);
+
+			if(collection.table_info.isFirst_run()){
+				// Set the first_run flag to false, records were received
+				collection.table_info.setFirst_run(false);
+				writeToLog("\t*Intial fetch completed for " + prefix + collection.table.name);
+			}
+		}
+
+		/**
+		 * Connects to the CR1000 and updates the tables.
+		 * @return false if the connection failed and should be retried in reconnect_sleep_time seconds
+		 */
+		private boolean update_tables()
+		{
+
+			// Create CR1000 interface, letting go of the old connection
+			if(cr1000 != null){
+				cr1000.close();
+			}
+			cr1000 = new CR1000Interface();
+			writeToLog("Connecting to CR1000 " + name + "...");
+			boolean connected = (link != null)
+					? cr1000.init_cr1000_interface(link,pakbus_address,root_directory,debug)
+					: cr1000.init_cr1000_interface(address,pakbus_address,root_directory,debug);
+			if(!connected){
+				if(cr1000_reconnect_attempts++ < max_reconnect_attempts){
+					writeToLog("Attempting to connect CR1000 " + name + " in " + reconnect_sleep_time + " seconds\tAttempt " + cr1000_reconnect_attempts + "/" + max_reconnect_attempts);
+					return false;
+				}
+				else{
+					writeToLog("Maximum number of reconnect attempts reached (" + cr1000_reconnect_attempts + ")\r\nExiting...");
+					System.exit(0);
+				}
+			}
+			writeToLog("\tOK - Connected to CR1000 " + name);
+
+			// Fetch the tables
+			try {
+				writeToLog("Fetching tables...");
+				if(cr1000.get_tables(table_def_cache)){
+					writeToLog("\tOK - Program unchanged, loaded tables from cache");
+				}
+				else{
+					writeToLog("\tOK - Fetched tables");
+				}
+			} catch (Exception e) {
+				// Most likely a network issue
+				writeToLog("CR1000 is available but request to fetch tables threw exception");
+			}
+			return true;
+		}
+
+		/**
+		 * Runs the initial fetch of a table in windows of backfill_hours. Each window is
+		 * pushed to the packet log and checkpointed in table_info as soon as it completes,
+		 * so an interrupted fetch resumes from the last window received.
+		 * @param collection - table_info.backfill_position holds the start of the next window
+		 * @throws Exception
+		 */
+		private void backfill(TableCollection collection) throws Exception{
+			long window = backfill_hours * 3600000L;
+			TableDef table = collection.table;
+			TableInfo table_info = collection.table_info;
+			while(table_info.getBackfill_position() > 0){
+				long from = table_info.getBackfill_position();
+				long to = from + window;
+				if(to >= System.currentTimeMillis()){
+					//Last window - collect up to the newest record
+					cr1000.get_records_by_timestamp(table,from,collection);
+					to = 0;
+				}
+				else{
+					cr1000.get_records_by_timestamp(table,from,to,collection);
+				}
+				//Checkpoint once the window's records are safely in the packet log (see on_complete)
+				table_info.setBackfill_position(to);
+				save_table_info();
+			}
+		}
+
+		/**
+		 * Enqueues the comma separated field names of every table, so consumers of
+		 * batched payloads can map the packed values back to fields. They are
+		 * published retained on the table's _fields topic (see is_retained()).
+		 */
+		private void enqueue_field_names(){
+			if(cr1000 == null || cr1000.tables == null){
+				return;
+			}
+			long now = System.currentTimeMillis();
+			for (TableDef table : cr1000.tables) {
+				StringBuilder names = new StringBuilder();
+				for (ValueBase value : table.make_record().get_values()) {
+					if(names.length() > 0){
+						names.append(',');
+					}
+					names.append(value.get_name());
+				}
+				enqueue_packet(new Message(DataGeneratorCodec.encodeValuePair((byte)ChannelMap.TYPE_STRING, now, names.toString()),now,collection_for(table).table_name,FIELDS_VALUE_NAME));
+			}
+			flush_packet_log();
+		}
+
+		/**
+		 * Collection state of one table: queues each block of records as soon as it
+		 * arrives from the datalogger. Tables collected together each have their
+		 * own, so their records and batches never mix.
+		 */
+		private class TableCollection implements RecordConsumer {
+			private final TableDef table;
+			/** Name of the table in topics and TableInfo */
+			private final String table_name;
+			/** Channel of each column, in the order of the record values */
+			private final ChannelRegistry.Channel[] columns;
+			private TableInfo table_info;
+			/** Time the collection started and finished, ms since 1970 */
+			private long started, finished;
+			/** Number of new records received */
+			private int records_received;
+			/** Highest record number received, new or not - -1 if none */
+			private long newest_record_no;
+			/** Records waiting to be packed into a batched payload (see batch_records) */
+			private int batch_count = 0, batch_values_per_record = 0;
+			private long[] batch_timestamps, batch_record_numbers;
+			private float[] batch_values;
+
+			TableCollection(TableDef table){
+				this.table = table;
+				this.table_name = prefix + table.name;
+				this.columns = channel_registry.register_table(table_name, table);
+			}
+
+			@Override
+			public boolean on_records(String table_name, List<Record> records){
+				process_records(records);
+				return true;
+			}
+
+			/**
+			 * Pushes the table's records out to the packet log as soon as its transaction is done
+			 */
+			@Override
+			public void on_complete(String table_name, int outcome){
+				if(outcome == DataCollectTran.outcome_invalid_table_defs){
+					//Fetch the table definitions again before the next scan
+					reinit_cr1000_client = true;
+				}
+				enqueue_batch();
+				flush_packet_log();
+				finished = System.currentTimeMillis();
+			}
+
+			/**
+			 * Queues the values of every new record and advances the table's last record number
+			 * @param records
+			 */
+			private void process_records(List<Record> records){
+				//Temp variable used to store the sample timestamp
+				long sample_timestamp;
+				for (Record record : records) {
+					newest_record_no = Math.max(newest_record_no, record.get_record_no());
+					// Check for new records
+					if (record.get_record_no() > table_info.getLast_record_no() && record.get_values_count() > 0) {
+
+
+
+						// Update the last_record_no
+						table_info.setLast_record_no(record.get_record_no());
+						records_received++;
+						sample_timestamp = (long)(record.get_time_stamp().get_secs_since_1990() + seconds_to_add)*1000 - tz.getRawOffset();
+
+						//Tables too wide for a batched payload are published one value per message
+						if(batch_records > 0 && record.get_values_count() <= DataGeneratorCodec.MAX_RECORD_BATCH_SIZE){
+							add_to_batch(record, sample_timestamp);
+							continue;
+						}
+
+						float floatValue;
+						int column = 0;
+						ChannelRegistry.Channel channel;
+						for (ValueBase value : record.get_values()) {
+							channel = (column < columns.length) ? columns[column++] : channel_registry.register(table_name, value.get_name());
+							// Create the value pair
+							try{
+								//Set floatValue and check for NaN or unknown format
+								if(Float.isNaN(floatValue = value.to_float())){
+									floatValue = Float.NaN;
+								}
+							}catch(NumberFormatException e){
+								floatValue = Float.NaN;
+							}
+
+							Message msg = new Message(DataGeneratorCodec.encodeFloat32(sample_timestamp, floatValue),System.currentTimeMillis(),channel.table_name,channel.value_name);
+							msg.sample_time = sample_timestamp;
+							enqueue_packet(msg);
+
+						}
+
+					}
+				}
+			}
+
+			/**
+			 * Adds a record to the pending batch, enqueueing the batch once it holds batch_records records
+			 * @param record
+			 * @param sample_timestamp - sample time of the record in ms since 1970
+			 */
+			private void add_to_batch(Record record, long sample_timestamp){
+				int values_count = record.get_values_count();
+				if(values_count != batch_values_per_record || batch_timestamps == null){
+					//Every record of a table has the same shape, so this only happens the first time
+					enqueue_batch();
+					batch_values_per_record = values_count;
+					batch_timestamps = new long[batch_records];
+					batch_record_numbers = new long[batch_records];
+					batch_values = new float[batch_records * values_count];
+				}
+
+				int offset = batch_count * batch_values_per_record;
+				float floatValue;
+				for (ValueBase value : record.get_values()) {
+					try{
+						//Set floatValue and check for NaN or unknown format
+						if(Float.isNaN(floatValue = value.to_float())){
+							floatValue = Float.NaN;
+						}
+					}catch(NumberFormatException e){
+						floatValue = Float.NaN;
+					}
+					batch_values[offset++] = floatValue;
+				}
+				batch_timestamps[batch_count] = sample_timestamp;
+				batch_record_numbers[batch_count] = record.get_record_no();
+
+				if(++batch_count == batch_records){
+					enqueue_batch();
+				}
+			}
+
+			/**
+			 * Enqueues the records pending in the batch, if any, as a single message
+			 */
+			private void enqueue_batch(){
+				if(batch_count == 0){
+					return;
+				}
+				byte[] blob = DataGeneratorCodec.encodeRecordBatch(batch_values_per_record, batch_count, table.def_sig,
+						batch_timestamps, batch_record_numbers, batch_values);
+				Message msg = new Message(blob,System.currentTimeMillis(),table_name,BATCH_VALUE_NAME);
+				msg.sample_time = batch_timestamps[batch_count - 1];
+				enqueue_packet(msg);
+				batch_count = 0;
+			}
+		}
+	}
+
 	/**
 	 * ShutdownHook class used to gracefully exit RBNB 
 	 * when the client is shutdown
@@ -1012,15 +2283,27 @@ public class CR1000ClientMQTT implements MqttCallback
 		public void run(){
 			writeToLog("CR1000 client shutdown hook activated...");
 			interrupt_thread(cr1000_thread);				
+			if(station_executor != null){
+				station_executor.shutdownNow();
+				try {
+					station_executor.awaitTermination(10, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					writeToLog("\tInterrupted while waiting for the stations to stop");
+				}
+			}
+			for(PakBusLink link : links.values()){
+				link.close();
+			}
 			interrupt_thread(mqtt_thread);	
 			
 			
 			writeToLog("Saving packet queue with " + pkt_queue.size() + " packets...");
 			save_packet_queue();
-
-			writeToLog("\tOK - Table info written to file");
 			
 			
+			if(status_interval > 0){
+				publish_status(format_status(System.currentTimeMillis(), false));
+			}
 			try {
 				disconnect_mqtt();
 			} catch (MqttException e) {
@@ -1028,22 +2311,69 @@ public class CR1000ClientMQTT implements MqttCallback
 			}
 			writeToLog("Writing table info to file...");
 			save_table_info();
-			writeToLog("\tOK - Table info written to file");
+			try {
+				checkpoint_store.close();
+				writeToLog("\tOK - Table info written to file");
+			} catch (IOException e) {
+				writeToLog("\tERROR: Unable to close the table info checkpoint store",e);
+			}
+			if(sendmail != null){
+				sendmail.close(MAIL_FLUSH_TIMEOUT);
+			}
+			Metrics.get().stop_http();
+			Metrics.get().unregister_mbean();
+			//Every log, including the station and mail logs
+			SegaLogger.close_all();
+
+		}
+	}
 
+	/**
+	 * A message published by the asynchronous publisher that has
+	 * not yet been retired from the in-flight window
+	 */
+	private static class InFlightMessage {
+		final Message msg;
+		int message_id;
+		/** System.nanoTime() when it was last published */
+		volatile long published;
+		/** Number of publish attempts, so callbacks of a superseded attempt can be ignored */
+		volatile int attempt = 0;
+		/** Set while an attempt counts against the window - cleared exactly once per attempt */
+		final AtomicBoolean outstanding = new AtomicBoolean(false);
+		volatile boolean delivered = false;
+
+		InFlightMessage(Message msg){
+			this.msg = msg;
 		}
 	}
 
 	@Override
 	public void connectionLost(Throwable arg0) {
 		writeToLog("Connection to MQTT lost",arg0);
+		connections_lost.inc();
 		reconnect_mqtt.set(true);
 
 	}
 
 	@Override
 	public void deliveryComplete(IMqttDeliveryToken arg0) {
-		// TODO Auto-generated method stub
-
+		//Only the asynchronous publisher tracks deliveries
+		InFlightMessage entry = (InFlightMessage)arg0.getUserContext();
+		if(entry == null){
+			//Tokens restored from persistence after a reconnect carry no context
+			entry = inflight_ids.get(arg0.getMessageId());
+		}
+		if(entry != null && !entry.delivered){
+			ack_time.record_since(entry.published);
+			published.inc();
+			entry.delivered = true;
+			//Unless it was requeued first, the attempt no longer counts against the window
+			if(entry.outstanding.compareAndSet(true, false)){
+				inflight_count.decrementAndGet();
+			}
+			LockSupport.unpark(mqtt_thread);
+		}
 	}
 
 	@Override
@@ -1,40 +1,62 @@
 package utilities;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.net.Socket;
 import java.net.UnknownHostException;
-import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 
-import com.campbellsci.pakbus.DataCollectClient;
-import com.campbellsci.pakbus.DataCollectModeDateToNewest;
-import com.campbellsci.pakbus.DataCollectModeRecordNoToNewest;
-import com.campbellsci.pakbus.DataCollectTran;
 import com.campbellsci.pakbus.Datalogger;
+import com.campbellsci.pakbus.GetProgStatsClient;
+import com.campbellsci.pakbus.GetProgStatsTran;
 import com.campbellsci.pakbus.GetTableDefsClient;
 import com.campbellsci.pakbus.GetTableDefsTran;
-import com.campbellsci.pakbus.LoggerDate;
 import com.campbellsci.pakbus.Network;
 import com.campbellsci.pakbus.Record;
 import com.campbellsci.pakbus.TableDef;
+import com.campbellsci.pakbus.TransactionBase;
 
 /**
  * 
  * @author jes244
  *
  */
-public class CR1000Interface implements GetTableDefsClient, DataCollectClient
+public class CR1000Interface implements GetTableDefsClient, GetProgStatsClient
 {
+	/** Longest the pump waits between calls to check_state while the link is idle (ms) */
+	public static final long MAX_PUMP_WAIT = 100;
+	/** Time taken to download the table definitions */
+	private static final Metrics.Histogram TABLE_DEFS_TIME = Metrics.get().histogram("pakbus_transaction_seconds", "type", "table_defs", "Time from submitting a PakBus transaction to its completion");
+	/** Time taken to fetch the program statistics */
+	private static final Metrics.Histogram PROG_STATS_TIME = Metrics.get().histogram("pakbus_transaction_seconds", "type", "prog_stats", "Time from submitting a PakBus transaction to its completion");
+	/** Time taken by collect() - every table of a scan */
+	private static final Metrics.Histogram SCAN_TIME = Metrics.get().histogram("cr1000_scan_seconds", "Time to collect every table due in a scan");
+	/** Transactions that didn't succeed */
+	private static final Metrics.Counter TABLE_DEFS_FAILURES = Metrics.get().counter("pakbus_transaction_failures_total", "type", "table_defs", "PakBus transactions that did not succeed");
+	private static final Metrics.Counter PROG_STATS_FAILURES = Metrics.get().counter("pakbus_transaction_failures_total", "type", "prog_stats", "PakBus transactions that did not succeed");
 	// Variables
-	private int rec_index;
-	private boolean complete;
+	/** Counted down by on_complete when the table definitions or program statistics have been fetched */
+	private volatile CountDownLatch completion = new CountDownLatch(0);
+	/** Outcome of the last table definitions or program statistics transaction */
+	private volatile int outcome = -1;
+	/** Cache the table definitions are checked against, null for none */
+	private TableDefCache table_def_cache;
+	/** Program signature read by the last program statistics transaction, -1 if it failed */
+	private volatile int program_signature = -1;
 	private Datalogger my_cr1000;
+	private short pb_address;
 	private Network network;
 	private Socket socket;
+	/** Shared connection the datalogger is reached through, null when this interface has its own */
+	private PakBusLink link;
+	/** Connection generation my_cr1000 was added to the link under */
+	private int link_generation;
 	private SegaLogger log;
 	private boolean debug;
 	// Public variables
@@ -48,12 +70,13 @@ public class CR1000Interface implements GetTableDefsClient, DataCollectClient
 	{
 		try{
 			if(log == null)
-				log = new SegaLogger(directory + "/logs/cr1000-interface.txt");
+				log = SegaLogger.get(directory + "/logs/cr1000-interface.txt");
 			this.debug = debug;
 			// Create connection and network
 			socket = new Socket(ip_address, 6785);
 			network = new Network((short)4079, socket.getInputStream(), socket.getOutputStream());
 			// Create station
+			this.pb_address = pb_address;
 			my_cr1000 = new Datalogger(pb_address);
 			// Add datalogger to the network
 			network.add_station(my_cr1000);
@@ -73,6 +96,36 @@ public class CR1000Interface implements GetTableDefsClient, DataCollectClient
 		return true;
 	}
 
+	/**
+	 * Reaches the datalogger through a connection shared with other stations
+	 * instead of opening a socket of its own
+	 * 
+	 * @param link - shared connection, opened if it isn't already
+	 * @param pb_address - PakBus address of the datalogger
+	 * @param directory
+	 * @param debug
+	 * @return false if the link could not be opened
+	 */
+	public boolean init_cr1000_interface(PakBusLink link, short pb_address, String directory, boolean debug)
+	{
+		try{
+			if(log == null)
+				log = SegaLogger.get(directory + "/logs/cr1000-interface.txt");
+			this.debug = debug;
+			this.link = link;
+			this.pb_address = pb_address;
+			link_generation = link.open();
+			my_cr1000 = link.add_station(link_generation, pb_address);
+		} catch (IOException e) {
+			StringWriter errors = new StringWriter();
+        	e.printStackTrace(new PrintWriter(errors));
+    		writeToLog(errors.toString());
+    		return false;
+		}
+		
+		return true;
+	}
+
 	/**
 	 * 
 	 * @return
@@ -80,18 +133,52 @@ public class CR1000Interface implements GetTableDefsClient, DataCollectClient
 	 */
 	public void get_tables() throws Exception
 	{
-		// Variables
-		int active_links = 0;
-
 		// Reset the tables
 		tables = new TableDef[0];
 		// Add a transaction to get the table definitions
-		my_cr1000.add_transaction(new GetTableDefsTran(this));
-		complete = false;
-		while (!complete || active_links > 0) {
-			active_links = network.check_state();
-			sleep_thread(1);
+		long start = System.nanoTime();
+		CountDownLatch done = begin();
+		submit(new GetTableDefsTran(this));
+		wait_for(done, false);
+		TABLE_DEFS_TIME.record_since(start);
+	}
+	
+	/**
+	 * Gets the table definitions, from cache when the datalogger is still running
+	 * the program they were cached for. The program statistics are always fetched
+	 * first, to check the cache and to key the definitions cached after a download;
+	 * the full definitions are downloaded - and cached - when the signature or
+	 * program name differs or there is no usable cache.
+	 * 
+	 * @param cache - cache of this datalogger's table definitions
+	 * @return true if the tables were loaded from cache
+	 * @throws Exception
+	 */
+	public boolean get_tables(TableDefCache cache) throws Exception
+	{
+		table_def_cache = cache;
+		boolean cached = cache.load();
+		tables = new TableDef[0];
+		// on_complete loads the cached definitions if the program is unchanged
+		long start = System.nanoTime();
+		CountDownLatch done = begin();
+		submit(new ProgStatsTran(this));
+		wait_for(done, false);
+		PROG_STATS_TIME.record_since(start);
+		if (tables.length > 0)
+			return true;
+		if (cached)
+			writeToLog("Table definitions changed since they were cached - fetching them again.");
+		int signature = program_signature;
+		get_tables();
+		if (outcome == GetTableDefsTran.outcome_success) {
+			try{
+				cache.save(my_cr1000, signature);
+			}catch(IOException e){
+				writeToLog("Unable to cache table definitions: " + e);
+			}
 		}
+		return false;
 	}
 	
 	/**
@@ -99,22 +186,65 @@ public class CR1000Interface implements GetTableDefsClient, DataCollectClient
 	 */
 	public void on_complete(GetTableDefsTran transaction, int outcome)
 	{
-		// Variables
-		int count = 0;
-
 		// Did the transaction succeed?
 		if (outcome == GetTableDefsTran.outcome_success) {
-			// Get the number of tables
-			count = my_cr1000.get_tables_count();
-			// Create array of tables
-			tables = new TableDef[count - 2];
-			// Store the tables
-			for (int i = 2; i < count; i++)
-				tables[i - 2] = my_cr1000.get_table(i);
+			load_tables();
 		} else {
+			TABLE_DEFS_FAILURES.inc();
 			writeToLog("Get table definitions transaction did not succeed. Error code " + outcome + ".");
 		}
-		complete = true;
+		this.outcome = outcome;
+		completion.countDown();
+	}
+
+	/**
+	 * Loads the cached table definitions if the program statistics show the
+	 * datalogger is running the program they were cached for
+	 */
+	public void on_complete(GetProgStatsTran transaction, int outcome)
+	{
+		try{
+			program_signature = (outcome == GetProgStatsTran.outcome_success) ? ((ProgStatsTran)transaction).getProgram_signature() : -1;
+			if (outcome == GetProgStatsTran.outcome_success && table_def_cache.matches(my_cr1000, program_signature)) {
+				byte[] raw = table_def_cache.getRaw_table_defs();
+				my_cr1000.set_raw_table_defs(raw, raw.length);
+				load_tables();
+			} else if (outcome != GetProgStatsTran.outcome_success) {
+				PROG_STATS_FAILURES.inc();
+				writeToLog("Get program statistics transaction did not succeed. Error code " + outcome + ".");
+			}
+		}finally{
+			this.outcome = outcome;
+			completion.countDown();
+		}
+	}
+
+	/**
+	 * Deletes the cached table definitions, when a transaction reports they no longer match the datalogger
+	 */
+	public void invalidate_table_defs()
+	{
+		if (table_def_cache != null)
+			table_def_cache.invalidate();
+	}
+
+	/**
+	 * Fills tables from the definitions the datalogger holds
+	 */
+	private void load_tables()
+	{
+		// Get the number of tables
+		int count = my_cr1000.get_tables_count();
+		if (count < 2) {
+			tables = new TableDef[0];
+			return;
+		}
+		// Create array of tables
+		TableDef[] loaded = new TableDef[count - 2];
+		// Store the tables
+		for (int i = 2; i < count; i++)
+			loaded[i - 2] = my_cr1000.get_table(i);
+		tables = loaded;
 	}
 
 	/**
@@ -126,24 +256,20 @@ public class CR1000Interface implements GetTableDefsClient, DataCollectClient
 	 */
 	public void get_records(TableDef table, long rn) throws Exception 
 	{
-		
-		// Variables
-		int active_links = 0;
-
-		// Reset the index
-		rec_index = 0;
-		// Reset the records
-		records = new Record[0];
-		// Add a transaction to collect the records based on if any
-		// records have been received or not
-		my_cr1000.add_transaction(new DataCollectTran(table.name, this,
-					new DataCollectModeRecordNoToNewest(rn)));
-		
-		complete = false;
-		while (!complete || active_links > 0) {
-			 active_links = network.check_state(complete);	         
-	         Thread.sleep(100);
-		}
+		get_records(table, rn, null);
+	}
+	/**
+	 * Collects every record newer than rn, handing each block of records
+	 * to consumer as it arrives
+	 * 
+	 * @param table - table to fetch from
+	 * @param rn - record number
+	 * @param consumer - receives the records, or null to collect them into records
+	 * @throws Exception
+	 */
+	public void get_records(TableDef table, long rn, RecordConsumer consumer) throws Exception 
+	{
+		collect_one(CollectRequest.since_record(table, rn, consumer));
 	}
 	/**
 	 * 
@@ -154,26 +280,34 @@ public class CR1000Interface implements GetTableDefsClient, DataCollectClient
 	 */
 	public void get_records_by_timestamp(TableDef table, long timestamp) throws Exception 
 	{
-		// Variables
-		int active_links = 0;
-		
-		Calendar cal = Calendar.getInstance();
-		cal.setTimeInMillis(timestamp);
-		LoggerDate logger_date = new LoggerDate(cal);
-		// Reset the index
-		rec_index = 0;
-		// Reset the records
-		records = new Record[0];
-		// Add a transaction to collect the records based on if any
-		// records have been received or no
-		my_cr1000.add_transaction(new DataCollectTran(table.name, this,
-				new DataCollectModeDateToNewest(logger_date)));
-		
-		complete = false;
-		while (!complete || active_links > 0) {
-			active_links = network.check_state();
-			Thread.sleep(100);
-		}
+		get_records_by_timestamp(table, timestamp, null);
+	}
+	/**
+	 * Collects every record since timestamp, handing each block of records
+	 * to consumer as it arrives
+	 * 
+	 * @param table
+	 * @param timestamp - ms since 1970
+	 * @param consumer - receives the records, or null to collect them into records
+	 * @throws Exception
+	 */
+	public void get_records_by_timestamp(TableDef table, long timestamp, RecordConsumer consumer) throws Exception 
+	{
+		collect_one(CollectRequest.since_time(table, timestamp, consumer));
+	}
+	/**
+	 * Collects the records stored between two times, handing each block of
+	 * records to consumer as it arrives
+	 * 
+	 * @param table
+	 * @param from - start of the range in ms since 1970
+	 * @param to - end of the range in ms since 1970
+	 * @param consumer - receives the records, or null to collect them into records
+	 * @throws Exception
+	 */
+	public void get_records_by_timestamp(TableDef table, long from, long to, RecordConsumer consumer) throws Exception 
+	{
+		collect_one(CollectRequest.between(table, from, to, consumer));
 	}
 	
 	/**
@@ -185,74 +319,161 @@ public class CR1000Interface implements GetTableDefsClient, DataCollectClient
 	 */
 	public void get_records(TableDef table,int days_of_data) throws Exception 
 	{
-		// Variables
-		int active_links = 0;
-		
+		get_records(table, days_of_data, null);
+	}
+	/**
+	 * Collects the last days_of_data days of records, handing each block of
+	 * records to consumer as it arrives
+	 * 
+	 * @param table
+	 * @param days_of_data
+	 * @param consumer - receives the records, or null to collect them into records
+	 * @throws Exception
+	 */
+	public void get_records(TableDef table,int days_of_data, RecordConsumer consumer) throws Exception 
+	{
 		Calendar cal = Calendar.getInstance();
 		cal.add(Calendar.DAY_OF_MONTH, -1 * days_of_data);
-		LoggerDate logger_date = new LoggerDate(cal);
-		// Reset the index
-		rec_index = 0;
-		// Reset the records
-		records = new Record[0];
-		// Add a transaction to collect the records based on if any
-		// records have been received or no
-		my_cr1000.add_transaction(new DataCollectTran(table.name, this,
-				new DataCollectModeDateToNewest(logger_date)));
-		
-		complete = false;
-		while (!complete || active_links > 0) {
-			active_links = network.check_state();
-			Thread.sleep(100);
-		}
+		collect_one(CollectRequest.since_time(table, cal.getTimeInMillis(), consumer));
 	}
 
 	/**
+	 * Collects several tables in one batch. Every transaction is queued on the
+	 * datalogger before any of them is waited on, and each request's records
+	 * reach its consumer as they arrive. The Network runs one transaction at a
+	 * time, so the requests don't overlap: they are queued back to back with no
+	 * gap, and a scan still takes the sum of its tables' collection times, less
+	 * the wait between a transaction finishing and the next being submitted.
 	 * 
+	 * @param requests
+	 * @throws Exception
 	 */
-	public void on_complete(DataCollectTran transaction, int outcome)
+	public void collect(List<CollectRequest> requests) throws Exception
 	{
-		// Did the transaction succeed?
-		if (outcome != DataCollectTran.outcome_success){
-			if(outcome != 11)
-				writeToLog("Data collection transaction did not succeed. Error code " + outcome + ".");
-			//If the outcome was 11 we don't really care - it just means that that table hasn't gotten any data yet
-			//so we don't need to log it
+		if (requests.isEmpty())
+			return;
+		long start = System.nanoTime();
+		CountDownLatch done = new CountDownLatch(requests.size());
+		boolean report_complete = true;
+		for (CollectRequest request : requests) {
+			report_complete &= request.reports_complete();
+			submit(request.start(this, done));
 		}
-			
-		complete = true;
+		wait_for(done, report_complete);
+		SCAN_TIME.record_since(start);
 	}
 
 	/**
+	 * Collects a single request, leaving its records in records when it has no consumer
 	 * 
+	 * @param request
+	 * @throws Exception
 	 */
-	public boolean on_records(DataCollectTran transaction, List<Record> rs)
+	private void collect_one(CollectRequest request) throws Exception
 	{
-		// This method returns 18 records at a time, I don't know why
-		// Extend the records array
-		records = Arrays.copyOf(records, records.length + rs.size());
-		// Store the records
-		for (Record r : rs) 
-			records[rec_index++] = r;
-		// Clear the list of records received
-		rs.clear();
-		return true;
+		// Reset the records
+		records = new Record[0];
+		try{
+			collect(Collections.singletonList(request));
+		}finally{
+			records = request.getRecords().toArray(records);
+			request.getRecords().clear();
+		}
 	}
-	
+
+	/**
+	 * Arms a new completion latch for the table definitions or program statistics transaction
+	 * @return the latch on_complete will count down
+	 */
+	private CountDownLatch begin()
+	{
+		CountDownLatch done = new CountDownLatch(1);
+		outcome = -1;
+		completion = done;
+		return done;
+	}
+
+	/**
+	 * Starts a transaction on the datalogger
+	 * @param transaction
+	 * @throws Exception
+	 */
+	private void submit(TransactionBase transaction) throws Exception
+	{
+		if (link != null)
+			link.submit(link_generation, my_cr1000, transaction);
+		else
+			my_cr1000.add_transaction(transaction);
+	}
+
 	/**
-	 * Sleep the current thread for x amount of seconds.
+	 * Waits for the current transaction to finish - on a shared link its pump
+	 * thread does the work, otherwise the network is pumped on this thread
+	 * @param done - latch counted down by the transaction's on_complete
+	 * @param report_complete - pass the completion flag on to Network.check_state
+	 * @throws Exception
+	 */
+	private void wait_for(CountDownLatch done, boolean report_complete) throws Exception
+	{
+		if (link != null)
+			link.await(link_generation, done);
+		else
+			pump(done, report_complete);
+	}
+
+	/**
+	 * Drives the network until done has been counted down and the links are idle.
+	 * check_state is called back to back while bytes are waiting to be read and
+	 * every 1 ms while packets are waiting to be sent; once the link goes quiet
+	 * the wait between calls doubles up to MAX_PUMP_WAIT, and drops back as soon
+	 * as traffic resumes.
 	 * 
-	 * @param sec Seconds to sleep for.
+	 * @param done - latch counted down by the transaction's on_complete
+	 * @param report_complete - pass the completion flag on to Network.check_state
+	 * @throws Exception
 	 */
-	private void sleep_thread(int sec)
+	private void pump(CountDownLatch done, boolean report_complete) throws Exception
 	{
-		try {
-			TimeUnit.SECONDS.sleep(sec);
-		} catch (InterruptedException e) {
-			writeToLog("Thread interruption during sleep.");
+		// Variables
+		int active_links = 0;
+		long wait = 0;
+		InputStream in = socket.getInputStream();
+
+		while (done.getCount() > 0 || active_links > 0) {
+			active_links = report_complete ? network.check_state(done.getCount() == 0) : network.check_state();
+			if (in.available() > 0) {
+				// Bytes waiting - go straight back round
+				wait = 0;
+				continue;
+			}
+			if (done.getCount() == 0 && active_links == 0)
+				break;
+			if (network.waiting_to_send_count(pb_address) > 0) {
+				// Outgoing packets are held until the link is ready, don't spin on them
+				wait = 1;
+			}
+			else {
+				wait = (wait == 0) ? 1 : Math.min(wait * 2, MAX_PUMP_WAIT);
+			}
+			TimeUnit.MILLISECONDS.sleep(wait);
 		}
 	}
-	
+
+	/**
+	 * Closes the socket opened by init_cr1000_interface - a shared link stays
+	 * open for its other stations
+	 */
+	public void close(){
+		if(socket != null){
+			try{
+				socket.close();
+			}catch(IOException e){
+				//Already broken
+			}
+			socket = null;
+		}
+	}
+
 	public synchronized void writeToLog(Object obj){
 		if(debug){
 			print_to_console(obj.toString());
@@ -0,0 +1,154 @@
+package utilities;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.campbellsci.pakbus.TableDef;
+import com.campbellsci.pakbus.ValueBase;
+
+/**
+ * Numbers every channel (station, table, field) the client publishes with a
+ * dense integer ID, and builds its RBNB channel name and MQTT topic once.
+ *
+ * Channels are found through a hash index of table name then field name, and
+ * the channels of a table are also kept as an array in column order, so code
+ * walking the values of a record can take each value's channel by position.
+ * Lookups don't lock; registering a new channel does.
+ *
+ * Table names are the names used in topics and TableInfo - prefixed with the
+ * station name in multi-station mode.
+ *
+ * @author jdk85
+ *
+ */
+public class ChannelRegistry
+{
+	/** One field of one table */
+	public static class Channel {
+		/** Dense ID, from 0 in the order channels were registered */
+		public final int id;
+		public final String table_name, value_name;
+		/** table_name/value_name - the RBNB channel name */
+		public final String name;
+		/** Topic the channel is published to, or null if the registry has no topic root */
+		public final String topic;
+
+		private Channel(int id, String table_name, String value_name, String topic_root){
+			this.id = id;
+			this.table_name = table_name;
+			this.value_name = value_name;
+			this.name = table_name + "/" + value_name;
+			this.topic = (topic_root == null) ? null : topic_root + "/" + name;
+		}
+	}
+
+	/** Channels of a table in column order, for the table definition they were built from */
+	private static class TableChannels {
+		private final int def_sig;
+		private final Channel[] columns;
+
+		private TableChannels(int def_sig, Channel[] columns){
+			this.def_sig = def_sig;
+			this.columns = columns;
+		}
+	}
+
+	/** Prepended to channel names to make topics, null for none */
+	private final String topic_root;
+	/** Every channel, indexed by ID */
+	private final ArrayList<Channel> channels = new ArrayList<Channel>();
+	/** Channels by table name, then field name */
+	private final ConcurrentHashMap<String,ConcurrentHashMap<String,Channel>> index = new ConcurrentHashMap<String,ConcurrentHashMap<String,Channel>>();
+	/** Channels of each table in column order */
+	private final ConcurrentHashMap<String,TableChannels> tables = new ConcurrentHashMap<String,TableChannels>();
+
+	/**
+	 *
+	 * @param topic_root - prepended to channel names to make topics, or null for none (RBNB)
+	 */
+	public ChannelRegistry(String topic_root){
+		this.topic_root = topic_root;
+	}
+
+	/**
+	 * @param table_name
+	 * @param value_name
+	 * @return the channel, or null if it hasn't been registered
+	 */
+	public Channel get(String table_name, String value_name){
+		ConcurrentHashMap<String,Channel> fields = index.get(table_name);
+		return (fields == null) ? null : fields.get(value_name);
+	}
+
+	/**
+	 * @param id
+	 * @return the channel with the given ID
+	 */
+	public synchronized Channel get(int id){
+		return channels.get(id);
+	}
+
+	/**
+	 * @param table_name
+	 * @param value_name
+	 * @return the channel, registered first if it is new
+	 */
+	public Channel register(String table_name, String value_name){
+		Channel channel = get(table_name, value_name);
+		if(channel != null){
+			return channel;
+		}
+		synchronized(this){
+			ConcurrentHashMap<String,Channel> fields = index.get(table_name);
+			if(fields == null){
+				fields = new ConcurrentHashMap<String,Channel>();
+				index.put(table_name, fields);
+			}
+			channel = fields.get(value_name);
+			if(channel == null){
+				channel = new Channel(channels.size(), table_name, value_name, topic_root);
+				channels.add(channel);
+				fields.put(value_name, channel);
+			}
+			return channel;
+		}
+	}
+
+	/**
+	 * Registers every field of a table. The array is built again only when the
+	 * table definition changes; fields that survive a change keep their IDs.
+	 * @param table_name - name of the table in topics, station prefix included
+	 * @param table
+	 * @return the table's channels in column order
+	 */
+	public Channel[] register_table(String table_name, TableDef table){
+		TableChannels cached = tables.get(table_name);
+		if(cached != null && cached.def_sig == table.def_sig){
+			return cached.columns;
+		}
+		List<ValueBase> values = table.make_record().get_values();
+		Channel[] columns = new Channel[values.size()];
+		for(int i = 0; i < columns.length; i++){
+			columns[i] = register(table_name, values.get(i).get_name());
+		}
+		tables.put(table_name, new TableChannels(table.def_sig, columns));
+		return columns;
+	}
+
+	/**
+	 * @param table_name
+	 * @param value_name
+	 * @return the topic of the channel, registering it if it is new
+	 */
+	public String topic(String table_name, String value_name){
+		return register(table_name, value_name).topic;
+	}
+
+	/**
+	 * @return the number of channels registered - one more than the highest ID
+	 */
+	public synchronized int size(){
+		return channels.size();
+	}
+}
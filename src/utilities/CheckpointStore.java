@@ -0,0 +1,365 @@
+package utilities;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.zip.CRC32;
+
+/**
+ * Memory-mapped, fixed-layout store for TableInfo checkpoints.
+ *
+ * The file holds a 16 byte header (magic, version, slot count) followed by one
+ * slot per table. Updating a checkpoint writes only that table's slot in place;
+ * force() pushes the mapped pages to disk and is meant to be called every so
+ * often rather than after each update (see force_if_due()).
+ *
+ * Each slot holds two copies of the checkpoint, written alternately and each
+ * carrying a sequence number and CRC32:
+ *
+ * 		long  sequence
+ * 		short + bytes  table name (UTF-8, up to MAX_NAME_LENGTH bytes, 0 for an empty slot)
+ * 		long  last record number
+ * 		byte  first run
+ * 		int   table definition signature
+ * 		long  backfill position
+ * 		int   CRC32 of the above
+ *
+ * A copy torn by a crash fails its CRC, and the other copy - one update older -
+ * is used instead, so a crash can never lose more than the latest update.
+ *
+ * @author jdk85
+ *
+ */
+public class CheckpointStore
+{
+	/** Magic number at the start of the file ("TCKP") */
+	private static final int MAGIC = 0x54434B50;
+	/** File format version */
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 16;
+	/** Longest table name that fits in a slot, in UTF-8 bytes */
+	public static final int MAX_NAME_LENGTH = 90;
+	/** Size of one copy of a checkpoint */
+	private static final int COPY_SIZE = 128;
+	/** Size of a slot - two copies */
+	private static final int SLOT_SIZE = 2 * COPY_SIZE;
+	/** Number of slots in a new file */
+	private static final int INITIAL_SLOTS = 64;
+	/** Default minimum time between forces in force_if_due() (ms) */
+	public static final long DEFAULT_FORCE_INTERVAL = 5000;
+
+	private final File file;
+	private final long force_interval;
+	private RandomAccessFile raf;
+	private MappedByteBuffer map;
+	private int slot_count;
+	/** Slot of each table */
+	private final HashMap<String,Integer> slots = new HashMap<String,Integer>();
+	/** Slots that are free to reuse */
+	private final ArrayList<Integer> free_slots = new ArrayList<Integer>();
+	/** Highest sequence number in each slot, -1 if neither copy is valid */
+	private long[] sequences;
+	private final CRC32 crc = new CRC32();
+	/** Scratch buffer a copy is built in before being written to the map */
+	private final ByteBuffer scratch = ByteBuffer.allocate(COPY_SIZE);
+	private boolean dirty = false;
+	private long last_force = 0;
+
+	/**
+	 *
+	 * @param path - checkpoint file
+	 * @param force_interval - minimum time between forces in force_if_due() (ms)
+	 */
+	public CheckpointStore(String path, long force_interval){
+		this.file = new File(path);
+		this.force_interval = force_interval;
+	}
+
+	/**
+	 * Opens or creates the file and loads every valid checkpoint
+	 * @param out - receives a TableInfo for every table in the store
+	 * @return true if the file already existed
+	 * @throws IOException
+	 */
+	public synchronized boolean open(Collection<TableInfo> out) throws IOException{
+		if(file.getParentFile() != null){
+			file.getParentFile().mkdirs();
+		}
+		boolean existed = file.exists() && file.length() >= HEADER_SIZE;
+		raf = new RandomAccessFile(file, "rw");
+		if(existed){
+			map(raf.length());
+			if(map.getInt(0) != MAGIC || map.getInt(4) != VERSION){
+				throw new IOException("Not a checkpoint file: " + file);
+			}
+			slot_count = (int)Math.min(map.getInt(8), (raf.length() - HEADER_SIZE) / SLOT_SIZE);
+		}
+		else{
+			slot_count = INITIAL_SLOTS;
+			map(HEADER_SIZE + (long)slot_count * SLOT_SIZE);
+			map.putInt(0, MAGIC);
+			map.putInt(4, VERSION);
+			map.putInt(8, slot_count);
+			map.force();
+		}
+		sequences = new long[slot_count];
+		slots.clear();
+		free_slots.clear();
+		for(int slot = 0; slot < slot_count; slot++){
+			TableInfo info = read_slot(slot);
+			if(info != null){
+				slots.put(info.getChannel_name(), slot);
+				out.add(info);
+			}
+			else{
+				free_slots.add(slot);
+			}
+		}
+		return existed;
+	}
+
+	/**
+	 * Copies the TableInfo ArrayList serialized by older versions of the client
+	 * into the store, forces it to disk, then moves the old file to
+	 * &lt;name&gt;_backup so it is imported only once
+	 * @param legacy - the old table_info_list.data
+	 * @param out - receives a TableInfo for every imported table
+	 * @return the number of tables imported
+	 * @throws IOException if the file can't be read or doesn't hold an ArrayList of TableInfo
+	 */
+	public synchronized int import_legacy(File legacy, Collection<TableInfo> out) throws IOException{
+		Object obj;
+		ObjectInputStream in = new ObjectInputStream(new FileInputStream(legacy));
+		try{
+			obj = in.readObject();
+		}catch(ClassNotFoundException e){
+			throw new IOException(legacy + " holds an unknown class", e);
+		}finally{
+			in.close();
+		}
+		if(!(obj instanceof ArrayList<?>)){
+			throw new IOException(legacy + " is not an ArrayList of TableInfo");
+		}
+		ArrayList<TableInfo> tables = new ArrayList<TableInfo>();
+		for(Object table : (ArrayList<?>)obj){
+			if(!(table instanceof TableInfo)){
+				throw new IOException(legacy + " is not an ArrayList of TableInfo");
+			}
+			tables.add((TableInfo)table);
+		}
+		for(TableInfo table : tables){
+			put(table);
+		}
+		force();
+		out.addAll(tables);
+		Files.move(legacy.toPath(), new File(legacy.getPath() + "_backup").toPath(), StandardCopyOption.REPLACE_EXISTING);
+		return tables.size();
+	}
+
+	/**
+	 * Writes a table's checkpoint to its slot, unless it is unchanged
+	 * @param info
+	 * @throws IOException
+	 */
+	public synchronized void put(TableInfo info) throws IOException{
+		byte[] name = info.getChannel_name().getBytes(StandardCharsets.UTF_8);
+		if(name.length > MAX_NAME_LENGTH){
+			throw new IOException("Table name too long for a checkpoint: " + info.getChannel_name());
+		}
+		Integer slot = slots.get(info.getChannel_name());
+		if(slot == null){
+			slot = allocate();
+			slots.put(info.getChannel_name(), slot);
+		}
+		else if(unchanged(slot, info)){
+			return;
+		}
+		write_copy(slot, name, info.getLast_record_no(), info.isFirst_run(), info.getTable_signature(), info.getBackfill_position());
+	}
+
+	/**
+	 * Frees a table's slot
+	 * @param name
+	 */
+	public synchronized void remove(String name){
+		Integer slot = slots.remove(name);
+		if(slot == null){
+			return;
+		}
+		write_copy(slot, new byte[0], 0, false, 0, 0);
+		free_slots.add(slot);
+	}
+
+	/**
+	 * Forces the mapped pages to disk if anything changed
+	 */
+	public synchronized void force(){
+		if(dirty && map != null){
+			map.force();
+			dirty = false;
+		}
+		last_force = System.currentTimeMillis();
+	}
+
+	/**
+	 * Forces the mapped pages to disk if anything changed and the last
+	 * force was at least force_interval ago
+	 */
+	public synchronized void force_if_due(){
+		if(dirty && System.currentTimeMillis() - last_force >= force_interval){
+			force();
+		}
+	}
+
+	/**
+	 * Forces and closes the file
+	 * @throws IOException
+	 */
+	public synchronized void close() throws IOException{
+		force();
+		map = null;
+		if(raf != null){
+			raf.close();
+			raf = null;
+		}
+	}
+
+	/**
+	 * @return the number of tables in the store
+	 */
+	public synchronized int size(){
+		return slots.size();
+	}
+
+	/**
+	 * @return a free slot, growing the file if there is none
+	 */
+	private int allocate() throws IOException{
+		if(free_slots.isEmpty()){
+			int old_count = slot_count;
+			slot_count *= 2;
+			map.force();
+			map(HEADER_SIZE + (long)slot_count * SLOT_SIZE);
+			map.putInt(8, slot_count);
+			long[] grown = new long[slot_count];
+			System.arraycopy(sequences, 0, grown, 0, old_count);
+			for(int slot = old_count; slot < slot_count; slot++){
+				grown[slot] = -1;
+				free_slots.add(slot);
+			}
+			sequences = grown;
+		}
+		return free_slots.remove(0);
+	}
+
+	/**
+	 * Maps the whole file, growing it to size if needed
+	 */
+	private void map(long size) throws IOException{
+		if(raf.length() < size){
+			raf.setLength(size);
+		}
+		map = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+	}
+
+	/**
+	 * Writes the older copy of a slot with the next sequence number
+	 */
+	private void write_copy(int slot, byte[] name, long last_record_no, boolean first_run, int table_signature, long backfill_position){
+		long sequence = sequences[slot] + 1;
+		Arrays.fill(scratch.array(), (byte)0);
+		scratch.clear();
+		scratch.putLong(sequence);
+		scratch.putShort((short)name.length);
+		scratch.put(name);
+		scratch.position(8 + 2 + MAX_NAME_LENGTH);
+		scratch.putLong(last_record_no);
+		scratch.put((byte)(first_run ? 1 : 0));
+		scratch.putInt(table_signature);
+		scratch.putLong(backfill_position);
+		crc.reset();
+		crc.update(scratch.array(), 0, scratch.position());
+		scratch.putInt((int)crc.getValue());
+
+		//Copies alternate with the sequence number, so the newest copy is never overwritten
+		int offset = HEADER_SIZE + slot * SLOT_SIZE + (int)(sequence & 1) * COPY_SIZE;
+		for(int i = 0; i < scratch.position(); i++){
+			map.put(offset + i, scratch.get(i));
+		}
+		sequences[slot] = sequence;
+		dirty = true;
+	}
+
+	/**
+	 * @return true if the newest copy of a slot already holds info
+	 */
+	private boolean unchanged(int slot, TableInfo info){
+		int offset = HEADER_SIZE + slot * SLOT_SIZE + (int)(sequences[slot] & 1) * COPY_SIZE + 8 + 2 + MAX_NAME_LENGTH;
+		return map.getLong(offset) == info.getLast_record_no()
+				&& (map.get(offset + 8) != 0) == info.isFirst_run()
+				&& map.getInt(offset + 9) == info.getTable_signature()
+				&& map.getLong(offset + 13) == info.getBackfill_position();
+	}
+
+	/**
+	 * Reads the newest valid copy of a slot
+	 * @return the checkpoint, or null if the slot is empty
+	 */
+	private TableInfo read_slot(int slot){
+		int newest = -1;
+		long newest_sequence = -1;
+		for(int copy = 0; copy < 2; copy++){
+			int offset = HEADER_SIZE + slot * SLOT_SIZE + copy * COPY_SIZE;
+			if(valid(offset) && map.getLong(offset) > newest_sequence){
+				newest = offset;
+				newest_sequence = map.getLong(offset);
+			}
+		}
+		sequences[slot] = newest_sequence;
+		if(newest < 0){
+			return null;
+		}
+		int length = map.getShort(newest + 8);
+		if(length <= 0){
+			return null;
+		}
+		byte[] name = new byte[length];
+		for(int i = 0; i < length; i++){
+			name[i] = map.get(newest + 10 + i);
+		}
+		int offset = newest + 8 + 2 + MAX_NAME_LENGTH;
+		TableInfo info = new TableInfo(new String(name, StandardCharsets.UTF_8), map.getLong(offset), map.get(offset + 8) != 0);
+		info.setTable_signature(map.getInt(offset + 9));
+		info.setBackfill_position(map.getLong(offset + 13));
+		return info;
+	}
+
+	/**
+	 * @return true if the copy at offset has a sensible name length and a matching CRC
+	 */
+	private boolean valid(int offset){
+		int length = map.getShort(offset + 8);
+		if(length < 0 || length > MAX_NAME_LENGTH){
+			return false;
+		}
+		int end = offset + 8 + 2 + MAX_NAME_LENGTH + 8 + 1 + 4 + 8;
+		crc.reset();
+		for(int i = offset; i < end; i++){
+			crc.update(map.get(i));
+		}
+		//A copy that was never written is all zeros, which fails the CRC
+		return map.getInt(end) == (int)crc.getValue() && map.getLong(offset) >= 0;
+	}
+}
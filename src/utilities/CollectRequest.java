@@ -0,0 +1,190 @@
+package utilities;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import com.campbellsci.pakbus.DataCollectClient;
+import com.campbellsci.pakbus.DataCollectMode;
+import com.campbellsci.pakbus.DataCollectModeDateRange;
+import com.campbellsci.pakbus.DataCollectModeDateToNewest;
+import com.campbellsci.pakbus.DataCollectModeRecordNoToNewest;
+import com.campbellsci.pakbus.DataCollectTran;
+import com.campbellsci.pakbus.LoggerDate;
+import com.campbellsci.pakbus.Record;
+import com.campbellsci.pakbus.TableDef;
+
+/**
+ * One table to collect and the consumer its records go to. Each request
+ * is its own DataCollectClient, so several can be queued on the same
+ * datalogger at once and run one after another - see CR1000Interface.collect(List).
+ *
+ * @author jdk85
+ *
+ */
+public class CollectRequest implements DataCollectClient
+{
+	/** Outcome reported by the datalogger when a table has no records yet */
+	public static final int OUTCOME_NO_RECORDS = 11;
+	/** Time from submitting a request to its completion */
+	private static final Metrics.Histogram COLLECT_TIME = Metrics.get().histogram("pakbus_transaction_seconds", "type", "collect", "Time from submitting a PakBus transaction to its completion");
+	private static final Metrics.Counter COLLECT_FAILURES = Metrics.get().counter("pakbus_transaction_failures_total", "type", "collect", "PakBus transactions that did not succeed");
+	/** Records received by every request */
+	private static final Metrics.Counter RECORDS = Metrics.get().counter("cr1000_records_collected_total", "Records received from the dataloggers");
+
+	private final TableDef table;
+	private final DataCollectMode mode;
+	/** Receives the records, null to accumulate them in received */
+	private final RecordConsumer consumer;
+	private final ArrayList<Record> received = new ArrayList<Record>();
+	/** Interface the request was collected through, used for logging */
+	private CR1000Interface owner;
+	/** Counted down once for every request of the batch as it completes */
+	private CountDownLatch done;
+	private volatile int outcome = -1;
+	/** System.nanoTime() when the request was started */
+	private long started;
+
+	/**
+	 *
+	 * @param table
+	 * @param mode
+	 * @param consumer - receives the records, or null to keep them for getRecords()
+	 */
+	public CollectRequest(TableDef table, DataCollectMode mode, RecordConsumer consumer){
+		this.table = table;
+		this.mode = mode;
+		this.consumer = consumer;
+	}
+
+	/**
+	 * @param table
+	 * @param rn - last record number already collected
+	 * @param consumer
+	 * @return a request for every record newer than rn
+	 */
+	public static CollectRequest since_record(TableDef table, long rn, RecordConsumer consumer){
+		return new CollectRequest(table, new DataCollectModeRecordNoToNewest(rn), consumer);
+	}
+
+	/**
+	 * @param table
+	 * @param timestamp - ms since 1970
+	 * @param consumer
+	 * @return a request for every record since timestamp
+	 */
+	public static CollectRequest since_time(TableDef table, long timestamp, RecordConsumer consumer){
+		return new CollectRequest(table, new DataCollectModeDateToNewest(logger_date(timestamp)), consumer);
+	}
+
+	/**
+	 * @param table
+	 * @param from - start of the range in ms since 1970
+	 * @param to - end of the range in ms since 1970
+	 * @param consumer
+	 * @return a request for the records stored between from and to
+	 */
+	public static CollectRequest between(TableDef table, long from, long to, RecordConsumer consumer){
+		return new CollectRequest(table, new DataCollectModeDateRange(logger_date(from), logger_date(to)), consumer);
+	}
+
+	public TableDef getTable(){
+		return table;
+	}
+
+	/**
+	 * @return the DataCollectTran outcome, -1 until the request completes
+	 */
+	public int getOutcome(){
+		return outcome;
+	}
+
+	/**
+	 * @return the records received when there is no consumer
+	 */
+	public List<Record> getRecords(){
+		return received;
+	}
+
+	/**
+	 * @return true if the request can be passed to Network.check_state as complete
+	 * as soon as it finishes (record number collection)
+	 */
+	boolean reports_complete(){
+		return mode instanceof DataCollectModeRecordNoToNewest;
+	}
+
+	/**
+	 * Prepares the request to be collected
+	 * @param owner
+	 * @param done - latch counted down when the request completes
+	 * @return the transaction to add to the datalogger
+	 */
+	DataCollectTran start(CR1000Interface owner, CountDownLatch done){
+		this.owner = owner;
+		this.done = done;
+		outcome = -1;
+		received.clear();
+		started = System.nanoTime();
+		return new DataCollectTran(table.name, this, mode);
+	}
+
+	/**
+	 *
+	 */
+	@Override
+	public boolean on_records(DataCollectTran transaction, List<Record> rs){
+		// This method returns 18 records at a time, I don't know why
+		boolean keep_going = true;
+		RECORDS.add(rs.size());
+		if(consumer != null){
+			// Stream the records straight out
+			keep_going = consumer.on_records(table.name, rs);
+		}
+		else{
+			// Store the records
+			received.addAll(rs);
+		}
+		// Clear the list of records received
+		rs.clear();
+		return keep_going;
+	}
+
+	/**
+	 *
+	 */
+	@Override
+	public void on_complete(DataCollectTran transaction, int outcome){
+		try{
+			COLLECT_TIME.record_since(started);
+			// Did the transaction succeed?
+			if(outcome != DataCollectTran.outcome_success && outcome != OUTCOME_NO_RECORDS){
+				COLLECT_FAILURES.inc();
+				//If the outcome was 11 we don't really care - it just means that that table hasn't gotten any data yet
+				//so we don't need to log it
+				owner.writeToLog("Data collection transaction for " + table.name + " did not succeed. Error code " + outcome + ".");
+			}
+			if(outcome == DataCollectTran.outcome_invalid_table_defs){
+				//The datalogger was reprogrammed - don't load the same definitions from cache again
+				owner.invalidate_table_defs();
+			}
+			this.outcome = outcome;
+			if(consumer != null){
+				consumer.on_complete(table.name, outcome);
+			}
+		}finally{
+			done.countDown();
+		}
+	}
+
+	/**
+	 * @param timestamp - ms since 1970
+	 * @return timestamp as a LoggerDate in the local time zone
+	 */
+	private static LoggerDate logger_date(long timestamp){
+		Calendar cal = Calendar.getInstance();
+		cal.setTimeInMillis(timestamp);
+		return new LoggerDate(cal);
+	}
+}
@@ -6,6 +6,20 @@ import java.util.Arrays;
 import com.rbnb.sapi.ChannelMap;
 
 public class DataGeneratorCodec {
+	/** Type byte for a record-batched payload of float values (outside the ChannelMap type range) */
+	public static final byte TYPE_FLOAT32_RECORDS = 32;
+	/** Size of the header of a record-batched payload: type, table signature, values per record, record count */
+	public static final int RECORD_BATCH_HEADER_SIZE = 1 + 4 + 2 + 2;
+	/** Size of the per-record header of a record-batched payload: timestamp and record number */
+	public static final int RECORD_BATCH_RECORD_HEADER_SIZE = 8 + 4;
+	/** Most records, and most values per record, a record-batched payload can hold */
+	public static final int MAX_RECORD_BATCH_SIZE = Short.MAX_VALUE;
+	/** Largest record number a record-batched payload can hold - record numbers are written as 4 unsigned bytes */
+	public static final long MAX_RECORD_BATCH_RECORD_NUMBER = 0xFFFFFFFFL;
+
+	/** Size of the value pair header: type byte and timestamp */
+	public static final int VALUE_PAIR_HEADER_SIZE = 1 + 8;
+
 	/**
 	 * Helper method to wrap sample point and timestamp (includes data type)
 	 * 
@@ -16,54 +30,167 @@ public class DataGeneratorCodec {
 	 * @see ChannelMap
 	 */
 	public static byte[] encodeValuePair(byte type,long timestamp,Object data){
-		byte[] time_stamp = ByteBuffer.allocate(8).putLong(timestamp).array();
-		byte[] data_point = null;
-		
 		//Switch over the type of the data to be encoded
-		//Create a byte array of the appropriate length and insert the data as bytes
+		//Create a blob of the appropriate length and write type/timestamp/data straight into it
 		switch(type){
 		case ChannelMap.TYPE_FLOAT32:
-			data_point = ByteBuffer.allocate(4).putFloat((Float)data).array();
-			break;
+			return encodeFloat32(timestamp,(Float)data);
 		case ChannelMap.TYPE_FLOAT64:
-			data_point = ByteBuffer.allocate(8).putDouble((Double)data).array();
-			break;
+			return encodeFloat64(timestamp,(Double)data);
 		case ChannelMap.TYPE_INT16:
-			data_point = ByteBuffer.allocate(2).putShort((Short)data).array();
-			break;
+			return encodeInt16(timestamp,(Short)data);
 		case ChannelMap.TYPE_INT32:
-			data_point = ByteBuffer.allocate(4).putInt((Integer)data).array();
-			break;
+			return encodeInt32(timestamp,(Integer)data);
 		case ChannelMap.TYPE_INT64:
-			data_point = ByteBuffer.allocate(8).putLong((Long)data).array();
-			break;
+			return encodeInt64(timestamp,(Long)data);
 		case ChannelMap.TYPE_INT8:
-			data_point = ByteBuffer.allocate(1).put((Byte)data).array();
-			break;
+			return encodeInt8(timestamp,(Byte)data);
 		case ChannelMap.TYPE_STRING:
-			String str = (String)data;
-			data_point = str.getBytes();
-			break;
+			byte[] str = ((String)data).getBytes();
+			ByteBuffer blob = ByteBuffer.allocate(VALUE_PAIR_HEADER_SIZE + str.length);
+			blob.put(type).putLong(timestamp).put(str);
+			return blob.array();
 		default: 
 			//TODO: log unknown data type
-			break;
-
-		}
-		
-		//If data was a known type
-		if(data_point != null){
-			//Create a blob object to store type/timestamp/data
-			byte[] blob = new byte[1 + time_stamp.length + data_point.length];
-			//Copy each byte array into 
-			System.arraycopy(new byte[]{type},0,blob,0,1);
-			System.arraycopy(time_stamp,0,blob,1,time_stamp.length);
-			System.arraycopy(data_point,0,blob,1 + time_stamp.length,data_point.length);
-			return blob;
-		}
-		else{
 			return null;
 		}
 	}
+
+	/*
+	 * Primitive encoders. The ByteBuffer variants write type, timestamp and value at the
+	 * buffer's position, advance it and return the number of bytes written, so a caller
+	 * can encode into a reused buffer with no boxing and no temporary objects. The
+	 * timestamp-only variants allocate nothing but the returned blob.
+	 */
+
+	/**
+	 * @param dst - buffer to write into, must have at least 13 bytes remaining
+	 * @param timestamp - time in ms since 1970
+	 * @param value
+	 * @return the number of bytes written
+	 */
+	public static int encodeFloat32(ByteBuffer dst, long timestamp, float value){
+		dst.put((byte)ChannelMap.TYPE_FLOAT32).putLong(timestamp).putFloat(value);
+		return VALUE_PAIR_HEADER_SIZE + 4;
+	}
+
+	/**
+	 * @param dst - buffer to write into, must have at least 17 bytes remaining
+	 * @param timestamp - time in ms since 1970
+	 * @param value
+	 * @return the number of bytes written
+	 */
+	public static int encodeFloat64(ByteBuffer dst, long timestamp, double value){
+		dst.put((byte)ChannelMap.TYPE_FLOAT64).putLong(timestamp).putDouble(value);
+		return VALUE_PAIR_HEADER_SIZE + 8;
+	}
+
+	/**
+	 * @param dst - buffer to write into, must have at least 10 bytes remaining
+	 * @param timestamp - time in ms since 1970
+	 * @param value
+	 * @return the number of bytes written
+	 */
+	public static int encodeInt8(ByteBuffer dst, long timestamp, byte value){
+		dst.put((byte)ChannelMap.TYPE_INT8).putLong(timestamp).put(value);
+		return VALUE_PAIR_HEADER_SIZE + 1;
+	}
+
+	/**
+	 * @param dst - buffer to write into, must have at least 11 bytes remaining
+	 * @param timestamp - time in ms since 1970
+	 * @param value
+	 * @return the number of bytes written
+	 */
+	public static int encodeInt16(ByteBuffer dst, long timestamp, short value){
+		dst.put((byte)ChannelMap.TYPE_INT16).putLong(timestamp).putShort(value);
+		return VALUE_PAIR_HEADER_SIZE + 2;
+	}
+
+	/**
+	 * @param dst - buffer to write into, must have at least 13 bytes remaining
+	 * @param timestamp - time in ms since 1970
+	 * @param value
+	 * @return the number of bytes written
+	 */
+	public static int encodeInt32(ByteBuffer dst, long timestamp, int value){
+		dst.put((byte)ChannelMap.TYPE_INT32).putLong(timestamp).putInt(value);
+		return VALUE_PAIR_HEADER_SIZE + 4;
+	}
+
+	/**
+	 * @param dst - buffer to write into, must have at least 17 bytes remaining
+	 * @param timestamp - time in ms since 1970
+	 * @param value
+	 * @return the number of bytes written
+	 */
+	public static int encodeInt64(ByteBuffer dst, long timestamp, long value){
+		dst.put((byte)ChannelMap.TYPE_INT64).putLong(timestamp).putLong(value);
+		return VALUE_PAIR_HEADER_SIZE + 8;
+	}
+
+	public static byte[] encodeFloat32(long timestamp, float value){
+		byte[] blob = header(ChannelMap.TYPE_FLOAT32, timestamp, 4);
+		putInt(blob, VALUE_PAIR_HEADER_SIZE, Float.floatToRawIntBits(value));
+		return blob;
+	}
+
+	public static byte[] encodeFloat64(long timestamp, double value){
+		byte[] blob = header(ChannelMap.TYPE_FLOAT64, timestamp, 8);
+		putLong(blob, VALUE_PAIR_HEADER_SIZE, Double.doubleToRawLongBits(value));
+		return blob;
+	}
+
+	public static byte[] encodeInt8(long timestamp, byte value){
+		byte[] blob = header(ChannelMap.TYPE_INT8, timestamp, 1);
+		blob[VALUE_PAIR_HEADER_SIZE] = value;
+		return blob;
+	}
+
+	public static byte[] encodeInt16(long timestamp, short value){
+		byte[] blob = header(ChannelMap.TYPE_INT16, timestamp, 2);
+		blob[VALUE_PAIR_HEADER_SIZE] = (byte)(value >> 8);
+		blob[VALUE_PAIR_HEADER_SIZE + 1] = (byte)value;
+		return blob;
+	}
+
+	public static byte[] encodeInt32(long timestamp, int value){
+		byte[] blob = header(ChannelMap.TYPE_INT32, timestamp, 4);
+		putInt(blob, VALUE_PAIR_HEADER_SIZE, value);
+		return blob;
+	}
+
+	public static byte[] encodeInt64(long timestamp, long value){
+		byte[] blob = header(ChannelMap.TYPE_INT64, timestamp, 8);
+		putLong(blob, VALUE_PAIR_HEADER_SIZE, value);
+		return blob;
+	}
+
+	/**
+	 * Allocates a blob with room for a value of value_size bytes and fills in the type and timestamp
+	 */
+	private static byte[] header(int type, long timestamp, int value_size){
+		byte[] blob = new byte[VALUE_PAIR_HEADER_SIZE + value_size];
+		blob[0] = (byte)type;
+		putLong(blob, 1, timestamp);
+		return blob;
+	}
+
+	/** Big-endian, matching ByteBuffer's default byte order */
+	private static void putLong(byte[] b, int offset, long v){
+		for(int i = 7; i >= 0; i--){
+			b[offset + i] = (byte)v;
+			v >>>= 8;
+		}
+	}
+
+	private static void putInt(byte[] b, int offset, int v){
+		b[offset] = (byte)(v >> 24);
+		b[offset + 1] = (byte)(v >> 16);
+		b[offset + 2] = (byte)(v >> 8);
+		b[offset + 3] = (byte)v;
+	}
+
 	/**
 	 * 
 	 * @param rbnb_timestamp
@@ -101,6 +228,137 @@ public class DataGeneratorCodec {
 		
 		
 		
+	}
+
+	/**
+	 * Bulk decoder - fills primitive timestamp and value columns from a block of blobs
+	 * without creating an object per value. Numeric types are widened or narrowed to
+	 * float; strings, unknown types and null blobs decode as NaN.
+	 * 
+	 * @param blobs - encoded value pairs
+	 * @param count - number of blobs to decode, starting at index 0
+	 * @param timestamps - receives the sample timestamp of each blob (ms since 1970)
+	 * @param values - receives the value of each blob
+	 * @return the number of blobs decoded
+	 */
+	public static int decodeColumns(byte[][] blobs, int count, long[] timestamps, float[] values){
+		ValuePairReader reader = new ValuePairReader();
+		for(int i = 0; i < count; i++){
+			if(blobs[i] == null){
+				timestamps[i] = 0;
+				values[i] = Float.NaN;
+				continue;
+			}
+			reader.wrap(blobs[i]);
+			timestamps[i] = reader.timestamp();
+			values[i] = (reader.type() == ChannelMap.TYPE_FLOAT32) ? reader.getFloat() : (float)reader.getAsDouble();
+		}
+		return count;
+	}
+
+	/**
+	 * Bulk decoder - as decodeColumns(byte[][], int, long[], float[]) but keeps
+	 * full precision for TYPE_FLOAT64 and TYPE_INT64 values
+	 * 
+	 * @param blobs - encoded value pairs
+	 * @param count - number of blobs to decode, starting at index 0
+	 * @param timestamps - receives the sample timestamp of each blob (ms since 1970)
+	 * @param values - receives the value of each blob
+	 * @return the number of blobs decoded
+	 */
+	public static int decodeColumns(byte[][] blobs, int count, long[] timestamps, double[] values){
+		ValuePairReader reader = new ValuePairReader();
+		for(int i = 0; i < count; i++){
+			if(blobs[i] == null){
+				timestamps[i] = 0;
+				values[i] = Double.NaN;
+				continue;
+			}
+			reader.wrap(blobs[i]);
+			timestamps[i] = reader.timestamp();
+			values[i] = reader.getAsDouble();
+		}
+		return count;
+	}
+
+	/**
+	 * Packs consecutive records of one table into a single payload:
+	 * 
+	 * 		byte  TYPE_FLOAT32_RECORDS
+	 * 		int   table definition signature
+	 * 		short values per record
+	 * 		short record count
+	 * 		then for each record: long timestamp, int record number, float[values per record]
+	 * 
+	 * Record numbers are written as unsigned 32 bit values, which holds any
+	 * PakBus record number (a uint4 on the logger).
+	 * 
+	 * @param values_per_record - number of values in each record, 1 to MAX_RECORD_BATCH_SIZE
+	 * @param record_count - number of records to pack, 1 to MAX_RECORD_BATCH_SIZE
+	 * @param table_signature - table definition signature, lets consumers detect a reprogrammed logger
+	 * @param timestamps - sample timestamp of each record in ms since 1970
+	 * @param record_numbers - logger record number of each record, 0 to MAX_RECORD_BATCH_RECORD_NUMBER
+	 * @param values - values of every record, row by row
+	 * @return the encoded payload
+	 * @throws IllegalArgumentException if a count or record number doesn't fit the format
+	 */
+	public static byte[] encodeRecordBatch(int values_per_record, int record_count, long table_signature, long[] timestamps, long[] record_numbers, float[] values){
+		if(values_per_record < 1 || values_per_record > MAX_RECORD_BATCH_SIZE){
+			throw new IllegalArgumentException("values_per_record must be between 1 and " + MAX_RECORD_BATCH_SIZE + ", was " + values_per_record);
+		}
+		if(record_count < 1 || record_count > MAX_RECORD_BATCH_SIZE){
+			throw new IllegalArgumentException("record_count must be between 1 and " + MAX_RECORD_BATCH_SIZE + ", was " + record_count);
+		}
+		for(int r = 0; r < record_count; r++){
+			if(record_numbers[r] < 0 || record_numbers[r] > MAX_RECORD_BATCH_RECORD_NUMBER){
+				throw new IllegalArgumentException("record number " + record_numbers[r] + " doesn't fit in 32 unsigned bits");
+			}
+		}
+		ByteBuffer blob = ByteBuffer.allocate(RECORD_BATCH_HEADER_SIZE 
+				+ record_count * (RECORD_BATCH_RECORD_HEADER_SIZE + 4 * values_per_record));
+		blob.put(TYPE_FLOAT32_RECORDS);
+		blob.putInt((int)table_signature);
+		blob.putShort((short)values_per_record);
+		blob.putShort((short)record_count);
+		for(int r = 0; r < record_count; r++){
+			blob.putLong(timestamps[r]);
+			blob.putInt((int)record_numbers[r]);
+			int offset = r * values_per_record;
+			for(int v = 0; v < values_per_record; v++){
+				blob.putFloat(values[offset + v]);
+			}
+		}
+		return blob.array();
+	}
+
+	/**
+	 * Decodes a payload created by encodeRecordBatch
+	 * 
+	 * @param blob
+	 * @return the decoded records, or null if blob is not a record-batched payload
+	 */
+	public static RecordBatch decodeRecordBatch(byte[] blob){
+		if(blob == null || blob.length < RECORD_BATCH_HEADER_SIZE || blob[0] != TYPE_FLOAT32_RECORDS){
+			return null;
+		}
+		ByteBuffer buf = ByteBuffer.wrap(blob);
+		buf.get();
+		long table_signature = buf.getInt() & 0xFFFFFFFFL;
+		int values_per_record = buf.getShort() & 0xFFFF;
+		int record_count = buf.getShort() & 0xFFFF;
+		
+		long[] timestamps = new long[record_count];
+		long[] record_numbers = new long[record_count];
+		float[] values = new float[record_count * values_per_record];
+		for(int r = 0; r < record_count; r++){
+			timestamps[r] = buf.getLong();
+			record_numbers[r] = buf.getInt() & 0xFFFFFFFFL;
+			int offset = r * values_per_record;
+			for(int v = 0; v < values_per_record; v++){
+				values[offset + v] = buf.getFloat();
+			}
+		}
+		return new RecordBatch(table_signature, values_per_record, record_count, timestamps, record_numbers, values);
 	}
 
 }
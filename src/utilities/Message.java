@@ -17,6 +17,10 @@ public class Message implements java.io.Serializable, Comparable<Message>
 	public byte[] data;
 	public long timestamp;
 	public String table_name,value_name;
+	/** Position just past this Message's record in the PacketLog, set when it is appended or read back */
+	public transient long log_position;
+	/** Sample time of the newest record in the Message (ms since 1970), 0 if unknown - not kept in the PacketLog */
+	public transient long sample_time;
 	/**
 	 * Default constructor.
 	 * 
@@ -0,0 +1,304 @@
+package utilities;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded, lock-free multi-producer/single-consumer queue of Messages.
+ *
+ * Each slot carries a sequence number (after D. Vyukov's bounded queue): producers
+ * claim a slot by CASing the tail and publish it by advancing the slot's sequence,
+ * the consumer releases a slot by advancing it again one lap ahead. Neither side ever
+ * takes a monitor, so a consumer blocked in a slow publish never stalls the producers.
+ *
+ * What happens when a producer finds the buffer full is set by the OverflowPolicy.
+ *
+ * @author jdk85
+ *
+ */
+public class MessageRingBuffer
+{
+	/** Behavior of offer() when the buffer is full */
+	public enum OverflowPolicy {
+		/** Wait (spin, then park) until the consumer frees a slot */
+		BLOCK,
+		/** Return false so the caller can leave the Message on disk */
+		SPILL,
+		/** Evict the oldest Message to make room */
+		DROP_OLDEST
+	}
+
+	/**
+	 * Notified of every Message evicted under OverflowPolicy.DROP_OLDEST
+	 */
+	public interface DropListener {
+		public void on_drop(Message msg);
+	}
+
+	/** Largest capacity - the largest power of two an int can hold */
+	public static final int MAX_CAPACITY = 1 << 30;
+
+	/** Number of slots, always a power of two */
+	private final int capacity;
+	/** capacity - 1, used to map positions onto slots */
+	private final int mask;
+	private final AtomicReferenceArray<Message> buffer;
+	private final AtomicLongArray sequence;
+	/** Next position to be claimed by a producer */
+	private final AtomicLong tail = new AtomicLong();
+	/** Next position to be taken by the consumer */
+	private final AtomicLong head = new AtomicLong();
+	private final OverflowPolicy policy;
+	private volatile DropListener drop_listener;
+
+	//Contention metrics - these are only touched off the fast path
+	/** Number of times a producer lost a CAS race and had to retry */
+	private final AtomicLong offer_retries = new AtomicLong();
+	/** Number of offers that found the buffer full */
+	private final AtomicLong full_count = new AtomicLong();
+	/** Number of Messages evicted under DROP_OLDEST */
+	private final AtomicLong dropped_count = new AtomicLong();
+	/** Total time producers have spent waiting under BLOCK */
+	private final AtomicLong blocked_nanos = new AtomicLong();
+	/** Largest size seen by a producer (approximate) */
+	private volatile int high_water_mark = 0;
+
+	/**
+	 *
+	 * @param capacity - requested number of slots, rounded up to a power of two, at most MAX_CAPACITY
+	 * @param policy - behavior of offer() when the buffer is full
+	 * @throws IllegalArgumentException if capacity is above MAX_CAPACITY
+	 */
+	public MessageRingBuffer(int capacity, OverflowPolicy policy){
+		if(capacity > MAX_CAPACITY){
+			throw new IllegalArgumentException("capacity must be at most " + MAX_CAPACITY + ", was " + capacity);
+		}
+		if(capacity < 2){
+			capacity = 2;
+		}
+		this.capacity = Integer.highestOneBit(capacity - 1) << 1;
+		this.mask = this.capacity - 1;
+		this.policy = policy;
+		buffer = new AtomicReferenceArray<Message>(this.capacity);
+		sequence = new AtomicLongArray(this.capacity);
+		for(int i = 0; i < this.capacity; i++){
+			sequence.set(i, i);
+		}
+	}
+
+	/**
+	 * Adds a Message at the tail. Safe to call from any number of threads.
+	 *
+	 * @param msg
+	 * @return true if the Message was queued; false if the buffer was full under
+	 * SPILL, or the calling thread was interrupted while waiting under BLOCK
+	 */
+	public boolean offer(Message msg){
+		long blocked_since = 0;
+		int idle = 0;
+		while(true){
+			long pos = tail.get();
+			int index = (int)(pos & mask);
+			long dif = sequence.get(index) - pos;
+			if(dif == 0){
+				if(tail.compareAndSet(pos, pos + 1)){
+					buffer.lazySet(index, msg);
+					sequence.lazySet(index, pos + 1);
+					if(blocked_since != 0){
+						blocked_nanos.addAndGet(System.nanoTime() - blocked_since);
+					}
+					int size = (int)(pos + 1 - head.get());
+					if(size > high_water_mark){
+						high_water_mark = size;
+					}
+					return true;
+				}
+				offer_retries.incrementAndGet();
+			}
+			else if(dif < 0){
+				//The slot still holds a Message from the previous lap - full
+				switch(policy){
+				case SPILL:
+					full_count.incrementAndGet();
+					return false;
+				case DROP_OLDEST:
+					full_count.incrementAndGet();
+					Message dropped = poll();
+					if(dropped != null){
+						dropped_count.incrementAndGet();
+						DropListener listener = drop_listener;
+						if(listener != null){
+							listener.on_drop(dropped);
+						}
+					}
+					break;
+				case BLOCK:
+				default:
+					if(blocked_since == 0){
+						full_count.incrementAndGet();
+						blocked_since = System.nanoTime();
+					}
+					if(Thread.currentThread().isInterrupted()){
+						blocked_nanos.addAndGet(System.nanoTime() - blocked_since);
+						return false;
+					}
+					back_off(idle++);
+					break;
+				}
+			}
+			else{
+				//Another producer claimed this position first
+				offer_retries.incrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * Returns the Message at the head without removing it. Consumer only.
+	 *
+	 * @return the oldest Message, or null if the buffer is empty
+	 */
+	public Message peek(){
+		while(true){
+			long pos = head.get();
+			int index = (int)(pos & mask);
+			if(sequence.get(index) != pos + 1){
+				return null;
+			}
+			Message msg = buffer.get(index);
+			//Make sure the slot was not evicted and reused while we were reading it
+			if(head.get() == pos){
+				return msg;
+			}
+		}
+	}
+
+	/**
+	 * Removes the Message at the head if it is still expected. Consumer only.
+	 * Used after peek() so that a Message evicted under DROP_OLDEST while
+	 * it was being published does not take the next Message with it.
+	 *
+	 * @param expected - the Message returned by peek()
+	 * @return true if expected was removed, false if it had already been evicted
+	 */
+	public boolean remove(Message expected){
+		long pos = head.get();
+		int index = (int)(pos & mask);
+		if(sequence.get(index) != pos + 1 || buffer.get(index) != expected){
+			return false;
+		}
+		if(!head.compareAndSet(pos, pos + 1)){
+			return false;
+		}
+		release(index, pos);
+		return true;
+	}
+
+	/**
+	 * Removes and returns the Message at the head
+	 *
+	 * @return the oldest Message, or null if the buffer is empty
+	 */
+	public Message poll(){
+		while(true){
+			long pos = head.get();
+			int index = (int)(pos & mask);
+			long dif = sequence.get(index) - (pos + 1);
+			if(dif == 0){
+				if(head.compareAndSet(pos, pos + 1)){
+					Message msg = buffer.get(index);
+					release(index, pos);
+					return msg;
+				}
+			}
+			else if(dif < 0){
+				return null;
+			}
+		}
+	}
+
+	/**
+	 * @return the number of queued Messages
+	 */
+	public int size(){
+		long size = tail.get() - head.get();
+		if(size < 0){
+			return 0;
+		}
+		return (int)Math.min(size, capacity);
+	}
+
+	public boolean isEmpty(){
+		return size() == 0;
+	}
+
+	public int capacity(){
+		return capacity;
+	}
+
+	public OverflowPolicy getPolicy(){
+		return policy;
+	}
+
+	public void setDrop_listener(DropListener drop_listener){
+		this.drop_listener = drop_listener;
+	}
+
+	public long getOffer_retries(){
+		return offer_retries.get();
+	}
+
+	public long getFull_count(){
+		return full_count.get();
+	}
+
+	public long getDropped_count(){
+		return dropped_count.get();
+	}
+
+	public long getBlocked_nanos(){
+		return blocked_nanos.get();
+	}
+
+	public int getHigh_water_mark(){
+		return high_water_mark;
+	}
+
+	/**
+	 * @return one-line summary of the contention metrics, suitable for the log
+	 */
+	public String format_stats(){
+		return "size=" + size() + "/" + capacity
+				+ " high_water=" + high_water_mark
+				+ " cas_retries=" + offer_retries.get()
+				+ " full=" + full_count.get()
+				+ " dropped=" + dropped_count.get()
+				+ " blocked_ms=" + TimeUnit.NANOSECONDS.toMillis(blocked_nanos.get());
+	}
+
+	/**
+	 * Clears a slot and hands it to the producers one lap ahead
+	 */
+	private void release(int index, long pos){
+		buffer.lazySet(index, null);
+		sequence.lazySet(index, pos + capacity);
+	}
+
+	/**
+	 * Spin briefly, then yield, then park with a growing timeout (up to 1 ms)
+	 */
+	private static void back_off(int idle){
+		if(idle < 64){
+			return;
+		}
+		else if(idle < 128){
+			Thread.yield();
+		}
+		else{
+			LockSupport.parkNanos(Math.min(1000000L, 1000L << Math.min(idle - 128, 10)));
+		}
+	}
+}
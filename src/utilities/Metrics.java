@@ -0,0 +1,562 @@
+package utilities;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.math.BigDecimal;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanNotificationInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Counters, gauges and latency histograms for the collection and publish
+ * pipeline. They are exported as Prometheus text over a local HTTP endpoint
+ * (start_http()) and as the attributes of one JMX MBean (register_mbean()).
+ *
+ * Metrics are registered once and the code being measured keeps a reference
+ * to them. Recording is an atomic add on preallocated counters - it takes no
+ * lock and allocates nothing. Only exporting builds objects.
+ *
+ * Histograms record nanoseconds into fixed buckets from 100 us to 10 min in
+ * 1-2.5-5 steps, and are exported in seconds. A metric may carry one label,
+ * e.g. pakbus_transaction_seconds{type="collect"}.
+ *
+ * There is one registry per process - see get().
+ *
+ * @author jdk85
+ *
+ */
+public class Metrics
+{
+	/** Path the Prometheus text is served on */
+	public static final String HTTP_PATH = "/metrics";
+	/** Domain of the MBean */
+	public static final String JMX_DOMAIN = "edu.nau.wnrl";
+	/** Upper bounds of the histogram buckets (ns) - values above the last go in an overflow bucket */
+	private static final long[] BUCKETS = new long[21];
+	/** le label of each bucket, in seconds */
+	private static final String[] BUCKET_LABELS = new String[BUCKETS.length];
+	static{
+		long decade = 100000L;
+		for(int i = 0; i < BUCKETS.length; i += 3){
+			BUCKETS[i] = decade;
+			if(i + 1 < BUCKETS.length) BUCKETS[i + 1] = decade * 5 / 2;
+			if(i + 2 < BUCKETS.length) BUCKETS[i + 2] = decade * 5;
+			decade *= 10;
+		}
+		for(int i = 0; i < BUCKETS.length; i++){
+			BUCKET_LABELS[i] = "le=\"" + BigDecimal.valueOf(BUCKETS[i], 9).stripTrailingZeros().toPlainString() + "\"";
+		}
+	}
+
+	private static final Metrics instance = new Metrics();
+
+	/** Every metric by key (name, or name.label_value) in registration order */
+	private final LinkedHashMap<String,Metric> metrics = new LinkedHashMap<String,Metric>();
+	private HttpServer http_server;
+	private ObjectName mbean_name;
+
+	/**
+	 * Something measured
+	 */
+	public static abstract class Metric {
+		public final String name, help;
+		/** Label name and value, both null for none */
+		public final String label_name, label_value;
+
+		private Metric(String name, String label_name, String label_value, String help){
+			this.name = name;
+			this.label_name = label_name;
+			this.label_value = label_value;
+			this.help = help;
+		}
+
+		/**
+		 * @return the name the metric is registered, and seen in JMX, under
+		 */
+		public String key(){
+			return Metrics.key(name, label_value);
+		}
+
+		/** Prometheus metric type */
+		abstract String type();
+
+		/** Appends the metric's samples in Prometheus text format */
+		abstract void write(StringBuilder out);
+
+		/** Adds the metric's JMX attributes */
+		abstract void attributes(Map<String,Object> out);
+
+		/**
+		 * @param extra - another label to add (le="..."), or null
+		 * @return the label set of a sample, empty for none
+		 */
+		String labels(String extra){
+			if(label_name == null && extra == null){
+				return "";
+			}
+			StringBuilder labels = new StringBuilder("{");
+			if(label_name != null){
+				labels.append(label_name).append("=\"").append(label_value).append('"');
+				if(extra != null){
+					labels.append(',');
+				}
+			}
+			if(extra != null){
+				labels.append(extra);
+			}
+			return labels.append('}').toString();
+		}
+	}
+
+	/**
+	 * Count that only goes up
+	 */
+	public static class Counter extends Metric {
+		private final AtomicLong value = new AtomicLong();
+
+		private Counter(String name, String label_name, String label_value, String help){
+			super(name, label_name, label_value, help);
+		}
+
+		public void inc(){
+			value.incrementAndGet();
+		}
+
+		public void add(long n){
+			value.addAndGet(n);
+		}
+
+		public long get(){
+			return value.get();
+		}
+
+		@Override
+		String type(){
+			return "counter";
+		}
+
+		@Override
+		void write(StringBuilder out){
+			out.append(name).append(labels(null)).append(' ').append(value.get()).append('\n');
+		}
+
+		@Override
+		void attributes(Map<String,Object> out){
+			out.put(key(), value.get());
+		}
+	}
+
+	/**
+	 * Value that goes up and down, either set by the code being measured or read
+	 * from a Source when exported
+	 */
+	public static class Gauge extends Metric {
+		/** Reads a gauge's value when it is exported */
+		public interface Source {
+			public double value();
+		}
+
+		private final Source source;
+		private volatile double value;
+
+		private Gauge(String name, String label_name, String label_value, String help, Source source){
+			super(name, label_name, label_value, help);
+			this.source = source;
+		}
+
+		public void set(double value){
+			this.value = value;
+		}
+
+		public double get(){
+			return (source != null) ? source.value() : value;
+		}
+
+		@Override
+		String type(){
+			return "gauge";
+		}
+
+		@Override
+		void write(StringBuilder out){
+			out.append(name).append(labels(null)).append(' ').append(get()).append('\n');
+		}
+
+		@Override
+		void attributes(Map<String,Object> out){
+			out.put(key(), get());
+		}
+	}
+
+	/**
+	 * Distribution of durations
+	 */
+	public static class Histogram extends Metric {
+		/** One count per bucket, plus the overflow bucket */
+		private final AtomicLongArray counts = new AtomicLongArray(BUCKETS.length + 1);
+		/** Sum of every value recorded (ns) */
+		private final AtomicLong sum = new AtomicLong();
+
+		private Histogram(String name, String label_name, String label_value, String help){
+			super(name, label_name, label_value, help);
+		}
+
+		/**
+		 * @param nanos - duration to record
+		 */
+		public void record(long nanos){
+			if(nanos < 0){
+				nanos = 0;
+			}
+			int bucket = Arrays.binarySearch(BUCKETS, nanos);
+			counts.incrementAndGet(bucket < 0 ? -bucket - 1 : bucket);
+			sum.addAndGet(nanos);
+		}
+
+		/**
+		 * Records the time since start
+		 * @param start - System.nanoTime() at the start of what is measured
+		 */
+		public void record_since(long start){
+			record(System.nanoTime() - start);
+		}
+
+		/**
+		 * @return the number of values recorded
+		 */
+		public long count(){
+			long count = 0;
+			for(int i = 0; i < counts.length(); i++){
+				count += counts.get(i);
+			}
+			return count;
+		}
+
+		/**
+		 * Estimates a quantile by interpolating within the bucket it falls in
+		 * @param q - between 0 and 1
+		 * @return the estimate in seconds, 0 if nothing has been recorded
+		 */
+		public double quantile(double q){
+			long[] snapshot = new long[counts.length()];
+			long total = 0;
+			for(int i = 0; i < snapshot.length; i++){
+				snapshot[i] = counts.get(i);
+				total += snapshot[i];
+			}
+			if(total == 0){
+				return 0;
+			}
+			double rank = q * total;
+			long seen = 0;
+			for(int i = 0; i < snapshot.length; i++){
+				if(snapshot[i] > 0 && seen + snapshot[i] >= rank){
+					if(i == BUCKETS.length){
+						//Above the last bound - report the bound
+						return BUCKETS[i - 1] / 1e9;
+					}
+					long lower = (i == 0) ? 0 : BUCKETS[i - 1];
+					return (lower + (BUCKETS[i] - lower) * ((rank - seen) / snapshot[i])) / 1e9;
+				}
+				seen += snapshot[i];
+			}
+			return BUCKETS[BUCKETS.length - 1] / 1e9;
+		}
+
+		@Override
+		String type(){
+			return "histogram";
+		}
+
+		@Override
+		void write(StringBuilder out){
+			long cumulative = 0;
+			for(int i = 0; i < BUCKETS.length; i++){
+				cumulative += counts.get(i);
+				out.append(name).append("_bucket").append(labels(BUCKET_LABELS[i])).append(' ').append(cumulative).append('\n');
+			}
+			cumulative += counts.get(BUCKETS.length);
+			out.append(name).append("_bucket").append(labels("le=\"+Inf\"")).append(' ').append(cumulative).append('\n');
+			out.append(name).append("_sum").append(labels(null)).append(' ').append(sum.get() / 1e9).append('\n');
+			out.append(name).append("_count").append(labels(null)).append(' ').append(cumulative).append('\n');
+		}
+
+		@Override
+		void attributes(Map<String,Object> out){
+			String key = key();
+			out.put(key + "_count", count());
+			out.put(key + "_sum", sum.get() / 1e9);
+			out.put(key + "_p50", quantile(0.5));
+			out.put(key + "_p99", quantile(0.99));
+			out.put(key + "_p999", quantile(0.999));
+		}
+	}
+
+	/**
+	 * @return the registry of this process
+	 */
+	public static Metrics get(){
+		return instance;
+	}
+
+	/**
+	 * Use get() - a registry of its own is only useful to keep measurements apart, e.g. in a harness
+	 */
+	public Metrics(){
+	}
+
+	/**
+	 * @return the counter registered under name, registered first if it is new
+	 */
+	public Counter counter(String name, String help){
+		return counter(name, null, null, help);
+	}
+
+	public synchronized Counter counter(String name, String label_name, String label_value, String help){
+		Metric metric = metrics.get(key(name, label_value));
+		if(metric == null){
+			metric = add(new Counter(name, label_name, label_value, help));
+		}
+		return (Counter)metric;
+	}
+
+	/**
+	 * @return a gauge set by the caller, registered first if it is new
+	 */
+	public Gauge gauge(String name, String help){
+		return gauge(name, help, null);
+	}
+
+	/**
+	 * @param source - read when the gauge is exported, null to have the caller set it
+	 * @return the gauge registered under name, registered first if it is new
+	 */
+	public synchronized Gauge gauge(String name, String help, Gauge.Source source){
+		Metric metric = metrics.get(name);
+		if(metric == null){
+			metric = add(new Gauge(name, null, null, help, source));
+		}
+		return (Gauge)metric;
+	}
+
+	/**
+	 * @return the histogram registered under name, registered first if it is new
+	 */
+	public Histogram histogram(String name, String help){
+		return histogram(name, null, null, help);
+	}
+
+	public synchronized Histogram histogram(String name, String label_name, String label_value, String help){
+		Metric metric = metrics.get(key(name, label_value));
+		if(metric == null){
+			metric = add(new Histogram(name, label_name, label_value, help));
+		}
+		return (Histogram)metric;
+	}
+
+	/**
+	 * @return every metric in Prometheus text exposition format (version 0.0.4)
+	 */
+	public String format_prometheus(){
+		//Samples of a name go together under one HELP and TYPE
+		LinkedHashMap<String,List<Metric>> families = new LinkedHashMap<String,List<Metric>>();
+		synchronized(this){
+			for(Metric metric : metrics.values()){
+				List<Metric> family = families.get(metric.name);
+				if(family == null){
+					family = new ArrayList<Metric>();
+					families.put(metric.name, family);
+				}
+				family.add(metric);
+			}
+		}
+		StringBuilder out = new StringBuilder(4096);
+		for(List<Metric> family : families.values()){
+			Metric first = family.get(0);
+			out.append("# HELP ").append(first.name).append(' ').append(first.help).append('\n');
+			out.append("# TYPE ").append(first.name).append(' ').append(first.type()).append('\n');
+			for(Metric metric : family){
+				metric.write(out);
+			}
+		}
+		return out.toString();
+	}
+
+	/**
+	 * Serves format_prometheus() on HTTP_PATH
+	 * @param host - address to listen on, e.g. "127.0.0.1" to only allow local scrapes
+	 * @param port
+	 * @throws IOException
+	 */
+	public synchronized void start_http(String host, int port) throws IOException{
+		if(http_server != null){
+			return;
+		}
+		http_server = HttpServer.create(new InetSocketAddress(host, port), 0);
+		http_server.createContext(HTTP_PATH, new HttpHandler(){
+			@Override
+			public void handle(HttpExchange exchange) throws IOException{
+				try{
+					byte[] body = format_prometheus().getBytes(StandardCharsets.UTF_8);
+					exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+					if(exchange.getRequestMethod().equalsIgnoreCase("HEAD")){
+						exchange.sendResponseHeaders(200, -1);
+						return;
+					}
+					exchange.sendResponseHeaders(200, body.length);
+					OutputStream out = exchange.getResponseBody();
+					out.write(body);
+					out.close();
+				}finally{
+					exchange.close();
+				}
+			}
+		});
+		http_server.start();
+	}
+
+	/**
+	 * Stops the HTTP endpoint, if it was started
+	 */
+	public synchronized void stop_http(){
+		if(http_server != null){
+			http_server.stop(0);
+			http_server = null;
+		}
+	}
+
+	/**
+	 * Registers an MBean with the platform MBean server that has one read-only
+	 * attribute per counter and gauge, and the count, sum and p50/p99/p999 (in
+	 * seconds) of every histogram
+	 * @param type - value of the type key of the ObjectName
+	 * @param name - value of the name key of the ObjectName
+	 * @throws JMException
+	 */
+	public synchronized void register_mbean(String type, String name) throws JMException{
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName object_name = new ObjectName(JMX_DOMAIN + ":type=" + type + ",name=" + ObjectName.quote(name));
+		if(!server.isRegistered(object_name)){
+			server.registerMBean(new MetricsMBean(), object_name);
+		}
+		mbean_name = object_name;
+	}
+
+	/**
+	 * Unregisters the MBean, if it was registered
+	 */
+	public synchronized void unregister_mbean(){
+		if(mbean_name != null){
+			try{
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbean_name);
+			}catch(JMException e){
+				//Already gone
+			}
+			mbean_name = null;
+		}
+	}
+
+	private Metric add(Metric metric){
+		metrics.put(metric.key(), metric);
+		return metric;
+	}
+
+	/**
+	 * @return the key of a metric, name.label_value when it has a label
+	 */
+	private static String key(String name, String label_value){
+		return (label_value == null) ? name : name + "." + label_value;
+	}
+
+	/**
+	 * @return every JMX attribute and its current value
+	 */
+	private LinkedHashMap<String,Object> attributes(){
+		LinkedHashMap<String,Object> attributes = new LinkedHashMap<String,Object>();
+		synchronized(this){
+			for(Metric metric : metrics.values()){
+				metric.attributes(attributes);
+			}
+		}
+		return attributes;
+	}
+
+	/**
+	 * Exposes the registry over JMX - the attributes follow the metrics registered
+	 */
+	private class MetricsMBean implements DynamicMBean {
+		@Override
+		public Object getAttribute(String attribute) throws AttributeNotFoundException{
+			Object value = attributes().get(attribute);
+			if(value == null){
+				throw new AttributeNotFoundException(attribute);
+			}
+			return value;
+		}
+
+		@Override
+		public AttributeList getAttributes(String[] names){
+			LinkedHashMap<String,Object> attributes = attributes();
+			AttributeList list = new AttributeList();
+			for(String name : names){
+				if(attributes.containsKey(name)){
+					list.add(new Attribute(name, attributes.get(name)));
+				}
+			}
+			return list;
+		}
+
+		@Override
+		public MBeanInfo getMBeanInfo(){
+			ArrayList<MBeanAttributeInfo> infos = new ArrayList<MBeanAttributeInfo>();
+			for(Map.Entry<String,Object> attribute : attributes().entrySet()){
+				infos.add(new MBeanAttributeInfo(attribute.getKey(), attribute.getValue().getClass().getName(),
+						attribute.getKey(), true, false, false));
+			}
+			return new MBeanInfo(Metrics.class.getName(), "CR1000 client pipeline metrics",
+					infos.toArray(new MBeanAttributeInfo[infos.size()]), null, new MBeanOperationInfo[0], new MBeanNotificationInfo[0]);
+		}
+
+		@Override
+		public void setAttribute(Attribute attribute) throws AttributeNotFoundException{
+			throw new AttributeNotFoundException(attribute.getName() + " is read-only");
+		}
+
+		@Override
+		public AttributeList setAttributes(AttributeList attributes){
+			return new AttributeList();
+		}
+
+		/**
+		 * The bean has no operations
+		 */
+		@Override
+		public Object invoke(String action, Object[] params, String[] signature) throws ReflectionException{
+			throw new ReflectionException(new NoSuchMethodException(action), "No operation " + action);
+		}
+	}
+}
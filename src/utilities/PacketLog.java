@@ -0,0 +1,600 @@
+package utilities;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only, segmented write-ahead log for queued Messages.
+ *
+ * Producers append each Message as it is enqueued. The consumer acknowledges
+ * Messages in the same order once they have been published, which moves a
+ * read cursor forward. Segments that lie entirely behind the cursor are deleted,
+ * so on startup only the unacknowledged tail has to be read back.
+ *
+ * Each segment starts with an 8 byte header (magic, version) followed by records:
+ *
+ * 		int  payload length
+ * 		int  CRC32 of the payload
+ * 		long timestamp
+ * 		short + bytes  table name (UTF-8)
+ * 		short + bytes  value name (UTF-8)
+ * 		int + bytes    data
+ *
+ * A torn or corrupt record at the end of the newest segment is truncated on open.
+ *
+ * Appended records are buffered until flush(), and written records are forced
+ * to disk by flush() or force_if_due() once force_interval has passed since the
+ * last force, as well as whenever a segment rolls over and on close(). A power
+ * loss can therefore lose the records appended since the last flush() plus
+ * those written in the last force_interval, provided force_if_due() is called
+ * at least that often.
+ *
+ * Positions in the log are longs holding the segment number in the high 32 bits
+ * and the offset just past a record in the low 32 bits (see position()).
+ *
+ * @author jdk85
+ *
+ */
+public class PacketLog
+{
+	/** Magic number written at the start of every segment ("PKTL") */
+	private static final int SEGMENT_MAGIC = 0x504B544C;
+	/** Segment format version */
+	private static final int SEGMENT_VERSION = 1;
+	/** Size of the segment header in bytes */
+	public static final int SEGMENT_HEADER_SIZE = 8;
+	/** Size of the length and checksum fields preceding each payload */
+	public static final int RECORD_HEADER_SIZE = 8;
+	/** Default size at which a segment is sealed and a new one started */
+	public static final long DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+	/** Default longest time written records go without being forced to disk (ms) */
+	public static final long DEFAULT_FORCE_INTERVAL = 1000;
+	/** Name of the file holding the durable read cursor */
+	private static final String CURSOR_FILE = "cursor";
+	/** Prefix and suffix for segment file names */
+	private static final String SEGMENT_PREFIX = "segment-", SEGMENT_SUFFIX = ".log";
+
+	/** Directory holding the segments and cursor */
+	private File directory;
+	/** Size at which the active segment is sealed */
+	private long segment_size;
+	/** Minimum time between forces in flush() and force_if_due() (ms) */
+	private long force_interval;
+	/** Time of the last force, and whether records have been written since */
+	private long last_force = 0;
+	private boolean unforced = false;
+	/** Lengths of sealed segments, keyed by segment number */
+	private TreeMap<Long,Long> sealed_segments = new TreeMap<Long,Long>();
+
+	/** Segment number and offset of the next record to be acknowledged */
+	private long read_segment, read_offset;
+	/** Set when the in-memory cursor is ahead of the one on disk */
+	private boolean cursor_dirty = false;
+
+	/** Segment currently being appended to */
+	private long write_segment;
+	/** Channel for the active segment */
+	private FileChannel write_channel;
+	/** Length of the active segment including buffered bytes */
+	private long write_offset;
+	/** Records are staged here and written to the channel on flush() */
+	private ByteBuffer write_buffer = ByteBuffer.allocate(64 * 1024);
+	/** Checksum used by the writer */
+	private CRC32 write_crc = new CRC32();
+	/** Number of records found by the last call to scan_segment() */
+	private long valid_count;
+	/** Number of records handed out by the last call to scan_segment() */
+	private int added_count;
+
+	/**
+	 *
+	 * @param directory - directory for the segment and cursor files
+	 * @param segment_size - size in bytes at which segments are rolled over
+	 */
+	public PacketLog(String directory, long segment_size){
+		this(directory, segment_size, DEFAULT_FORCE_INTERVAL);
+	}
+
+	/**
+	 *
+	 * @param directory - directory for the segment and cursor files
+	 * @param segment_size - size in bytes at which segments are rolled over
+	 * @param force_interval - longest time written records go without being forced to disk (ms)
+	 */
+	public PacketLog(String directory, long segment_size, long force_interval){
+		this.directory = new File(directory);
+		this.segment_size = segment_size;
+		this.force_interval = force_interval;
+	}
+
+	/**
+	 * Opens the log, reading up to max of the oldest unacknowledged Messages into
+	 * unacked and truncating a torn record at the end of the log. The rest of the
+	 * unacknowledged tail is validated but not materialized; use read() to fetch it.
+	 *
+	 * @param unacked - collection that receives the unacknowledged Messages, may be null
+	 * @param max - maximum number of Messages to add to unacked
+	 * @return the number of unacknowledged Messages found
+	 * @throws IOException
+	 */
+	public synchronized long open(Collection<Message> unacked, int max) throws IOException{
+		if(!directory.isDirectory() && !directory.mkdirs()){
+			throw new IOException("Unable to create packet log directory " + directory.getAbsolutePath());
+		}
+		long[] segments = list_segments();
+		read_cursor(segments);
+
+		long count = 0;
+		for(long segment : segments){
+			if(segment < read_segment){
+				//Fully acknowledged - left behind by a crash before it could be deleted
+				segment_file(segment).delete();
+				continue;
+			}
+			long start = (segment == read_segment) ? read_offset : SEGMENT_HEADER_SIZE;
+			long valid_length = scan_segment(segment, start, unacked, max, false);
+			count += valid_count;
+			max -= added_count;
+
+			File file = segment_file(segment);
+			if(valid_length < file.length()){
+				//Torn write or corruption - drop everything after the last good record
+				RandomAccessFile raf = new RandomAccessFile(file, "rw");
+				try{
+					raf.setLength(valid_length);
+				}finally{
+					raf.close();
+				}
+			}
+			if(segment == read_segment && read_offset > valid_length){
+				//Cursor points past the surviving data
+				read_offset = Math.max(valid_length, SEGMENT_HEADER_SIZE);
+			}
+			sealed_segments.put(segment, valid_length);
+		}
+
+		//The newest segment becomes the active one
+		if(sealed_segments.isEmpty()){
+			open_segment(read_segment, true);
+		}
+		else{
+			long last = sealed_segments.lastKey();
+			sealed_segments.remove(last);
+			open_segment(last, false);
+		}
+		if(read_segment > write_segment){
+			read_segment = write_segment;
+			read_offset = SEGMENT_HEADER_SIZE;
+		}
+		return count;
+	}
+
+	/**
+	 * Appends a Message to the log. The record reaches the file system on the
+	 * next call to flush().
+	 *
+	 * @param msg
+	 * @throws IOException
+	 */
+	public synchronized void append(Message msg) throws IOException{
+		byte[] table = bytes(msg.table_name);
+		byte[] value = bytes(msg.value_name);
+		byte[] data = (msg.data == null) ? new byte[0] : msg.data;
+		int payload_length = 8 + 2 + table.length + 2 + value.length + 4 + data.length;
+		int record_length = RECORD_HEADER_SIZE + payload_length;
+
+		if(write_buffer.remaining() < record_length){
+			flush_buffer();
+			if(write_buffer.capacity() < record_length){
+				write_buffer = ByteBuffer.allocate(record_length);
+			}
+		}
+
+		int start = write_buffer.position();
+		write_buffer.putInt(payload_length);
+		write_buffer.putInt(0); //checksum placeholder
+		write_buffer.putLong(msg.timestamp);
+		write_buffer.putShort((short)table.length).put(table);
+		write_buffer.putShort((short)value.length).put(value);
+		write_buffer.putInt(data.length).put(data);
+
+		write_crc.reset();
+		write_crc.update(write_buffer.array(), start + RECORD_HEADER_SIZE, payload_length);
+		write_buffer.putInt(start + 4, (int)write_crc.getValue());
+
+		write_offset += record_length;
+		msg.log_position = position(write_segment, write_offset);
+
+		if(write_offset >= segment_size){
+			roll_segment();
+		}
+	}
+
+	/**
+	 * Writes any buffered records to the active segment, and forces them to
+	 * disk if force_interval has passed since the last force
+	 *
+	 * @throws IOException
+	 */
+	public synchronized void flush() throws IOException{
+		flush_buffer();
+		force_if_due();
+	}
+
+	/**
+	 * Forces written records to disk if there are any and the last force was
+	 * at least force_interval ago. Meant to be called periodically so records
+	 * written by the last flush() don't wait for the next one.
+	 *
+	 * @throws IOException
+	 */
+	public synchronized void force_if_due() throws IOException{
+		if(unforced && write_channel != null && System.currentTimeMillis() - last_force >= force_interval){
+			force();
+		}
+	}
+
+	/**
+	 * Acknowledges msg and every Message appended before it. Acknowledging a
+	 * Message that is already behind the cursor has no effect, so acks may
+	 * arrive out of order from more than one thread.
+	 *
+	 * @param msg
+	 */
+	public synchronized void ack(Message msg){
+		if(msg.log_position <= position(read_segment, read_offset)){
+			return;
+		}
+		read_segment = segment_of(msg.log_position);
+		read_offset = offset_of(msg.log_position);
+		cursor_dirty = true;
+
+		//Delete every sealed segment that has been consumed
+		while(!sealed_segments.isEmpty() && sealed_segments.firstKey() < read_segment){
+			segment_file(sealed_segments.pollFirstEntry().getKey()).delete();
+		}
+		Long length;
+		if(read_segment < write_segment && (length = sealed_segments.get(read_segment)) != null && read_offset >= length){
+			sealed_segments.remove(read_segment);
+			segment_file(read_segment).delete();
+			read_segment++;
+			read_offset = SEGMENT_HEADER_SIZE;
+		}
+	}
+
+	/**
+	 * Reads up to max Messages that were appended after position
+	 *
+	 * @param position - log position to read from, typically the log_position of the last Message read
+	 * @param max - maximum number of Messages to read
+	 * @param out - collection that receives the Messages
+	 * @return the position just past the last Message read
+	 * @throws IOException
+	 */
+	public synchronized long read(long position, int max, Collection<Message> out) throws IOException{
+		flush_buffer();
+		long segment = segment_of(position);
+		long offset = offset_of(position);
+		if(position < position(read_segment, read_offset)){
+			//Everything before the cursor is gone
+			segment = read_segment;
+			offset = read_offset;
+		}
+		while(max > 0){
+			long end = (segment == write_segment) ? write_offset : length_of(segment);
+			if(offset < end){
+				offset = scan_segment(segment, offset, out, max, true);
+				max -= added_count;
+				if(added_count == 0){
+					break;
+				}
+			}
+			if(offset >= end && segment < write_segment){
+				segment++;
+				offset = SEGMENT_HEADER_SIZE;
+			}
+			else if(offset >= end){
+				break;
+			}
+		}
+		return position(segment, offset);
+	}
+
+	/**
+	 * @return the log position of the last Message appended
+	 */
+	public synchronized long tail_position(){
+		return position(write_segment, write_offset);
+	}
+
+	/**
+	 * @return the log position up to which Messages have been acknowledged
+	 */
+	public synchronized long ack_position(){
+		return position(read_segment, read_offset);
+	}
+
+	/**
+	 * Packs a segment number and offset into a log position
+	 */
+	public static long position(long segment, long offset){
+		return (segment << 32) | (offset & 0xFFFFFFFFL);
+	}
+
+	private static long segment_of(long position){
+		return position >>> 32;
+	}
+
+	private static long offset_of(long position){
+		return position & 0xFFFFFFFFL;
+	}
+
+	private long length_of(long segment){
+		Long length = sealed_segments.get(segment);
+		return (length == null) ? SEGMENT_HEADER_SIZE : length;
+	}
+
+	/**
+	 * Persists the read cursor if it has moved since the last commit
+	 *
+	 * @throws IOException
+	 */
+	public synchronized void commit() throws IOException{
+		if(!cursor_dirty){
+			return;
+		}
+		File tmp = new File(directory, CURSOR_FILE + ".tmp");
+		ByteBuffer buf = ByteBuffer.allocate(24);
+		buf.putLong(read_segment).putLong(read_offset).putLong(read_segment ^ read_offset ^ SEGMENT_MAGIC);
+		FileOutputStream out = new FileOutputStream(tmp);
+		try{
+			out.write(buf.array());
+			out.getFD().sync();
+		}finally{
+			out.close();
+		}
+		Files.move(tmp.toPath(), new File(directory, CURSOR_FILE).toPath(),
+				StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		cursor_dirty = false;
+	}
+
+	/**
+	 * Discards every record in the log
+	 *
+	 * @throws IOException
+	 */
+	public synchronized void clear() throws IOException{
+		flush_buffer();
+		write_channel.close();
+		for(long segment : list_segments()){
+			segment_file(segment).delete();
+		}
+		sealed_segments.clear();
+		open_segment(write_segment + 1, true);
+		read_segment = write_segment;
+		read_offset = SEGMENT_HEADER_SIZE;
+		cursor_dirty = true;
+		commit();
+	}
+
+	/**
+	 * Flushes buffered records, forces them to disk and persists the cursor
+	 *
+	 * @throws IOException
+	 */
+	public synchronized void close() throws IOException{
+		if(write_channel == null){
+			return;
+		}
+		flush_buffer();
+		force();
+		write_channel.close();
+		write_channel = null;
+		commit();
+	}
+
+	/**
+	 * @return the number of bytes in the log that have not been acknowledged
+	 */
+	public synchronized long unacked_bytes(){
+		long total = 0;
+		for(long length : sealed_segments.values()){
+			total += length - SEGMENT_HEADER_SIZE;
+		}
+		total += write_offset - SEGMENT_HEADER_SIZE;
+		return Math.max(0, total - (read_offset - SEGMENT_HEADER_SIZE));
+	}
+
+	/**
+	 * Reads records from start until the end of the segment or the first bad record,
+	 * handing at most max of them to out. The number of valid records seen is left
+	 * in valid_count and the number handed out in added_count.
+	 *
+	 * @param stop_at_max - stop reading once max records have been handed out
+	 * @return the offset just past the last record read, or 0 if the segment header is bad
+	 */
+	private long scan_segment(long segment, long start, Collection<Message> out, int max, boolean stop_at_max) throws IOException{
+		File file = segment_file(segment);
+		valid_count = 0;
+		added_count = 0;
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+		try{
+			if(in.readInt() != SEGMENT_MAGIC || in.readInt() != SEGMENT_VERSION){
+				return 0;
+			}
+			long offset = SEGMENT_HEADER_SIZE;
+			while(offset < start){
+				long skipped = in.skip(start - offset);
+				if(skipped <= 0){
+					return offset;
+				}
+				offset += skipped;
+			}
+			CRC32 crc = new CRC32();
+			byte[] payload = new byte[256];
+			while(!stop_at_max || added_count < max){
+				int payload_length, checksum;
+				try{
+					payload_length = in.readInt();
+					checksum = in.readInt();
+					if(payload_length < 16 || payload_length > segment_size + (1 << 20)){
+						return offset;
+					}
+					if(payload.length < payload_length){
+						payload = new byte[payload_length];
+					}
+					in.readFully(payload, 0, payload_length);
+				}catch(EOFException e){
+					return offset;
+				}
+				crc.reset();
+				crc.update(payload, 0, payload_length);
+				if((int)crc.getValue() != checksum){
+					return offset;
+				}
+				valid_count++;
+				offset += RECORD_HEADER_SIZE + payload_length;
+				if(out != null && added_count < max){
+					Message msg = decode(payload);
+					msg.log_position = position(segment, offset);
+					out.add(msg);
+					added_count++;
+				}
+			}
+			return offset;
+		}catch(EOFException e){
+			//Header itself is torn
+			return 0;
+		}finally{
+			in.close();
+		}
+	}
+
+	/**
+	 * Decodes a checksummed payload into a Message
+	 */
+	private static Message decode(byte[] payload){
+		ByteBuffer buf = ByteBuffer.wrap(payload);
+		long timestamp = buf.getLong();
+		String table = string(buf);
+		String value = string(buf);
+		byte[] data = new byte[buf.getInt()];
+		buf.get(data);
+		return new Message(data, timestamp, table, value);
+	}
+
+	private static String string(ByteBuffer buf){
+		int length = buf.getShort() & 0xFFFF;
+		String s = new String(buf.array(), buf.position(), length, StandardCharsets.UTF_8);
+		buf.position(buf.position() + length);
+		return s;
+	}
+
+	private static byte[] bytes(String s){
+		return (s == null) ? new byte[0] : s.getBytes(StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Loads the cursor from disk, defaulting to the start of the oldest segment
+	 */
+	private void read_cursor(long[] segments) throws IOException{
+		read_segment = (segments.length > 0) ? segments[0] : 0;
+		read_offset = SEGMENT_HEADER_SIZE;
+		File file = new File(directory, CURSOR_FILE);
+		if(!file.exists()){
+			return;
+		}
+		byte[] raw = Files.readAllBytes(file.toPath());
+		if(raw.length != 24){
+			return;
+		}
+		ByteBuffer buf = ByteBuffer.wrap(raw);
+		long segment = buf.getLong(), offset = buf.getLong();
+		if(buf.getLong() == (segment ^ offset ^ SEGMENT_MAGIC) && offset >= SEGMENT_HEADER_SIZE){
+			read_segment = segment;
+			read_offset = offset;
+		}
+	}
+
+	private void flush_buffer() throws IOException{
+		write_buffer.flip();
+		if(write_buffer.hasRemaining()){
+			unforced = true;
+		}
+		while(write_buffer.hasRemaining()){
+			write_channel.write(write_buffer);
+		}
+		write_buffer.clear();
+	}
+
+	private void force() throws IOException{
+		write_channel.force(false);
+		unforced = false;
+		last_force = System.currentTimeMillis();
+	}
+
+	private void roll_segment() throws IOException{
+		flush_buffer();
+		force();
+		write_channel.close();
+		sealed_segments.put(write_segment, write_offset);
+		open_segment(write_segment + 1, true);
+	}
+
+	@SuppressWarnings("resource")
+	private void open_segment(long segment, boolean create) throws IOException{
+		File file = segment_file(segment);
+		write_channel = new RandomAccessFile(file, "rw").getChannel();
+		write_segment = segment;
+		if(create || write_channel.size() < SEGMENT_HEADER_SIZE){
+			write_channel.truncate(0);
+			ByteBuffer header = ByteBuffer.allocate(SEGMENT_HEADER_SIZE);
+			header.putInt(SEGMENT_MAGIC).putInt(SEGMENT_VERSION).flip();
+			while(header.hasRemaining()){
+				write_channel.write(header);
+			}
+		}
+		write_offset = write_channel.size();
+		write_channel.position(write_offset);
+	}
+
+	private File segment_file(long segment){
+		return new File(directory, String.format("%s%020d%s", SEGMENT_PREFIX, segment, SEGMENT_SUFFIX));
+	}
+
+	private long[] list_segments(){
+		String[] names = directory.list();
+		if(names == null){
+			return new long[0];
+		}
+		long[] segments = new long[names.length];
+		int n = 0;
+		for(String name : names){
+			if(name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)){
+				try{
+					segments[n++] = Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+				}catch(NumberFormatException e){
+					n--;
+				}
+			}
+		}
+		segments = Arrays.copyOf(segments, n);
+		Arrays.sort(segments);
+		return segments;
+	}
+}
@@ -0,0 +1,255 @@
+package utilities;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import com.campbellsci.pakbus.Datalogger;
+import com.campbellsci.pakbus.Network;
+import com.campbellsci.pakbus.TransactionBase;
+
+/**
+ * A single PakBus connection (for example to a PakBus router or NL201) shared by
+ * several Datalogger stations. One pump thread owns the Network: stations and
+ * transactions are handed to it through a queue, and queuing wakes it straight
+ * away. The link is multiplexed, but transactions are not concurrent: the
+ * Network gives the focus to one transaction at a time and queues the rest, so
+ * transactions on every station are serialized, each starting as soon as the
+ * one before it completes. Transaction callbacks run on the pump thread.
+ *
+ * If the connection fails, every caller waiting on it gets a SocketException;
+ * the next call to open() reconnects, and stations must then be added again.
+ *
+ * @author jdk85
+ *
+ */
+public class PakBusLink
+{
+	/** Default TCP port of a PakBus/TCP server */
+	public static final int DEFAULT_PORT = 6785;
+	/** PakBus address of this end of the link */
+	public static final short NETWORK_ADDRESS = 4079;
+
+	/** Work done on the pump thread, which is the only thread allowed to touch the Network */
+	private interface Task {
+		public void run(Network network, ArrayList<Datalogger> stations) throws Exception;
+	}
+
+	private final String address;
+	private final int port;
+	/** Tasks for the pump thread of the current connection */
+	private volatile ConcurrentLinkedQueue<Task> tasks = new ConcurrentLinkedQueue<Task>();
+	private Socket socket;
+	private Thread pump_thread;
+	/** Incremented on every reconnect, so stations added to an older connection can tell */
+	private volatile int generation = 0;
+	/** Why the current connection failed, null while it is healthy */
+	private volatile Exception failure;
+
+	/**
+	 *
+	 * @param address - IP address or host name
+	 * @param port - TCP port
+	 */
+	public PakBusLink(String address, int port){
+		this.address = address;
+		this.port = port;
+	}
+
+	/**
+	 * Connects if the link has not been opened yet or the last connection failed
+	 * @return the generation of the connection, passed to the other methods
+	 * @throws IOException
+	 */
+	public synchronized int open() throws IOException{
+		if(pump_thread != null && pump_thread.isAlive() && failure == null){
+			return generation;
+		}
+		close();
+		socket = new Socket(address, port);
+		final Network network = new Network(NETWORK_ADDRESS, socket.getInputStream(), socket.getOutputStream());
+		final InputStream in = socket.getInputStream();
+		final ConcurrentLinkedQueue<Task> queue = new ConcurrentLinkedQueue<Task>();
+		final int pump_generation = generation + 1;
+		tasks = queue;
+		failure = null;
+		generation = pump_generation;
+		pump_thread = new Thread(new Runnable(){
+			@Override
+			public void run(){
+				pump(network, in, queue, pump_generation);
+			}
+		});
+		pump_thread.setDaemon(true);
+		pump_thread.setName("pakbus_link-" + address);
+		pump_thread.start();
+		return generation;
+	}
+
+	/**
+	 * Adds a station to the link, replacing any station already added at the same
+	 * PakBus address - as happens when a station reconnects to a healthy link
+	 * @param generation - returned by open()
+	 * @param pb_address - PakBus address of the datalogger
+	 * @return the station, to pass to submit()
+	 * @throws SocketException if the connection has failed since open()
+	 */
+	public Datalogger add_station(int generation, short pb_address) throws SocketException{
+		final Datalogger station = new Datalogger(pb_address);
+		execute(generation, new Task(){
+			@Override
+			public void run(Network network, ArrayList<Datalogger> stations){
+				for(int i = 0; i < stations.size(); i++){
+					if(stations.get(i).get_pakbus_address() == station.get_pakbus_address()){
+						network.remove_station(station.get_pakbus_address());
+						stations.remove(i);
+						break;
+					}
+				}
+				network.add_station(station);
+				stations.add(station);
+			}
+		});
+		return station;
+	}
+
+	/**
+	 * Queues a transaction on a station without waiting for it - it starts once
+	 * it gets the focus of the Network
+	 * @param generation - returned by open()
+	 * @param station - returned by add_station()
+	 * @param transaction
+	 * @throws SocketException if the connection has failed since open()
+	 */
+	public void submit(int generation, final Datalogger station, final TransactionBase transaction) throws SocketException{
+		execute(generation, new Task(){
+			@Override
+			public void run(Network network, ArrayList<Datalogger> stations) throws Exception{
+				station.add_transaction(transaction);
+			}
+		});
+	}
+
+	/**
+	 * Waits for a latch counted down by a transaction callback
+	 * @param generation - returned by open()
+	 * @param done
+	 * @throws SocketException if the connection fails first
+	 * @throws InterruptedException
+	 */
+	public void await(int generation, CountDownLatch done) throws SocketException, InterruptedException{
+		while(!done.await(CR1000Interface.MAX_PUMP_WAIT, TimeUnit.MILLISECONDS)){
+			check(generation);
+		}
+	}
+
+	/**
+	 * Stops the pump thread and closes the connection
+	 */
+	public synchronized void close(){
+		if(pump_thread != null){
+			if(failure == null){
+				failure = new SocketException("PakBus link to " + address + " closed");
+			}
+			pump_thread.interrupt();
+			pump_thread = null;
+		}
+		if(socket != null){
+			try{
+				socket.close();
+			}catch(IOException e){
+				//Already broken
+			}
+			socket = null;
+		}
+	}
+
+	public String getAddress(){
+		return address;
+	}
+
+	/**
+	 * Queues a task for the pump thread and wakes it up
+	 */
+	private void execute(int generation, Task task) throws SocketException{
+		Thread thread;
+		synchronized(this){
+			check(generation);
+			tasks.add(task);
+			thread = pump_thread;
+		}
+		if(thread != null){
+			LockSupport.unpark(thread);
+		}
+	}
+
+	/**
+	 * @throws SocketException if the connection of the given generation is gone
+	 */
+	private void check(int generation) throws SocketException{
+		Exception e = failure;
+		if(generation != this.generation){
+			throw new SocketException("PakBus link to " + address + " was reconnected");
+		}
+		if(e != null){
+			SocketException se = new SocketException("PakBus link to " + address + " failed: " + e);
+			se.initCause(e);
+			throw se;
+		}
+	}
+
+	/**
+	 * Runs queued tasks and drives the network until interrupted or the connection fails.
+	 * The pump keeps its own list of the stations it has added, since Network has no way
+	 * to enumerate them.
+	 * Paces itself like CR1000Interface: back to back while bytes are waiting to be read,
+	 * every 1 ms while packets are waiting to be sent, backing off to MAX_PUMP_WAIT when
+	 * idle - and woken straight away when a task is queued.
+	 */
+	private void pump(Network network, InputStream in, ConcurrentLinkedQueue<Task> tasks, int pump_generation){
+		ArrayList<Datalogger> stations = new ArrayList<Datalogger>();
+		long wait = 0;
+		try{
+			while(!Thread.currentThread().isInterrupted()){
+				boolean busy = false;
+				Task task;
+				while((task = tasks.poll()) != null){
+					task.run(network, stations);
+					busy = true;
+				}
+				network.check_state();
+				if(busy || in.available() > 0){
+					wait = 0;
+					continue;
+				}
+				boolean sending = false;
+				for(Datalogger station : stations){
+					if(network.waiting_to_send_count(station.get_pakbus_address()) > 0){
+						sending = true;
+						break;
+					}
+				}
+				wait = sending ? 1 : ((wait == 0) ? 1 : Math.min(wait * 2, CR1000Interface.MAX_PUMP_WAIT));
+				LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(wait));
+			}
+		}catch(Exception e){
+			fail(pump_generation, e);
+		}
+	}
+
+	/**
+	 * Records why a connection failed, unless it has already been replaced
+	 */
+	private synchronized void fail(int pump_generation, Exception e){
+		if(pump_generation == generation && failure == null){
+			failure = e;
+		}
+	}
+
+}
@@ -0,0 +1,63 @@
+package utilities;
+
+import com.campbellsci.pakbus.GetProgStatsClient;
+import com.campbellsci.pakbus.GetProgStatsTran;
+import com.campbellsci.pakbus.Packet;
+
+/**
+ * GetProgStatsTran that keeps the program signature from the datalogger's reply.
+ * Datalogger stores the signature in a protected field with no getter and the
+ * class is final, so the signature is read from the reply here, before
+ * GetProgStatsTran parses it.
+ *
+ * @author jdk85
+ *
+ */
+public class ProgStatsTran extends GetProgStatsTran
+{
+	/** BMP5 protocol type */
+	private static final short PROTOCOL_BMP5 = 1;
+	/** Message type of the program statistics response */
+	private static final short PROG_STATS_RESPONSE = 0x98;
+
+	/** Signature of the running program, -1 until a reply has been read */
+	private volatile int program_signature = -1;
+
+	/**
+	 *
+	 * @param client - notified when the transaction completes
+	 */
+	public ProgStatsTran(GetProgStatsClient client){
+		super(client);
+	}
+
+	/**
+	 * Reads the program signature, then puts the read position back for GetProgStatsTran
+	 */
+	@Override
+	public void on_message(Packet message) throws Exception{
+		if(message.protocol_type == PROTOCOL_BMP5 && message.message_type == PROG_STATS_RESPONSE){
+			int start = message.get_read_index();
+			//Response code, then the fields in the order the datalogger sends them
+			if(message.read_byte() == 0){
+				message.read_string();	//OS version
+				message.read_uint2();	//OS signature
+				message.read_string();	//Serial number
+				message.read_string();	//Power up program
+				message.read_byte();	//Compile state
+				message.read_string();	//Program name
+				program_signature = message.read_uint2();
+			}
+			message.reset();
+			message.move_past(start);
+		}
+		super.on_message(message);
+	}
+
+	/**
+	 * @return the signature of the running program, or -1 if the transaction hasn't succeeded
+	 */
+	public int getProgram_signature(){
+		return program_signature;
+	}
+}
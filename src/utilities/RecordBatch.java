@@ -0,0 +1,79 @@
+package utilities;
+
+/**
+ * Decoded form of a record-batched payload: one or more consecutive records
+ * of a single table, each with its own timestamp and record number, and the
+ * values of every record packed row by row into a single float array.
+ *
+ * @see DataGeneratorCodec#encodeRecordBatch(int, int, long, long[], long[], float[])
+ */
+public class RecordBatch implements java.io.Serializable {
+
+	/**
+	 *
+	 */
+	private static final long serialVersionUID = -4168927370415592061L;
+	/** Table definition signature of the table the records came from */
+	private long table_signature;
+	/** Number of values in each record */
+	private int values_per_record;
+	/** Number of records in the batch */
+	private int record_count;
+	/** Sample timestamp of each record in ms since 1970 */
+	private long[] timestamps;
+	/** Logger record number of each record */
+	private long[] record_numbers;
+	/** Values of every record, record_count rows of values_per_record */
+	private float[] values;
+
+	/**
+	 *
+	 * @param table_signature
+	 * @param values_per_record
+	 * @param record_count
+	 * @param timestamps
+	 * @param record_numbers
+	 * @param values
+	 */
+	public RecordBatch(long table_signature, int values_per_record, int record_count, long[] timestamps, long[] record_numbers, float[] values) {
+		this.table_signature = table_signature;
+		this.values_per_record = values_per_record;
+		this.record_count = record_count;
+		this.timestamps = timestamps;
+		this.record_numbers = record_numbers;
+		this.values = values;
+	}
+
+	public long getTable_signature() {
+		return table_signature;
+	}
+	public int getValues_per_record() {
+		return values_per_record;
+	}
+	public int getRecord_count() {
+		return record_count;
+	}
+	public long getTimestamp(int record) {
+		return timestamps[record];
+	}
+	public long getRecord_number(int record) {
+		return record_numbers[record];
+	}
+	/**
+	 * @param record - index of the record within the batch
+	 * @param column - index of the value within the record
+	 * @return the value
+	 */
+	public float getValue(int record, int column) {
+		return values[record * values_per_record + column];
+	}
+	public long[] getTimestamps() {
+		return timestamps;
+	}
+	public long[] getRecord_numbers() {
+		return record_numbers;
+	}
+	public float[] getValues() {
+		return values;
+	}
+}
@@ -0,0 +1,35 @@
+package utilities;
+
+import java.util.List;
+
+import com.campbellsci.pakbus.Record;
+
+/**
+ * Receives records from CR1000Interface as they arrive from the datalogger,
+ * while the collection transaction is still running.
+ * 
+ * @author jdk85
+ *
+ */
+public interface RecordConsumer
+{
+	/**
+	 * Called from the thread pumping the PakBus network each time a block of
+	 * records arrives. The list is cleared after the call returns, so it must
+	 * not be kept - the Record objects themselves may be.
+	 * 
+	 * @param table_name - name of the table the records belong to
+	 * @param records - the records received, oldest first
+	 * @return true to keep collecting, false to abort the transaction
+	 */
+	public boolean on_records(String table_name, List<Record> records);
+
+	/**
+	 * Called from the same thread once the table's transaction has finished,
+	 * successfully or not, after its last on_records.
+	 * 
+	 * @param table_name - name of the table
+	 * @param outcome - DataCollectTran outcome code
+	 */
+	public void on_complete(String table_name, int outcome);
+}
@@ -3,13 +3,32 @@ package utilities;
 
 import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.FileWriter;
+import java.io.FilenameFilter;
 import java.io.IOException;
-import java.sql.Date;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.TimeZone;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.GZIPOutputStream;
 /**
  * SegaLogger Class. Can be used as a plugin to easily create log files
- * 
+ *
  * Example use:
 		\code
 		SegaLogger tester = new SegaLogger("TestLogFile");
@@ -17,62 +36,194 @@ import java.text.SimpleDateFormat;
 		tester.write("So will this");
 		tester.close(); //this usually isn't necessary since most logs won't need closing
 		\endcode
+ *
+ * write() never touches the file: entries go into a lock-free ring buffer (the
+ * same scheme as MessageRingBuffer) and a single background thread shared by
+ * every log writes them out, flushing once FLUSH_INTERVAL has passed, as soon
+ * as an ERROR entry is written, or when flush() is called. If the ring is full
+ * the entry is dropped and the number dropped is logged once there is room.
+ * Call flush_all() before exiting on a fatal error and close_all() last on
+ * shutdown. A JVM shutdown hook also runs flush_all(), for logs - such as
+ * those opened by CR1000Interface and SendMail - whose owners never get to.
+ *
+ * Use get() rather than the constructor when several objects log to the same
+ * file, so their entries go through one buffer and lines never interleave.
+ *
+ * The writer thread rotates the file when it reaches max_size bytes and at the
+ * first entry of a new day: the file is renamed to name.yyyyMMdd-HHmmss.txt
+ * and a fresh one started. Rotated files are gzipped on a separate background
+ * thread, and only the newest max_archives are kept.
  * @author jdk85
  *
  */
 public class SegaLogger implements java.io.Serializable{
 
+	/** Severity of a log entry - entries below the log's level are discarded before they are built */
+	public enum Level {
+		DEBUG, INFO, WARN, ERROR
+	}
+
 	/** Required by java.io.Serializable */
 	private static final long serialVersionUID = -7242211923105835326L;
+	/** Default number of entries the ring buffer holds */
+	public static final int DEFAULT_CAPACITY = 8192;
+	/** Longest time an entry waits in memory before it is flushed to disk (ms) */
+	public static final long FLUSH_INTERVAL = 1000;
+	/** Longest the writer thread sleeps while the logs are idle (ms) */
+	private static final long WRITER_WAIT = 50;
+	/** Default size a log is rotated at (bytes) */
+	public static final long DEFAULT_MAX_SIZE = 10L * 1024 * 1024;
+	/** Default number of rotated logs kept */
+	public static final int DEFAULT_MAX_ARCHIVES = 30;
+
+	/** Rotation settings given to logs opened from now on */
+	private static volatile long default_max_size = DEFAULT_MAX_SIZE;
+	private static volatile int default_max_archives = DEFAULT_MAX_ARCHIVES;
+	/** Compresses rotated logs and prunes old ones, off the writer thread */
+	private static ExecutorService compressor;
+
+	/** Every open log, served by writer_thread */
+	private static final CopyOnWriteArrayList<SegaLogger> logs = new CopyOnWriteArrayList<SegaLogger>();
+	/** Logs shared through get(), by absolute path */
+	private static final HashMap<String,SegaLogger> shared = new HashMap<String,SegaLogger>();
+	/** Writes the entries of every log */
+	private static Thread writer_thread;
+
 	/** Stores FileWriter for creating log */
-	private transient FileWriter logFile; 
+	private transient FileWriter logFile;
 	/** Stores BufferedWriter to actually write log entries with*/
-    private transient BufferedWriter log; 
-    /** Used to write the date format for the log*/
-    private SimpleDateFormat dateFormatter = new SimpleDateFormat("MM/dd/yyyy - h:mm:ss a"); 
+    private transient BufferedWriter log;
+    /** Used to write the date format for the log - only used by the thread holding the log's lock*/
+    private SimpleDateFormat dateFormatter = new SimpleDateFormat("MM/dd/yyyy - h:mm:ss a");
+    /** Second the cached timestamp was formatted for */
+    private transient long cached_second = -1;
+    /** Formatted timestamp of cached_second */
+    private transient String cached_timestamp;
     /** Stores the name of the log file to be written to*/
-    private String filename; 
+    private String filename;
     /** File object used to write to the log */
     private File logFileObj;
+    /** Entries below this level are discarded */
+    private volatile Level level = Level.INFO;
+
+    //Ring buffer - see MessageRingBuffer
+    private transient int mask;
+    private transient AtomicReferenceArray<String> texts;
+    private transient long[] times;
+    private transient Level[] levels;
+    private transient AtomicLongArray sequence;
+    private transient AtomicLong tail;
+    /** Next position to be written - only touched while holding the log's lock */
+    private transient long head;
+    /** Entries dropped because the ring was full */
+    private transient AtomicLong dropped;
+    /** Time of the last flush to disk, and whether anything was written since */
+    private transient long last_flush;
+    private transient boolean unflushed;
+    /** Time the file was last checked to still exist */
+    private transient long last_exists_check;
+    private transient volatile boolean closed;
+    /** Size the file is rotated at (bytes), 0 to never rotate on size */
+    private volatile long max_size = default_max_size;
+    /** Number of rotated files kept, 0 to keep them all */
+    private volatile int max_archives = default_max_archives;
+    /** When true the file is also rotated when the day changes */
+    private volatile boolean daily = true;
+    /** Approximate size of the current file (bytes) */
+    private transient long file_size;
+    /** Local day (days since 1970) of the entries in the current file */
+    private transient long file_day = -1;
+
     /**
 	 * SegaLogger Constructor - Takes in file name and initializes the log file
 	 * @param String filename - Name of the log file (.txt)
-     * @throws IOException 
+     * @throws IOException
 	 * @returns none
 	 */
     public SegaLogger(String filename) throws IOException{
+    	this(filename, DEFAULT_CAPACITY);
+    }
+
+    /**
+     *
+     * @param filename - Name of the log file (.txt)
+     * @param capacity - number of entries the ring buffer holds, rounded up to a power of two
+     * @throws IOException
+     */
+    public SegaLogger(String filename, int capacity) throws IOException{
+    	if(capacity < 2){
+    		capacity = 2;
+    	}
+    	capacity = Integer.highestOneBit(capacity - 1) << 1;
+    	mask = capacity - 1;
+    	texts = new AtomicReferenceArray<String>(capacity);
+    	times = new long[capacity];
+    	levels = new Level[capacity];
+    	sequence = new AtomicLongArray(capacity);
+    	for(int i = 0; i < capacity; i++){
+    		sequence.set(i, i);
+    	}
+    	tail = new AtomicLong();
+    	dropped = new AtomicLong();
     	createLogFile(filename);
+    	register(this);
+    }
+
+    /**
+     * @param filename - Name of the log file (.txt)
+     * @return the log for filename, opened the first time it is asked for
+     * @throws IOException
+     */
+    public static SegaLogger get(String filename) throws IOException{
+    	String key = new File(filename.contains(".txt") ? filename : filename + ".txt").getAbsolutePath();
+    	synchronized(shared){
+    		SegaLogger logger = shared.get(key);
+    		if(logger == null || logger.closed){
+    			logger = new SegaLogger(filename);
+    			shared.put(key, logger);
+    		}
+    		return logger;
+    	}
     }
-    
+
     /**
-     * 
+     *
      * @param filename
-     * @throws IOException 
+     * @throws IOException
      */
-    public void createLogFile(String filename) throws IOException{
+    public synchronized void createLogFile(String filename) throws IOException{
     	try{
     		if(!filename.contains(".txt"))logFileObj = new File(filename + ".txt");
     		else logFileObj = new File(filename);
     		//Store filename locally
-			this.filename = filename;			
+			this.filename = filename;
 			if(logFileObj.getParentFile().mkdirs()){
 				System.out.println("Creating log directory " + logFileObj.getParentFile().getAbsolutePath());
 			}
+			//Day of the entries already in the file, so a file from yesterday is rotated by today's first entry
+			long modified = (logFileObj.length() > 0) ? logFileObj.lastModified() : System.currentTimeMillis();
 			logFileObj.createNewFile();
-			//Create FileWriter object used for log	
-			
+			if(log != null){
+				//Reopening - let go of the old file
+				log.close();
+			}
+			//Create FileWriter object used for log
+
 			logFile = new FileWriter(logFileObj,true);
-			
+
 			//Create BufferedWriter object used to writing to log file
 			log = new BufferedWriter(logFile);
-			
+
 			//Write initial creation information to log
 			log.write("============================================================================\r\n");
 			log.write("Log Created: " + dateFormatter.format(new Date(System.currentTimeMillis())) + "\r\n");
 			log.write("============================================================================\r\n\r\n");
 			//Flush info to log to write without having to close file
 			log.flush();
-			
+			last_flush = System.currentTimeMillis();
+			file_size = logFileObj.length();
+			file_day = day_of(modified);
+
 		}catch(IOException e){
 			System.out.println("Error creating log file ");
 			e.printStackTrace();
@@ -84,42 +235,419 @@ public class SegaLogger implements java.io.Serializable{
     }
     /**
 	 * write(Object o)  - Takes in object to be written to log, will take the toString() of the object
-	 * @param Object o - data that gets written to log 
+	 * @param Object o - data that gets written to log
 	 * @returns none
 	 */
     public void write(Object o){
+    	write(Level.INFO, o);
+    }
+
+    /**
+     * Queues an entry for the writer thread. Never blocks.
+     * @param level
+     * @param o - data that gets written to log, toString() is only called if level is enabled
+     */
+    public void write(Level level, Object o){
+    	if(!isEnabled(level)){
+    		return;
+    	}
+    	offer(level, String.valueOf(o));
+    }
+
+    /**
+     * Queues a formatted entry - the message is only formatted if level is enabled
+     * @param level
+     * @param format - see String.format
+     * @param args
+     */
+    public void write(Level level, String format, Object... args){
+    	if(!isEnabled(level)){
+    		return;
+    	}
+    	offer(level, String.format(format, args));
+    }
+
+    /**
+     * @param level
+     * @return true if entries of level are written
+     */
+    public boolean isEnabled(Level level){
+    	return level.compareTo(this.level) >= 0;
+    }
+
+    public Level getLevel(){
+    	return level;
+    }
+
+    public void setLevel(Level level){
+    	this.level = level;
+    }
+
+    /**
+     * @param max_size - size the file is rotated at (bytes), 0 to never rotate on size
+     * @param daily - when true the file is also rotated when the day changes
+     * @param max_archives - number of rotated files kept, 0 to keep them all
+     */
+    public void setRotation(long max_size, boolean daily, int max_archives){
+    	this.max_size = max_size;
+    	this.daily = daily;
+    	this.max_archives = max_archives;
+    }
+
+    /**
+     * Sets the size rotation and retention of every log opened from now on
+     * @param max_size - size a log is rotated at (bytes), 0 to never rotate on size
+     * @param max_archives - number of rotated files kept, 0 to keep them all
+     */
+    public static void setDefaultRotation(long max_size, int max_archives){
+    	default_max_size = max_size;
+    	default_max_archives = max_archives;
+    }
+
+    /**
+     * Writes every queued entry and flushes the file, on the calling thread
+     */
+    public void flush(){
+    	synchronized(this){
+    		drain();
+    		flush_file();
+    	}
+    }
+
+    /**
+     * Writes out every open log, on the calling thread
+     */
+    public static void flush_all(){
+    	for(SegaLogger logger : logs){
+    		logger.flush();
+    	}
+    }
+
+    /**
+     * Closes every open log - entries written after this are discarded
+     */
+    public static void close_all(){
+    	for(SegaLogger logger : logs){
+    		logger.close();
+    	}
+    }
+
+    /**
+	 * close(void)  - Flushes the queued entries, then shuts down BufferedWriter and FileWriter
+	 * @param none
+	 * @returns none
+	 */
+    public void close(){
+    	logs.remove(this);
+    	synchronized(this){
+    		drain();
+    		closed = true;
+    		try {
+    			log.close();
+    		}catch (IOException e) {
+    			System.out.println("Error closing log file " + filename);
+    			e.printStackTrace();
+    		}catch (Exception e) {
+    			System.out.println("Error closing log file " + filename);
+    			e.printStackTrace();
+    		}
+    	}
+    }
+
+    /**
+     * Claims a slot at the tail of the ring and publishes the entry in it
+     */
+    private void offer(Level level, String text){
+    	if(closed){
+    		return;
+    	}
+    	while(true){
+    		long pos = tail.get();
+    		int index = (int)(pos & mask);
+    		long dif = sequence.get(index) - pos;
+    		if(dif == 0){
+    			if(tail.compareAndSet(pos, pos + 1)){
+    				times[index] = System.currentTimeMillis();
+    				levels[index] = level;
+    				texts.lazySet(index, text);
+    				sequence.lazySet(index, pos + 1);
+    				break;
+    			}
+    		}
+    		else if(dif < 0){
+    			//Full - the writer can't keep up with the disk, so drop rather than stall the caller
+    			dropped.incrementAndGet();
+    			return;
+    		}
+    	}
+    	if(level == Level.ERROR){
+    		//Get errors to disk straight away
+    		Thread writer = writer_thread;
+    		if(writer != null){
+    			LockSupport.unpark(writer);
+    		}
+    	}
+    }
+
+    /**
+     * Writes every published entry to the file buffer. Caller holds the log's lock.
+     * @return true if an ERROR entry was written
+     */
+    private boolean drain(){
+    	boolean error = false;
+    	if(closed){
+    		return false;
+    	}
     	try{
-    		if(!logFileObj.exists()){
-    			createLogFile(filename);
+    		long now = System.currentTimeMillis();
+    		if(sequence.get((int)(head & mask)) == head + 1 && now - last_exists_check >= FLUSH_INTERVAL){
+    			//Recreate the file if it was deleted out from under us
+    			last_exists_check = now;
+    			if(!logFileObj.exists()){
+    				createLogFile(filename);
+    			}
+    		}
+    		long lost = dropped.getAndSet(0);
+    		if(lost > 0){
+    			write_line(System.currentTimeMillis(), Level.WARN, "*** " + lost + " log entries dropped - log buffer full");
+    		}
+    		while(true){
+    			int index = (int)(head & mask);
+    			if(sequence.get(index) != head + 1){
+    				break;
+    			}
+    			String text = texts.get(index);
+    			Level entry_level = levels[index];
+    			write_line(times[index], entry_level, text);
+    			error |= (entry_level == Level.ERROR);
+    			texts.lazySet(index, null);
+    			sequence.lazySet(index, head + mask + 1);
+    			head++;
     		}
-    		
-    		log.write(dateFormatter.format(new Date(System.currentTimeMillis())) + ": ");
-    		log.write(o.toString() + "\r\n");
-    		log.flush();
-    		
     	}catch(IOException e){
     		System.out.println("Error writing to " + filename);
     		e.printStackTrace();
-    	}catch(Exception e){
+    	}
+    	return error;
+    }
+
+    /**
+     * Writes one entry, prefixed with its timestamp and - unless it is INFO - its level
+     */
+    private void write_line(long time, Level entry_level, String text) throws IOException{
+    	if((max_size > 0 && file_size >= max_size) || (daily && file_day >= 0 && day_of(time) != file_day)){
+    		rotate();
+    	}
+    	file_day = day_of(time);
+    	file_size += text.length() + 32;
+    	log.write(timestamp(time));
+    	log.write(": ");
+    	if(entry_level != Level.INFO){
+    		log.write("[" + entry_level + "] ");
+    	}
+    	log.write(text);
+    	log.write("\r\n");
+    	unflushed = true;
+    }
+
+    /**
+     * Renames the current file out of the way, starts a new one and hands the old one
+     * to the compressor. Caller holds the log's lock.
+     * @throws IOException
+     */
+    private void rotate() throws IOException{
+    	log.flush();
+    	unflushed = false;
+    	String stamp = new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date());
+    	File rotated = new File(logFileObj.getParentFile(), stem() + "." + stamp + ".txt");
+    	for(int n = 1; rotated.exists() || new File(rotated.getPath() + ".gz").exists(); n++){
+    		//Sorts after the first file of the same second
+    		rotated = new File(logFileObj.getParentFile(), stem() + "." + stamp + "_" + n + ".txt");
+    	}
+    	log.close();
+    	log = null;
+    	boolean renamed = logFileObj.renameTo(rotated);
+    	createLogFile(filename);
+    	if(!renamed){
+    		System.out.println("Error rotating " + logFileObj + " - appending to it");
+    		//Try again after another max_size bytes rather than on every entry
+    		file_size = 0;
+    		return;
+    	}
+    	final File directory = logFileObj.getParentFile();
+    	final String stem = stem();
+    	final int keep = max_archives;
+    	compressor().execute(new Runnable(){
+    		@Override
+    		public void run(){
+    			compress_and_prune(directory, stem, keep);
+    		}
+    	});
+    }
+
+    /**
+     * @return the file name without .txt - rotated files are named stem.yyyyMMdd-HHmmss.txt
+     */
+    private String stem(){
+    	String name = logFileObj.getName();
+    	return name.endsWith(".txt") ? name.substring(0, name.length() - 4) : name;
+    }
+
+    /**
+     * @return the local day of time, in days since 1970
+     */
+    private static long day_of(long time){
+    	return (time + TimeZone.getDefault().getOffset(time)) / 86400000L;
+    }
+
+    /**
+     * Gzips every rotated log of stem that isn't compressed yet - including any left
+     * behind by a previous run - then deletes all but the newest keep archives
+     * @param directory
+     * @param stem
+     * @param keep - number of archives kept, 0 to keep them all
+     */
+    private static void compress_and_prune(File directory, final String stem, int keep){
+    	File[] rotated = directory.listFiles(new FilenameFilter(){
+    		@Override
+    		public boolean accept(File dir, String name){
+    			return name.startsWith(stem + ".") && name.length() > stem.length() + 5
+    					&& Character.isDigit(name.charAt(stem.length() + 1))
+    					&& (name.endsWith(".txt") || name.endsWith(".txt.gz"));
+    		}
+    	});
+    	if(rotated == null){
+    		return;
+    	}
+    	//Names sort by rotation time
+    	Arrays.sort(rotated);
+    	ArrayList<File> archives = new ArrayList<File>();
+    	for(File file : rotated){
+    		if(file.getName().endsWith(".gz")){
+    			archives.add(file);
+    			continue;
+    		}
+    		File gz = new File(file.getPath() + ".gz");
+    		try{
+    			gzip(file, gz);
+    			file.delete();
+    			archives.add(gz);
+    		}catch(IOException e){
+    			System.out.println("Error compressing " + file);
+    			e.printStackTrace();
+    			gz.delete();
+    		}
+    	}
+    	for(int i = 0; keep > 0 && i < archives.size() - keep; i++){
+    		archives.get(i).delete();
+    	}
+    }
+
+    private static void gzip(File from, File to) throws IOException{
+    	byte[] buffer = new byte[64 * 1024];
+    	InputStream in = new FileInputStream(from);
+    	try{
+    		OutputStream out = new GZIPOutputStream(new FileOutputStream(to), buffer.length);
+    		try{
+    			int n;
+    			while((n = in.read(buffer)) > 0){
+    				out.write(buffer, 0, n);
+    			}
+    		}finally{
+    			out.close();
+    		}
+    	}finally{
+    		in.close();
+    	}
+    }
+
+    /**
+     * @return the compressor thread, started the first time a log is rotated
+     */
+    private static synchronized ExecutorService compressor(){
+    	if(compressor == null){
+    		compressor = Executors.newSingleThreadExecutor(new ThreadFactory(){
+    			@Override
+    			public Thread newThread(Runnable r){
+    				Thread thread = new Thread(r);
+    				thread.setDaemon(true);
+    				thread.setName("sega_logger-compressor");
+    				thread.setPriority(Thread.MIN_PRIORITY);
+    				return thread;
+    			}
+    		});
+    	}
+    	return compressor;
+    }
+
+    /**
+     * @return time formatted with dateFormatter, reusing the last result within the same second
+     */
+    private String timestamp(long time){
+    	long second = time / 1000;
+    	if(second != cached_second){
+    		cached_timestamp = dateFormatter.format(new Date(time));
+    		cached_second = second;
+    	}
+    	return cached_timestamp;
+    }
+
+    /**
+     * Flushes the file buffer to disk if anything was written. Caller holds the log's lock.
+     */
+    private void flush_file(){
+    	if(closed){
+    		return;
+    	}
+    	try{
+    		if(unflushed){
+    			log.flush();
+    			unflushed = false;
+    		}
+    	}catch(IOException e){
     		System.out.println("Error writing to " + filename);
     		e.printStackTrace();
     	}
-    	
+    	last_flush = System.currentTimeMillis();
     }
+
     /**
-	 * close(void)  - Shuts down BufferedWriter and FileWriter
-	 * @param none
-	 * @returns none
-	 */
-    public void close(){
-    	try {
-			log.close();
-		}catch (IOException e) {
-			System.out.println("Error closing log file " + filename);
-			e.printStackTrace();
-		}catch (Exception e) {
-			System.out.println("Error closing log file " + filename);
-			e.printStackTrace();
-		}
+     * Writes out queued entries - called by the writer thread
+     */
+    private synchronized void service(long now){
+    	boolean error = drain();
+    	if(error || now - last_flush >= FLUSH_INTERVAL){
+    		flush_file();
+    	}
+    }
+
+    /**
+     * Adds a log to the writer thread, starting it if needed
+     */
+    private static synchronized void register(SegaLogger logger){
+    	logs.add(logger);
+    	if(writer_thread == null){
+    		writer_thread = new Thread(new Runnable(){
+    			@Override
+    			public void run(){
+    				while(true){
+    					long now = System.currentTimeMillis();
+    					for(SegaLogger logger : logs){
+    						logger.service(now);
+    					}
+    					LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(WRITER_WAIT));
+    				}
+    			}
+    		});
+    		writer_thread.setDaemon(true);
+    		writer_thread.setName("sega_logger");
+    		writer_thread.start();
+    		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable(){
+    			@Override
+    			public void run(){
+    				flush_all();
+    			}
+    		}, "sega_logger-shutdown"));
+    	}
     }
 }
@@ -11,7 +11,12 @@ import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Properties;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.mail.Message;
 import javax.mail.MessagingException;
@@ -43,6 +48,14 @@ import javax.mail.internet.MimeMessage;
 /**
  * Simple mail interface for sending alerts
  * 
+ * sendAlert() and sendText() only queue the alert and return straight away;
+ * a background sender delivers the queue over one SMTP connection that is
+ * kept open while alerts keep coming. An alert identical to one sent within
+ * the last coalesce window (same subject and error) isn't sent again - the
+ * repeats are counted and sent as one summary when the window closes. If the
+ * queue is full the alert is dropped rather than blocking the caller. Call
+ * flush() before exiting so queued alerts aren't lost.
+ * 
  * @author jdk85
  *
  */
@@ -65,6 +78,26 @@ public class SendMail {
 	private String config_path;
 	/** The log object for the mail client */
 	private SegaLogger log;
+	/** Default time identical alerts are coalesced over (ms) */
+	public static final long DEFAULT_COALESCE_WINDOW = 3600000;
+	/** Most alerts waiting to be sent - more are dropped */
+	private static final int QUEUE_CAPACITY = 256;
+	/** An SMTP connection idle this long is closed (ms) */
+	private static final long TRANSPORT_IDLE = 30000;
+	/** Alerts waiting for the sender */
+	private final LinkedBlockingQueue<AlertMessage> outbox = new LinkedBlockingQueue<AlertMessage>(QUEUE_CAPACITY);
+	/** Alerts queued and not yet delivered (or given up on) */
+	private final AtomicInteger pending = new AtomicInteger();
+	/** Alerts dropped because the queue was full */
+	private final AtomicInteger dropped = new AtomicInteger();
+	/** Alerts sent in the current coalesce window, by key - also the lock for it */
+	private final HashMap<String,Coalesced> recent = new HashMap<String,Coalesced>();
+	private volatile long coalesce_window = DEFAULT_COALESCE_WINDOW;
+	/** Delivers the queued alerts */
+	private Thread sender_thread;
+	/** SMTP connection kept open between alerts - only used by the sender thread */
+	private Transport transport;
+	private long transport_used;
 	/** Enum specifying type of alert */
 	public enum AlertType {
 		RBNB, WISARDCLIENT, CR1000CLIENT, RDF, UNKNOWN, RECONNECT
@@ -83,7 +116,7 @@ public class SendMail {
 		//Init session with default params and null authenticator 
 		session = Session.getDefaultInstance(props, null);
 
-		log = new SegaLogger(mail_path + "/logs/mail_" + common_name + "_Log.txt");
+		log = SegaLogger.get(mail_path + "/logs/mail_" + common_name + "_Log.txt");
 		readParametersFromFile(common_name);
 	}
 	
@@ -174,21 +207,8 @@ public class SendMail {
 		}
 		
 		try{
-			//Create new MimeMessage using the previously created session
-			Message msg = new MimeMessage(session);
-			//Set the 'FROM:' field
-			msg.setFrom(new InternetAddress(alert.getFromAddress()));
-			//For each recipient in recipients, add the address to the 'TO:' field
-			for(String s : alert.getRecipients()){
-				msg.addRecipient(Message.RecipientType.TO,
-						new InternetAddress(s));
-			}
-			//Set the subject of the message
-			msg.setSubject(alert.getSubject());
-			//Set the message body content
-			msg.setText(alert.getMessage());
 			//Send the email
-			Transport.send(msg);
+			Transport.send(build(alert));
 			return true;
 		}catch(Exception e){
 			StringWriter errors = new StringWriter();
@@ -198,6 +218,256 @@ public class SendMail {
 		}
 
 	}
+
+	/**
+	 * Queues an alert for the background sender. Never blocks. An alert identical
+	 * to one sent within the coalesce window is counted instead of queued.
+	 * 
+	 * @param alert
+	 * @return true if the alert was queued or coalesced, false if it was null or the queue is full
+	 */
+	public boolean queueMessage(AlertMessage alert){
+		if(alert == null){
+			return false;
+		}
+		long now = System.currentTimeMillis();
+		synchronized(recent){
+			Coalesced coalesced = recent.get(alert.getKey());
+			if(coalesced != null && now - coalesced.window_start < coalesce_window){
+				coalesced.repeats++;
+				coalesced.last = alert;
+				coalesced.last_time = now;
+				return true;
+			}
+			if(coalesced == null){
+				coalesced = new Coalesced();
+				recent.put(alert.getKey(), coalesced);
+			}
+			coalesced.window_start = now;
+			coalesced.repeats = 0;
+			coalesced.last = null;
+		}
+		return offer(alert);
+	}
+
+	/**
+	 * Waits for the queued alerts to be delivered
+	 * @param timeout - longest to wait (ms)
+	 * @return true if nothing is left to send
+	 */
+	public boolean flush(long timeout){
+		long deadline = System.currentTimeMillis() + timeout;
+		while(pending.get() > 0 && System.currentTimeMillis() < deadline){
+			try{
+				Thread.sleep(50);
+			}catch(InterruptedException e){
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+		return pending.get() == 0;
+	}
+
+	/**
+	 * Queues the summaries of every open coalesce window and sends what is queued
+	 * (waiting at most timeout ms), then stops the sender
+	 * @param timeout
+	 */
+	public void close(long timeout){
+		//Repeats counted in a window that is still open would otherwise never be reported
+		send_summaries(System.currentTimeMillis(), true);
+		flush(timeout);
+		Thread sender;
+		synchronized(this){
+			sender = sender_thread;
+			sender_thread = null;
+		}
+		if(sender != null){
+			sender.interrupt();
+		}
+	}
+
+	/**
+	 * @param window - time identical alerts are coalesced over (ms), 0 to send every alert
+	 */
+	public void setCoalesce_window(long window){
+		coalesce_window = window;
+	}
+
+	/**
+	 * Builds the mail for an alert
+	 * @throws MessagingException
+	 */
+	private MimeMessage build(AlertMessage alert) throws MessagingException{
+		//Create new MimeMessage using the previously created session
+		MimeMessage msg = new MimeMessage(session);
+		//Set the 'FROM:' field
+		msg.setFrom(new InternetAddress(alert.getFromAddress()));
+		//For each recipient in recipients, add the address to the 'TO:' field
+		for(String s : alert.getRecipients()){
+			msg.addRecipient(Message.RecipientType.TO,
+					new InternetAddress(s));
+		}
+		//Set the subject of the message
+		msg.setSubject(alert.getSubject());
+		//Set the message body content
+		msg.setText(alert.getMessage());
+		return msg;
+	}
+
+	/**
+	 * Adds an alert to the outbox, starting the sender if needed
+	 * @return false if the outbox is full
+	 */
+	private boolean offer(AlertMessage alert){
+		pending.incrementAndGet();
+		if(!outbox.offer(alert)){
+			pending.decrementAndGet();
+			dropped.incrementAndGet();
+			return false;
+		}
+		synchronized(this){
+			if(sender_thread == null || !sender_thread.isAlive()){
+				sender_thread = new Thread(new Runnable(){
+					@Override
+					public void run(){
+						send_loop();
+					}
+				});
+				sender_thread.setDaemon(true);
+				sender_thread.setName("sendmail");
+				sender_thread.start();
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Delivers queued alerts, sends the summaries of coalesce windows that have
+	 * closed and closes the SMTP connection once it has been idle for a while
+	 */
+	private void send_loop(){
+		try{
+			while(!Thread.currentThread().isInterrupted()){
+				AlertMessage alert = outbox.poll(1, TimeUnit.SECONDS);
+				if(alert != null){
+					try{
+						deliver(alert);
+					}finally{
+						pending.decrementAndGet();
+					}
+					continue;
+				}
+				long now = System.currentTimeMillis();
+				int lost = dropped.getAndSet(0);
+				if(lost > 0){
+					log.write(lost + " alerts dropped - alert queue full");
+				}
+				send_summaries(now, false);
+				if(transport != null && now - transport_used > TRANSPORT_IDLE){
+					close_transport();
+				}
+			}
+		}catch(InterruptedException e){
+			//Stopped
+		}
+		close_transport();
+	}
+
+	/**
+	 * Sends one mail over the kept-open connection, reconnecting once if it was dropped
+	 */
+	private void deliver(AlertMessage alert){
+		for(int attempt = 0; attempt < 2; attempt++){
+			try{
+				MimeMessage msg = build(alert);
+				msg.saveChanges();
+				if(transport == null || !transport.isConnected()){
+					close_transport();
+					transport = session.getTransport("smtp");
+					transport.connect();
+				}
+				transport.sendMessage(msg, msg.getAllRecipients());
+				transport_used = System.currentTimeMillis();
+				return;
+			}catch(Exception e){
+				close_transport();
+				if(attempt == 1){
+					StringWriter errors = new StringWriter();
+					e.printStackTrace(new PrintWriter(errors));
+					log.write("Unable to send alert '" + alert.getSubject() + "'\r\n" + errors.toString());
+				}
+			}
+		}
+	}
+
+	private void close_transport(){
+		if(transport != null){
+			try{
+				transport.close();
+			}catch(MessagingException e){
+				//Already gone
+			}
+			transport = null;
+		}
+	}
+
+	/**
+	 * Queues a summary for every coalesce window that has closed with repeats, and
+	 * forgets alerts that weren't repeated
+	 * @param now
+	 * @param close_all - treat every window as closed, when shutting down
+	 */
+	private void send_summaries(long now, boolean close_all){
+		synchronized(recent){
+			Iterator<Coalesced> it = recent.values().iterator();
+			while(it.hasNext()){
+				Coalesced coalesced = it.next();
+				if(!close_all && now - coalesced.window_start < coalesce_window){
+					continue;
+				}
+				if(coalesced.repeats == 0){
+					it.remove();
+					continue;
+				}
+				AlertMessage last = coalesced.last;
+				AlertMessage summary = new AlertMessage();
+				summary.setFromAddress(last.getFromAddress());
+				summary.setRecipients(last.getRecipients());
+				summary.setKey(last.getKey());
+				summary.setSubject(last.getSubject() + " x" + coalesced.repeats + " in " + format_window(now - coalesced.window_start));
+				summary.setMessage("This alert was repeated " + coalesced.repeats + " times since " + sdf.format(new Date(coalesced.window_start))
+						+ ", most recently at " + sdf.format(new Date(coalesced.last_time)) + ". The last occurrence follows."
+						+ "\r\n\r\n" + last.getMessage());
+				//Repeats from now on are counted in a new window
+				coalesced.window_start = now;
+				coalesced.repeats = 0;
+				coalesced.last = null;
+				offer(summary);
+			}
+		}
+	}
+
+	/**
+	 * @return a duration as hours or minutes, e.g. "1h" or "15 min"
+	 */
+	private static String format_window(long ms){
+		long minutes = Math.max(1, Math.round(ms / 60000.0));
+		return (minutes % 60 == 0) ? (minutes / 60) + "h" : minutes + " min";
+	}
+
+	/**
+	 * Repeats of an alert within its coalesce window
+	 */
+	private static class Coalesced {
+		/** Time the alert was last sent */
+		long window_start;
+		/** Number of identical alerts since then */
+		int repeats;
+		/** Latest of them, and its time */
+		AlertMessage last;
+		long last_time;
+	}
 	
 	
 	/**
@@ -222,6 +492,7 @@ public class SendMail {
 				+ "This is an automatically generated email  please do not reply to this email. For further information or assistance,"
 				+ " please visit the SEGA contact page <http://sega.nau.edu/contact>");
 		msg.setMessage(messageBody);
+		msg.setKey(type + "|" + clientName + "|" + errorMsg);
 		
 		switch(type){
 		case RBNB:
@@ -293,6 +564,7 @@ public class SendMail {
 					+ "This is an automatically generated email  please do not reply to this email. For further information or assistance,"
 					+ " please visit the SEGA contact page <http://sega.nau.edu/contact>");
 			msg.setMessage(messageBody);
+			msg.setKey(type + "|" + clientName + "|" + errorMsg);
 			
 			switch(type){
 			case RBNB:
@@ -332,7 +604,7 @@ public class SendMail {
 	 * @return
 	 */
 	public boolean sendAlert(String fromAddress, AlertType type, String[] recipients, String serverName, String clientName, String errorMsg){
-		return sendMessage(generateMessage(fromAddress, type, recipients, serverName, clientName, errorMsg));
+		return queueMessage(generateMessage(fromAddress, type, recipients, serverName, clientName, errorMsg));
 	}
 	
 	/**
@@ -342,7 +614,7 @@ public class SendMail {
 	 * @return
 	 */
 	public boolean sendAlert(String clientName, AlertType type,Throwable e){
-		return sendMessage(generateMessage(clientName, type, e));
+		return queueMessage(generateMessage(clientName, type, e));
 	}
 	
 	/**
@@ -352,7 +624,7 @@ public class SendMail {
 	 * @return
 	 */
 	public boolean sendAlert(String clientName, AlertType type,String errorMsg){
-		return sendMessage(generateMessage(clientName, type, errorMsg));
+		return queueMessage(generateMessage(clientName, type, errorMsg));
 	}
 	
 	/**
@@ -363,7 +635,7 @@ public class SendMail {
 	 * @return
 	 */
 	public boolean sendText(String clientName, AlertType type, String message){
-		return sendMessage(generateText(clientName,type,message));
+		return queueMessage(generateText(clientName,type,message));
 	}
 	
 	/**
@@ -387,6 +659,7 @@ public class SendMail {
 			String messageBody = "An alert of type " + type.toString() + " has been generated by " + serverName;					
 			messageBody = messageBody.concat("\r\n" + errorMsg);
 			msg.setMessage(messageBody);
+			msg.setKey(type + "|" + clientName + "|" + errorMsg);
 			
 			switch(type){
 			case RBNB:
@@ -423,6 +696,8 @@ public class SendMail {
 	public class AlertMessage{
 		private String[] recipients;		
 		private String fromAddress, subject, message;
+		/** Identifies identical alerts, which are coalesced - type, client and error */
+		private String key;
 		
 		public AlertMessage(){
 			//Default constructor - do nothing
@@ -470,6 +745,20 @@ public class SendMail {
 			this.recipients = recipients;
 		}
 
+		/**
+		 * @return the key identical alerts share
+		 */
+		public String getKey() {
+			return (key != null) ? key : subject + "|" + message;
+		}
+
+		/**
+		 * @param key the key identical alerts share
+		 */
+		public void setKey(String key) {
+			this.key = key;
+		}
+
 		/**
 		 * @return the fromAddress
 		 */
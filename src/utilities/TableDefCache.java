@@ -0,0 +1,184 @@
+package utilities;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.zip.CRC32;
+
+import com.campbellsci.pakbus.Datalogger;
+import com.campbellsci.pakbus.Packet;
+
+/**
+ * On-disk copy of a datalogger's table definitions (the raw .TDF file) with the
+ * program signature and name they were downloaded for.
+ *
+ * Fetching the program statistics takes one short transaction, while the table
+ * definitions can take many seconds on a slow radio link. When the signature
+ * and name the datalogger reports still match the cached ones, the program
+ * hasn't changed and the cached definitions are loaded instead - see
+ * CR1000Interface.get_tables(TableDefCache).
+ *
+ * File layout: magic, version, program signature, program name, length and
+ * bytes of the definitions, CRC32 of everything before it. The file is written
+ * to a temporary file and moved into place, so it is either whole or absent.
+ *
+ * @author jdk85
+ *
+ */
+public class TableDefCache
+{
+	/** Magic number at the start of the file ("TDFC") */
+	private static final int MAGIC = 0x54444643;
+	/** File format version */
+	private static final int VERSION = 1;
+	/** Largest definitions file accepted, to guard against a corrupt length */
+	private static final int MAX_SIZE = 1 << 24;
+
+	private final File file;
+	private int program_signature = -1;
+	private String program_name = null;
+	private byte[] raw_table_defs = null;
+
+	/**
+	 *
+	 * @param path - cache file, one per station
+	 */
+	public TableDefCache(String path){
+		this.file = new File(path);
+	}
+
+	/**
+	 * Reads the cache file
+	 * @return false if there is no usable cache
+	 */
+	public synchronized boolean load(){
+		raw_table_defs = null;
+		if(!file.exists()){
+			return false;
+		}
+		try{
+			byte[] contents = Files.readAllBytes(file.toPath());
+			if(contents.length < 4){
+				return false;
+			}
+			CRC32 crc = new CRC32();
+			crc.update(contents, 0, contents.length - 4);
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(contents));
+			if(in.readInt() != MAGIC || in.readInt() != VERSION){
+				return false;
+			}
+			int signature = in.readInt();
+			String name = in.readUTF();
+			int length = in.readInt();
+			if(length <= 0 || length > MAX_SIZE || length > in.available() - 4){
+				return false;
+			}
+			byte[] raw = new byte[length];
+			in.readFully(raw);
+			if(in.readInt() != (int)crc.getValue()){
+				return false;
+			}
+			program_signature = signature;
+			program_name = name;
+			raw_table_defs = raw;
+			return true;
+		}catch(IOException e){
+			return false;
+		}
+	}
+
+	/**
+	 * Stores the table definitions a datalogger has just downloaded
+	 * @param station - datalogger whose GetTableDefsTran succeeded
+	 * @param signature - signature of the running program, from ProgStatsTran
+	 * @throws IOException
+	 */
+	public synchronized void save(Datalogger station, int signature) throws IOException{
+		Packet raw = station.get_raw_table_defs();
+		if(raw == null || signature < 0){
+			return;
+		}
+		byte[] defs;
+		try{
+			raw.reset();
+			defs = raw.read_bytes(raw.whats_left());
+		}catch(Exception e){
+			throw new IOException("Unable to read the raw table definitions", e);
+		}
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(defs.length + 64);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeInt(signature);
+		out.writeUTF(program_name(station));
+		out.writeInt(defs.length);
+		out.write(defs);
+		CRC32 crc = new CRC32();
+		crc.update(bytes.toByteArray());
+		out.writeInt((int)crc.getValue());
+		out.flush();
+
+		if(file.getParentFile() != null){
+			file.getParentFile().mkdirs();
+		}
+		File tmp = new File(file.getPath() + ".tmp");
+		FileOutputStream fos = new FileOutputStream(tmp);
+		try{
+			bytes.writeTo(fos);
+			fos.getFD().sync();
+		}finally{
+			fos.close();
+		}
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+		program_signature = signature;
+		program_name = program_name(station);
+		raw_table_defs = defs;
+	}
+
+	/**
+	 * Deletes the cache, so the next connect downloads the table definitions
+	 */
+	public synchronized void invalidate(){
+		raw_table_defs = null;
+		file.delete();
+	}
+
+	/**
+	 * @param station - datalogger whose program statistics have been fetched
+	 * @param signature - signature of the running program, from ProgStatsTran
+	 * @return true if the cache was loaded and was saved for the program the datalogger is running
+	 */
+	public synchronized boolean matches(Datalogger station, int signature){
+		return raw_table_defs != null && signature >= 0
+				&& program_signature == signature
+				&& program_name != null && program_name.equals(program_name(station));
+	}
+
+	/**
+	 * @return the cached definitions, null if none are loaded
+	 */
+	public synchronized byte[] getRaw_table_defs(){
+		return raw_table_defs;
+	}
+
+	public synchronized int getProgram_signature(){
+		return program_signature;
+	}
+
+	/**
+	 * @param station
+	 * @return the name of the running program, never null
+	 */
+	private static String program_name(Datalogger station){
+		String name = station.get_program_name();
+		return (name == null) ? "" : name;
+	}
+}
@@ -7,6 +7,10 @@ public class TableInfo implements java.io.Serializable{
 	private String channel_name;
 	private long last_record_no;
 	private boolean first_run;
+	/** Signature of the table definition the checkpoint belongs to, 0 if unknown */
+	private int table_signature;
+	/** Start of the next initial fetch window in ms since 1970, 0 once the initial fetch has caught up */
+	private long backfill_position;
 	
 	public TableInfo(){
 		
@@ -64,6 +68,34 @@ public class TableInfo implements java.io.Serializable{
 	public void setFirst_run(boolean first_run) {
 		this.first_run = first_run;
 	}
+
+	/**
+	 * @return the table_signature
+	 */
+	public int getTable_signature() {
+		return table_signature;
+	}
+
+	/**
+	 * @param table_signature the table_signature to set
+	 */
+	public void setTable_signature(int table_signature) {
+		this.table_signature = table_signature;
+	}
+
+	/**
+	 * @return the backfill_position
+	 */
+	public long getBackfill_position() {
+		return backfill_position;
+	}
+
+	/**
+	 * @param backfill_position the backfill_position to set
+	 */
+	public void setBackfill_position(long backfill_position) {
+		this.backfill_position = backfill_position;
+	}
 	
 	
 	
@@ -0,0 +1,180 @@
+package utilities;
+
+import java.util.HashMap;
+
+import com.campbellsci.pakbus.TableDef;
+
+/**
+ * Keeps a next-due time for each datalogger table so that a table is only
+ * collected once its logger has had a chance to store a new record.
+ *
+ * A table with an interval is due a fixed lag after each interval boundary
+ * (boundaries are aligned to the logger's local midnight, like the logger's
+ * own storage intervals). The measured transaction time feeds back into the
+ * schedule: a poll that finds no new record is retried shortly after instead
+ * of waiting a whole interval, and a table whose collection takes longer
+ * than its interval is polled again as soon as the previous poll finishes.
+ * Tables without an interval (event driven) are polled at the fastest
+ * interval of the other tables.
+ *
+ * @author jdk85
+ *
+ */
+public class TableScheduler
+{
+	/** Default time to wait after an interval boundary before polling (ms) */
+	public static final long DEFAULT_LAG = 2000;
+	/** Interval used for event driven tables when no table has an interval (ms) */
+	public static final long DEFAULT_EVENT_INTERVAL = 60000;
+	/** Shortest wait before retrying a poll that found no new record (ms) */
+	private static final long MIN_RETRY = 250;
+	/** Number of empty polls retried before waiting for the next boundary */
+	private static final int MAX_RETRIES = 3;
+
+	/** Schedule of a single table */
+	private static class Entry {
+		/** Table interval in ms, 0 if the table is event driven */
+		long interval;
+		/** Time the table is next due, ms since 1970 */
+		long next_due;
+		/** Moving average of the collection time (ms) */
+		long average_duration;
+		/** Empty polls since the last record was received */
+		int retries;
+	}
+
+	/** Time to wait after an interval boundary before polling (ms) */
+	private final long lag;
+	/** Offset of the logger's local time from UTC (ms) */
+	private final long offset;
+	private final HashMap<String,Entry> entries = new HashMap<String,Entry>();
+
+	/**
+	 *
+	 * @param lag - time to wait after an interval boundary before polling (ms)
+	 * @param offset - offset of the logger's local time from UTC (ms)
+	 */
+	public TableScheduler(long lag, long offset){
+		this.lag = lag;
+		this.offset = offset;
+	}
+
+	/**
+	 * Tables that have never been collected are always due
+	 *
+	 * @param table
+	 * @param now - ms since 1970
+	 * @return true if table should be collected now
+	 */
+	public boolean is_due(TableDef table, long now){
+		Entry entry = entries.get(table.name);
+		return entry == null || now >= entry.next_due;
+	}
+
+	/**
+	 * Records a finished collection and works out when the table is next due
+	 *
+	 * @param table
+	 * @param started - time the collection started, ms since 1970
+	 * @param finished - time the collection finished, ms since 1970
+	 * @param new_records - number of new records received
+	 */
+	public void completed(TableDef table, long started, long finished, int new_records){
+		Entry entry = entries.get(table.name);
+		if(entry == null){
+			entry = new Entry();
+			entries.put(table.name, entry);
+		}
+		entry.interval = table.interval / 1000000;
+
+		long duration = Math.max(0, finished - started);
+		entry.average_duration = (entry.average_duration == 0) ? duration : (3 * entry.average_duration + duration) / 4;
+
+		long interval = interval_of(entry);
+		if(entry.interval > 0 && new_records == 0 && entry.retries < MAX_RETRIES){
+			//The logger has not stored the record yet - try again shortly
+			entry.retries++;
+			entry.next_due = finished + Math.min(interval, Math.max(MIN_RETRY, Math.max(lag, entry.average_duration)));
+			return;
+		}
+		entry.retries = 0;
+		if(entry.average_duration >= interval){
+			//Collection can't keep up with the table - poll back to back
+			entry.next_due = finished;
+		}
+		else{
+			entry.next_due = next_boundary(finished, interval) + lag;
+		}
+	}
+
+	/**
+	 * @param now - ms since 1970
+	 * @return the earliest time any table is due, or now if a table is due or unknown
+	 */
+	public long next_due(long now){
+		if(entries.isEmpty()){
+			return now;
+		}
+		long next = Long.MAX_VALUE;
+		for(Entry entry : entries.values()){
+			next = Math.min(next, entry.next_due);
+		}
+		return Math.max(now, next);
+	}
+
+	/**
+	 * @param table_name
+	 * @return the moving average collection time of the table (ms), 0 if unknown
+	 */
+	public long getAverage_duration(String table_name){
+		Entry entry = entries.get(table_name);
+		return (entry == null) ? 0 : entry.average_duration;
+	}
+
+	/**
+	 * Forgets every table, making them all due
+	 */
+	public void clear(){
+		entries.clear();
+	}
+
+	/**
+	 * Makes a table due now. Its entry is kept, due at 0, so that next_due()
+	 * reports it rather than waiting for the other tables.
+	 * @param table
+	 */
+	public void clear(TableDef table){
+		Entry entry = entries.get(table.name);
+		if(entry == null){
+			entry = new Entry();
+			entries.put(table.name, entry);
+		}
+		entry.next_due = 0;
+		entry.retries = 0;
+	}
+
+	/**
+	 * @return the interval to schedule entry on, substituting the fastest
+	 * interval for event driven tables
+	 */
+	private long interval_of(Entry entry){
+		if(entry.interval > 0){
+			return entry.interval;
+		}
+		long fastest = 0;
+		for(Entry e : entries.values()){
+			if(e.interval > 0 && (fastest == 0 || e.interval < fastest)){
+				fastest = e.interval;
+			}
+		}
+		return (fastest > 0) ? fastest : DEFAULT_EVENT_INTERVAL;
+	}
+
+	/**
+	 * @return the first interval boundary in logger local time after time
+	 */
+	private long next_boundary(long time, long interval){
+		long local = time + offset;
+		return (local / interval + 1) * interval - offset;
+	}
+}
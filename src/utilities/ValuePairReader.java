@@ -0,0 +1,183 @@
+package utilities;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import com.rbnb.sapi.ChannelMap;
+
+/**
+ * Reusable flyweight over a value pair encoded by DataGeneratorCodec
+ * (type byte, 8 byte timestamp, value). Wrapping a blob copies nothing and
+ * the primitive accessors allocate nothing, so one reader can walk millions
+ * of blobs without creating garbage - unlike decodeValuePair, which boxes
+ * every value into a SampleTimestampPackage.
+ *
+ * Example use:
+		\code
+		ValuePairReader reader = new ValuePairReader();
+		for(byte[] blob : blobs){
+			reader.wrap(blob);
+			if(reader.type() == ChannelMap.TYPE_FLOAT32)
+				sum += reader.getFloat();
+		}
+		\endcode
+ *
+ * @see DataGeneratorCodec
+ */
+public class ValuePairReader {
+	/** Wrapped array, or null when reading from buffer */
+	private byte[] array;
+	/** Wrapped buffer, used when the data is not in an accessible array */
+	private ByteBuffer buffer;
+	/** Index of the type byte */
+	private int offset;
+	/** Total length of the value pair in bytes */
+	private int length;
+
+	public ValuePairReader(){
+		//Empty constructor - call wrap() before reading
+	}
+
+	/**
+	 * Points the reader at a whole blob
+	 * @param blob
+	 * @return this reader
+	 */
+	public ValuePairReader wrap(byte[] blob){
+		return wrap(blob, 0, blob.length);
+	}
+
+	/**
+	 * Points the reader at a value pair inside a larger array
+	 * @param blob
+	 * @param offset - index of the type byte
+	 * @param length - length of the value pair in bytes
+	 * @return this reader
+	 */
+	public ValuePairReader wrap(byte[] blob, int offset, int length){
+		this.array = blob;
+		this.buffer = null;
+		this.offset = offset;
+		this.length = length;
+		return this;
+	}
+
+	/**
+	 * Points the reader at a value pair inside a buffer. The buffer's
+	 * position and limit are not changed.
+	 * @param buf
+	 * @param offset - absolute index of the type byte
+	 * @param length - length of the value pair in bytes
+	 * @return this reader
+	 */
+	public ValuePairReader wrap(ByteBuffer buf, int offset, int length){
+		if(buf.hasArray()){
+			return wrap(buf.array(), buf.arrayOffset() + offset, length);
+		}
+		this.array = null;
+		this.buffer = buf;
+		this.offset = offset;
+		this.length = length;
+		return this;
+	}
+
+	/**
+	 * @return the ChannelMap type of the value
+	 */
+	public int type(){
+		return byteAt(0);
+	}
+
+	/**
+	 * @return the sample timestamp in ms since 1970
+	 */
+	public long timestamp(){
+		return longAt(1);
+	}
+
+	/**
+	 * @return the length of the value in bytes
+	 */
+	public int valueLength(){
+		return length - DataGeneratorCodec.VALUE_PAIR_HEADER_SIZE;
+	}
+
+	public float getFloat(){
+		return Float.intBitsToFloat(intAt(DataGeneratorCodec.VALUE_PAIR_HEADER_SIZE));
+	}
+
+	public double getDouble(){
+		return Double.longBitsToDouble(longAt(DataGeneratorCodec.VALUE_PAIR_HEADER_SIZE));
+	}
+
+	public byte getByte(){
+		return byteAt(DataGeneratorCodec.VALUE_PAIR_HEADER_SIZE);
+	}
+
+	public short getShort(){
+		return (short)((byteAt(DataGeneratorCodec.VALUE_PAIR_HEADER_SIZE) << 8)
+				| (byteAt(DataGeneratorCodec.VALUE_PAIR_HEADER_SIZE + 1) & 0xFF));
+	}
+
+	public int getInt(){
+		return intAt(DataGeneratorCodec.VALUE_PAIR_HEADER_SIZE);
+	}
+
+	public long getLong(){
+		return longAt(DataGeneratorCodec.VALUE_PAIR_HEADER_SIZE);
+	}
+
+	/**
+	 * Reads any numeric type widened to a double
+	 * @return the value, or NaN for strings and unknown types
+	 */
+	public double getAsDouble(){
+		switch(type()){
+		case ChannelMap.TYPE_FLOAT32:
+			return getFloat();
+		case ChannelMap.TYPE_FLOAT64:
+			return getDouble();
+		case ChannelMap.TYPE_INT8:
+			return getByte();
+		case ChannelMap.TYPE_INT16:
+			return getShort();
+		case ChannelMap.TYPE_INT32:
+			return getInt();
+		case ChannelMap.TYPE_INT64:
+			return getLong();
+		default:
+			return Double.NaN;
+		}
+	}
+
+	/**
+	 * Reads a TYPE_STRING value. Unlike the other accessors this allocates.
+	 * @return the string
+	 */
+	public String getString(){
+		byte[] str = new byte[valueLength()];
+		for(int i = 0; i < str.length; i++){
+			str[i] = byteAt(DataGeneratorCodec.VALUE_PAIR_HEADER_SIZE + i);
+		}
+		return new String(str, Charset.defaultCharset());
+	}
+
+	private byte byteAt(int index){
+		return (array != null) ? array[offset + index] : buffer.get(offset + index);
+	}
+
+	private int intAt(int index){
+		if(array == null){
+			return buffer.getInt(offset + index);
+		}
+		int i = offset + index;
+		return (array[i] << 24) | ((array[i + 1] & 0xFF) << 16) | ((array[i + 2] & 0xFF) << 8) | (array[i + 3] & 0xFF);
+	}
+
+	private long longAt(int index){
+		if(array == null){
+			return buffer.getLong(offset + index);
+		}
+		return ((long)intAt(index) << 32) | (intAt(index + 4) & 0xFFFFFFFFL);
+	}
+}
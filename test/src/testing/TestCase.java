@@ -0,0 +1,93 @@
+package testing;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+/**
+ * Base class for the tests run by TestRunner. Every public, no-argument method
+ * whose name starts with "test" is a test, run on a fresh instance between
+ * setup() and teardown(); a test fails by throwing.
+ *
+ * @author jdk85
+ *
+ */
+public abstract class TestCase
+{
+	/** Directory created by temp_directory(), deleted after the test */
+	private File directory;
+
+	/**
+	 * Called before each test
+	 * @throws Exception
+	 */
+	public void setup() throws Exception{
+	}
+
+	/**
+	 * Called after each test, whether or not it passed
+	 * @throws Exception
+	 */
+	public void teardown() throws Exception{
+		if(directory != null){
+			delete(directory);
+			directory = null;
+		}
+	}
+
+	/**
+	 * @return an empty directory that is deleted once the test is over
+	 * @throws IOException
+	 */
+	protected File temp_directory() throws IOException{
+		if(directory == null){
+			directory = Files.createTempDirectory(getClass().getSimpleName()).toFile();
+		}
+		return directory;
+	}
+
+	private static void delete(File file){
+		File[] files = file.listFiles();
+		if(files != null){
+			for(File child : files){
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+
+	protected static void fail(String message){
+		throw new AssertionError(message);
+	}
+
+	protected static void assert_true(String message, boolean condition){
+		if(!condition){
+			fail(message);
+		}
+	}
+
+	protected static void assert_equals(String message, long expected, long actual){
+		if(expected != actual){
+			fail(message + " - expected " + expected + " but was " + actual);
+		}
+	}
+
+	protected static void assert_equals(String message, double expected, double actual, double tolerance){
+		if(Math.abs(expected - actual) > tolerance && !(Double.isNaN(expected) && Double.isNaN(actual))){
+			fail(message + " - expected " + expected + " but was " + actual);
+		}
+	}
+
+	protected static void assert_equals(String message, Object expected, Object actual){
+		if(expected == null ? actual != null : !expected.equals(actual)){
+			fail(message + " - expected " + expected + " but was " + actual);
+		}
+	}
+
+	protected static void assert_equals(String message, byte[] expected, byte[] actual){
+		if(!Arrays.equals(expected, actual)){
+			fail(message + " - expected " + Arrays.toString(expected) + " but was " + Arrays.toString(actual));
+		}
+	}
+}
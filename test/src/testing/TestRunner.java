@@ -0,0 +1,153 @@
+package testing;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.GnuParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+/**
+ * Runs the test suite and exits with status 1 if any test failed.
+ *
+ * The tests sit in the packages of the classes they test, so they can reach
+ * package-private members. They are compiled against the client sources and
+ * the jars in the project root, from the project root:
+ *
+ *		javac -encoding cp1252 -d /tmp/test -cp "$(ls *.jar | tr '\n' ':')" $(find src test/src -name '*.java')
+ *		java -cp "/tmp/test:$(ls *.jar | tr '\n' ':')" testing.TestRunner
+ *
+ * @author jdk85
+ *
+ */
+public class TestRunner
+{
+	/** Every test class, by name so that one which doesn't load fails on its own */
+	private static final String[] SUITE = {
+		"utilities.PacketLogTest",
+		"utilities.MessageRingBufferTest",
+		"utilities.DataGeneratorCodecTest",
+		"utilities.ValuePairReaderTest",
+		"utilities.CheckpointStoreTest",
+	};
+
+	public static void main(String args[]) throws Exception
+	{
+		CommandLineParser parser = new GnuParser();
+		Options options = new Options();
+		options.addOption("h", "help", false, "print help");
+		options.addOption("f", "filter", true, "only run tests whose class.method name matches this regular expression");
+
+		CommandLine line;
+		try{
+			line = parser.parse(options, args);
+		}catch(ParseException e){
+			System.err.println("Argument error: " + e.getMessage());
+			System.exit(2);
+			return;
+		}
+		if(line.hasOption("help")){
+			new HelpFormatter().printHelp("TestRunner", options);
+			return;
+		}
+		Pattern filter = line.hasOption("filter") ? Pattern.compile(line.getOptionValue("filter")) : null;
+
+		int run = 0;
+		List<String> failures = new ArrayList<String>();
+		for(String name : SUITE){
+			Class<?> test_class;
+			try{
+				test_class = Class.forName(name);
+			}catch(ClassNotFoundException e){
+				failures.add(name);
+				System.out.println("FAIL " + name + " - class not found");
+				continue;
+			}
+			for(Method method : tests(test_class)){
+				String test = test_class.getName() + "." + method.getName();
+				if(filter != null && !filter.matcher(test).find()){
+					continue;
+				}
+				run++;
+				long start = System.nanoTime();
+				Throwable failure = run(test_class, method);
+				long ms = (System.nanoTime() - start) / 1000000;
+				if(failure == null){
+					System.out.println("ok   " + test + " (" + ms + " ms)");
+				}
+				else{
+					failures.add(test);
+					System.out.println("FAIL " + test + " (" + ms + " ms)");
+					failure.printStackTrace(System.out);
+				}
+			}
+		}
+
+		System.out.println();
+		System.out.println(run + " tests, " + failures.size() + " failed");
+		for(String test : failures){
+			System.out.println("\t" + test);
+		}
+		System.exit(failures.isEmpty() ? 0 : 1);
+	}
+
+	/**
+	 * @return the test methods of a class, in name order
+	 */
+	private static List<Method> tests(Class<?> test_class){
+		List<Method> tests = new ArrayList<Method>();
+		for(Method method : test_class.getMethods()){
+			if(method.getName().startsWith("test") && method.getParameterTypes().length == 0
+					&& !Modifier.isStatic(method.getModifiers())){
+				tests.add(method);
+			}
+		}
+		Method[] sorted = tests.toArray(new Method[tests.size()]);
+		Arrays.sort(sorted, new Comparator<Method>(){
+			@Override
+			public int compare(Method a, Method b){
+				return a.getName().compareTo(b.getName());
+			}
+		});
+		return Arrays.asList(sorted);
+	}
+
+	/**
+	 * Runs one test on a new instance
+	 * @return what the test threw, null if it passed
+	 */
+	private static Throwable run(Class<?> test_class, Method method){
+		TestCase test;
+		try{
+			test = (TestCase)test_class.getDeclaredConstructor().newInstance();
+		}catch(Exception e){
+			return e;
+		}
+		Throwable failure = null;
+		try{
+			test.setup();
+			method.invoke(test);
+		}catch(InvocationTargetException e){
+			failure = e.getCause();
+		}catch(Throwable e){
+			failure = e;
+		}
+		try{
+			test.teardown();
+		}catch(Throwable e){
+			if(failure == null){
+				failure = e;
+			}
+		}
+		return failure;
+	}
+}
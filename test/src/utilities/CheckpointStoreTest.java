@@ -0,0 +1,215 @@
+package utilities;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import testing.TestCase;
+
+/**
+ * CheckpointStore copy selection, torn copy recovery and legacy migration
+ *
+ * @author jdk85
+ *
+ */
+public class CheckpointStoreTest extends TestCase
+{
+	/** Layout of the file, as documented in CheckpointStore */
+	private static final int HEADER_SIZE = 16;
+	private static final int COPY_SIZE = 128;
+	private static final int SLOT_SIZE = 2 * COPY_SIZE;
+
+	private File file;
+
+	@Override
+	public void setup() throws Exception{
+		file = new File(temp_directory(), "table_info.ckpt");
+	}
+
+	private static TableInfo table(String name, long last_record_no){
+		TableInfo info = new TableInfo(name, last_record_no, false);
+		info.setTable_signature(0x1234);
+		info.setBackfill_position(last_record_no * 10);
+		return info;
+	}
+
+	private HashMap<String,TableInfo> reopen() throws Exception{
+		List<TableInfo> loaded = new ArrayList<TableInfo>();
+		CheckpointStore store = new CheckpointStore(file.getPath(), CheckpointStore.DEFAULT_FORCE_INTERVAL);
+		assert_true("file existed", store.open(loaded));
+		store.close();
+		HashMap<String,TableInfo> tables = new HashMap<String,TableInfo>();
+		for(TableInfo info : loaded){
+			tables.put(info.getChannel_name(), info);
+		}
+		return tables;
+	}
+
+	private static void assert_table(String message, TableInfo expected, TableInfo actual){
+		assert_true(message + " loaded", actual != null);
+		assert_equals(message + " last record", expected.getLast_record_no(), actual.getLast_record_no());
+		assert_equals(message + " first run", expected.isFirst_run(), actual.isFirst_run());
+		assert_equals(message + " signature", expected.getTable_signature(), actual.getTable_signature());
+		assert_equals(message + " backfill position", expected.getBackfill_position(), actual.getBackfill_position());
+	}
+
+	/**
+	 * Writes the first slot with one table, updated count times
+	 */
+	private void write_updates(int count) throws Exception{
+		CheckpointStore store = new CheckpointStore(file.getPath(), CheckpointStore.DEFAULT_FORCE_INTERVAL);
+		assert_true("new file", !store.open(new ArrayList<TableInfo>()));
+		for(int i = 1; i <= count; i++){
+			store.put(table("Table1", i));
+		}
+		store.close();
+	}
+
+	/**
+	 * Flips a byte in a copy of the first slot, as a write torn by a crash would leave it
+	 */
+	private void tear(int copy, int offset) throws Exception{
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		long position = HEADER_SIZE + copy * COPY_SIZE + offset;
+		raf.seek(position);
+		int b = raf.read();
+		raf.seek(position);
+		raf.write(b ^ 0xFF);
+		raf.close();
+	}
+
+	public void test_round_trip() throws Exception{
+		CheckpointStore store = new CheckpointStore(file.getPath(), CheckpointStore.DEFAULT_FORCE_INTERVAL);
+		assert_true("new file", !store.open(new ArrayList<TableInfo>()));
+		TableInfo first = new TableInfo("Table1", 42, true);
+		TableInfo second = table("Table2", 7);
+		store.put(first);
+		store.put(second);
+		store.put(table("Gone", 1));
+		store.remove("Gone");
+		assert_equals("size", 2, store.size());
+		store.close();
+
+		HashMap<String,TableInfo> tables = reopen();
+		assert_equals("tables", 2, tables.size());
+		assert_table("Table1", first, tables.get("Table1"));
+		assert_table("Table2", second, tables.get("Table2"));
+	}
+
+	public void test_newest_copy_wins() throws Exception{
+		//Sequence 0 in copy 0, 1 in copy 1, 2 in copy 0 - the newest is in copy 0
+		write_updates(3);
+		assert_table("after an odd number of updates", table("Table1", 3), reopen().get("Table1"));
+
+		//And the next update goes to copy 1
+		CheckpointStore store = new CheckpointStore(file.getPath(), CheckpointStore.DEFAULT_FORCE_INTERVAL);
+		store.open(new ArrayList<TableInfo>());
+		store.put(table("Table1", 4));
+		store.close();
+		assert_table("after an even number of updates", table("Table1", 4), reopen().get("Table1"));
+	}
+
+	public void test_torn_newest_copy_falls_back_to_older() throws Exception{
+		write_updates(3);
+		//Copy 0 holds update 3 - corrupt its last record number
+		tear(0, 8 + 2 + CheckpointStore.MAX_NAME_LENGTH);
+		assert_table("older copy", table("Table1", 2), reopen().get("Table1"));
+	}
+
+	public void test_torn_crc_falls_back_to_older() throws Exception{
+		write_updates(4);
+		//Copy 1 holds update 4 - corrupt its CRC
+		tear(1, 8 + 2 + CheckpointStore.MAX_NAME_LENGTH + 8 + 1 + 4 + 8);
+		assert_table("older copy", table("Table1", 3), reopen().get("Table1"));
+	}
+
+	public void test_torn_older_copy_is_ignored() throws Exception{
+		write_updates(3);
+		tear(1, 9);
+		assert_table("newest copy", table("Table1", 3), reopen().get("Table1"));
+	}
+
+	public void test_update_after_recovery_keeps_the_good_copy() throws Exception{
+		write_updates(3);
+		tear(0, 0);
+		//Recovered to update 2 in copy 1 - the next update must overwrite the torn copy, not the good one
+		CheckpointStore store = new CheckpointStore(file.getPath(), CheckpointStore.DEFAULT_FORCE_INTERVAL);
+		store.open(new ArrayList<TableInfo>());
+		store.put(table("Table1", 5));
+		store.close();
+		assert_table("update after recovery", table("Table1", 5), reopen().get("Table1"));
+
+		tear(0, 0);
+		assert_table("good copy survived the update", table("Table1", 2), reopen().get("Table1"));
+	}
+
+	public void test_both_copies_torn_frees_the_slot() throws Exception{
+		write_updates(2);
+		tear(0, 0);
+		tear(1, 0);
+		assert_equals("tables", 0, reopen().size());
+	}
+
+	public void test_grows_past_initial_slots() throws Exception{
+		CheckpointStore store = new CheckpointStore(file.getPath(), CheckpointStore.DEFAULT_FORCE_INTERVAL);
+		store.open(new ArrayList<TableInfo>());
+		for(int i = 0; i < 100; i++){
+			store.put(table("Table" + i, i));
+		}
+		store.close();
+		assert_true("file grew", file.length() >= HEADER_SIZE + 100L * SLOT_SIZE);
+		HashMap<String,TableInfo> tables = reopen();
+		assert_equals("tables", 100, tables.size());
+		for(int i = 0; i < 100; i++){
+			assert_table("Table" + i, table("Table" + i, i), tables.get("Table" + i));
+		}
+	}
+
+	public void test_imports_legacy_table_info() throws Exception{
+		File legacy = new File(temp_directory(), "table_info_list.data");
+		ArrayList<TableInfo> written = new ArrayList<TableInfo>();
+		written.add(new TableInfo("Table1", 42, true));
+		written.add(table("Table2", 7));
+		ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(legacy));
+		out.writeObject(written);
+		out.close();
+
+		CheckpointStore store = new CheckpointStore(file.getPath(), CheckpointStore.DEFAULT_FORCE_INTERVAL);
+		assert_true("new file", !store.open(new ArrayList<TableInfo>()));
+		List<TableInfo> imported = new ArrayList<TableInfo>();
+		assert_equals("imported", 2, store.import_legacy(legacy, imported));
+		assert_equals("returned", 2, imported.size());
+		store.close();
+
+		assert_true("legacy file moved", !legacy.exists());
+		assert_true("legacy file backed up", new File(legacy.getPath() + "_backup").exists());
+		HashMap<String,TableInfo> tables = reopen();
+		assert_equals("tables", 2, tables.size());
+		assert_table("Table1", written.get(0), tables.get("Table1"));
+		assert_table("Table2", written.get(1), tables.get("Table2"));
+	}
+
+	public void test_rejects_legacy_file_of_another_type() throws Exception{
+		File legacy = new File(temp_directory(), "table_info_list.data");
+		ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(legacy));
+		out.writeObject("not a list");
+		out.close();
+
+		CheckpointStore store = new CheckpointStore(file.getPath(), CheckpointStore.DEFAULT_FORCE_INTERVAL);
+		store.open(new ArrayList<TableInfo>());
+		try{
+			store.import_legacy(legacy, new ArrayList<TableInfo>());
+			fail("expected an IOException");
+		}catch(IOException e){
+			//Expected
+		}
+		store.close();
+		assert_true("legacy file kept", legacy.exists());
+		assert_equals("tables", 0, reopen().size());
+	}
+}
@@ -0,0 +1,269 @@
+package utilities;
+
+import java.nio.ByteBuffer;
+
+import com.rbnb.sapi.ChannelMap;
+
+import testing.TestCase;
+
+/**
+ * DataGeneratorCodec encoders against their decoders
+ *
+ * @author jdk85
+ *
+ */
+public class DataGeneratorCodecTest extends TestCase
+{
+	private static final long[] TIMESTAMPS = {0, 1, -1, 1400000000123L, Long.MIN_VALUE, Long.MAX_VALUE};
+	private static final float[] FLOATS = {0f, -0f, 1.5f, -3.25e-7f, Float.MIN_VALUE, Float.MAX_VALUE, Float.NEGATIVE_INFINITY, Float.NaN};
+	private static final double[] DOUBLES = {0d, -0d, 1.5, -3.25e-300, Double.MIN_VALUE, Double.MAX_VALUE, Double.POSITIVE_INFINITY, Double.NaN};
+	private static final long[] LONGS = {0, 1, -1, 0x0102030405060708L, Long.MIN_VALUE, Long.MAX_VALUE};
+	private static final int[] INTS = {0, 1, -1, 0x01020304, Integer.MIN_VALUE, Integer.MAX_VALUE};
+	private static final short[] SHORTS = {0, 1, -1, 0x0102, Short.MIN_VALUE, Short.MAX_VALUE};
+	private static final byte[] BYTES = {0, 1, -1, Byte.MIN_VALUE, Byte.MAX_VALUE};
+
+	/**
+	 * encodeValuePair as it was before the primitive encoders, kept as the
+	 * reference for the format that existing consumers decode
+	 */
+	private static byte[] legacy_encode(int type, long timestamp, Object data){
+		byte[] time_stamp = ByteBuffer.allocate(8).putLong(timestamp).array();
+		byte[] data_point;
+		switch(type){
+		case ChannelMap.TYPE_FLOAT32:
+			data_point = ByteBuffer.allocate(4).putFloat((Float)data).array();
+			break;
+		case ChannelMap.TYPE_FLOAT64:
+			data_point = ByteBuffer.allocate(8).putDouble((Double)data).array();
+			break;
+		case ChannelMap.TYPE_INT16:
+			data_point = ByteBuffer.allocate(2).putShort((Short)data).array();
+			break;
+		case ChannelMap.TYPE_INT32:
+			data_point = ByteBuffer.allocate(4).putInt((Integer)data).array();
+			break;
+		case ChannelMap.TYPE_INT64:
+			data_point = ByteBuffer.allocate(8).putLong((Long)data).array();
+			break;
+		case ChannelMap.TYPE_INT8:
+			data_point = ByteBuffer.allocate(1).put((Byte)data).array();
+			break;
+		case ChannelMap.TYPE_STRING:
+			data_point = ((String)data).getBytes();
+			break;
+		default:
+			return null;
+		}
+		byte[] blob = new byte[1 + time_stamp.length + data_point.length];
+		blob[0] = (byte)type;
+		System.arraycopy(time_stamp, 0, blob, 1, time_stamp.length);
+		System.arraycopy(data_point, 0, blob, 1 + time_stamp.length, data_point.length);
+		return blob;
+	}
+
+	/**
+	 * Checks that encodeValuePair, the timestamp-only encoder (blob) and the
+	 * ByteBuffer encoder (written) produce the legacy bytes, and that
+	 * decodeValuePair reads back the value
+	 */
+	private static void assert_value_pair(int type, long timestamp, Object value, byte[] blob, ByteBuffer written, int written_size){
+		String message = "type " + type + ", timestamp " + timestamp + ", value " + value;
+		byte[] expected = legacy_encode(type, timestamp, value);
+		assert_equals(message + " encodeValuePair", expected, DataGeneratorCodec.encodeValuePair((byte)type, timestamp, value));
+		assert_equals(message + " encoder", expected, blob);
+		assert_equals(message + " ByteBuffer encoder size", expected.length, written_size);
+		assert_equals(message + " ByteBuffer encoder position", expected.length, written.position());
+		byte[] buffered = new byte[written_size];
+		written.flip();
+		written.get(buffered);
+		assert_equals(message + " ByteBuffer encoder", expected, buffered);
+
+		SampleTimestampPackage decoded = DataGeneratorCodec.decodeValuePair(2.5, blob);
+		assert_equals(message + " decoded timestamp", timestamp, decoded.getSample_timestamp());
+		assert_equals(message + " decoded rbnb timestamp", 2500, decoded.getRbnb_timestamp());
+		assert_equals(message + " decoded value", value, decoded.getSample_data());
+	}
+
+	public void test_float32_round_trip(){
+		ByteBuffer buf = ByteBuffer.allocate(64);
+		for(long timestamp : TIMESTAMPS){
+			for(float value : FLOATS){
+				buf.clear();
+				int size = DataGeneratorCodec.encodeFloat32(buf, timestamp, value);
+				assert_value_pair(ChannelMap.TYPE_FLOAT32, timestamp, value, DataGeneratorCodec.encodeFloat32(timestamp, value), buf, size);
+			}
+		}
+	}
+
+	public void test_float64_round_trip(){
+		ByteBuffer buf = ByteBuffer.allocate(64);
+		for(long timestamp : TIMESTAMPS){
+			for(double value : DOUBLES){
+				buf.clear();
+				int size = DataGeneratorCodec.encodeFloat64(buf, timestamp, value);
+				assert_value_pair(ChannelMap.TYPE_FLOAT64, timestamp, value, DataGeneratorCodec.encodeFloat64(timestamp, value), buf, size);
+			}
+		}
+	}
+
+	public void test_int8_round_trip(){
+		ByteBuffer buf = ByteBuffer.allocate(64);
+		for(long timestamp : TIMESTAMPS){
+			for(byte value : BYTES){
+				buf.clear();
+				int size = DataGeneratorCodec.encodeInt8(buf, timestamp, value);
+				assert_value_pair(ChannelMap.TYPE_INT8, timestamp, value, DataGeneratorCodec.encodeInt8(timestamp, value), buf, size);
+			}
+		}
+	}
+
+	public void test_int16_round_trip(){
+		ByteBuffer buf = ByteBuffer.allocate(64);
+		for(long timestamp : TIMESTAMPS){
+			for(short value : SHORTS){
+				buf.clear();
+				int size = DataGeneratorCodec.encodeInt16(buf, timestamp, value);
+				assert_value_pair(ChannelMap.TYPE_INT16, timestamp, value, DataGeneratorCodec.encodeInt16(timestamp, value), buf, size);
+			}
+		}
+	}
+
+	public void test_int32_round_trip(){
+		ByteBuffer buf = ByteBuffer.allocate(64);
+		for(long timestamp : TIMESTAMPS){
+			for(int value : INTS){
+				buf.clear();
+				int size = DataGeneratorCodec.encodeInt32(buf, timestamp, value);
+				assert_value_pair(ChannelMap.TYPE_INT32, timestamp, value, DataGeneratorCodec.encodeInt32(timestamp, value), buf, size);
+			}
+		}
+	}
+
+	public void test_int64_round_trip(){
+		ByteBuffer buf = ByteBuffer.allocate(64);
+		for(long timestamp : TIMESTAMPS){
+			for(long value : LONGS){
+				buf.clear();
+				int size = DataGeneratorCodec.encodeInt64(buf, timestamp, value);
+				assert_value_pair(ChannelMap.TYPE_INT64, timestamp, value, DataGeneratorCodec.encodeInt64(timestamp, value), buf, size);
+			}
+		}
+	}
+
+	public void test_string_matches_legacy_encoding(){
+		for(long timestamp : TIMESTAMPS){
+			for(String value : new String[]{"", "a", "CR1000 table"}){
+				assert_equals("string " + value, legacy_encode(ChannelMap.TYPE_STRING, timestamp, value),
+						DataGeneratorCodec.encodeValuePair((byte)ChannelMap.TYPE_STRING, timestamp, value));
+			}
+		}
+	}
+
+	public void test_buffer_encoders_append_at_position(){
+		ByteBuffer buf = ByteBuffer.allocate(128);
+		buf.put((byte)0x55);
+		int size = DataGeneratorCodec.encodeInt16(buf, 7, (short)-2);
+		size += DataGeneratorCodec.encodeFloat64(buf, 8, 0.125);
+		size += DataGeneratorCodec.encodeInt8(buf, 9, (byte)3);
+		assert_equals("bytes written", 1 + size, buf.position());
+
+		ByteBuffer expected = ByteBuffer.allocate(1 + size);
+		expected.put((byte)0x55);
+		expected.put(DataGeneratorCodec.encodeInt16(7, (short)-2));
+		expected.put(DataGeneratorCodec.encodeFloat64(8, 0.125));
+		expected.put(DataGeneratorCodec.encodeInt8(9, (byte)3));
+		byte[] written = new byte[1 + size];
+		buf.flip();
+		buf.get(written);
+		assert_equals("appended pairs", expected.array(), written);
+	}
+
+	/**
+	 * @return a batch of record_count records, values_per_record values each,
+	 * with values that identify their record and column
+	 */
+	private static RecordBatch batch(int values_per_record, int record_count, long first_record_number){
+		long[] timestamps = new long[record_count];
+		long[] record_numbers = new long[record_count];
+		float[] values = new float[values_per_record * record_count];
+		for(int r = 0; r < record_count; r++){
+			timestamps[r] = 1400000000000L + r * 1000;
+			record_numbers[r] = first_record_number + r;
+			for(int v = 0; v < values_per_record; v++){
+				values[r * values_per_record + v] = r + v / 1000f;
+			}
+		}
+		return new RecordBatch(0xCAFEBABEL, values_per_record, record_count, timestamps, record_numbers, values);
+	}
+
+	private static byte[] encode(RecordBatch batch){
+		return DataGeneratorCodec.encodeRecordBatch(batch.getValues_per_record(), batch.getRecord_count(), batch.getTable_signature(),
+				batch.getTimestamps(), batch.getRecord_numbers(), batch.getValues());
+	}
+
+	private static void assert_batch(String message, RecordBatch expected, RecordBatch actual){
+		assert_true(message + " decoded", actual != null);
+		assert_equals(message + " signature", expected.getTable_signature(), actual.getTable_signature());
+		assert_equals(message + " values per record", expected.getValues_per_record(), actual.getValues_per_record());
+		assert_equals(message + " record count", expected.getRecord_count(), actual.getRecord_count());
+		for(int r = 0; r < expected.getRecord_count(); r++){
+			assert_equals(message + " timestamp " + r, expected.getTimestamp(r), actual.getTimestamp(r));
+			assert_equals(message + " record number " + r, expected.getRecord_number(r), actual.getRecord_number(r));
+			for(int v = 0; v < expected.getValues_per_record(); v++){
+				assert_equals(message + " value " + r + "," + v,
+						Float.floatToRawIntBits(expected.getValue(r, v)), Float.floatToRawIntBits(actual.getValue(r, v)));
+			}
+		}
+	}
+
+	private static void assert_rejected(String message, int values_per_record, int record_count, long[] record_numbers){
+		try{
+			DataGeneratorCodec.encodeRecordBatch(values_per_record, record_count, 1, new long[record_count], record_numbers,
+					new float[Math.max(values_per_record, 0) * Math.max(record_count, 0)]);
+		}catch(IllegalArgumentException e){
+			return;
+		}
+		fail(message + " - expected IllegalArgumentException");
+	}
+
+	public void test_record_batch_round_trip(){
+		RecordBatch batch = batch(7, 25, 1);
+		byte[] blob = encode(batch);
+		assert_equals("payload size", DataGeneratorCodec.RECORD_BATCH_HEADER_SIZE + 25 * (DataGeneratorCodec.RECORD_BATCH_RECORD_HEADER_SIZE + 4 * 7), blob.length);
+		assert_equals("type byte", DataGeneratorCodec.TYPE_FLOAT32_RECORDS, blob[0]);
+		assert_batch("batch", batch, DataGeneratorCodec.decodeRecordBatch(blob));
+	}
+
+	public void test_record_batch_layout(){
+		byte[] blob = DataGeneratorCodec.encodeRecordBatch(2, 1, 0x01020304L, new long[]{5}, new long[]{6}, new float[]{1.5f, -2f});
+		ByteBuffer expected = ByteBuffer.allocate(blob.length);
+		expected.put(DataGeneratorCodec.TYPE_FLOAT32_RECORDS).putInt(0x01020304).putShort((short)2).putShort((short)1);
+		expected.putLong(5).putInt(6).putFloat(1.5f).putFloat(-2f);
+		assert_equals("payload", expected.array(), blob);
+	}
+
+	public void test_record_batch_limits_round_trip(){
+		//Largest counts and record numbers the 16 and 32 bit fields hold
+		assert_batch("widest record", batch(DataGeneratorCodec.MAX_RECORD_BATCH_SIZE, 1, 0),
+				DataGeneratorCodec.decodeRecordBatch(encode(batch(DataGeneratorCodec.MAX_RECORD_BATCH_SIZE, 1, 0))));
+		assert_batch("most records", batch(1, DataGeneratorCodec.MAX_RECORD_BATCH_SIZE, 0),
+				DataGeneratorCodec.decodeRecordBatch(encode(batch(1, DataGeneratorCodec.MAX_RECORD_BATCH_SIZE, 0))));
+		RecordBatch high = batch(3, 2, DataGeneratorCodec.MAX_RECORD_BATCH_RECORD_NUMBER - 1);
+		assert_batch("record numbers above Integer.MAX_VALUE", high, DataGeneratorCodec.decodeRecordBatch(encode(high)));
+	}
+
+	public void test_record_batch_rejects_what_does_not_fit(){
+		assert_rejected("no values", 0, 1, new long[1]);
+		assert_rejected("too many values", DataGeneratorCodec.MAX_RECORD_BATCH_SIZE + 1, 1, new long[1]);
+		assert_rejected("no records", 1, 0, new long[0]);
+		assert_rejected("too many records", 1, DataGeneratorCodec.MAX_RECORD_BATCH_SIZE + 1, new long[DataGeneratorCodec.MAX_RECORD_BATCH_SIZE + 1]);
+		assert_rejected("negative record number", 1, 2, new long[]{0, -1});
+		assert_rejected("record number above 32 bits", 1, 1, new long[]{DataGeneratorCodec.MAX_RECORD_BATCH_RECORD_NUMBER + 1});
+	}
+
+	public void test_decode_record_batch_ignores_other_payloads(){
+		assert_true("null", DataGeneratorCodec.decodeRecordBatch(null) == null);
+		assert_true("short blob", DataGeneratorCodec.decodeRecordBatch(new byte[]{DataGeneratorCodec.TYPE_FLOAT32_RECORDS, 0, 0}) == null);
+		assert_true("value pair", DataGeneratorCodec.decodeRecordBatch(DataGeneratorCodec.encodeFloat64(1, 2.0)) == null);
+	}
+}
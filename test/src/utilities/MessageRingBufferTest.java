@@ -0,0 +1,238 @@
+package utilities;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+import testing.TestCase;
+
+/**
+ * MessageRingBuffer ordering and overflow policies, single-threaded and under
+ * several producers racing one consumer
+ *
+ * @author jdk85
+ *
+ */
+public class MessageRingBufferTest extends TestCase
+{
+	private static final int PRODUCERS = 4;
+	private static final int PER_PRODUCER = 50000;
+	/** Small, so the producers keep finding the buffer full */
+	private static final int STRESS_CAPACITY = 64;
+
+	/**
+	 * @return a Message identified by producer and sequence, both kept in its timestamp
+	 */
+	private static Message message(int producer, int sequence){
+		return new Message(new byte[0], ((long)producer << 32) | sequence, "T", "v");
+	}
+
+	private static int producer_of(Message msg){
+		return (int)(msg.timestamp >>> 32);
+	}
+
+	private static int sequence_of(Message msg){
+		return (int)msg.timestamp;
+	}
+
+	private static int id_of(Message msg){
+		return producer_of(msg) * PER_PRODUCER + sequence_of(msg);
+	}
+
+	public void test_capacity_rounds_up_to_a_power_of_two(){
+		assert_equals("capacity of 1000", 1024, new MessageRingBuffer(1000, MessageRingBuffer.OverflowPolicy.SPILL).capacity());
+		assert_equals("capacity of 1024", 1024, new MessageRingBuffer(1024, MessageRingBuffer.OverflowPolicy.SPILL).capacity());
+		assert_equals("capacity of 0", 2, new MessageRingBuffer(0, MessageRingBuffer.OverflowPolicy.SPILL).capacity());
+	}
+
+	public void test_rejects_capacity_above_max(){
+		try{
+			new MessageRingBuffer(MessageRingBuffer.MAX_CAPACITY + 1, MessageRingBuffer.OverflowPolicy.SPILL);
+			fail("expected IllegalArgumentException");
+		}catch(IllegalArgumentException e){
+			//Expected
+		}
+		try{
+			new MessageRingBuffer(Integer.MAX_VALUE, MessageRingBuffer.OverflowPolicy.SPILL);
+			fail("expected IllegalArgumentException");
+		}catch(IllegalArgumentException e){
+			//Expected
+		}
+	}
+
+	public void test_fifo_across_laps(){
+		MessageRingBuffer queue = new MessageRingBuffer(8, MessageRingBuffer.OverflowPolicy.SPILL);
+		int next = 0;
+		for(int i = 0; i < 100; i++){
+			assert_true("offer " + i, queue.offer(message(0, i)));
+			if(i % 3 == 2){
+				//Drain partway so head and tail wrap at different points
+				while(queue.size() > 2){
+					assert_equals("poll", next++, sequence_of(queue.poll()));
+				}
+			}
+		}
+		Message msg;
+		while((msg = queue.peek()) != null){
+			assert_equals("peek", next++, sequence_of(msg));
+			assert_true("remove", queue.remove(msg));
+		}
+		assert_equals("everything consumed", 100, next);
+		assert_true("empty", queue.isEmpty());
+		assert_true("poll of an empty buffer", queue.poll() == null);
+	}
+
+	public void test_spill_rejects_when_full(){
+		MessageRingBuffer queue = new MessageRingBuffer(4, MessageRingBuffer.OverflowPolicy.SPILL);
+		for(int i = 0; i < 4; i++){
+			assert_true("offer " + i, queue.offer(message(0, i)));
+		}
+		assert_true("offer to a full buffer", !queue.offer(message(0, 4)));
+		assert_equals("full count", 1, queue.getFull_count());
+		assert_equals("size", 4, queue.size());
+		assert_equals("head is untouched", 0, sequence_of(queue.poll()));
+	}
+
+	public void test_drop_oldest_evicts_in_order(){
+		MessageRingBuffer queue = new MessageRingBuffer(4, MessageRingBuffer.OverflowPolicy.DROP_OLDEST);
+		final List<Message> dropped = new ArrayList<Message>();
+		queue.setDrop_listener(new MessageRingBuffer.DropListener(){
+			@Override
+			public void on_drop(Message msg){
+				dropped.add(msg);
+			}
+		});
+		for(int i = 0; i < 10; i++){
+			assert_true("offer " + i, queue.offer(message(0, i)));
+		}
+		assert_equals("dropped", 6, dropped.size());
+		assert_equals("dropped count", 6, queue.getDropped_count());
+		for(int i = 0; i < 6; i++){
+			assert_equals("dropped " + i, i, sequence_of(dropped.get(i)));
+		}
+		for(int i = 6; i < 10; i++){
+			assert_equals("kept " + i, i, sequence_of(queue.poll()));
+		}
+	}
+
+	public void test_remove_after_eviction_keeps_the_next_message(){
+		MessageRingBuffer queue = new MessageRingBuffer(2, MessageRingBuffer.OverflowPolicy.DROP_OLDEST);
+		queue.offer(message(0, 0));
+		queue.offer(message(0, 1));
+		Message head = queue.peek();
+		//A producer evicts the head while the consumer is publishing it
+		queue.offer(message(0, 2));
+		assert_true("remove of an evicted message", !queue.remove(head));
+		assert_equals("next message is still queued", 1, sequence_of(queue.peek()));
+		assert_equals("size", 2, queue.size());
+	}
+
+	public void test_block_under_contention() throws Exception{
+		stress(MessageRingBuffer.OverflowPolicy.BLOCK);
+	}
+
+	public void test_spill_under_contention() throws Exception{
+		stress(MessageRingBuffer.OverflowPolicy.SPILL);
+	}
+
+	public void test_drop_oldest_under_contention() throws Exception{
+		stress(MessageRingBuffer.OverflowPolicy.DROP_OLDEST);
+	}
+
+	/**
+	 * Races PRODUCERS producers against a consumer that takes Messages the way
+	 * the mqtt thread does (peek, then remove), and checks that every Message
+	 * ends up exactly once in one place: consumed, rejected by offer() under
+	 * SPILL, or handed to the drop listener under DROP_OLDEST. Messages from
+	 * one producer must be consumed in the order they were offered.
+	 */
+	private void stress(MessageRingBuffer.OverflowPolicy policy) throws Exception{
+		final MessageRingBuffer queue = new MessageRingBuffer(STRESS_CAPACITY, policy);
+		final int total = PRODUCERS * PER_PRODUCER;
+		final AtomicIntegerArray rejected = new AtomicIntegerArray(total);
+		final AtomicIntegerArray dropped = new AtomicIntegerArray(total);
+		final AtomicLong drop_calls = new AtomicLong();
+		queue.setDrop_listener(new MessageRingBuffer.DropListener(){
+			@Override
+			public void on_drop(Message msg){
+				dropped.incrementAndGet(id_of(msg));
+				drop_calls.incrementAndGet();
+			}
+		});
+
+		Thread[] producers = new Thread[PRODUCERS];
+		for(int p = 0; p < PRODUCERS; p++){
+			final int producer = p;
+			producers[p] = new Thread(new Runnable(){
+				@Override
+				public void run(){
+					for(int i = 0; i < PER_PRODUCER; i++){
+						Message msg = message(producer, i);
+						if(!queue.offer(msg)){
+							rejected.incrementAndGet(id_of(msg));
+						}
+					}
+				}
+			}, "producer-" + p);
+			producers[p].start();
+		}
+
+		int[] consumed = new int[total];
+		int[] last_sequence = new int[PRODUCERS];
+		Arrays.fill(last_sequence, -1);
+		long deadline = System.currentTimeMillis() + 60000;
+		while(true){
+			Message msg = queue.peek();
+			if(msg == null){
+				if(!alive(producers) && queue.isEmpty()){
+					break;
+				}
+				assert_true("consumer timed out", System.currentTimeMillis() < deadline);
+				Thread.yield();
+				continue;
+			}
+			if(queue.remove(msg)){
+				consumed[id_of(msg)]++;
+				int producer = producer_of(msg);
+				assert_true("producer " + producer + " out of order: " + sequence_of(msg) + " after " + last_sequence[producer],
+						sequence_of(msg) > last_sequence[producer]);
+				last_sequence[producer] = sequence_of(msg);
+			}
+		}
+		for(Thread producer : producers){
+			producer.join();
+		}
+
+		long consumed_count = 0, rejected_count = 0;
+		for(int id = 0; id < total; id++){
+			int seen = consumed[id] + rejected.get(id) + dropped.get(id);
+			if(seen != 1){
+				fail(policy + ": message " + id + " consumed " + consumed[id] + ", rejected " + rejected.get(id) + ", dropped " + dropped.get(id) + " times");
+			}
+			consumed_count += consumed[id];
+			rejected_count += rejected.get(id);
+		}
+		assert_equals(policy + ": dropped count", drop_calls.get(), queue.getDropped_count());
+		if(policy != MessageRingBuffer.OverflowPolicy.SPILL){
+			assert_equals(policy + ": rejected", 0, rejected_count);
+		}
+		if(policy != MessageRingBuffer.OverflowPolicy.DROP_OLDEST){
+			assert_equals(policy + ": dropped", 0, drop_calls.get());
+		}
+		if(policy == MessageRingBuffer.OverflowPolicy.BLOCK){
+			assert_equals(policy + ": consumed", total, consumed_count);
+		}
+		assert_true(policy + ": empty", queue.isEmpty());
+	}
+
+	private static boolean alive(Thread[] threads){
+		for(Thread thread : threads){
+			if(thread.isAlive()){
+				return true;
+			}
+		}
+		return false;
+	}
+}
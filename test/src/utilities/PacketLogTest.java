@@ -0,0 +1,258 @@
+package utilities;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import testing.TestCase;
+
+/**
+ * PacketLog recovery, acknowledgement and segment handling
+ *
+ * @author jdk85
+ *
+ */
+public class PacketLogTest extends TestCase
+{
+	/** Bytes of a record written by message(): 8 byte header, 23 byte payload */
+	private static final int RECORD_SIZE = 31;
+	/** Rolls after the third record of a segment */
+	private static final long SMALL_SEGMENT = PacketLog.SEGMENT_HEADER_SIZE + 3 * RECORD_SIZE - 1;
+
+	private File directory;
+
+	@Override
+	public void setup() throws Exception{
+		directory = temp_directory();
+	}
+
+	private PacketLog open(long segment_size, List<Message> unacked) throws IOException{
+		PacketLog log = new PacketLog(directory.getPath(), segment_size);
+		log.open(unacked, Integer.MAX_VALUE);
+		return log;
+	}
+
+	private static Message message(int i){
+		return new Message(new byte[]{(byte)i, 1, 2, 3}, 1000L + i, "T", "v" + (i % 10));
+	}
+
+	private static void assert_message(String message, int i, Message msg){
+		Message expected = message(i);
+		assert_equals(message + " timestamp", expected.timestamp, msg.timestamp);
+		assert_equals(message + " table", expected.table_name, msg.table_name);
+		assert_equals(message + " value", expected.value_name, msg.value_name);
+		assert_equals(message + " data", expected.data, msg.data);
+	}
+
+	private List<Message> append(PacketLog log, int from, int to) throws IOException{
+		List<Message> appended = new ArrayList<Message>();
+		for(int i = from; i < to; i++){
+			Message msg = message(i);
+			log.append(msg);
+			appended.add(msg);
+		}
+		log.flush();
+		return appended;
+	}
+
+	private File[] segments(){
+		return directory.listFiles(new FilenameFilter(){
+			@Override
+			public boolean accept(File dir, String name){
+				return name.startsWith("segment-");
+			}
+		});
+	}
+
+	public void test_position_packs_segment_and_offset(){
+		assert_equals("position", (3L << 32) | 100, PacketLog.position(3, 100));
+		//Offsets use all 32 low bits without spilling into the segment
+		assert_equals("large offset", (1L << 32) | 0xFFFFFFF0L, PacketLog.position(1, 0xFFFFFFF0L));
+		assert_true("positions order by segment, then offset", PacketLog.position(1, 0xFFFFFFF0L) < PacketLog.position(2, PacketLog.SEGMENT_HEADER_SIZE));
+		assert_true("positions order by offset within a segment", PacketLog.position(2, 8) < PacketLog.position(2, 9));
+	}
+
+	public void test_append_sets_log_position() throws Exception{
+		PacketLog log = open(PacketLog.DEFAULT_SEGMENT_SIZE, null);
+		assert_equals("empty log is acked to the first record", PacketLog.position(0, PacketLog.SEGMENT_HEADER_SIZE), log.ack_position());
+		List<Message> appended = append(log, 0, 3);
+		for(int i = 0; i < 3; i++){
+			assert_equals("position of record " + i, PacketLog.position(0, PacketLog.SEGMENT_HEADER_SIZE + (i + 1) * RECORD_SIZE), appended.get(i).log_position);
+		}
+		assert_equals("tail", appended.get(2).log_position, log.tail_position());
+		assert_equals("unacked bytes", 3 * RECORD_SIZE, log.unacked_bytes());
+		log.close();
+	}
+
+	public void test_replay_after_close() throws Exception{
+		PacketLog log = open(PacketLog.DEFAULT_SEGMENT_SIZE, null);
+		List<Message> appended = append(log, 0, 10);
+		log.ack(appended.get(3));
+		log.close();
+
+		List<Message> unacked = new ArrayList<Message>();
+		log = new PacketLog(directory.getPath(), PacketLog.DEFAULT_SEGMENT_SIZE);
+		assert_equals("unacked count", 6, log.open(unacked, Integer.MAX_VALUE));
+		assert_equals("replayed", 6, unacked.size());
+		for(int i = 0; i < 6; i++){
+			assert_message("record " + (i + 4), i + 4, unacked.get(i));
+			assert_equals("position of record " + (i + 4), appended.get(i + 4).log_position, unacked.get(i).log_position);
+		}
+		log.close();
+	}
+
+	public void test_replay_after_crash() throws Exception{
+		PacketLog log = open(PacketLog.DEFAULT_SEGMENT_SIZE, null);
+		List<Message> appended = append(log, 0, 5);
+		log.ack(appended.get(1));
+		log.commit();
+		//Appended after the last flush - lost with the process
+		log.append(message(5));
+
+		List<Message> unacked = new ArrayList<Message>();
+		PacketLog reopened = new PacketLog(directory.getPath(), PacketLog.DEFAULT_SEGMENT_SIZE);
+		assert_equals("unacked count", 3, reopened.open(unacked, Integer.MAX_VALUE));
+		for(int i = 0; i < 3; i++){
+			assert_message("record " + (i + 2), i + 2, unacked.get(i));
+		}
+		reopened.close();
+	}
+
+	public void test_open_limits_materialized_messages() throws Exception{
+		PacketLog log = open(SMALL_SEGMENT, null);
+		append(log, 0, 10);
+		log.close();
+
+		List<Message> unacked = new ArrayList<Message>();
+		log = new PacketLog(directory.getPath(), SMALL_SEGMENT);
+		assert_equals("unacked count", 10, log.open(unacked, 4));
+		assert_equals("materialized", 4, unacked.size());
+		List<Message> rest = new ArrayList<Message>();
+		log.read(unacked.get(3).log_position, 100, rest);
+		assert_equals("read back", 6, rest.size());
+		for(int i = 0; i < 6; i++){
+			assert_message("record " + (i + 4), i + 4, rest.get(i));
+		}
+		log.close();
+	}
+
+	public void test_truncates_torn_tail() throws Exception{
+		PacketLog log = open(PacketLog.DEFAULT_SEGMENT_SIZE, null);
+		append(log, 0, 5);
+		log.close();
+		File segment = segments()[0];
+		long length = segment.length();
+
+		//Half of a record's header and payload
+		FileOutputStream out = new FileOutputStream(segment, true);
+		out.write(new byte[]{0, 0, 0, 23, 1, 2, 3, 4, 5, 6, 7});
+		out.close();
+
+		List<Message> unacked = new ArrayList<Message>();
+		log = new PacketLog(directory.getPath(), PacketLog.DEFAULT_SEGMENT_SIZE);
+		assert_equals("unacked count", 5, log.open(unacked, Integer.MAX_VALUE));
+		assert_equals("segment length", length, segment.length());
+
+		//Appends continue where the good records end
+		append(log, 5, 6);
+		log.close();
+		unacked.clear();
+		log = new PacketLog(directory.getPath(), PacketLog.DEFAULT_SEGMENT_SIZE);
+		assert_equals("unacked count after append", 6, log.open(unacked, Integer.MAX_VALUE));
+		for(int i = 0; i < 6; i++){
+			assert_message("record " + i, i, unacked.get(i));
+		}
+		log.close();
+	}
+
+	public void test_truncates_bad_checksum() throws Exception{
+		PacketLog log = open(PacketLog.DEFAULT_SEGMENT_SIZE, null);
+		List<Message> appended = append(log, 0, 5);
+		log.close();
+		File segment = segments()[0];
+
+		//Flip the last byte of the last record's data
+		RandomAccessFile raf = new RandomAccessFile(segment, "rw");
+		raf.seek(raf.length() - 1);
+		int b = raf.read();
+		raf.seek(raf.length() - 1);
+		raf.write(b ^ 0xFF);
+		raf.close();
+
+		List<Message> unacked = new ArrayList<Message>();
+		log = new PacketLog(directory.getPath(), PacketLog.DEFAULT_SEGMENT_SIZE);
+		assert_equals("unacked count", 4, log.open(unacked, Integer.MAX_VALUE));
+		assert_equals("segment length", appended.get(3).log_position & 0xFFFFFFFFL, segment.length());
+		log.close();
+	}
+
+	public void test_rolls_to_new_segment() throws Exception{
+		PacketLog log = open(SMALL_SEGMENT, null);
+		List<Message> appended = append(log, 0, 7);
+		for(int i = 0; i < 7; i++){
+			assert_equals("segment of record " + i, i / 3, appended.get(i).log_position >>> 32);
+		}
+		assert_equals("segment files", 3, segments().length);
+		assert_equals("unacked bytes", 7 * RECORD_SIZE, log.unacked_bytes());
+
+		//Reads run across segment boundaries
+		List<Message> read = new ArrayList<Message>();
+		long position = log.read(log.ack_position(), 100, read);
+		assert_equals("read", 7, read.size());
+		assert_equals("read position", appended.get(6).log_position, position);
+		for(int i = 0; i < 7; i++){
+			assert_message("record " + i, i, read.get(i));
+		}
+		log.close();
+	}
+
+	public void test_ack_moves_cursor_and_deletes_segments() throws Exception{
+		PacketLog log = open(SMALL_SEGMENT, null);
+		List<Message> appended = append(log, 0, 8);
+		assert_equals("segment files", 3, segments().length);
+
+		log.ack(appended.get(1));
+		assert_equals("ack position", appended.get(1).log_position, log.ack_position());
+		assert_equals("segment files after a partial ack", 3, segments().length);
+
+		//The last record of the first segment moves the cursor to the start of the next
+		log.ack(appended.get(2));
+		assert_equals("ack position", PacketLog.position(1, PacketLog.SEGMENT_HEADER_SIZE), log.ack_position());
+		assert_equals("segment files after the first segment", 2, segments().length);
+
+		//Acking an older message has no effect
+		log.ack(appended.get(0));
+		assert_equals("ack position after an old ack", PacketLog.position(1, PacketLog.SEGMENT_HEADER_SIZE), log.ack_position());
+
+		log.ack(appended.get(7));
+		assert_equals("ack position", appended.get(7).log_position, log.ack_position());
+		assert_equals("segment files after everything", 1, segments().length);
+		assert_equals("unacked bytes", 0, log.unacked_bytes());
+
+		//The cursor survives a restart once committed
+		log.close();
+		List<Message> unacked = new ArrayList<Message>();
+		log = new PacketLog(directory.getPath(), SMALL_SEGMENT);
+		assert_equals("unacked count", 0, log.open(unacked, Integer.MAX_VALUE));
+		log.close();
+	}
+
+	public void test_clear_discards_everything() throws Exception{
+		PacketLog log = open(SMALL_SEGMENT, null);
+		append(log, 0, 8);
+		log.clear();
+		assert_equals("unacked bytes", 0, log.unacked_bytes());
+		append(log, 8, 9);
+		log.close();
+
+		List<Message> unacked = new ArrayList<Message>();
+		log = new PacketLog(directory.getPath(), SMALL_SEGMENT);
+		assert_equals("unacked count", 1, log.open(unacked, Integer.MAX_VALUE));
+		assert_message("record 8", 8, unacked.get(0));
+		log.close();
+	}
+}
@@ -0,0 +1,165 @@
+package utilities;
+
+import java.nio.ByteBuffer;
+
+import com.rbnb.sapi.ChannelMap;
+
+import testing.TestCase;
+
+/**
+ * ValuePairReader and the bulk column decoders against the encoders
+ *
+ * @author jdk85
+ *
+ */
+public class ValuePairReaderTest extends TestCase
+{
+	/** One blob of every numeric type, with values that survive narrowing to float */
+	private static byte[][] numeric_blobs(){
+		return new byte[][]{
+			DataGeneratorCodec.encodeFloat32(10, 1.5f),
+			DataGeneratorCodec.encodeFloat64(11, -2.25),
+			DataGeneratorCodec.encodeInt8(12, (byte)-7),
+			DataGeneratorCodec.encodeInt16(13, (short)-300),
+			DataGeneratorCodec.encodeInt32(14, 70000),
+			DataGeneratorCodec.encodeInt64(15, -123456L),
+		};
+	}
+
+	private static final double[] NUMERIC_VALUES = {1.5, -2.25, -7, -300, 70000, -123456};
+
+	public void test_reads_every_type(){
+		ValuePairReader reader = new ValuePairReader();
+
+		reader.wrap(DataGeneratorCodec.encodeFloat32(1400000000123L, -3.5f));
+		assert_equals("float32 type", ChannelMap.TYPE_FLOAT32, reader.type());
+		assert_equals("float32 timestamp", 1400000000123L, reader.timestamp());
+		assert_equals("float32 length", 4, reader.valueLength());
+		assert_equals("float32", -3.5f, reader.getFloat(), 0);
+
+		reader.wrap(DataGeneratorCodec.encodeFloat64(-1, Double.MAX_VALUE));
+		assert_equals("float64 type", ChannelMap.TYPE_FLOAT64, reader.type());
+		assert_equals("float64 timestamp", -1, reader.timestamp());
+		assert_equals("float64", Double.MAX_VALUE, reader.getDouble(), 0);
+
+		reader.wrap(DataGeneratorCodec.encodeInt8(Long.MIN_VALUE, Byte.MIN_VALUE));
+		assert_equals("int8 timestamp", Long.MIN_VALUE, reader.timestamp());
+		assert_equals("int8", Byte.MIN_VALUE, reader.getByte());
+
+		reader.wrap(DataGeneratorCodec.encodeInt16(Long.MAX_VALUE, (short)-2));
+		assert_equals("int16 timestamp", Long.MAX_VALUE, reader.timestamp());
+		assert_equals("int16", -2, reader.getShort());
+
+		reader.wrap(DataGeneratorCodec.encodeInt32(0, Integer.MIN_VALUE));
+		assert_equals("int32", Integer.MIN_VALUE, reader.getInt());
+
+		reader.wrap(DataGeneratorCodec.encodeInt64(0, 0x8000000000000001L));
+		assert_equals("int64", 0x8000000000000001L, reader.getLong());
+
+		reader.wrap(DataGeneratorCodec.encodeValuePair((byte)ChannelMap.TYPE_STRING, 5, "CR1000"));
+		assert_equals("string type", ChannelMap.TYPE_STRING, reader.type());
+		assert_equals("string timestamp", 5, reader.timestamp());
+		assert_equals("string", "CR1000", reader.getString());
+		assert_true("string as a double", Double.isNaN(reader.getAsDouble()));
+	}
+
+	public void test_get_as_double_widens_every_numeric_type(){
+		ValuePairReader reader = new ValuePairReader();
+		byte[][] blobs = numeric_blobs();
+		for(int i = 0; i < blobs.length; i++){
+			reader.wrap(blobs[i]);
+			assert_equals("blob " + i, NUMERIC_VALUES[i], reader.getAsDouble(), 0);
+		}
+	}
+
+	public void test_wraps_inside_larger_array_and_buffers(){
+		//Value pairs written back to back, as a batching producer would
+		ByteBuffer heap = ByteBuffer.allocate(64);
+		heap.put((byte)0x55);
+		int first = heap.position();
+		int first_size = DataGeneratorCodec.encodeInt32(heap, 21, -5);
+		int second = heap.position();
+		int second_size = DataGeneratorCodec.encodeFloat64(heap, 22, 0.125);
+		ByteBuffer direct = ByteBuffer.allocateDirect(64);
+		heap.flip();
+		direct.put(heap);
+		direct.position(3);
+
+		ValuePairReader reader = new ValuePairReader();
+		for(ByteBuffer buf : new ByteBuffer[]{heap, direct}){
+			String message = buf.isDirect() ? "direct" : "heap";
+			int position = buf.position();
+			reader.wrap(buf, first, first_size);
+			assert_equals(message + " first timestamp", 21, reader.timestamp());
+			assert_equals(message + " first", -5, reader.getInt());
+			reader.wrap(buf, second, second_size);
+			assert_equals(message + " second timestamp", 22, reader.timestamp());
+			assert_equals(message + " second", 0.125, reader.getDouble(), 0);
+			assert_equals(message + " position untouched", position, buf.position());
+		}
+
+		reader.wrap(heap.array(), second, second_size);
+		assert_equals("array second", 0.125, reader.getDouble(), 0);
+		assert_equals("array second length", 8, reader.valueLength());
+	}
+
+	public void test_decode_columns_matches_decode_value_pair(){
+		byte[][] blobs = numeric_blobs();
+		long[] timestamps = new long[blobs.length];
+		double[] doubles = new double[blobs.length];
+		float[] floats = new float[blobs.length];
+		assert_equals("decoded as double", blobs.length, DataGeneratorCodec.decodeColumns(blobs, blobs.length, timestamps, doubles));
+		for(int i = 0; i < blobs.length; i++){
+			SampleTimestampPackage expected = DataGeneratorCodec.decodeValuePair(0, blobs[i]);
+			assert_equals("timestamp " + i, expected.getSample_timestamp(), timestamps[i]);
+			assert_equals("double " + i, ((Number)expected.getSample_data()).doubleValue(), doubles[i], 0);
+		}
+		timestamps = new long[blobs.length];
+		assert_equals("decoded as float", blobs.length, DataGeneratorCodec.decodeColumns(blobs, blobs.length, timestamps, floats));
+		for(int i = 0; i < blobs.length; i++){
+			SampleTimestampPackage expected = DataGeneratorCodec.decodeValuePair(0, blobs[i]);
+			assert_equals("timestamp " + i, expected.getSample_timestamp(), timestamps[i]);
+			assert_equals("float " + i, ((Number)expected.getSample_data()).floatValue(), floats[i], 0);
+		}
+	}
+
+	public void test_decode_columns_keeps_64_bit_precision(){
+		byte[][] blobs = {
+			DataGeneratorCodec.encodeFloat64(1, 0.1),
+			DataGeneratorCodec.encodeInt64(2, (1L << 53) - 1),
+		};
+		double[] doubles = new double[2];
+		DataGeneratorCodec.decodeColumns(blobs, 2, new long[2], doubles);
+		assert_equals("float64", 0.1, doubles[0], 0);
+		assert_equals("int64", (double)((1L << 53) - 1), doubles[1], 0);
+
+		float[] floats = new float[2];
+		DataGeneratorCodec.decodeColumns(blobs, 2, new long[2], floats);
+		assert_equals("float64 narrowed", 0.1f, floats[0], 0);
+	}
+
+	public void test_decode_columns_nan_for_nulls_and_strings(){
+		byte[][] blobs = {
+			null,
+			DataGeneratorCodec.encodeValuePair((byte)ChannelMap.TYPE_STRING, 3, "x"),
+			DataGeneratorCodec.encodeFloat32(4, 2f),
+			DataGeneratorCodec.encodeFloat32(5, 9f),
+		};
+		long[] timestamps = {-1, -1, -1, -1};
+		float[] floats = {-1, -1, -1, -1};
+		//Only the first count blobs are decoded
+		assert_equals("decoded", 3, DataGeneratorCodec.decodeColumns(blobs, 3, timestamps, floats));
+		assert_equals("null timestamp", 0, timestamps[0]);
+		assert_true("null value", Float.isNaN(floats[0]));
+		assert_equals("string timestamp", 3, timestamps[1]);
+		assert_true("string value", Float.isNaN(floats[1]));
+		assert_equals("float value", 2f, floats[2], 0);
+		assert_equals("past count", -1, timestamps[3]);
+		assert_equals("past count", -1f, floats[3], 0);
+
+		double[] doubles = new double[3];
+		DataGeneratorCodec.decodeColumns(blobs, 3, new long[3], doubles);
+		assert_true("null value as double", Double.isNaN(doubles[0]));
+		assert_true("string value as double", Double.isNaN(doubles[1]));
+	}
+}